@@ -0,0 +1,69 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@code format()} per value conversion branch, on payloads of a single datatype.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatatypeBenchmark {
+
+    // Unknown is datatype 0, read as a number; Unassigned a datatype number Sparkplug does not define
+    @Param({"Unknown", "Int8", "Int16", "Int32", "Int64", "UInt8", "UInt16", "UInt32", "UInt64",
+        "Float", "Double", "Boolean", "String", "DateTime", "Text", "UUID", "Unassigned"})
+    public String datatype;
+
+    @Param({"100"})
+    public int metricCount;
+
+    @Param({"false", "true"})
+    public boolean typedValues;
+
+    private CustomizedSparkplugPayloadFormatter formatter;
+    private ByteBuf payload;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.TYPED_VALUES, String.valueOf(typedValues));
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        int rawType = PayloadGenerator.rawType(datatype);
+        byte[] bytes = rawType >= 0 ? PayloadGenerator.encodeRaw(metricCount, rawType, true)
+            : PayloadGenerator.encode(metricCount, new MetricDataType[] {PayloadGenerator.scalarType(datatype)}, true);
+        payload = PayloadGenerator.BufferKind.HEAP.wrap(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+    }
+
+    @Benchmark
+    public List<Message> format() {
+        payload.readerIndex(0);
+        return formatter.format(payload);
+    }
+}
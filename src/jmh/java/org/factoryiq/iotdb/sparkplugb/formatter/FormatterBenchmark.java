@@ -0,0 +1,69 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@code format()} on whole payloads mixing every scalar datatype.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterBenchmark {
+
+    @Param({"1", "10", "1000"})
+    public int metricCount;
+
+    @Param({"true", "false"})
+    public boolean deviceProperties;
+
+    // Strings rather than the package-private enums, which the generated benchmark code cannot see
+    @Param({"HEAP", "DIRECT"})
+    public String buffer;
+
+    @Param({"GENERATED", "STREAMING"})
+    public String decoder;
+
+    private CustomizedSparkplugPayloadFormatter formatter;
+    private ByteBuf payload;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.DECODER, decoder);
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        byte[] bytes = PayloadGenerator.encode(metricCount, PayloadGenerator.SCALAR_TYPES, deviceProperties);
+        payload = PayloadGenerator.BufferKind.valueOf(buffer).wrap(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+    }
+
+    @Benchmark
+    public List<Message> format() {
+        // format() consumes the buffer, rewind it for the next invocation
+        payload.readerIndex(0);
+        return deviceProperties ? formatter.format(payload) : formatter.format(PayloadGenerator.TOPIC, payload);
+    }
+}
@@ -0,0 +1,75 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time the calling thread spends in {@code format()} on one large payload, converted
+ * sequentially ({@code parallelism} 0) or split into chunks converted in parallel. Comparing the
+ * two per {@code metricCount} shows from which payload size splitting pays off, which is where
+ * {@code parallel_threshold} belongs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelBenchmark {
+
+    @Param({"500", "1000", "2000", "5000", "10000", "20000", "50000"})
+    public int metricCount;
+
+    @Param({"0", "2", "4"})
+    public int parallelism;
+
+    @Param({"500"})
+    public int chunkSize;
+
+    @Param({"GENERATED", "STREAMING"})
+    public String decoder;
+
+    private CustomizedSparkplugPayloadFormatter formatter;
+    private ByteBuf payload;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.DECODER, decoder);
+        if (parallelism > 0) {
+            properties.setProperty(FormatterConfig.PARALLEL_THRESHOLD, "1");
+            properties.setProperty(FormatterConfig.PARALLEL_CHUNK_SIZE, String.valueOf(chunkSize));
+            properties.setProperty(FormatterConfig.PARALLELISM, String.valueOf(parallelism));
+        }
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        byte[] bytes = PayloadGenerator.encode(metricCount, PayloadGenerator.SCALAR_TYPES, true);
+        payload = PayloadGenerator.BufferKind.HEAP.wrap(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+    }
+
+    @Benchmark
+    public List<Message> format() {
+        payload.readerIndex(0);
+        return formatter.format(payload);
+    }
+}
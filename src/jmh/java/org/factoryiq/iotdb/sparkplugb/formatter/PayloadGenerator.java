@@ -0,0 +1,175 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Encodes reproducible Sparkplug B payloads for the benchmarks.
+ */
+final class PayloadGenerator {
+    static final String TOPIC = "spBv1.0/Factory/DDATA/Edge1/Press1";
+
+    /** The scalar datatypes, one per branch of the value conversion. */
+    static final MetricDataType[] SCALAR_TYPES = {
+        MetricDataType.Int8, MetricDataType.Int16, MetricDataType.Int32, MetricDataType.Int64,
+        MetricDataType.UInt8, MetricDataType.UInt16, MetricDataType.UInt32, MetricDataType.UInt64,
+        MetricDataType.Float, MetricDataType.Double, MetricDataType.Boolean, MetricDataType.String,
+        MetricDataType.DateTime, MetricDataType.Text, MetricDataType.UUID
+    };
+
+    /**
+     * Datatype numbers Tahu cannot encode a metric for, by benchmark parameter name: 0 (Unknown,
+     * converted as a number) and one Sparkplug does not assign (the default branch).
+     */
+    static final String[] RAW_TYPE_NAMES = {"Unknown", "Unassigned"};
+    static final int[] RAW_TYPES = {0, 99};
+
+    enum BufferKind {
+        HEAP {
+            @Override
+            ByteBuf wrap(byte[] bytes) {
+                return Unpooled.wrappedBuffer(bytes);
+            }
+        },
+        DIRECT {
+            @Override
+            ByteBuf wrap(byte[] bytes) {
+                return Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+            }
+        };
+
+        abstract ByteBuf wrap(byte[] bytes);
+    }
+
+    private PayloadGenerator() {
+    }
+
+    static MetricDataType scalarType(String name) {
+        for (MetricDataType type : SCALAR_TYPES) {
+            if (type.toString().equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Not a scalar datatype: " + name);
+    }
+
+    /** The datatype number of one of {@link #RAW_TYPE_NAMES}, or -1 for any other name. */
+    static int rawType(String name) {
+        for (int i = 0; i < RAW_TYPE_NAMES.length; i++) {
+            if (RAW_TYPE_NAMES[i].equals(name)) {
+                return RAW_TYPES[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A payload of {@code metricCount} metrics that carry a double value under the given datatype
+     * number, built straight from the protobuf classes.
+     */
+    static byte[] encodeRaw(int metricCount, int datatype, boolean deviceProperties) {
+        Random random = new Random(metricCount);
+        long timestamp = 1700000000000L;
+        SparkplugBProto.Payload.Builder payload = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(timestamp)
+            .setSeq(0);
+        for (int i = 0; i < metricCount; i++) {
+            SparkplugBProto.Payload.Metric.Builder metric = SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Line/Datatype " + datatype + " Value " + i)
+                .setTimestamp(timestamp)
+                .setDatatype(datatype)
+                .setDoubleValue(random.nextDouble() * 1000);
+            if (deviceProperties) {
+                metric.setProperties(SparkplugBProto.Payload.PropertySet.newBuilder()
+                    .addKeys("group").addValues(stringProperty("Plant1"))
+                    .addKeys("edge").addValues(stringProperty("Line 1"))
+                    .addKeys("device").addValues(stringProperty("Press-1")));
+            }
+            payload.addMetrics(metric);
+        }
+        return payload.build().toByteArray();
+    }
+
+    private static SparkplugBProto.Payload.PropertyValue stringProperty(String value) {
+        return SparkplugBProto.Payload.PropertyValue.newBuilder().setType(12).setStringValue(value).build();
+    }
+
+    /**
+     * A payload of {@code metricCount} metrics of the given types, cycling through them. With
+     * device properties every metric carries group, edge and device; without, the device path
+     * has to come from {@link #TOPIC}.
+     */
+    static byte[] encode(int metricCount, MetricDataType[] types, boolean deviceProperties) throws Exception {
+        return encode(metricCount, types, deviceProperties, 0L);
+    }
+
+    /** Like {@link #encode(int, MetricDataType[], boolean)}, with the given payload {@code seq}. */
+    static byte[] encode(int metricCount, MetricDataType[] types, boolean deviceProperties, long seq) throws Exception {
+        Random random = new Random(metricCount);
+        long timestamp = 1700000000000L;
+        SparkplugBPayload payload = new SparkplugBPayload(
+            new Date(timestamp), new ArrayList<Metric>(), seq, null, null);
+        for (int i = 0; i < metricCount; i++) {
+            MetricDataType type = types[i % types.length];
+            Metric metric = new Metric.MetricBuilder("Line/" + type + " Value " + i, type, value(type, random))
+                .timestamp(new Date(timestamp))
+                .createMetric();
+            if (deviceProperties) {
+                metric.setProperties(new PropertySet.PropertySetBuilder()
+                    .addProperty("group", new PropertyValue(PropertyDataType.String, "Plant1"))
+                    .addProperty("edge", new PropertyValue(PropertyDataType.String, "Line 1"))
+                    .addProperty("device", new PropertyValue(PropertyDataType.String, "Press-1"))
+                    .createPropertySet());
+            }
+            payload.addMetric(metric);
+        }
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+
+    private static Object value(MetricDataType type, Random random) {
+        switch (type.toIntValue()) {
+            case 1: // Int8
+                return (byte) random.nextInt();
+            case 2: // Int16
+                return (short) random.nextInt();
+            case 3: // Int32
+                return random.nextInt();
+            case 4: // Int64
+                return random.nextLong();
+            case 5: // UInt8
+                return (short) random.nextInt(256);
+            case 6: // UInt16
+                return random.nextInt(65536);
+            case 7: // UInt32
+                return random.nextLong() & 0xFFFFFFFFL;
+            case 8: // UInt64
+                return BigInteger.valueOf(random.nextLong() & Long.MAX_VALUE);
+            case 9: // Float
+                return random.nextFloat() * 1000;
+            case 10: // Double
+                return random.nextDouble() * 1000;
+            case 11: // Boolean
+                return random.nextBoolean();
+            case 13: // DateTime
+                return new Date(1700000000000L + random.nextInt());
+            case 15: // UUID
+                return new UUID(random.nextLong(), random.nextLong()).toString();
+            default: // String, Text
+                return "Status " + random.nextInt(100);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sequence tracking: an edge node's in-sequence DDATA stream formatted with tracking on
+ * and off. Every thread plays its own edge node, as MQTT clients are served by different threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SequenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Formatter {
+        @Param({"false", "true"})
+        public boolean sequenceTracking;
+
+        @Param({"GENERATED", "STREAMING"})
+        public String decoder;
+
+        CustomizedSparkplugPayloadFormatter formatter;
+
+        @Setup
+        public void setup() {
+            Properties properties = new Properties();
+            properties.setProperty(FormatterConfig.SEQUENCE_TRACKING, String.valueOf(sequenceTracking));
+            properties.setProperty(FormatterConfig.DECODER, decoder);
+            formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EdgeNode {
+        @Param({"10"})
+        public int metricCount;
+
+        // One payload per seq value, replayed in order
+        final ByteBuf[] payloads = new ByteBuf[256];
+        String topic;
+        int next;
+
+        @Setup
+        public void setup() throws Exception {
+            topic = "spBv1.0/Factory/DDATA/Edge" + System.identityHashCode(this) + "/Press1";
+            for (int seq = 0; seq < payloads.length; seq++) {
+                payloads[seq] = PayloadGenerator.BufferKind.HEAP.wrap(
+                    PayloadGenerator.encode(metricCount, PayloadGenerator.SCALAR_TYPES, true, seq));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            for (ByteBuf payload : payloads) {
+                payload.release();
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Message> format(Formatter formatter, EdgeNode node) {
+        ByteBuf payload = node.payloads[node.next];
+        node.next = (node.next + 1) & 0xFF;
+        payload.readerIndex(0);
+        return formatter.formatter.format(node.topic, payload);
+    }
+}
@@ -0,0 +1,185 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A simulated Sparkplug B edge node with a number of devices, publishing over its own MQTT
+ * connection: NBIRTH and a DBIRTH per device on connect, then on every {@link #publish()} a
+ * DDATA per device with fresh values.
+ */
+final class EdgeNodeSimulator {
+    static final String GROUP = "LoadTest";
+
+    /** Where the formatter finds the device path of a metric. */
+    enum Layout {
+        /** From the topic. */
+        TOPIC,
+        /** From group, edge and device properties on every metric. */
+        PROPERTIES,
+        /** From the topic, with data messages referring to metrics by the aliases of their birth. */
+        ALIASES
+    }
+
+    private final String broker;
+    private final String edgeNode;
+    private final int devices;
+    private final int metrics;
+    private final MetricDataType[] types;
+    private final Layout layout;
+    private final int qos;
+    private final Random random;
+    private final SparkplugBPayloadEncoder encoder = new SparkplugBPayloadEncoder();
+    private final LongAdder sent;
+    private final LongAdder failed;
+    private MqttClient client;
+    private long seq;
+
+    EdgeNodeSimulator(String broker, String edgeNode, int devices, int metrics, MetricDataType[] types,
+                      Layout layout, int qos, LongAdder sent, LongAdder failed) {
+        this.broker = broker;
+        this.edgeNode = edgeNode;
+        this.devices = devices;
+        this.metrics = metrics;
+        this.types = types;
+        this.layout = layout;
+        this.qos = qos;
+        this.random = new Random(edgeNode.hashCode());
+        this.sent = sent;
+        this.failed = failed;
+    }
+
+    void connect() throws Exception {
+        client = new MqttClient(broker, edgeNode, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(65535);
+        client.connect(options);
+        seq = 0;
+        SparkplugBPayload birth = new SparkplugBPayload(new Date(), new ArrayList<Metric>(), nextSeq(), null, null);
+        birth.addMetric(new Metric.MetricBuilder("bdSeq", MetricDataType.Int64, 0L).createMetric());
+        send("NBIRTH", null, birth);
+        for (int device = 0; device < devices; device++) {
+            send("DBIRTH", device, payload(device, true));
+        }
+    }
+
+    /** Publishes a DDATA for every device. */
+    void publish() {
+        for (int device = 0; device < devices; device++) {
+            try {
+                send("DDATA", device, payload(device, false));
+            } catch (Exception e) {
+                failed.increment();
+            }
+        }
+    }
+
+    void disconnect() {
+        try {
+            client.disconnect();
+            client.close();
+        } catch (MqttException e) {
+            // Shutting down anyway
+        }
+    }
+
+    private void send(String type, Integer device, SparkplugBPayload payload) throws Exception {
+        String topic = "spBv1.0/" + GROUP + "/" + type + "/" + edgeNode + (device == null ? "" : "/Device" + device);
+        client.publish(topic, encoder.getBytes(payload, false), qos, false);
+        sent.increment();
+    }
+
+    private SparkplugBPayload payload(int device, boolean birth) throws Exception {
+        Date now = new Date();
+        SparkplugBPayload payload = new SparkplugBPayload(now, new ArrayList<Metric>(metrics + 1), nextSeq(), null, null);
+        for (int i = 0; i < metrics; i++) {
+            MetricDataType type = types[i % types.length];
+            boolean named = birth || layout != Layout.ALIASES;
+            Metric metric = new Metric.MetricBuilder(named ? "Line/" + type + " " + i : null, type, value(type))
+                .timestamp(now)
+                .createMetric();
+            if (layout == Layout.ALIASES) {
+                // Aliases are unique per edge node, across all of its devices
+                metric.setAlias((long) device * metrics + i);
+            }
+            addProperties(metric, device);
+            payload.addMetric(metric);
+        }
+        if (!birth) {
+            // Taken before encoding, so the latency includes encoding as well as the broker
+            Metric sentNanos = new Metric.MetricBuilder(IngestHandler.SENT_NANOS, MetricDataType.Int64, System.nanoTime())
+                .timestamp(now)
+                .createMetric();
+            addProperties(sentNanos, device);
+            payload.addMetric(sentNanos);
+        }
+        return payload;
+    }
+
+    private void addProperties(Metric metric, int device) throws Exception {
+        if (layout == Layout.PROPERTIES) {
+            metric.setProperties(new PropertySet.PropertySetBuilder()
+                .addProperty("group", new PropertyValue(PropertyDataType.String, GROUP))
+                .addProperty("edge", new PropertyValue(PropertyDataType.String, edgeNode))
+                .addProperty("device", new PropertyValue(PropertyDataType.String, "Device" + device))
+                .createPropertySet());
+        }
+    }
+
+    // Sparkplug sequence numbers wrap from 255 to 0
+    private long nextSeq() {
+        long next = seq;
+        seq = (seq + 1) % 256;
+        return next;
+    }
+
+    private Object value(MetricDataType type) {
+        switch (type.toIntValue()) {
+            case 1: // Int8
+                return (byte) random.nextInt();
+            case 2: // Int16
+                return (short) random.nextInt();
+            case 3: // Int32
+                return random.nextInt();
+            case 4: // Int64
+                return random.nextLong();
+            case 5: // UInt8
+                return (short) random.nextInt(256);
+            case 6: // UInt16
+                return random.nextInt(65536);
+            case 7: // UInt32
+                return random.nextLong() & 0xFFFFFFFFL;
+            case 8: // UInt64
+                return BigInteger.valueOf(random.nextLong() & Long.MAX_VALUE);
+            case 9: // Float
+                return random.nextFloat() * 1000;
+            case 10: // Double
+                return random.nextDouble() * 1000;
+            case 11: // Boolean
+                return random.nextBoolean();
+            case 13: // DateTime
+                return new Date(System.currentTimeMillis() + random.nextInt(1000));
+            case 15: // UUID
+                return new UUID(random.nextLong(), random.nextLong()).toString();
+            default: // String, Text
+                return "Status " + random.nextInt(100);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker interceptor that formats every published payload, like the publish handler of IoTDB's
+ * MQTT service, and measures how long after it was published each payload came out of the
+ * formatter. Publishers put {@code System.nanoTime()} into a {@value #SENT_NANOS} metric, which
+ * works because they run in the same JVM.
+ */
+final class IngestHandler extends AbstractInterceptHandler {
+    static final String SENT_NANOS = "load_sent_nanos";
+
+    private final CustomizedSparkplugPayloadFormatter formatter;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram formatTime = new LatencyHistogram();
+    private final LongAdder payloads = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+
+    IngestHandler(CustomizedSparkplugPayloadFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    @Override
+    public String getID() {
+        return "sparkplugb-load-test";
+    }
+
+    @Override
+    public void onPublish(InterceptPublishMessage msg) {
+        try {
+            long start = System.nanoTime();
+            List<Message> messages = formatter.format(msg.getTopicName(), msg.getPayload());
+            long end = System.nanoTime();
+            formatTime.record(end - start);
+            long sent = sentNanos(messages);
+            if (sent != 0) {
+                latency.record(end - sent);
+            }
+            payloads.increment();
+            for (Message message : messages) {
+                samples.add(message.getMeasurements().size());
+            }
+        } finally {
+            // Interceptors own the payload, as in IoTDB's publish handler
+            msg.getPayload().release();
+        }
+    }
+
+    @Override
+    public void onSessionLoopError(Throwable error) {
+        // Reported by the broker
+    }
+
+    /** Zeroes the measurements, at the end of the warmup. */
+    void reset() {
+        latency.reset();
+        formatTime.reset();
+        payloads.reset();
+        samples.reset();
+    }
+
+    /** Time from publishing a payload until the formatter returned its messages. */
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /** Time spent in {@code format()}. */
+    LatencyHistogram getFormatTime() {
+        return formatTime;
+    }
+
+    long getPayloads() {
+        return payloads.sum();
+    }
+
+    long getSamples() {
+        return samples.sum();
+    }
+
+    private static long sentNanos(List<Message> messages) {
+        for (Message message : messages) {
+            int index = message.getMeasurements().indexOf(SENT_NANOS);
+            if (index >= 0) {
+                return Long.parseLong(message.getValues().get(index));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,274 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import org.eclipse.tahu.message.model.MetricDataType;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test on one machine: an embedded Moquette broker, the broker IoTDB's MQTT
+ * service is built on, formats every publish with the formatter like IoTDB's publish handler
+ * does, while simulated edge nodes publish at a fixed rate over loopback. Reports sustained
+ * payloads and samples per second, publish-to-formatted latency percentiles and GC pauses over
+ * the measurement period. Writing to the storage engine is not part of it.
+ *
+ * <pre>
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.args="--edge-nodes 50 --metrics 200 --rate 5"
+ * </pre>
+ *
+ * Options, with their defaults: {@code --edge-nodes 10}, {@code --devices 1} per edge node,
+ * {@code --metrics 100} per payload, {@code --types Double,Int32,Boolean,String},
+ * {@code --rate 10} DDATA per device and second, {@code --layout topic|properties|aliases},
+ * {@code --qos 0}, {@code --publishers} threads (CPUs), {@code --warmup 10} and
+ * {@code --duration 60} seconds. Formatter settings come from {@code --config FILE} and
+ * {@code sparkplugb.formatter.*} system properties as usual.
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        if (options.config != null) {
+            System.setProperty(FormatterConfig.CONFIG_FILE, options.config);
+        }
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(FormatterConfig.load());
+        IngestHandler handler = new IngestHandler(formatter);
+        GcPauses gcPauses = new GcPauses();
+
+        int port = freePort();
+        Properties brokerProperties = new Properties();
+        brokerProperties.setProperty(BrokerConstants.HOST_PROPERTY_NAME, "127.0.0.1");
+        brokerProperties.setProperty(BrokerConstants.PORT_PROPERTY_NAME, String.valueOf(port));
+        brokerProperties.setProperty(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        brokerProperties.setProperty(BrokerConstants.BROKER_INTERCEPTOR_THREAD_POOL_SIZE,
+            String.valueOf(Runtime.getRuntime().availableProcessors()));
+        brokerProperties.setProperty(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME, String.valueOf(64 * 1024 * 1024));
+        brokerProperties.setProperty("persistence_enabled", "false");
+        Server broker = new Server();
+        broker.startServer(new MemoryConfig(brokerProperties), Collections.singletonList(handler));
+
+        LongAdder sent = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<EdgeNodeSimulator> edgeNodes = new ArrayList<>(options.edgeNodes);
+        ScheduledExecutorService publishers = Executors.newScheduledThreadPool(options.publishers);
+        try {
+            for (int i = 0; i < options.edgeNodes; i++) {
+                EdgeNodeSimulator edgeNode = new EdgeNodeSimulator("tcp://127.0.0.1:" + port, "Edge" + i,
+                    options.devices, options.metrics, options.types, options.layout, options.qos, sent, failed);
+                edgeNode.connect();
+                edgeNodes.add(edgeNode);
+            }
+            long period = TimeUnit.SECONDS.toNanos(1) / options.rate;
+            for (int i = 0; i < edgeNodes.size(); i++) {
+                EdgeNodeSimulator edgeNode = edgeNodes.get(i);
+                // Spread the edge nodes over the period instead of publishing in bursts
+                publishers.scheduleAtFixedRate(edgeNode::publish, period * i / edgeNodes.size(), period,
+                    TimeUnit.NANOSECONDS);
+            }
+
+            TimeUnit.SECONDS.sleep(options.warmup);
+            handler.reset();
+            gcPauses.reset();
+            long sentBefore = sent.sum();
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(options.duration);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long payloads = handler.getPayloads();
+            long samples = handler.getSamples();
+            long published = sent.sum() - sentBefore;
+
+            System.out.printf(Locale.ROOT, "Offered:   %d edge nodes x %d devices x %d payloads/s of %d metrics (%s, %s)%n",
+                options.edgeNodes, options.devices, options.rate, options.metrics, options.layout, options.typeNames);
+            System.out.printf(Locale.ROOT, "Published: %.0f payloads/s, %d failed%n", published / seconds, failed.sum());
+            System.out.printf(Locale.ROOT, "Formatted: %.0f payloads/s, %.0f samples/s%n", payloads / seconds, samples / seconds);
+            print("Latency", handler.getLatency());
+            print("Format", handler.getFormatTime());
+            System.out.printf(Locale.ROOT, "GC pauses: %d, %d ms in total (%.2f%% of the time), longest %d ms%n",
+                gcPauses.count(), gcPauses.totalMillis(), gcPauses.totalMillis() / seconds / 10, gcPauses.maxMillis());
+            FormatterStats stats = formatter.getStats();
+            System.out.printf(Locale.ROOT, "Formatter: %d parse failures, %d unknown aliases, %d sequence gaps%n",
+                stats.getParseFailures(), stats.getUnknownAliases(), stats.getSequenceGaps());
+        } finally {
+            publishers.shutdownNow();
+            publishers.awaitTermination(10, TimeUnit.SECONDS);
+            for (EdgeNodeSimulator edgeNode : edgeNodes) {
+                edgeNode.disconnect();
+            }
+            broker.stopServer();
+            formatter.close();
+            gcPauses.close();
+        }
+    }
+
+    private static void print(String label, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-10s p50 %d, p90 %d, p99 %d, p99.9 %d, max %d us (%d payloads)%n", label + ":",
+            micros(histogram.percentile(0.5)), micros(histogram.percentile(0.9)), micros(histogram.percentile(0.99)),
+            micros(histogram.percentile(0.999)), micros(histogram.max()), histogram.count());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Options {
+        int edgeNodes = 10;
+        int devices = 1;
+        int metrics = 100;
+        String typeNames = "Double,Int32,Boolean,String";
+        MetricDataType[] types;
+        int rate = 10;
+        EdgeNodeSimulator.Layout layout = EdgeNodeSimulator.Layout.TOPIC;
+        int qos = 0;
+        int publishers = Runtime.getRuntime().availableProcessors();
+        int warmup = 10;
+        int duration = 60;
+        String config;
+
+        Options(String[] args) {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--edge-nodes":
+                        edgeNodes = Integer.parseInt(value);
+                        break;
+                    case "--devices":
+                        devices = Integer.parseInt(value);
+                        break;
+                    case "--metrics":
+                        metrics = Integer.parseInt(value);
+                        break;
+                    case "--types":
+                        typeNames = value;
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(value);
+                        break;
+                    case "--layout":
+                        layout = EdgeNodeSimulator.Layout.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--qos":
+                        qos = Integer.parseInt(value);
+                        break;
+                    case "--publishers":
+                        publishers = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "--config":
+                        config = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            }
+            String[] names = typeNames.split(",");
+            types = new MetricDataType[names.length];
+            for (int i = 0; i < names.length; i++) {
+                types[i] = scalarType(names[i].trim());
+            }
+        }
+
+        // MetricDataType is not an enum; the scalar types are codes 1 to 15
+        private static MetricDataType scalarType(String name) {
+            for (int code = 1; code <= 15; code++) {
+                MetricDataType type = MetricDataType.fromInteger(code);
+                if (type.getType().equals(name)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Not a scalar Sparkplug datatype: " + name);
+        }
+    }
+
+    // Stop-the-world collections reported by the collectors; concurrent cycles are left out
+    private static final class GcPauses implements NotificationListener {
+        private final List<NotificationEmitter> emitters = new ArrayList<>();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private volatile long max;
+
+        GcPauses() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    NotificationEmitter emitter = (NotificationEmitter) collector;
+                    emitter.addNotificationListener(this, null, null);
+                    emitters.add(emitter);
+                }
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info =
+                GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            String name = info.getGcName();
+            if (name.contains("Concurrent") || name.contains("Cycles")) {
+                return;
+            }
+            long millis = info.getGcInfo().getDuration();
+            count.increment();
+            total.add(millis);
+            max = Math.max(max, millis);
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max = 0;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long totalMillis() {
+            return total.sum();
+        }
+
+        long maxMillis() {
+            return max;
+        }
+
+        void close() throws Exception {
+            for (NotificationEmitter emitter : emitters) {
+                emitter.removeNotificationListener(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+/**
+ * What a birth certificate declared for one metric alias.
+ */
+final class AliasEntry {
+    private final long alias;
+    private final String name;
+    private final int datatype;
+    private final String device;
+    private final String deviceId;
+
+    /**
+     * @param device   device path resolved when the birth was processed, or {@code null}
+     * @param deviceId Sparkplug device id of a DBIRTH, {@code null} for edge node metrics
+     */
+    AliasEntry(long alias, String name, int datatype, String device, String deviceId) {
+        this.alias = alias;
+        this.name = name;
+        this.datatype = datatype;
+        this.device = device;
+        this.deviceId = deviceId;
+    }
+
+    long getAlias() {
+        return alias;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getDatatype() {
+        return datatype;
+    }
+
+    String getDevice() {
+        return device;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+}
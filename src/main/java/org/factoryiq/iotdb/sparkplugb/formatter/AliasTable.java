@@ -0,0 +1,84 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable alias lookup table with primitive {@code long} keys.
+ *
+ * <p>Tables are rebuilt only when a birth or death certificate arrives and are published by
+ * replacing a volatile reference, so data messages resolve aliases without locks or boxing.
+ */
+final class AliasTable {
+    static final AliasTable EMPTY = new AliasTable(new LinkedHashMap<Long, AliasEntry>());
+
+    private final long[] keys;
+    private final AliasEntry[] entries;
+    private final int mask;
+    private final int size;
+
+    private AliasTable(Map<Long, AliasEntry> source) {
+        int capacity = 2;
+        while (capacity < source.size() * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.entries = new AliasEntry[capacity];
+        this.mask = capacity - 1;
+        this.size = source.size();
+        for (AliasEntry entry : source.values()) {
+            int slot = slot(entry.getAlias());
+            while (entries[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = entry.getAlias();
+            entries[slot] = entry;
+        }
+    }
+
+    AliasEntry get(long alias) {
+        int slot = slot(alias);
+        AliasEntry entry;
+        while ((entry = entries[slot]) != null) {
+            if (keys[slot] == alias) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Copy of this table with the given entries added, replacing entries with the same alias. */
+    AliasTable with(Collection<AliasEntry> added) {
+        Map<Long, AliasEntry> merged = toMap(null);
+        for (AliasEntry entry : added) {
+            merged.put(entry.getAlias(), entry);
+        }
+        return new AliasTable(merged);
+    }
+
+    /** Copy of this table without the entries a DBIRTH of the given device declared. */
+    AliasTable withoutDevice(String deviceId) {
+        return new AliasTable(toMap(deviceId));
+    }
+
+    private Map<Long, AliasEntry> toMap(String excludedDeviceId) {
+        Map<Long, AliasEntry> map = new LinkedHashMap<>();
+        for (AliasEntry entry : entries) {
+            if (entry != null && (excludedDeviceId == null || !excludedDeviceId.equals(entry.getDeviceId()))) {
+                map.put(entry.getAlias(), entry);
+            }
+        }
+        return map;
+    }
+
+    private int slot(long alias) {
+        long hash = alias * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
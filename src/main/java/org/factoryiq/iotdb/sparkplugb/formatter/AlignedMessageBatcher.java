@@ -0,0 +1,125 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups single-measurement messages by device path and timestamp so that IoTDB receives one
+ * row insert per group instead of one per metric.
+ */
+final class AlignedMessageBatcher {
+
+    private AlignedMessageBatcher() {
+    }
+
+    /**
+     * Returns the merged messages in order of first appearance. When the same measurement shows
+     * up twice in a group the later value wins, matching what two separate inserts would store.
+     */
+    static List<Message> batch(List<Message> messages) {
+        if (messages.size() < 2) {
+            return messages;
+        }
+
+        Map<RowKey, Row> rows = new HashMap<>();
+        List<Row> ordered = new ArrayList<>();
+        for (Message message : messages) {
+            RowKey key = new RowKey(message.getDevice(), message.getTimestamp());
+            Row row = rows.get(key);
+            if (row == null) {
+                row = new Row(message.getDevice(), message.getTimestamp());
+                rows.put(key, row);
+                ordered.add(row);
+            }
+            List<String> measurements = message.getMeasurements();
+            List<TSDataType> dataTypes = message.getDataTypes();
+            List<String> values = message.getValues();
+            for (int i = 0; i < measurements.size(); i++) {
+                row.put(measurements.get(i), dataTypes == null ? null : dataTypes.get(i), values.get(i));
+            }
+        }
+
+        if (ordered.size() == messages.size()) {
+            return messages;
+        }
+
+        List<Message> batched = new ArrayList<>(ordered.size());
+        for (Row row : ordered) {
+            batched.add(row.toMessage());
+        }
+        return batched;
+    }
+
+    private static final class RowKey {
+        private final String device;
+        private final long timestamp;
+
+        RowKey(String device, long timestamp) {
+            this.device = device;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            return timestamp == other.timestamp && device.equals(other.device);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * device.hashCode() + Long.hashCode(timestamp);
+        }
+    }
+
+    private static final class Row {
+        private final String device;
+        private final long timestamp;
+        private final List<String> measurements = new ArrayList<>();
+        private final List<TSDataType> dataTypes = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private boolean typed;
+        private final Map<String, Integer> positions = new HashMap<>();
+
+        Row(String device, long timestamp) {
+            this.device = device;
+            this.timestamp = timestamp;
+        }
+
+        void put(String measurement, TSDataType dataType, String value) {
+            typed |= dataType != null;
+            Integer position = positions.get(measurement);
+            if (position != null) {
+                dataTypes.set(position, dataType);
+                values.set(position, value);
+                return;
+            }
+            positions.put(measurement, measurements.size());
+            measurements.add(measurement);
+            dataTypes.add(dataType);
+            values.add(value);
+        }
+
+        Message toMessage() {
+            Message message = new Message();
+            message.setDevice(device);
+            message.setTimestamp(timestamp);
+            message.setMeasurements(measurements);
+            if (typed) {
+                message.setDataTypes(dataTypes);
+            }
+            message.setValues(values);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.CodedInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.util.Arrays;
+
+/**
+ * Builds a {@link CodedInputStream} over the readable bytes of a {@link ByteBuf} without
+ * copying them into an intermediate array. Heap buffers are read from their backing array,
+ * direct and composite buffers through their NIO views.
+ */
+final class ByteBufCodedInput {
+
+    private ByteBufCodedInput() {
+    }
+
+    /**
+     * The returned stream does not depend on the buffer's reader index, so the caller may
+     * advance it straight away. The buffer must stay alive until decoding has finished.
+     */
+    static CodedInputStream newInstance(ByteBuf buffer) {
+        int index = buffer.readerIndex();
+        int length = buffer.readableBytes();
+
+        if (buffer.hasArray()) {
+            return CodedInputStream.newInstance(buffer.array(), buffer.arrayOffset() + index, length);
+        }
+
+        int count = buffer.nioBufferCount();
+        if (count == 1) {
+            return CodedInputStream.newInstance(buffer.nioBuffer(index, length));
+        }
+        if (count > 1) {
+            // Composite buffers: walk the components in place rather than merging them
+            return CodedInputStream.newInstance(Arrays.asList(buffer.nioBuffers(index, length)));
+        }
+
+        // Buffers without NIO support are streamed through a small internal chunk buffer
+        return CodedInputStream.newInstance(new ByteBufInputStream(buffer.duplicate()));
+    }
+}
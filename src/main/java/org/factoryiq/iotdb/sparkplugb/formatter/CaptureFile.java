@@ -0,0 +1,105 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File of captured MQTT messages, one record after the other: a big-endian 32-bit topic length,
+ * the topic in UTF-8, a big-endian 32-bit payload length and the payload. An empty topic stands
+ * for a message captured without one.
+ *
+ * <p>Files are read through memory mappings of up to {@link #DEFAULT_WINDOW} bytes at a time, and
+ * payloads are handed over as slices of the mapping, without copying.
+ */
+final class CaptureFile {
+    static final int DEFAULT_WINDOW = 256 * 1024 * 1024;
+    static final int MAX_TOPIC_LENGTH = 65535;
+
+    private static final int LENGTH_BYTES = 4;
+
+    interface RecordHandler {
+        /** {@code topic} is null for a message captured without one. */
+        void onRecord(String topic, ByteBuf payload) throws Exception;
+    }
+
+    private CaptureFile() {
+    }
+
+    /** Appends one record. */
+    static void write(DataOutputStream out, String topic, byte[] payload) throws IOException {
+        byte[] topicBytes = topic == null ? new byte[0] : topic.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(topicBytes.length);
+        out.write(topicBytes);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /** Hands every record of {@code file} to {@code handler}, in file order, and returns their number. */
+    static long read(Path file, RecordHandler handler) throws Exception {
+        return read(file, handler, DEFAULT_WINDOW);
+    }
+
+    static long read(Path file, RecordHandler handler, int window) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long records = 0;
+            int mapped = window;
+            while (position < size) {
+                int length = (int) Math.min(size - position, mapped);
+                ByteBuf region = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                int offset = 0;
+                // Bytes the record at offset needs, once it no longer fits into the mapping
+                long needed = 0;
+                while (offset < length) {
+                    needed = recordLength(region, offset, length, file, position);
+                    if (offset + needed > length) {
+                        break;
+                    }
+                    int topicLength = region.getInt(offset);
+                    String topic = topicLength == 0 ? null
+                        : region.toString(offset + LENGTH_BYTES, topicLength, StandardCharsets.UTF_8);
+                    int payloadIndex = offset + 2 * LENGTH_BYTES + topicLength;
+                    handler.onRecord(topic, region.slice(payloadIndex, region.getInt(payloadIndex - LENGTH_BYTES)));
+                    offset += (int) needed;
+                    records++;
+                }
+                if (offset == 0 && position + length == size) {
+                    throw new IOException("Truncated capture record at byte " + position + " of " + file);
+                }
+                // A record larger than the mapping gets a mapping of its own
+                mapped = offset == 0 ? (int) Math.max(needed, 2 * LENGTH_BYTES + MAX_TOPIC_LENGTH) : window;
+                position += offset;
+            }
+            return records;
+        }
+    }
+
+    // Length of the record at offset, or as much of it as can be told from the mapped bytes
+    private static long recordLength(ByteBuf region, int offset, int length, Path file, long position)
+        throws IOException {
+        if (offset + LENGTH_BYTES > length) {
+            return LENGTH_BYTES;
+        }
+        int topicLength = region.getInt(offset);
+        if (topicLength < 0 || topicLength > MAX_TOPIC_LENGTH) {
+            throw new IOException("Corrupt capture record at byte " + (position + offset) + " of " + file);
+        }
+        long payloadLengthEnd = (long) offset + 2 * LENGTH_BYTES + topicLength;
+        if (payloadLengthEnd > length) {
+            return payloadLengthEnd - offset;
+        }
+        int payloadLength = region.getInt((int) payloadLengthEnd - LENGTH_BYTES);
+        if (payloadLength < 0 || payloadLengthEnd - offset + payloadLength > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt capture record at byte " + (position + offset) + " of " + file);
+        }
+        return payloadLengthEnd - offset + payloadLength;
+    }
+}
@@ -3,81 +3,939 @@ package org.factoryiq.iotdb.sparkplugb.formatter;
 import org.apache.iotdb.db.protocol.mqtt.PayloadFormatter;
 import org.apache.iotdb.db.protocol.mqtt.Message;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.apache.tsfile.enums.TSDataType;
 import org.eclipse.tahu.protobuf.SparkplugBProto;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
-import com.google.common.collect.Lists;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class CustomizedSparkplugPayloadFormatter implements PayloadFormatter {
+public class CustomizedSparkplugPayloadFormatter implements PayloadFormatter, AutoCloseable {
     private static final Logger LOGGER = LoggerFactory.getLogger(CustomizedSparkplugPayloadFormatter.class);
-    private static final String DEFAULT_DEVICE = "root.mqtt.sparkplugb";
+    private static final String BD_SEQ = "bdSeq";
+    private static final int MAX_TEMPLATE_DEPTH = 16;
+    private static final List<String> SEQUENCE_MEASUREMENTS = Collections.unmodifiableList(Arrays.asList(
+        "sparkplug_seq_gaps", "sparkplug_missed_messages", "sparkplug_out_of_order", "sparkplug_rebirths"));
+    private static final List<TSDataType> SEQUENCE_DATA_TYPES = Collections.unmodifiableList(Arrays.asList(
+        TSDataType.INT64, TSDataType.INT64, TSDataType.INT64, TSDataType.INT64));
+    private static final List<TSDataType> WINDOW_DATA_TYPES = Collections.unmodifiableList(Arrays.asList(
+        TSDataType.DOUBLE, TSDataType.DOUBLE, TSDataType.DOUBLE, TSDataType.INT64, TSDataType.DOUBLE));
+
+    private final FormatterConfig config;
+    private final NormalizedNameCache nameCache;
+    private final EdgeNodeRegistry edgeNodes = new EdgeNodeRegistry();
+    private final DeadbandFilter deadbandFilter;
+    private final DuplicateFilter duplicateFilter;
+    private final WindowAggregator aggregator;
+    private final LastValueStore lastValues;
+    private final SequenceTracker sequences;
+    // Keeps the bytes of payloads that fail, null unless a dead-letter file is configured
+    private final DeadLetterSpool deadLetters;
+    private final FormatterStats stats;
+    private final RateLimitedLogger warnings;
+    private final DevicePropertyKeys propertyKeys;
+    private final DevicePathTemplate pathTemplate;
+    private final DevicePathCache devicePaths;
+    private final String defaultDevice;
+    // Converts the chunks of large payloads, null unless parallel conversion is enabled
+    private final ForkJoinPool pool;
+    // Per-thread state reused from payload to payload, so that formatting allocates little
+    // beyond the messages handed to IoTDB
+    private final ThreadLocal<PayloadContext> contexts = ThreadLocal.withInitial(PayloadContext::new);
+    // Names of the MBeans published for this instance, unregistered by close()
+    private final List<ObjectName> mbeans = new ArrayList<>(2);
+
+    public CustomizedSparkplugPayloadFormatter() {
+        this(FormatterConfig.load());
+        if (config.isJmx()) {
+            mbeans.add(stats.register(getName()));
+            if (lastValues != null) {
+                mbeans.add(FormatterStats.register(lastValues, LastValueStoreMBean.class, "LastValues", getName()));
+            }
+        }
+    }
+
+    CustomizedSparkplugPayloadFormatter(FormatterConfig config) {
+        this.config = config;
+        this.nameCache = new NormalizedNameCache(config.getNameCacheSize());
+        this.propertyKeys = config.getDevicePropertyKeys();
+        this.pathTemplate = config.getDevicePathTemplate();
+        this.devicePaths = new DevicePathCache(pathTemplate, nameCache, config.getDevicePathCacheSize());
+        this.defaultDevice = pathTemplate.prefix();
+        this.deadbandFilter = config.getDeadbandMode() == DeadbandFilter.Mode.OFF ? null
+            : new DeadbandFilter(config.getDeadbandMode(), config.getDeadband(),
+                config.getDeadbandMaxSilenceMillis(), config.getDeadbandMaxSeries());
+        this.duplicateFilter = config.isDedup()
+            ? new DuplicateFilter(config.getDedupLatenessMillis(), config.getDedupMaxSeries()) : null;
+        this.aggregator = config.getAggregationWindowMillis() > 0
+            ? new WindowAggregator(config.getAggregationWindowMillis(), config.getAggregationPaths(),
+                config.getAggregationRawPaths(), config.getAggregationMaxSeries()) : null;
+        this.lastValues = config.isLastValueStore()
+            ? new LastValueStore(config.getLastValueMaxSeries(), config.getLastValueMaxValueBytes()) : null;
+        this.sequences = config.isSequenceTracking() ? new SequenceTracker() : null;
+        this.warnings = new RateLimitedLogger(LOGGER, config.getLogIntervalMillis(), config.getLogStackTraces());
+        this.deadLetters = openDeadLetters(config);
+        this.stats = new FormatterStats(nameCache, devicePaths, deadbandFilter, duplicateFilter, aggregator,
+            sequences, deadLetters, warnings);
+        this.pool = config.getParallelThreshold() > 0 && isSplittable() ? newPool(config.getParallelism()) : null;
+    }
+
+    // The duplicate filter, deadband and aggregator keep per-series state that chunks converted
+    // at the same time would update in no particular order, so payloads are only split without them
+    private boolean isSplittable() {
+        if (deadbandFilter == null && duplicateFilter == null && aggregator == null) {
+            return true;
+        }
+        LOGGER.warn("Parallel conversion is disabled while dedup, deadband or aggregation is enabled, "
+            + "every payload is converted on the calling thread");
+        return false;
+    }
+
+    // Worker threads are daemons, like those of the common pool, and named after the formatter
+    private static ForkJoinPool newPool(int parallelism) {
+        AtomicInteger threads = new AtomicInteger();
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("sparkplugb-formatter-" + threads.incrementAndGet());
+            return thread;
+        }, null, false);
+    }
+
+    private static DeadLetterSpool openDeadLetters(FormatterConfig config) {
+        if (config.getDeadLetterFile() == null) {
+            return null;
+        }
+        try {
+            return new DeadLetterSpool(Paths.get(config.getDeadLetterFile()), config.getDeadLetterMaxBytes(),
+                config.getDeadLetterQueue());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not open dead-letter file {}, payloads that fail are not kept: {}",
+                config.getDeadLetterFile(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters the MBeans of this instance, writes out and closes the dead-letter file and
+     * shuts down the conversion pool; later payloads are converted on the calling thread. IoTDB
+     * keeps its formatter for the life of the server; tools and tests that create formatters
+     * close them when done.
+     */
+    @Override
+    public void close() {
+        for (ObjectName objectName : mbeans) {
+            FormatterStats.unregister(objectName);
+        }
+        mbeans.clear();
+        if (deadLetters != null) {
+            try {
+                deadLetters.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close dead-letter file {}: {}", config.getDeadLetterFile(), e.toString());
+            }
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
 
     @Override
     public List<Message> format(ByteBuf payload) {
+        return format((SparkplugTopic) null, payload);
+    }
+
+    // Picked up by IoTDB versions that hand the MQTT topic to the formatter; the topic scopes
+    // birth certificate aliases to their edge node and supplies device paths for metrics
+    // that carry no device properties
+    public List<Message> format(String topic, ByteBuf payload) {
+        return format(SparkplugTopic.parse(topic), payload);
+    }
+
+    private List<Message> format(SparkplugTopic topic, ByteBuf payload) {
+        long start = System.nanoTime();
+        stats.payloadReceived();
+        List<Message> messages = decode(topic, payload);
+        if (aggregator != null && aggregator.isSweepDue(System.currentTimeMillis())) {
+            messages = addExpiredWindows(messages);
+        }
+        if (lastValues != null) {
+            lastValues.update(messages);
+        }
+        stats.messagesEmitted(messages.size());
+        stats.recordFormatNanos(System.nanoTime() - start);
+        return messages;
+    }
+
+    // Windows of series that went quiet are written along with whichever payload comes next
+    private List<Message> addExpiredWindows(List<Message> messages) {
+        List<WindowAggregator.Window> expired = aggregator.closeExpired(System.currentTimeMillis());
+        if (expired.isEmpty()) {
+            return messages;
+        }
+        List<Message> withWindows = new ArrayList<>(messages.size() + expired.size());
+        withWindows.addAll(messages);
+        char[] decimals = contexts.get().decimals;
+        for (WindowAggregator.Window window : expired) {
+            withWindows.add(windowMessage(window, decimals));
+        }
+        return withWindows;
+    }
+
+    private List<Message> decode(SparkplugTopic topic, ByteBuf payload) {
         if (payload == null || !payload.isReadable()) {
-            LOGGER.warn("Received null or empty payload");
+            warnings.warn("empty-payload", "Received null or empty payload");
+            stats.drop(FormatterStats.DropReason.PARSE_FAILURE);
             return Collections.emptyList();
         }
 
+        PayloadContext context = contexts.get();
+        int index = payload.readerIndex();
+        int length = payload.readableBytes();
         try {
-            byte[] bytes = new byte[payload.readableBytes()];
-            payload.readBytes(bytes);
-            
-            SparkplugBProto.Payload protoPayload = SparkplugBProto.Payload.parseFrom(bytes);
-            
-            if (protoPayload.getMetricsCount() == 0) {
-                LOGGER.warn("Payload contains no metrics");
-                return Collections.emptyList();
-            }
-
-            List<Message> messages = new ArrayList<>();
-            for (SparkplugBProto.Payload.Metric metric : protoPayload.getMetricsList()) {
-                try {
-                    Message message = createMessageFromMetric(metric);
-                    if (message != null && isValidMessage(message)) {
-                        messages.add(message);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Error processing metric {}: {}", metric.getName(), e.getMessage(), e);
+            int metricCount;
+            long seq;
+            if (config.getDecoder() == FormatterConfig.Decoder.STREAMING) {
+                // Read straight from the buffer; a first pass counts the metrics to size the result
+                SparkplugStreamDecoder decoder = context.decoder;
+                ByteBuf source = payload;
+                metricCount = decoder.countMetrics(source);
+                if (decoder.isCompressed()) {
+                    // The real payload is the body; one level only, a compressed body is not unwrapped again
+                    source = context.inflater().inflate(decoder.compressionAlgorithm(payload), decoder.body(payload));
+                    stats.payloadDecompressed();
+                    metricCount = decoder.countMetrics(source);
+                }
+                // Death certificates usually carry no metrics, so track state before the empty check
+                beginPayload(context, topic, metricCount);
+                if (isSplit(metricCount)) {
+                    seq = convertInParallel(context, source, null, metricCount);
+                } else {
+                    decoder.decode(source, context);
+                    seq = decoder.seq();
+                }
+            } else {
+                // Decode straight from the buffer's backing memory instead of copying it into a byte[]
+                CodedInputStream input = ByteBufCodedInput.newInstance(payload);
+                SparkplugBProto.Payload protoPayload = SparkplugBProto.Payload.parseFrom(input);
+                if (PayloadInflater.isCompressed(protoPayload)) {
+                    ByteBuf body = Unpooled.wrappedBuffer(protoPayload.getBody().asReadOnlyByteBuffer());
+                    ByteBuf inflated = context.inflater().inflate(PayloadInflater.algorithmOf(protoPayload), body);
+                    stats.payloadDecompressed();
+                    protoPayload = SparkplugBProto.Payload.parseFrom(ByteBufCodedInput.newInstance(inflated));
+                }
+                metricCount = protoPayload.getMetricsCount();
+                seq = protoPayload.hasSeq() ? protoPayload.getSeq() : -1;
+                beginPayload(context, topic, metricCount);
+                if (isSplit(metricCount)) {
+                    convertInParallel(context, null, protoPayload, metricCount);
+                } else {
+                    convertChunk(context, null, protoPayload, 0, metricCount);
+                }
+            }
+            endPayload(context, seq);
+            stats.metricsDecoded(metricCount);
+            if (context.failure != null && deadLetters != null) {
+                deadLetters.offer(topic, payload, index, length, DeadLetterSpool.Reason.METRIC_FAILURE, context.failure);
+            }
+
+            List<Message> messages = context.messages;
+            if (metricCount == 0) {
+                if (topic == null || !topic.getMessageType().isDeath()) {
+                    warnings.warn("no-metrics", "Payload contains no metrics");
+                }
+                // Unless there is a sequence status to write
+                if (messages.isEmpty()) {
+                    return Collections.emptyList();
                 }
             }
-            
+
+            if (config.isAlignedBatching()) {
+                return AlignedMessageBatcher.batch(messages);
+            }
             return messages;
         } catch (Exception e) {
-            LOGGER.error("Error parsing Sparkplug B payload: {}", e.getMessage(), e);
+            warnings.error("parse-failure", "Error parsing Sparkplug B payload: {}", e.getMessage(), traceOf(e));
+            stats.drop(FormatterStats.DropReason.PARSE_FAILURE);
+            if (deadLetters != null) {
+                deadLetters.offer(topic, payload, index, length, DeadLetterSpool.Reason.PARSE_FAILURE, e);
+            }
             return Collections.emptyList();
+        } finally {
+            payload.skipBytes(payload.readableBytes());
+            context.clear();
+        }
+    }
+
+    // With a dead-letter file the failing payload can be replayed, so the log keeps to one line
+    private Throwable traceOf(Exception e) {
+        return deadLetters != null ? null : e;
+    }
+
+    private boolean isSplit(int metricCount) {
+        return pool != null && !pool.isShutdown() && metricCount >= config.getParallelThreshold() && metricCount > config.getParallelChunkSize();
+    }
+
+    // Converts a large payload in chunks of consecutive metrics: the calling thread converts the
+    // first while the pool converts the others, and the results are appended in chunk order, so
+    // the messages come out as from a sequential conversion. Returns the seq of a payload being
+    // streamed. Chunks see the aliases and templates of earlier birth certificates, not those
+    // declared by another chunk of the same payload, and no stateful filter, see isSplittable.
+    private long convertInParallel(PayloadContext context, ByteBuf source, SparkplugBProto.Payload payload,
+                                   int metricCount) throws InvalidProtocolBufferException {
+        int chunkSize = config.getParallelChunkSize();
+        int chunks = (metricCount + chunkSize - 1) / chunkSize;
+        int[] boundaries = new int[chunks + 1];
+        if (payload == null) {
+            context.decoder.split(source, chunkSize, boundaries);
+        } else {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                boundaries[chunk] = chunk * chunkSize;
+            }
+            boundaries[chunks] = metricCount;
+        }
+        stats.payloadSplit();
+
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks - 1);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            int size = Math.min(chunkSize, metricCount - chunk * chunkSize);
+            tasks.add(pool.submit(new Chunk(context, source, payload, boundaries[chunk], boundaries[chunk + 1], size)));
+        }
+        long seq;
+        try {
+            seq = convertChunk(context, source, payload, boundaries[0], boundaries[1]);
+        } finally {
+            // The chunks read the payload, which the caller may release once format returns
+            for (ForkJoinTask<Chunk> task : tasks) {
+                task.quietlyJoin();
+            }
+        }
+        for (ForkJoinTask<Chunk> task : tasks) {
+            seq = task.join().mergeInto(context, seq);
+        }
+        return seq;
+    }
+
+    // Converts the metrics from index to index of a parsed payload, or those in the bytes from
+    // index to index of a payload being streamed, and returns the seq found among the bytes
+    private long convertChunk(PayloadContext context, ByteBuf source, SparkplugBProto.Payload payload, int from, int to)
+        throws InvalidProtocolBufferException {
+        if (payload == null) {
+            SparkplugStreamDecoder decoder = context.decoder;
+            decoder.decode(source, from, to - from, context);
+            return decoder.seq();
+        }
+        MetricRecord record = context.record;
+        for (int i = from; i < to; i++) {
+            processMetric(record.copyFrom(payload.getMetrics(i), propertyKeys), context);
         }
+        return -1;
     }
 
-    private Message createMessageFromMetric(SparkplugBProto.Payload.Metric metric) {
+    private void processMetric(MetricRecord metric, PayloadContext context) {
         try {
-            Message message = new Message();
-            String device = extractDeviceFromProperties(metric);
-            message.setDevice(device);
-            
-            String normalizedName = normalizeString(metric.getName());
-            message.setMeasurements(Lists.newArrayList(normalizedName));
+            if (context.captureBdSeq && metric.hasName() && BD_SEQ.equals(metric.getName())) {
+                context.bdSeq = integralValue(metric, metric.getDatatype());
+            }
+            if (context.declaredAliases != null && metric.hasName() && metric.hasAlias()) {
+                context.declaredAliases.add(aliasEntry(metric, context));
+            }
+            Message message = createMessageFromMetric(metric, context);
+            if (message != null && isValidMessage(message)) {
+                context.messages.add(message);
+            }
+        } catch (Exception e) {
+            warnings.error("metric-failure", "Error processing metric {}: {}", metric.getName(), e.getMessage(), traceOf(e));
+            stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+            context.fail(e);
+        }
+    }
 
-            long metricTimestamp = convertSparkplugTimestamp(metric.getTimestamp());
-            message.setTimestamp(metricTimestamp > 0 ? metricTimestamp : System.currentTimeMillis());
+    private Message createMessageFromMetric(MetricRecord metric, PayloadContext context) {
+        try {
+            SparkplugTopic topic = context.topic;
+            EdgeNodeState edgeNode = context.edgeNode;
+            // Data messages may identify a metric only by the alias its birth certificate declared
+            AliasEntry alias = null;
+            if (!metric.hasName() && metric.hasAlias() && config.isAliasResolution()) {
+                if (topic == null && !config.isUnscopedAliases()) {
+                    // Without the topic the alias could belong to any edge node
+                    warnings.warn("alias-without-topic", "Metric with alias {} received without a topic, dropping it; "
+                        + "set unscoped_aliases to resolve aliases across all edge nodes", metric.getAlias());
+                    stats.drop(FormatterStats.DropReason.UNKNOWN_ALIAS);
+                    return null;
+                }
+                alias = edgeNode != null ? edgeNode.resolveAlias(metric.getAlias()) : null;
+                if (alias == null) {
+                    warnings.warn("unknown-alias", "Unknown alias {} from {}, dropping metric until the next birth certificate",
+                        metric.getAlias(), topic != null ? topic : "unknown topic");
+                    stats.drop(FormatterStats.DropReason.UNKNOWN_ALIAS);
+                    return null;
+                }
+            }
+            String name = alias != null ? alias.getName() : metric.getName();
+            int datatype = metric.hasDatatype() || alias == null ? metric.getDatatype() : alias.getDatatype();
 
-            String value = convertMetricValue(metric);
-            message.setValues(Lists.newArrayList(value));
-                
-            return message;
+            String device = resolveDevice(metric, name, context, alias);
+            long metricTimestamp = convertSparkplugTimestamp(metric.getTimestamp());
+            long timestamp = metricTimestamp > 0 ? metricTimestamp : System.currentTimeMillis();
+            if (datatype == TemplateDefinition.TEMPLATE) {
+                addTemplate(metric, name, device, timestamp, null, context);
+                return null;
+            }
+            return createMessage(metric, name, datatype, device, timestamp, context);
         } catch (Exception e) {
-            LOGGER.error("Error creating message for metric {}: {}", metric.getName(), e.getMessage(), e);
+            warnings.error("message-failure", "Error creating message for metric {}: {}", metric.getName(), e.getMessage(),
+                traceOf(e));
+            stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+            context.fail(e);
+            return null;
+        }
+    }
+
+    // The message of a metric whose name, datatype and device are resolved, or null when it is
+    // filtered out; template members are converted here too
+    private Message createMessage(MetricRecord metric, String name, int datatype, String device, long timestamp,
+                                  PayloadContext context) throws InvalidProtocolBufferException {
+        String normalizedName = normalizeString(name);
+        if (MetricBlock.isBlock(datatype)) {
+            // Arrays and datasets add a message per element or row themselves
+            addBlockMessages(metric, datatype, device, normalizedName, timestamp, context);
             return null;
         }
+
+        Message message = new Message();
+        message.setDevice(device);
+        message.setMeasurements(Collections.singletonList(normalizedName));
+        message.setTimestamp(timestamp);
+
+        if (config.isTypedValues()) {
+            TSDataType dataType = resolveDataType(datatype, name);
+            String value = convertTypedMetricValue(metric, datatype, dataType);
+            if (value == null) {
+                return null;
+            }
+            message.setDataTypes(Collections.singletonList(dataType));
+            message.setValues(Collections.singletonList(value));
+        } else {
+            String value = convertMetricValue(metric, datatype, name, context.decimals);
+            message.setValues(Collections.singletonList(value));
+        }
+
+        if (duplicateFilter != null) {
+            DuplicateFilter.Verdict verdict = duplicateFilter.check(
+                device, normalizedName, message.getTimestamp(), message.getValues().get(0));
+            if (verdict == DuplicateFilter.Verdict.DUPLICATE) {
+                return null;
+            }
+            if (verdict == DuplicateFilter.Verdict.LATE) {
+                if (config.getDedupLateAction() == DuplicateFilter.LateAction.DROP) {
+                    return null;
+                }
+                // Routed samples bypass the deadband, which compares against the live series
+                message.setDevice(device + "." + config.getDedupLateSuffix());
+                return message;
+            }
+        }
+
+        if (aggregator != null && isNumeric(datatype) && datatype != 11 && !metric.isNull()) { // Boolean
+            WindowAggregator.Window closed = context.window();
+            WindowAggregator.Mode mode = aggregator.add(
+                device, normalizedName, timestamp, numericValue(metric, datatype), closed);
+            if (closed.count > 0) {
+                context.messages.add(windowMessage(closed, context.decimals));
+            }
+            if (mode == WindowAggregator.Mode.AGGREGATE) {
+                return null;
+            }
+        }
+
+        // Booleans are dropped only while unchanged, a state change always gets through
+        if (deadbandFilter != null && isNumeric(datatype) && !metric.isNull()
+            && !deadbandFilter.accept(device, normalizedName, message.getTimestamp(), numericValue(metric, datatype),
+                datatype == 11)) { // Boolean
+            return null;
+        }
+
+        return message;
+    }
+
+    // One row at the window start, with the statistics of the window as measurements named
+    // after the series
+    private Message windowMessage(WindowAggregator.Window window, char[] decimals) {
+        String name = window.measurement;
+        Message message = new Message();
+        message.setDevice(window.device);
+        message.setTimestamp(window.start);
+        message.setMeasurements(Arrays.asList(
+            name + "_min", name + "_max", name + "_avg", name + "_count", name + "_last"));
+        if (config.isTypedValues()) {
+            message.setDataTypes(WINDOW_DATA_TYPES);
+            message.setValues(Arrays.asList(Double.toString(window.min), Double.toString(window.max),
+                Double.toString(window.sum / window.count), Long.toString(window.count),
+                Double.toString(window.last)));
+        } else {
+            message.setValues(Arrays.asList(DecimalText.toFixed(window.min, 6, decimals),
+                DecimalText.toFixed(window.max, 6, decimals),
+                DecimalText.toFixed(window.sum / window.count, 6, decimals), Long.toString(window.count),
+                DecimalText.toFixed(window.last, 6, decimals)));
+        }
+        return message;
+    }
+
+    // An array metric becomes one row with a measurement per element, or with a sample interval
+    // one sample per element; a DataSet metric becomes one row per DataSet row, under a device
+    // named after the metric
+    private void addBlockMessages(MetricRecord metric, int datatype, String device, String name, long timestamp,
+                                  PayloadContext context) throws InvalidProtocolBufferException {
+        if (metric.isNull()) {
+            LOGGER.debug("Skipping null value of metric {}", name);
+            return;
+        }
+        MetricBlock block = context.block();
+        try {
+            if (!block.read(metric, datatype)) {
+                warnings.warn("block-value", "Metric {} of datatype {} carries no array or dataset value", name, datatype);
+                stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+                return;
+            }
+            if (datatype == MetricBlock.DATASET) {
+                addDataSetRows(block, device + "." + name, timestamp, context);
+            } else {
+                addArrayElements(block, MetricBlock.elementType(datatype), device, name, timestamp, context);
+            }
+            int outOfRange = block.outOfRangeCells();
+            if (outOfRange > 0) {
+                warnings.warn("block-uint64-range", "{} UInt64 values of metric {} do not fit INT64, dropping them",
+                    outOfRange, name);
+                for (int i = 0; i < outOfRange; i++) {
+                    stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+                }
+            }
+        } finally {
+            block.clear();
+        }
+    }
+
+    private void addArrayElements(MetricBlock block, int elementType, String device, String name, long timestamp,
+                                  PayloadContext context) {
+        boolean typed = config.isTypedValues();
+        TSDataType dataType = typed ? resolveDataType(elementType, name) : null;
+        long interval = config.getArraySampleIntervalMillis();
+        int count = block.rows();
+        if (interval > 0) {
+            List<String> measurements = Collections.singletonList(name);
+            List<TSDataType> dataTypes = typed ? Collections.singletonList(dataType) : null;
+            for (int i = 0; i < count; i++) {
+                List<String> values = Collections.singletonList(block.text(i, 0, elementType, typed, context.decimals));
+                addRow(context, device, timestamp + i * interval, measurements, dataTypes, values);
+            }
+            return;
+        }
+        List<String> measurements = new ArrayList<>(count);
+        List<TSDataType> dataTypes = typed ? new ArrayList<TSDataType>(count) : null;
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            measurements.add(name + "_" + i);
+            if (typed) {
+                dataTypes.add(dataType);
+            }
+            values.add(block.text(i, 0, elementType, typed, context.decimals));
+        }
+        addRow(context, device, timestamp, measurements, dataTypes, values);
+    }
+
+    private void addDataSetRows(MetricBlock block, String device, long timestamp, PayloadContext context) {
+        boolean typed = config.isTypedValues();
+        int columns = block.columns();
+        // The first DateTime column holds the row timestamps
+        int timeColumn = -1;
+        for (int column = 0; column < columns && timeColumn < 0; column++) {
+            if (block.columnType(column) == 13) { // DateTime
+                timeColumn = column;
+            }
+        }
+        int width = timeColumn < 0 ? columns : columns - 1;
+        List<String> measurements = new ArrayList<>(width);
+        List<TSDataType> dataTypes = typed ? new ArrayList<TSDataType>(width) : null;
+        for (int column = 0; column < columns; column++) {
+            if (column == timeColumn) {
+                continue;
+            }
+            String columnName = block.columnName(column);
+            String measurement = columnName == null || columnName.isEmpty() ? "column_" + column : normalizeString(columnName);
+            measurements.add(measurement);
+            if (typed) {
+                dataTypes.add(resolveDataType(block.columnType(column), measurement));
+            }
+        }
+
+        // Rows without a time column get distinct timestamps even without an interval, as IoTDB
+        // would otherwise keep only the last of them
+        long interval = Math.max(1L, config.getArraySampleIntervalMillis());
+        for (int row = 0; row < block.rows(); row++) {
+            long rowTimestamp = timeColumn < 0 ? timestamp + row * interval : block.longValue(row, timeColumn, 0);
+            List<String> values = new ArrayList<>(width);
+            for (int column = 0; column < columns; column++) {
+                if (column != timeColumn) {
+                    values.add(block.text(row, column, block.columnType(column), typed, context.decimals));
+                }
+            }
+            addRow(context, device, rowTimestamp > 0 ? rowTimestamp : timestamp, measurements, dataTypes, values);
+        }
+    }
+
+    // Adds one row of an array or DataSet. Cells without a value are left out, and so are
+    // duplicates; late samples are dropped or routed like those of scalar metrics.
+    private void addRow(PayloadContext context, String device, long timestamp, List<String> measurements,
+                        List<TSDataType> dataTypes, List<String> values) {
+        int count = values.size();
+        // Copies of the lists, made once the first cell is left out
+        List<String> keptMeasurements = null;
+        List<TSDataType> keptDataTypes = null;
+        List<String> keptValues = null;
+        Message late = null;
+        for (int i = 0; i < count; i++) {
+            String value = values.get(i);
+            DuplicateFilter.Verdict verdict = value == null || duplicateFilter == null ? null
+                : duplicateFilter.check(device, measurements.get(i), timestamp, value);
+            boolean keep = value != null && (verdict == null || verdict == DuplicateFilter.Verdict.ACCEPT);
+            if (keep && keptValues == null) {
+                continue;
+            }
+            if (keptValues == null) {
+                keptMeasurements = new ArrayList<>(measurements.subList(0, i));
+                keptDataTypes = dataTypes == null ? null : new ArrayList<>(dataTypes.subList(0, i));
+                keptValues = new ArrayList<>(values.subList(0, i));
+            }
+            if (keep) {
+                keptMeasurements.add(measurements.get(i));
+                if (dataTypes != null) {
+                    keptDataTypes.add(dataTypes.get(i));
+                }
+                keptValues.add(value);
+            } else if (verdict == DuplicateFilter.Verdict.LATE
+                && config.getDedupLateAction() == DuplicateFilter.LateAction.ROUTE) {
+                if (late == null) {
+                    late = blockMessage(device + "." + config.getDedupLateSuffix(), timestamp,
+                        new ArrayList<String>(), dataTypes == null ? null : new ArrayList<TSDataType>(), new ArrayList<String>());
+                }
+                late.getMeasurements().add(measurements.get(i));
+                if (dataTypes != null) {
+                    late.getDataTypes().add(dataTypes.get(i));
+                }
+                late.getValues().add(value);
+            }
+        }
+        if (keptValues == null) {
+            addValid(context, blockMessage(device, timestamp, measurements, dataTypes, values));
+        } else if (!keptValues.isEmpty()) {
+            addValid(context, blockMessage(device, timestamp, keptMeasurements, keptDataTypes, keptValues));
+        }
+        if (late != null) {
+            addValid(context, late);
+        }
+    }
+
+    private static Message blockMessage(String device, long timestamp, List<String> measurements,
+                                        List<TSDataType> dataTypes, List<String> values) {
+        Message message = new Message();
+        message.setDevice(device);
+        message.setTimestamp(timestamp);
+        message.setMeasurements(measurements);
+        if (dataTypes != null) {
+            message.setDataTypes(dataTypes);
+        }
+        message.setValues(values);
+        return message;
+    }
+
+    private void addValid(PayloadContext context, Message message) {
+        if (isValidMessage(message)) {
+            context.messages.add(message);
+        }
+    }
+
+    // A template instance becomes a device named after the metric, below the device it belongs
+    // to, with a measurement per member; nested instances go one level further down. Definitions
+    // are not written: a birth certificate's are collected so that instances may leave out the
+    // datatypes of their members, as data messages usually do.
+    private void addTemplate(MetricRecord metric, String name, String device, long timestamp, String inheritedRef,
+                             PayloadContext context) throws InvalidProtocolBufferException {
+        if (metric.isNull()) {
+            LOGGER.debug("Skipping null value of metric {}", name);
+            return;
+        }
+        if (context.templateDepth == MAX_TEMPLATE_DEPTH) {
+            warnings.warn("template-depth", "Template {} is nested more than {} levels deep, dropping it",
+                name, MAX_TEMPLATE_DEPTH);
+            stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+            return;
+        }
+        TemplateLevel level = context.enterTemplate();
+        try {
+            if (!level.readHeader(metric)) {
+                warnings.warn("template-value", "Metric {} of datatype {} carries no template value",
+                    name, TemplateDefinition.TEMPLATE);
+                stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+                return;
+            }
+            if (level.isDefinition) {
+                if (context.declaredTemplates != null && context.templateDepth == 1) {
+                    level.beginDefinition();
+                    level.decodeMembers(metric);
+                    context.declaredTemplates.add(level.definition(name));
+                }
+                return;
+            }
+            String templateRef = level.templateRef != null ? level.templateRef : inheritedRef;
+            TemplateDefinition definition = templateRef != null ? context.template(templateRef) : null;
+            if (definition == null && templateRef != null && config.isTemplateDefinitions()) {
+                warnings.warn("unknown-template", "Unknown template {} from {}, members without a datatype are dropped "
+                    + "until the next birth certificate", templateRef, context.topic != null ? context.topic : "unknown topic");
+            }
+            level.beginInstance(definition, device + "." + normalizeString(name), timestamp);
+            level.decodeMembers(metric);
+        } finally {
+            context.exitTemplate();
+        }
+    }
+
+    private void addTemplateMember(TemplateLevel level, MetricRecord member, PayloadContext context) {
+        String name = member.getName();
+        try {
+            if (!member.hasName()) {
+                warnings.warn("template-member", "Template member without a name in {}", level.device);
+                stats.drop(FormatterStats.DropReason.INVALID_MESSAGE);
+                return;
+            }
+            TemplateDefinition definition = level.instanceOf;
+            int datatype = member.hasDatatype() ? member.getDatatype()
+                : definition != null ? definition.memberDatatype(name) : -1;
+            if (datatype < 0) {
+                LOGGER.debug("Skipping member {} of {}, its datatype is unknown", name, level.device);
+                stats.drop(FormatterStats.DropReason.UNKNOWN_DATATYPE);
+                return;
+            }
+            long timestamp = member.getTimestamp() > 0 ? member.getTimestamp() : level.timestamp;
+            if (datatype == TemplateDefinition.TEMPLATE) {
+                String inheritedRef = definition != null ? definition.memberTemplateRef(name) : null;
+                addTemplate(member, name, level.device, timestamp, inheritedRef, context);
+                return;
+            }
+            Message message = createMessage(member, name, datatype, level.device, timestamp, context);
+            if (message != null) {
+                addValid(context, message);
+            }
+        } catch (Exception e) {
+            warnings.error("metric-failure", "Error processing template member {}: {}", name, e.getMessage(), traceOf(e));
+            stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+            context.fail(e);
+        }
     }
 
-    private String convertMetricValue(SparkplugBProto.Payload.Metric metric) {
+    // A birth certificate's definition: the datatype of every member, and the definition each
+    // template member refers to
+    private void addDefinitionMember(TemplateLevel level, MetricRecord member, PayloadContext context) {
+        if (!member.hasName()) {
+            return;
+        }
+        level.datatypes.put(member.getName(), member.getDatatype());
+        if (member.getDatatype() != TemplateDefinition.TEMPLATE || context.templateDepth == MAX_TEMPLATE_DEPTH) {
+            return;
+        }
+        TemplateLevel nested = context.enterTemplate();
+        try {
+            if (nested.readHeader(member) && nested.templateRef != null) {
+                level.templateRefs.put(member.getName(), nested.templateRef);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            warnings.error("metric-failure", "Error processing template member {}: {}", member.getName(), e.getMessage(),
+                traceOf(e));
+            context.fail(e);
+        } finally {
+            context.exitTemplate();
+        }
+    }
+
+    // Forgets the aliases of dying devices and picks the state data messages resolve their aliases
+    // and templates against. Aliases and template definitions declared by a birth certificate are
+    // collected while its metrics are processed and recorded by endPayload, which also handles
+    // NDEATH once its bdSeq is known.
+    private void beginPayload(PayloadContext context, SparkplugTopic topic, int metricCount) {
+        context.begin(topic, metricCount);
+        if (topic != null && sequences != null) {
+            SparkplugTopic.MessageType type = topic.getMessageType();
+            context.captureBdSeq = type == SparkplugTopic.MessageType.NBIRTH || type == SparkplugTopic.MessageType.NDEATH;
+        }
+        if (!config.isAliasResolution() && !config.isTemplateDefinitions()) {
+            return;
+        }
+        if (topic == null) {
+            context.edgeNode = edgeNodes.get(EdgeNodeRegistry.UNSCOPED);
+            collectDeclarations(context, metricCount, config.isUnscopedAliases());
+            return;
+        }
+
+        String key = topic.getEdgeNodeKey();
+        switch (topic.getMessageType()) {
+            case NBIRTH:
+            case DBIRTH:
+                context.edgeNode = edgeNodes.get(key);
+                collectDeclarations(context, metricCount, true);
+                break;
+            case NDEATH:
+                break;
+            case DDEATH:
+                EdgeNodeState state = edgeNodes.get(key);
+                if (state != null) {
+                    state.deviceDeath(topic.getDeviceId());
+                }
+                context.edgeNode = state;
+                break;
+            default:
+                context.edgeNode = edgeNodes.get(key);
+                break;
+        }
+    }
+
+    private void collectDeclarations(PayloadContext context, int metricCount, boolean aliases) {
+        if (aliases && config.isAliasResolution()) {
+            context.declaredAliases = new ArrayList<>(metricCount);
+        }
+        if (config.isTemplateDefinitions()) {
+            context.declaredTemplates = new ArrayList<>();
+        }
+    }
+
+    // Checks the sequence numbers, records the aliases and template definitions declared by a
+    // birth certificate and forgets those of a dead edge node
+    private void endPayload(PayloadContext context, long seq) {
+        SparkplugTopic topic = context.topic;
+        boolean currentSession = topic == null || sequences == null || trackSequence(context, seq);
+        if (!config.isAliasResolution() && !config.isTemplateDefinitions()) {
+            return;
+        }
+        if (topic != null && topic.getMessageType() == SparkplugTopic.MessageType.NDEATH) {
+            if (currentSession) {
+                edgeNodes.remove(topic.getEdgeNodeKey());
+                LOGGER.debug("Edge node {} died, aliases and templates discarded", topic.getEdgeNodeKey());
+            }
+            return;
+        }
+
+        List<AliasEntry> declared = context.declaredAliases;
+        List<TemplateDefinition> templates = context.declaredTemplates;
+        if (declared == null && templates == null) {
+            return;
+        }
+        if (declared == null) {
+            declared = Collections.emptyList();
+        }
+        if (templates == null) {
+            templates = Collections.emptyList();
+        }
+        if (topic == null) {
+            if (!declared.isEmpty() || !templates.isEmpty()) {
+                EdgeNodeState state = edgeNodes.getOrCreate(EdgeNodeRegistry.UNSCOPED);
+                state.register(declared);
+                state.define(templates);
+            }
+            return;
+        }
+
+        String key = topic.getEdgeNodeKey();
+        EdgeNodeState state = edgeNodes.getOrCreate(key);
+        if (topic.getMessageType() == SparkplugTopic.MessageType.NBIRTH) {
+            state.rebirth(declared, templates);
+            LOGGER.debug("Edge node {} born with {} aliases and {} templates", key, state.aliasCount(), state.templateCount());
+        } else {
+            state.deviceBirth(topic.getDeviceId(), declared);
+            state.define(templates);
+        }
+    }
+
+    // Returns false for the death certificate of an earlier session, which is ignored
+    private boolean trackSequence(PayloadContext context, long seq) {
+        SparkplugTopic topic = context.topic;
+        SequenceTracker.Node node;
+        boolean outOfSequence;
+        switch (topic.getMessageType()) {
+            case NBIRTH:
+                node = sequences.node(topic.getEdgeNodeKey());
+                outOfSequence = sequences.birth(node, seq, context.bdSeq);
+                if (outOfSequence) {
+                    warnings.warn("rebirth", "Edge node {} sent a birth certificate while alive (bdSeq {})",
+                        topic.getEdgeNodeKey(), context.bdSeq);
+                }
+                break;
+            case NDEATH:
+                node = sequences.node(topic.getEdgeNodeKey());
+                if (!sequences.death(node, context.bdSeq)) {
+                    warnings.warn("stale-death", "Ignoring death certificate of {} from an earlier session (bdSeq {})",
+                        topic.getEdgeNodeKey(), context.bdSeq);
+                    return false;
+                }
+                return true;
+            case NCMD:
+            case DCMD:
+                // Published by the host application, not part of the edge node's sequence
+                return true;
+            default:
+                node = sequences.node(topic.getEdgeNodeKey());
+                outOfSequence = sequences.message(node, seq);
+                if (outOfSequence) {
+                    warnings.warn("sequence", "Payload out of sequence on {} (seq {})", topic, seq);
+                }
+                break;
+        }
+        if (outOfSequence && config.isSequenceStatusSeries()) {
+            context.messages.add(sequenceStatus(context, node));
+        }
+        return true;
+    }
+
+    // The edge node's cumulative sequence counters, written under its own device path
+    private Message sequenceStatus(PayloadContext context, SequenceTracker.Node node) {
+        SparkplugTopic topic = context.topic;
+        Message message = new Message();
+        message.setDevice(devicePaths.get(topic.getGroupId(), topic.getEdgeNodeId(), null, context.path));
+        message.setTimestamp(System.currentTimeMillis());
+        message.setMeasurements(SEQUENCE_MEASUREMENTS);
+        if (config.isTypedValues()) {
+            message.setDataTypes(SEQUENCE_DATA_TYPES);
+        }
+        message.setValues(Arrays.asList(String.valueOf(node.gaps()), String.valueOf(node.missedMessages()),
+            String.valueOf(node.outOfOrder()), String.valueOf(node.rebirths())));
+        return message;
+    }
+
+    private AliasEntry aliasEntry(MetricRecord metric, PayloadContext context) {
+        SparkplugTopic topic = context.topic;
+        String device = extractDeviceFromProperties(metric, context.path);
+        if (device == null && topic != null) {
+            device = context.topicDevice();
+        }
+        String deviceId = topic != null && topic.getMessageType() == SparkplugTopic.MessageType.DBIRTH
+            ? topic.getDeviceId() : null;
+        return new AliasEntry(metric.getAlias(), metric.getName(), metric.getDatatype(), device, deviceId);
+    }
+
+    private String convertMetricValue(MetricRecord metric, int datatype, String name, char[] decimals) {
         try {
-            switch (metric.getDatatype()) {
+            switch (datatype) {
                 case 0:  // Unknown/Number - treat as Double
                 case 10: // Double
-                    return String.format("%.6f", metric.getDoubleValue());
+                    return DecimalText.toFixed(metric.getDoubleValue(), 6, decimals);
                 case 1: // Int8
                 case 2: // Int16
                 case 3: // Int32
@@ -86,26 +944,125 @@ public class CustomizedSparkplugPayloadFormatter implements PayloadFormatter {
                 case 5: // UInt8
                 case 6: // UInt16
                 case 7: // UInt32
-                case 8: // UInt64
                     return String.valueOf(metric.getLongValue());
+                case 8: // UInt64
+                    return Long.toUnsignedString(metric.getLongValue());
                 case 9: // Float
-                    return String.format("%.6f", metric.getFloatValue());
+                    return DecimalText.toFixed(metric.getFloatValue(), 6, decimals);
                 case 11: // Boolean
                     return String.valueOf(metric.getBooleanValue());
                 case 12: // String
                 case 13: // Text
                     return normalizeValue(metric.getStringValue());
                 default:
-                    LOGGER.warn("Unexpected datatype {} for metric {}, defaulting to double", 
-                        metric.getDatatype(), metric.getName());
-                    return String.format("%.6f", metric.getDoubleValue());
+                    warnings.warn("unexpected-datatype", "Unexpected datatype {} for metric {}, defaulting to double",
+                        datatype, name);
+                    stats.drop(FormatterStats.DropReason.UNKNOWN_DATATYPE);
+                    return DecimalText.toFixed(metric.getDoubleValue(), 6, decimals);
             }
         } catch (Exception e) {
-            LOGGER.error("Error converting value for metric {}: {}", metric.getName(), e.getMessage());
+            warnings.error("value-failure", "Error converting value for metric {}: {}", name, e.getMessage(), null);
+            stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
             return "null";
         }
     }
 
+    private TSDataType resolveDataType(int datatype, String name) {
+        switch (datatype) {
+            case 1: // Int8
+            case 2: // Int16
+            case 3: // Int32
+            case 5: // UInt8
+            case 6: // UInt16
+                return TSDataType.INT32;
+            case 4:  // Int64
+            case 7:  // UInt32
+            case 8:  // UInt64
+            case 13: // DateTime
+                return TSDataType.INT64;
+            case 9: // Float
+                return TSDataType.FLOAT;
+            case 11: // Boolean
+                return TSDataType.BOOLEAN;
+            case 12: // String
+            case 14: // Text
+            case 15: // UUID
+                return TSDataType.TEXT;
+            case 0:  // Unknown/Number - treat as Double
+            case 10: // Double
+                return TSDataType.DOUBLE;
+            default:
+                warnings.warn("unexpected-datatype", "Unexpected datatype {} for metric {}, defaulting to double",
+                    datatype, name);
+                stats.drop(FormatterStats.DropReason.UNKNOWN_DATATYPE);
+                return TSDataType.DOUBLE;
+        }
+    }
+
+    // Values are rendered exactly (shortest round-trip form), so IoTDB parses back the same number
+    private String convertTypedMetricValue(MetricRecord metric, int datatype, TSDataType dataType) {
+        if (metric.isNull() && dataType != TSDataType.TEXT) {
+            LOGGER.debug("Skipping null value of metric {}", metric.getName());
+            return null;
+        }
+        switch (dataType) {
+            case INT32:
+                return String.valueOf((int) integralValue(metric, datatype));
+            case INT64:
+                long value = integralValue(metric, datatype);
+                if (datatype == 8 && value < 0) { // UInt64 from 2^63 up
+                    warnings.warn("uint64-range", "UInt64 value {} of metric {} does not fit INT64, dropping it",
+                        Long.toUnsignedString(value), metric.getName());
+                    stats.drop(FormatterStats.DropReason.CONVERSION_ERROR);
+                    return null;
+                }
+                return String.valueOf(value);
+            case FLOAT:
+                return Float.toString(metric.getFloatValue());
+            case DOUBLE:
+                return Double.toString(metric.getDoubleValue());
+            case BOOLEAN:
+                return metric.getBooleanValue() ? "true" : "false";
+            default:
+                return normalizeValue(metric.getStringValue());
+        }
+    }
+
+    // Producers put small integers in int_value and 64 bit ones in long_value, but not all of them
+    // agree on where UInt32 belongs, so read whichever field is actually set
+    private long integralValue(MetricRecord metric, int datatype) {
+        if (metric.getValueCase() == MetricRecord.ValueCase.LONG) {
+            return metric.getLongValue();
+        }
+        int value = metric.getIntValue();
+        switch (datatype) {
+            case 5: // UInt8
+            case 6: // UInt16
+            case 7: // UInt32
+                return Integer.toUnsignedLong(value);
+            default:
+                return value;
+        }
+    }
+
+    private boolean isNumeric(int datatype) {
+        return datatype >= 0 && datatype <= 11; // Unknown/Number through Boolean
+    }
+
+    private double numericValue(MetricRecord metric, int datatype) {
+        switch (datatype) {
+            case 9: // Float
+                return metric.getFloatValue();
+            case 11: // Boolean
+                return metric.getBooleanValue() ? 1.0 : 0.0;
+            case 0:  // Unknown/Number
+            case 10: // Double
+                return metric.getDoubleValue();
+            default:
+                return integralValue(metric, datatype);
+        }
+    }
+
     private long convertSparkplugTimestamp(long timestamp) {
         try {
             return timestamp > 0 ? timestamp : System.currentTimeMillis();
@@ -115,71 +1072,60 @@ public class CustomizedSparkplugPayloadFormatter implements PayloadFormatter {
         }
     }
 
-    private String extractDeviceFromProperties(SparkplugBProto.Payload.Metric metric) {
-        if (metric.hasProperties()) {
-            SparkplugBProto.Payload.PropertySet properties = metric.getProperties();
-            List<String> keys = properties.getKeysList();
-            List<SparkplugBProto.Payload.PropertyValue> values = properties.getValuesList();
-
-            String group = null;
-            String edge = null;
-            String device = null;
-
-            for (int i = 0; i < keys.size(); i++) {
-                if (i >= values.size()) break;
-                
-                String key = keys.get(i);
-                SparkplugBProto.Payload.PropertyValue value = values.get(i);
-                
-                if (value.getType() == 12) { // String type
-                    switch (key) {
-                        case "group":
-                            group = normalizeString(value.getStringValue());
-                            break;
-                        case "GroupID":  // Custom property name
-                            group = normalizeString(value.getStringValue());
-                            break;
-                        case "edge":
-                            edge = normalizeString(value.getStringValue());
-                            break;
-                        case "EdgeNodeID":  // Custom property name
-                            edge = normalizeString(value.getStringValue());
-                            break;
-                        case "device":
-                            device = normalizeString(value.getStringValue());
-                            break;
-                        case "AgentID":  // Custom property name
-                            device = normalizeString(value.getStringValue());
-                            break;
-                    }
-                }
-            }
+    private String resolveDevice(MetricRecord metric, String name, PayloadContext context,
+                                 AliasEntry alias) {
+        String device = extractDeviceFromProperties(metric, context.path);
+        if (device != null) {
+            return device;
+        }
+        if (alias != null && alias.getDevice() != null) {
+            return alias.getDevice();
+        }
+        if (context.topic != null) {
+            return context.topicDevice();
+        }
+        warnings.warn("default-device", "Could not extract device info from properties for metric: {}, using default", name);
+        stats.drop(FormatterStats.DropReason.DEFAULT_DEVICE);
+        return defaultDevice;
+    }
 
-            if (group != null && edge != null && device != null) {
-                String devicePath = String.format("root.mqtt.sparkplugb.%s.%s.%s", group, edge, device);
-                LOGGER.debug("Created device path: {}", devicePath);
-                return devicePath;
-            }
+    private String deviceFromTopic(SparkplugTopic topic, StringBuilder path) {
+        return devicePaths.get(topic.getGroupId(), topic.getEdgeNodeId(), topic.getDeviceId(), path);
+    }
+
+    // Properties give the device path only when they carry every part the template uses
+    private String extractDeviceFromProperties(MetricRecord metric, StringBuilder path) {
+        String group = metric.getDeviceProperty(DevicePropertyKeys.GROUP);
+        String edge = metric.getDeviceProperty(DevicePropertyKeys.EDGE);
+        String device = metric.getDeviceProperty(DevicePropertyKeys.DEVICE);
+
+        if (group == null && edge == null && device == null
+            || group == null && pathTemplate.uses(DevicePropertyKeys.GROUP)
+            || edge == null && pathTemplate.uses(DevicePropertyKeys.EDGE)
+            || device == null && pathTemplate.uses(DevicePropertyKeys.DEVICE)) {
+            return null;
         }
-        LOGGER.warn("Could not extract device info from properties for metric: {}, using default", metric.getName());
-        return DEFAULT_DEVICE;
+        return devicePaths.get(group, edge, device, path);
     }
 
     private boolean isValidMessage(Message message) {
         if (message.getDevice() == null || !message.getDevice().startsWith("root.")) {
-            LOGGER.warn("Invalid device path: {}", message.getDevice());
+            warnings.warn("invalid-device", "Invalid device path: {}", message.getDevice());
+            stats.drop(FormatterStats.DropReason.INVALID_MESSAGE);
             return false;
         }
         
         if (message.getMeasurements() == null || message.getMeasurements().isEmpty() ||
             message.getValues() == null || message.getValues().isEmpty() ||
             message.getMeasurements().size() != message.getValues().size()) {
-            LOGGER.warn("Invalid measurements or values for device: {}", message.getDevice());
+            warnings.warn("invalid-values", "Invalid measurements or values for device: {}", message.getDevice());
+            stats.drop(FormatterStats.DropReason.INVALID_MESSAGE);
             return false;
         }
         
         if (message.getTimestamp() <= 0) {
-            LOGGER.warn("Invalid timestamp for device: {}", message.getDevice());
+            warnings.warn("invalid-timestamp", "Invalid timestamp for device: {}", message.getDevice());
+            stats.drop(FormatterStats.DropReason.INVALID_MESSAGE);
             return false;
         }
         
@@ -187,25 +1133,323 @@ public class CustomizedSparkplugPayloadFormatter implements PayloadFormatter {
     }
 
     private String normalizeString(String input) {
-        if (input == null || input.trim().isEmpty()) {
-            return "null";
+        return nameCache.normalize(input);
+    }
+
+    private String normalizeValue(String value) {
+        return NameNormalizer.normalizeValue(value);
+    }
+
+    NormalizedNameCache getNameCache() {
+        return nameCache;
+    }
+
+    DeadbandFilter getDeadbandFilter() {
+        return deadbandFilter;
+    }
+
+    DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    FormatterStats getStats() {
+        return stats;
+    }
+
+    DeadLetterSpool getDeadLetters() {
+        return deadLetters;
+    }
+
+    /** Latest sample of every series written, or {@code null} unless {@code last_value_store} is enabled. */
+    public LastValueStore getLastValueStore() {
+        return lastValues;
+    }
+
+    // What one payload's metrics are processed against, plus the scratch state of the thread
+    // processing it. One instance per thread is reused for every payload.
+    private final class PayloadContext implements SparkplugStreamDecoder.MetricHandler {
+        final SparkplugStreamDecoder decoder = new SparkplugStreamDecoder(propertyKeys);
+        final MetricRecord record = new MetricRecord();
+        final StringBuilder path = new StringBuilder(64);
+        final char[] decimals = DecimalText.newScratch();
+        // Created by the first compressed payload, most threads never see one
+        private PayloadInflater inflater;
+        // Created by the first array or dataset metric
+        private MetricBlock block;
+        // Created by the first aggregated sample
+        private WindowAggregator.Window window;
+
+        SparkplugTopic topic;
+        EdgeNodeState edgeNode;
+        // Aliases declared by a birth certificate, null for other messages
+        List<AliasEntry> declaredAliases;
+        // Template definitions declared by a birth certificate, null for other messages
+        List<TemplateDefinition> declaredTemplates;
+        // How deep the template member being processed is nested, with scratch state per level
+        int templateDepth;
+        private TemplateLevel[] templateLevels;
+        List<Message> messages;
+        // Whether to pick up the bdSeq metric of a node birth or death certificate
+        boolean captureBdSeq;
+        long bdSeq = -1;
+        // First exception a metric of the payload failed with
+        Exception failure;
+        private String topicDevice;
+
+        void begin(SparkplugTopic topic, int metricCount) {
+            this.topic = topic;
+            this.messages = new ArrayList<>(metricCount);
         }
-        
-        if (input.equals("NullMetric")) {
-            return "null";
+
+        // Drops the references to the last payload's objects
+        void clear() {
+            topic = null;
+            edgeNode = null;
+            declaredAliases = null;
+            declaredTemplates = null;
+            templateDepth = 0;
+            messages = null;
+            captureBdSeq = false;
+            bdSeq = -1;
+            failure = null;
+            topicDevice = null;
+            if (inflater != null) {
+                inflater.trim();
+            }
+            record.reset();
+        }
+
+        void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        MetricBlock block() {
+            if (block == null) {
+                block = new MetricBlock();
+            }
+            return block;
+        }
+
+        WindowAggregator.Window window() {
+            if (window == null) {
+                window = new WindowAggregator.Window();
+            }
+            return window;
+        }
+
+        TemplateLevel enterTemplate() {
+            if (templateLevels == null) {
+                templateLevels = new TemplateLevel[MAX_TEMPLATE_DEPTH];
+            }
+            TemplateLevel level = templateLevels[templateDepth];
+            if (level == null) {
+                level = new TemplateLevel(this);
+                templateLevels[templateDepth] = level;
+            }
+            templateDepth++;
+            return level;
+        }
+
+        void exitTemplate() {
+            templateLevels[--templateDepth].clear();
+        }
+
+        /** The definition a template instance refers to, declared by this payload or an earlier birth. */
+        TemplateDefinition template(String templateRef) {
+            if (declaredTemplates != null) {
+                String name = TemplateDefinition.typeName(templateRef);
+                for (TemplateDefinition definition : declaredTemplates) {
+                    if (definition.getName().equals(name)) {
+                        return definition;
+                    }
+                }
+            }
+            return edgeNode != null ? edgeNode.template(templateRef) : null;
+        }
+
+        PayloadInflater inflater() {
+            if (inflater == null) {
+                inflater = new PayloadInflater(config.getMaxDecompressedBytes());
+            }
+            return inflater;
+        }
+
+        /** Device path derived from the topic, built once per payload. */
+        String topicDevice() {
+            if (topicDevice == null) {
+                topicDevice = deviceFromTopic(topic, path);
+            }
+            return topicDevice;
+        }
+
+        @Override
+        public void onMetric(MetricRecord metric) {
+            processMetric(metric, this);
         }
-        
-        return input.trim()
-            .replaceAll("([a-z])([A-Z])", "$1_$2")
-            .replaceAll("\\s+", "_")
-            .toLowerCase();
     }
 
-    private String normalizeValue(String value) {
-        if (value == null || value.trim().isEmpty()) {
-            return "null";
+    // A chunk of a large payload, converted on a pool thread against that thread's own context.
+    // What the payload is processed against is taken from the formatting thread's context when the
+    // chunk is created; what converting it adds is kept until that thread merges it.
+    private final class Chunk implements Callable<Chunk> {
+        private final ByteBuf source;
+        private final SparkplugBProto.Payload payload;
+        private final int from;
+        private final int to;
+        private final int metricCount;
+        private final SparkplugTopic topic;
+        private final EdgeNodeState edgeNode;
+        private final boolean captureBdSeq;
+        private final boolean collectAliases;
+        private final boolean collectTemplates;
+
+        private List<Message> messages;
+        private List<AliasEntry> declaredAliases;
+        private List<TemplateDefinition> declaredTemplates;
+        private long bdSeq;
+        private long seq;
+        private Exception failure;
+
+        Chunk(PayloadContext parent, ByteBuf source, SparkplugBProto.Payload payload, int from, int to, int metricCount) {
+            this.source = source;
+            this.payload = payload;
+            this.from = from;
+            this.to = to;
+            this.metricCount = metricCount;
+            this.topic = parent.topic;
+            this.edgeNode = parent.edgeNode;
+            this.captureBdSeq = parent.captureBdSeq;
+            this.collectAliases = parent.declaredAliases != null;
+            this.collectTemplates = parent.declaredTemplates != null;
+        }
+
+        @Override
+        public Chunk call() throws InvalidProtocolBufferException {
+            PayloadContext context = contexts.get();
+            context.begin(topic, metricCount);
+            context.edgeNode = edgeNode;
+            context.captureBdSeq = captureBdSeq;
+            context.declaredAliases = collectAliases ? new ArrayList<AliasEntry>() : null;
+            context.declaredTemplates = collectTemplates ? new ArrayList<TemplateDefinition>() : null;
+            try {
+                seq = convertChunk(context, source, payload, from, to);
+                messages = context.messages;
+                declaredAliases = context.declaredAliases;
+                declaredTemplates = context.declaredTemplates;
+                bdSeq = context.bdSeq;
+                failure = context.failure;
+                return this;
+            } finally {
+                context.clear();
+            }
+        }
+
+        /** Appends the chunk's results to those of the chunks before it; returns the seq so far. */
+        long mergeInto(PayloadContext context, long seqSoFar) {
+            context.messages.addAll(messages);
+            if (declaredAliases != null) {
+                context.declaredAliases.addAll(declaredAliases);
+            }
+            if (declaredTemplates != null) {
+                context.declaredTemplates.addAll(declaredTemplates);
+            }
+            if (bdSeq != -1) {
+                context.bdSeq = bdSeq;
+            }
+            if (failure != null) {
+                context.fail(failure);
+            }
+            return seq != -1 ? seq : seqSoFar;
+        }
+    }
+
+    // Decodes the members of a template at one nesting level, as a definition being collected
+    // or as an instance being written
+    private final class TemplateLevel implements SparkplugStreamDecoder.MetricHandler {
+        final SparkplugStreamDecoder decoder = new SparkplugStreamDecoder(propertyKeys);
+        final MetricRecord record = new MetricRecord();
+        private final PayloadContext context;
+
+        // Found by readHeader
+        String templateRef;
+        boolean isDefinition;
+        // The instance being written
+        TemplateDefinition instanceOf;
+        String device;
+        long timestamp;
+        // The definition being collected, null otherwise
+        Map<String, Integer> datatypes;
+        Map<String, String> templateRefs;
+
+        TemplateLevel(PayloadContext context) {
+            this.context = context;
+        }
+
+        /** Reads template_ref and is_definition; false when the metric has no template value. */
+        boolean readHeader(MetricRecord metric) throws InvalidProtocolBufferException {
+            SparkplugBProto.Payload.Template template = metric.getTemplateValue();
+            if (template != null) {
+                templateRef = template.getTemplateRef();
+                isDefinition = template.getIsDefinition();
+            } else if (metric.getValueCase() == MetricRecord.ValueCase.TEMPLATE) {
+                decoder.readTemplateHeader(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength());
+                templateRef = decoder.templateRef();
+                isDefinition = decoder.isDefinition();
+            } else {
+                return false;
+            }
+            if (templateRef != null && templateRef.isEmpty()) {
+                templateRef = null;
+            }
+            return true;
+        }
+
+        void beginDefinition() {
+            datatypes = new HashMap<>();
+            templateRefs = new HashMap<>();
+        }
+
+        TemplateDefinition definition(String name) {
+            return new TemplateDefinition(name, datatypes, templateRefs);
+        }
+
+        void beginInstance(TemplateDefinition definition, String device, long timestamp) {
+            this.instanceOf = definition;
+            this.device = device;
+            this.timestamp = timestamp;
+        }
+
+        void decodeMembers(MetricRecord metric) throws InvalidProtocolBufferException {
+            SparkplugBProto.Payload.Template template = metric.getTemplateValue();
+            if (template == null) {
+                decoder.decodeTemplate(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength(), this);
+                return;
+            }
+            for (int i = 0; i < template.getMetricsCount(); i++) {
+                onMetric(record.copyFrom(template.getMetrics(i), propertyKeys));
+            }
+        }
+
+        void clear() {
+            templateRef = null;
+            isDefinition = false;
+            instanceOf = null;
+            device = null;
+            datatypes = null;
+            templateRefs = null;
+            record.reset();
+        }
+
+        @Override
+        public void onMetric(MetricRecord metric) {
+            if (datatypes != null) {
+                addDefinitionMember(this, metric, context);
+            } else {
+                addTemplateMember(this, metric, context);
+            }
         }
-        return value.replaceAll("\\s+", "_");
     }
 
     @Override
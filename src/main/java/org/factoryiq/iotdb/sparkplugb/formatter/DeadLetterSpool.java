@@ -0,0 +1,397 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the raw bytes of payloads the formatter could not convert, with a reason code, so that
+ * a misbehaving gateway can be reproduced offline. Entries go into a memory-mapped file of fixed
+ * size used as a ring: once full, the oldest entries are overwritten.
+ *
+ * <p>Formatting threads only copy the payload and hand it to a queue; a single background
+ * thread writes the file. When the queue is full, or an entry is larger than the whole file,
+ * the entry is dropped and counted, so a burst of bad payloads never blocks formatting. The file
+ * header is updated after every entry, so entries written before the process dies are kept and
+ * appended to when it opens the file again.
+ *
+ * <p>File layout, big-endian: a {@value #DATA}-byte header of magic, version, file size, head
+ * and tail offset, entry count and next sequence number, followed by the ring of entries. An
+ * entry is its length, sequence number, time in milliseconds, reason code, topic and detail each
+ * as a 16-bit length plus UTF-8 bytes, then the payload up to the end of the entry. A length of
+ * {@code -1}, or fewer than four bytes left in the file, marks where the writer wrapped around.
+ */
+final class DeadLetterSpool implements Closeable {
+    static final int MIN_BYTES = 64 * 1024;
+    static final int MAX_DETAIL_LENGTH = 1024;
+
+    private static final int MAGIC = 0x53504244;
+    private static final int VERSION = 1;
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int SIZE_AT = 8;
+    private static final int HEAD_AT = 12;
+    private static final int TAIL_AT = 16;
+    private static final int COUNT_AT = 20;
+    private static final int NEXT_SEQ_AT = 24;
+    static final int DATA = 32;
+
+    // Length, sequence number, time, reason, topic length and detail length
+    private static final int ENTRY_HEADER = 4 + 8 + 8 + 1 + 2 + 2;
+    private static final int WRAP = -1;
+    private static final Letter END = new Letter(null, null, null, null);
+
+    /** Why a payload was spooled. The codes are stored in the file and never reused. */
+    enum Reason {
+        /** The payload could not be decoded, nothing of it was written. */
+        PARSE_FAILURE(1),
+        /** At least one metric failed to convert; the others were written. */
+        METRIC_FAILURE(2);
+
+        final byte code;
+
+        Reason(int code) {
+            this.code = (byte) code;
+        }
+
+        /** {@code null} for a code this version does not know. */
+        static Reason of(byte code) {
+            for (Reason reason : values()) {
+                if (reason.code == code) {
+                    return reason;
+                }
+            }
+            return null;
+        }
+    }
+
+    interface EntryHandler {
+        void onEntry(Entry entry) throws Exception;
+    }
+
+    /** A spooled payload; the payload is a slice of the file mapping, valid during the callback. */
+    static final class Entry {
+        private final long seq;
+        private final long timestamp;
+        private final byte reasonCode;
+        private final String topic;
+        private final String detail;
+        private final ByteBuf payload;
+
+        Entry(long seq, long timestamp, byte reasonCode, String topic, String detail, ByteBuf payload) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.reasonCode = reasonCode;
+            this.topic = topic;
+            this.detail = detail;
+            this.payload = payload;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        /** When the payload was spooled, in milliseconds since the epoch. */
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        byte getReasonCode() {
+            return reasonCode;
+        }
+
+        /** {@code null} for a code this version does not know. */
+        Reason getReason() {
+            return Reason.of(reasonCode);
+        }
+
+        /** {@code null} for a payload received without a Sparkplug topic. */
+        String getTopic() {
+            return topic;
+        }
+
+        /** The exception that made the payload fail. */
+        String getDetail() {
+            return detail;
+        }
+
+        ByteBuf getPayload() {
+            return payload;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final BlockingQueue<Letter> queue;
+    private final Thread writer;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    // Ring state, touched by the writer thread only once it runs
+    private int head;
+    private int tail;
+    private int count;
+    private long nextSeq;
+
+    /**
+     * Opens or creates the spool at {@code file}. An existing spool of the same size is appended
+     * to; one of another size starts over empty. Fails rather than overwrite a file that is not
+     * a spool.
+     */
+    DeadLetterSpool(Path file, int size, int queueCapacity) throws IOException {
+        this.size = Math.max(MIN_BYTES, size);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            long existing = channel.size();
+            if (existing >= DATA && readInt(channel, MAGIC_AT) != MAGIC) {
+                throw new IOException(file + " is not a dead-letter spool");
+            }
+            if (existing != this.size) {
+                channel.truncate(Math.min(existing, this.size));
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (isSpool(buffer, this.size)) {
+            head = buffer.getInt(HEAD_AT);
+            tail = buffer.getInt(TAIL_AT);
+            count = buffer.getInt(COUNT_AT);
+            nextSeq = buffer.getLong(NEXT_SEQ_AT);
+        } else {
+            buffer.putInt(MAGIC_AT, MAGIC);
+            buffer.putInt(VERSION_AT, VERSION);
+            buffer.putInt(SIZE_AT, this.size);
+            head = DATA;
+            tail = DATA;
+            count = 0;
+            nextSeq = 1;
+            writeHeader();
+        }
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.writer = new Thread(this::drain, "sparkplugb-dead-letters");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the {@code length} bytes of {@code payload} from {@code index} for spooling and
+     * returns whether they were taken. Never blocks.
+     */
+    boolean offer(SparkplugTopic topic, ByteBuf payload, int index, int length, Reason reason, Throwable cause) {
+        // Topic and detail are bounded, so a payload that leaves no room for them cannot fit either
+        if (closed || (long) length + ENTRY_HEADER > size - DATA) {
+            dropped.increment();
+            return false;
+        }
+        byte[] bytes = new byte[length];
+        payload.getBytes(index, bytes);
+        if (!queue.offer(new Letter(topic == null ? null : topic.toString(), reason, detail(cause), bytes))) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** Payloads written to the file. */
+    long writtenCount() {
+        return written.sum();
+    }
+
+    /** Payloads not spooled because the queue was full or they do not fit into the file. */
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    /** Writes what is queued, then stops the writer and flushes the file. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        channel.close();
+    }
+
+    /** Hands the entries of the spool at {@code file} to {@code handler}, oldest first, and returns their number. */
+    static int read(Path file, EntryHandler handler) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+            if (size < DATA || readInt(channel, MAGIC_AT) != MAGIC) {
+                throw new IOException(file + " is not a dead-letter spool");
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!isSpool(mapped, size)) {
+                throw new IOException("Corrupt dead-letter spool header in " + file);
+            }
+            ByteBuf region = Unpooled.wrappedBuffer(mapped);
+            int position = mapped.getInt(TAIL_AT);
+            int count = mapped.getInt(COUNT_AT);
+            for (int i = 0; i < count; i++) {
+                position = skipWrap(mapped, position, size);
+                int length = region.getInt(position);
+                if (length < ENTRY_HEADER || length > size - position) {
+                    throw new IOException("Corrupt dead-letter entry at byte " + position + " of " + file);
+                }
+                int topicAt = position + ENTRY_HEADER;
+                int topicLength = region.getUnsignedShort(topicAt - 4);
+                int detailLength = region.getUnsignedShort(topicAt - 2);
+                int payloadAt = topicAt + topicLength + detailLength;
+                if (payloadAt > position + length) {
+                    throw new IOException("Corrupt dead-letter entry at byte " + position + " of " + file);
+                }
+                handler.onEntry(new Entry(region.getLong(position + 4), region.getLong(position + 12),
+                    region.getByte(position + 20),
+                    topicLength == 0 ? null : region.toString(topicAt, topicLength, StandardCharsets.UTF_8),
+                    region.toString(topicAt + topicLength, detailLength, StandardCharsets.UTF_8),
+                    region.slice(payloadAt, position + length - payloadAt)));
+                position += length;
+            }
+            return count;
+        }
+    }
+
+    private void drain() {
+        try {
+            for (Letter letter = queue.take(); letter != END; letter = queue.take()) {
+                append(letter);
+            }
+        } catch (InterruptedException e) {
+            // Stopped without close, what is still queued is lost
+        }
+    }
+
+    private void append(Letter letter) {
+        // MQTT topics and details are short enough for their 16-bit lengths
+        byte[] topic = letter.topic == null ? new byte[0] : letter.topic.getBytes(StandardCharsets.UTF_8);
+        byte[] detail = letter.detail.getBytes(StandardCharsets.UTF_8);
+        int length = ENTRY_HEADER + topic.length + detail.length + letter.payload.length;
+        if (length > size - DATA) {
+            dropped.increment();
+            return;
+        }
+        if (length > size - head) {
+            evict(head, size);
+            if (size - head >= 4) {
+                buffer.putInt(head, WRAP);
+            }
+            head = DATA;
+        }
+        evict(head, head + length);
+        // The header stops pointing at evicted entries before they are overwritten
+        writeHeader();
+
+        buffer.putInt(head, length);
+        buffer.putLong(head + 4, nextSeq);
+        buffer.putLong(head + 12, System.currentTimeMillis());
+        buffer.put(head + 20, letter.reason.code);
+        buffer.putShort(head + 21, (short) topic.length);
+        buffer.putShort(head + 23, (short) detail.length);
+        int position = head + ENTRY_HEADER;
+        position = put(position, topic);
+        position = put(position, detail);
+        put(position, letter.payload);
+
+        if (count == 0) {
+            tail = head;
+        }
+        head += length;
+        count++;
+        nextSeq++;
+        writeHeader();
+        written.increment();
+    }
+
+    // Forgets the oldest entries while they start within [from, to)
+    private void evict(int from, int to) {
+        while (count > 0 && tail >= from && tail < to) {
+            tail += buffer.getInt(tail);
+            count--;
+            if (count > 0) {
+                tail = skipWrap(buffer, tail, size);
+            }
+        }
+        if (count == 0) {
+            tail = head;
+        }
+    }
+
+    private int put(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(position + i, bytes[i]);
+        }
+        return position + bytes.length;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(HEAD_AT, head);
+        buffer.putInt(TAIL_AT, tail);
+        buffer.putInt(COUNT_AT, count);
+        buffer.putLong(NEXT_SEQ_AT, nextSeq);
+    }
+
+    // The offset of the entry at position, which is the start of the ring where the writer wrapped
+    private static int skipWrap(ByteBuffer ring, int position, int size) {
+        return size - position < 4 || ring.getInt(position) == WRAP ? DATA : position;
+    }
+
+    private static boolean isSpool(ByteBuffer buffer, int size) {
+        if (buffer.getInt(MAGIC_AT) != MAGIC || buffer.getInt(VERSION_AT) != VERSION || buffer.getInt(SIZE_AT) != size) {
+            return false;
+        }
+        int head = buffer.getInt(HEAD_AT);
+        int tail = buffer.getInt(TAIL_AT);
+        return head >= DATA && head <= size && tail >= DATA && tail <= size && buffer.getInt(COUNT_AT) >= 0;
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        channel.read(bytes, position);
+        return bytes.hasRemaining() ? 0 : bytes.getInt(0);
+    }
+
+    private static String detail(Throwable cause) {
+        if (cause == null) {
+            return "";
+        }
+        String detail = cause.toString();
+        return detail.length() > MAX_DETAIL_LENGTH ? detail.substring(0, MAX_DETAIL_LENGTH) : detail;
+    }
+
+    // A payload waiting for the writer
+    private static final class Letter {
+        final String topic;
+        final Reason reason;
+        final String detail;
+        final byte[] payload;
+
+        Letter(String topic, Reason reason, String detail, byte[] payload) {
+            this.topic = topic;
+            this.reason = reason;
+            this.detail = detail;
+            this.payload = payload;
+        }
+    }
+}
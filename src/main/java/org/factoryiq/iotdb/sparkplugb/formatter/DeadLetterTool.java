@@ -0,0 +1,106 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBufUtil;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Inspects a {@link DeadLetterSpool} offline. Usage:
+ *
+ * <pre>
+ * java -cp iotdb-sparkplugb-formatter.jar:$IOTDB_HOME/lib/* org.factoryiq.iotdb.sparkplugb.formatter.DeadLetterTool \
+ *     list SPOOL | replay [--config FILE] SPOOL | export SPOOL CAPTURE
+ * </pre>
+ *
+ * {@code list} prints one line per entry. {@code replay} formats every entry again, logging
+ * errors with their stack trace, and reports which still fail. {@code export} writes the entries
+ * to a {@link CaptureFile} for {@link ReplayTool}.
+ */
+public final class DeadLetterTool {
+
+    private DeadLetterTool() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "";
+        if ("list".equals(command) && args.length == 2) {
+            list(Paths.get(args[1]), System.out);
+        } else if ("replay".equals(command) && (args.length == 2 || args.length == 4 && "--config".equals(args[1]))) {
+            if (args.length == 4) {
+                System.setProperty(FormatterConfig.CONFIG_FILE, args[2]);
+            }
+            // Every error with its stack trace, and nothing spooled again
+            System.setProperty(FormatterConfig.LOG_INTERVAL_MS, "0");
+            System.setProperty(FormatterConfig.LOG_STACK_TRACES, RateLimitedLogger.StackTraces.ALWAYS.name());
+            System.setProperty(FormatterConfig.DEAD_LETTER_FILE, "");
+            CustomizedSparkplugPayloadFormatter formatter =
+                new CustomizedSparkplugPayloadFormatter(FormatterConfig.load());
+            replay(formatter, Paths.get(args[args.length - 1]), System.out);
+        } else if ("export".equals(command) && args.length == 3) {
+            int entries = export(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println(entries + " entries exported to " + args[2]);
+        } else {
+            System.err.println("Usage: DeadLetterTool list SPOOL | replay [--config FILE] SPOOL | export SPOOL CAPTURE");
+            System.exit(2);
+        }
+    }
+
+    /** Prints sequence number, time, reason, payload size, topic and detail of every entry. */
+    static int list(Path spool, PrintStream out) throws Exception {
+        return DeadLetterSpool.read(spool, entry -> out.printf(Locale.ROOT, "%d %s %s %d bytes %s %s%n",
+            entry.getSeq(), Instant.ofEpochMilli(entry.getTimestamp()), reasonOf(entry),
+            entry.getPayload().readableBytes(), entry.getTopic() != null ? entry.getTopic() : "-", entry.getDetail()));
+    }
+
+    /**
+     * Formats every entry with {@code formatter}, printing the messages it returns and whether it
+     * failed again, and returns the number that did.
+     */
+    static int replay(CustomizedSparkplugPayloadFormatter formatter, Path spool, PrintStream out) throws Exception {
+        FormatterStats stats = formatter.getStats();
+        int[] failing = new int[1];
+        int entries = DeadLetterSpool.read(spool, entry -> {
+            long failures = failures(stats);
+            List<Message> messages = formatter.format(entry.getTopic(), entry.getPayload());
+            boolean failed = failures(stats) != failures;
+            if (failed) {
+                failing[0]++;
+            }
+            out.printf(Locale.ROOT, "%d %s: %d messages, %s%n", entry.getSeq(), reasonOf(entry), messages.size(),
+                failed ? "failed again" : "converted");
+            for (Message message : messages) {
+                out.printf(Locale.ROOT, "  %s %d %s %s%n", message.getDevice(), message.getTimestamp(),
+                    message.getMeasurements(), message.getValues());
+            }
+        });
+        out.printf(Locale.ROOT, "%d of %d entries failed again%n", failing[0], entries);
+        return failing[0];
+    }
+
+    /** Writes every entry, oldest first, as a capture record; returns their number. */
+    static int export(Path spool, Path capture) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(capture)))) {
+            return DeadLetterSpool.read(spool,
+                entry -> CaptureFile.write(out, entry.getTopic(), ByteBufUtil.getBytes(entry.getPayload())));
+        }
+    }
+
+    private static long failures(FormatterStats stats) {
+        return stats.drops(FormatterStats.DropReason.PARSE_FAILURE)
+            + stats.drops(FormatterStats.DropReason.CONVERSION_ERROR);
+    }
+
+    private static String reasonOf(DeadLetterSpool.Entry entry) {
+        DeadLetterSpool.Reason reason = entry.getReason();
+        return reason != null ? reason.name() : "REASON_" + entry.getReasonCode();
+    }
+}
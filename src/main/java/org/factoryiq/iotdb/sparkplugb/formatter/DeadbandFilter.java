@@ -0,0 +1,115 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Report-by-exception filter: drops numeric samples that stay within a deadband around the last
+ * value written for the same series, while still letting one sample through after the series
+ * has been silent for the configured maximum interval.
+ *
+ * <p>Discrete samples, such as booleans, are only dropped while their value is unchanged; the
+ * deadband applies to continuous values.
+ *
+ * <p>State is kept per series in striped, fixed-capacity primitive tables. When a stripe is full
+ * the least recently seen series is forgotten; its next sample is then always written.
+ */
+final class DeadbandFilter {
+    enum Mode {
+        OFF, ABSOLUTE, PERCENT
+    }
+
+    private static final int STRIPES = 16;
+
+    private final Mode mode;
+    private final double deadband;
+    private final long maxSilenceMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+
+    DeadbandFilter(Mode mode, double deadband, long maxSilenceMillis, int maxSeries) {
+        this.mode = mode;
+        this.deadband = Math.abs(deadband);
+        this.maxSilenceMillis = maxSilenceMillis;
+        int perStripe = Math.max(1, (maxSeries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /** Returns {@code false} when the sample should be dropped. */
+    boolean accept(String device, String measurement, long timestamp, double value) {
+        return accept(device, measurement, timestamp, value, false);
+    }
+
+    /** Like {@link #accept(String, String, long, double)}; a {@code discrete} value is dropped only when unchanged. */
+    boolean accept(String device, String measurement, long timestamp, double value, boolean discrete) {
+        long key = SeriesKey.of(device, measurement);
+        Stripe stripe = stripes[(int) (key >>> 60)];
+        synchronized (stripe) {
+            int slot = stripe.index.get(key);
+            if (slot == LongSlotIndex.ABSENT) {
+                slot = stripe.index.insert(key);
+                stripe.record(slot, timestamp, value);
+                return true;
+            }
+            long lastTimestamp = stripe.timestamps[slot];
+            if (timestamp < lastTimestamp) {
+                // Late sample: write it, but keep comparing against the newest value
+                return true;
+            }
+            if (timestamp - lastTimestamp >= maxSilenceMillis) {
+                stripe.record(slot, timestamp, value);
+                heartbeats.increment();
+                return true;
+            }
+            if (discrete ? stripe.values[slot] == value : isWithinDeadband(stripe.values[slot], value)) {
+                dropped.increment();
+                return false;
+            }
+            stripe.record(slot, timestamp, value);
+            return true;
+        }
+    }
+
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    long heartbeatCount() {
+        return heartbeats.sum();
+    }
+
+    private boolean isWithinDeadband(double last, double value) {
+        if (Double.isNaN(last) || Double.isNaN(value)) {
+            return Double.isNaN(last) && Double.isNaN(value);
+        }
+        double change = Math.abs(value - last);
+        switch (mode) {
+            case ABSOLUTE:
+                return change <= deadband;
+            case PERCENT:
+                return change <= Math.abs(last) * deadband / 100.0;
+            default:
+                return false;
+        }
+    }
+
+    private static final class Stripe {
+        private final LongSlotIndex index;
+        private final long[] timestamps;
+        private final double[] values;
+
+        Stripe(int capacity) {
+            this.index = new LongSlotIndex(capacity);
+            this.timestamps = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        void record(int slot, long timestamp, double value) {
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Fixed-point rendering of doubles that matches {@code String.format("%.Nf", value)} without
+ * going through {@link java.util.Formatter}.
+ *
+ * <p>Like the formatter, it rounds the shortest decimal representation produced by
+ * {@link Double#toString(double)} half-up, keeps the sign of negative values that round to zero
+ * and renders non-finite values as {@code NaN} and {@code (-)Infinity}. Locales whose digits,
+ * decimal separator or minus sign differ from the ASCII ones fall back to {@code String.format}.
+ */
+final class DecimalText {
+    private static volatile LocaleCheck lastCheck = new LocaleCheck(null, false);
+
+    private DecimalText() {
+    }
+
+    // Double.toString never produces more than 25 characters
+    private static final int DIGITS = 32;
+
+    /** Scratch space for {@link #toFixed(double, int, char[])}. */
+    static char[] newScratch() {
+        return new char[128];
+    }
+
+    static String toFixed(double value, int scale) {
+        return toFixed(value, scale, newScratch());
+    }
+
+    /**
+     * Like {@link #toFixed(double, int)}, building the digits in {@code scratch} (from
+     * {@link #newScratch()}) so that the only allocations are the shortest representation and the
+     * result.
+     */
+    static String toFixed(double value, int scale, char[] scratch) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Infinity" : "-Infinity";
+        }
+        if (!isAsciiLocale()) {
+            return String.format("%." + scale + "f", value);
+        }
+
+        boolean negative = Double.doubleToRawLongBits(value) < 0;
+        String shortest = Double.toString(Math.abs(value));
+
+        // Split "123.456" or "1.23456E-7" into its significant digits and the decimal point position
+        int length = shortest.length();
+        int exponentAt = shortest.indexOf('E');
+        int mantissaEnd = exponentAt < 0 ? length : exponentAt;
+        int exponent = exponentAt < 0 ? 0 : parseExponent(shortest, exponentAt + 1);
+
+        char[] digits = scratch;
+        int digitCount = 0;
+        int pointPosition = -1;
+        for (int i = 0; i < mantissaEnd; i++) {
+            char c = shortest.charAt(i);
+            if (c == '.') {
+                pointPosition = digitCount;
+            } else {
+                digits[1 + digitCount++] = c;
+            }
+        }
+        // digits[0] is a spare slot for a carry out of the most significant digit
+        digits[0] = '0';
+        int first = 1;
+        pointPosition = (pointPosition < 0 ? digitCount : pointPosition) + exponent + 1;
+        int end = 1 + digitCount;
+
+        int cut = pointPosition + scale;
+        if (cut < first) {
+            end = first;
+        } else if (cut < end) {
+            boolean roundUp = digits[cut] >= '5';
+            end = cut;
+            if (roundUp) {
+                int i = end - 1;
+                while (digits[i] == '9') {
+                    digits[i--] = '0';
+                }
+                digits[i]++;
+                if (i < first) {
+                    first = i;
+                }
+            }
+        }
+
+        int maxLength = 1 + Math.max(pointPosition - first, 1) + 1 + scale;
+        char[] out = maxLength <= scratch.length - DIGITS ? scratch : new char[DIGITS + maxLength];
+        int outEnd = DIGITS;
+        if (negative) {
+            out[outEnd++] = '-';
+        }
+        if (pointPosition <= first) {
+            out[outEnd++] = '0';
+        } else {
+            boolean leading = true;
+            for (int i = first; i < pointPosition; i++) {
+                char c = i < end ? digits[i] : '0';
+                if (leading && c == '0' && i < pointPosition - 1) {
+                    continue;
+                }
+                leading = false;
+                out[outEnd++] = c;
+            }
+        }
+        if (scale > 0) {
+            out[outEnd++] = '.';
+            for (int i = pointPosition; i < pointPosition + scale; i++) {
+                out[outEnd++] = i >= first && i < end ? digits[i] : '0';
+            }
+        }
+        return new String(out, DIGITS, outEnd - DIGITS);
+    }
+
+    private static int parseExponent(String text, int start) {
+        boolean negative = text.charAt(start) == '-';
+        int exponent = 0;
+        for (int i = negative ? start + 1 : start; i < text.length(); i++) {
+            exponent = exponent * 10 + (text.charAt(i) - '0');
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    private static boolean isAsciiLocale() {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        LocaleCheck check = lastCheck;
+        if (check.locale != locale) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            check = new LocaleCheck(locale, symbols.getZeroDigit() == '0'
+                && symbols.getDecimalSeparator() == '.'
+                && symbols.getMinusSign() == '-');
+            lastCheck = check;
+        }
+        return check.ascii;
+    }
+
+    private static final class LocaleCheck {
+        private final Locale locale;
+        private final boolean ascii;
+
+        LocaleCheck(Locale locale, boolean ascii) {
+            this.locale = locale;
+            this.ascii = ascii;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Device paths by raw (group, edge node, device), so that the metrics of one device share a
+ * single path string instead of normalizing and formatting it for every metric.
+ *
+ * <p>The cache is direct-mapped: a tuple hashes to one slot and replaces whatever tuple was
+ * there. Entries are immutable and published through a plain array store; a thread that misses
+ * a concurrent store simply builds the path again, so lookups never lock or allocate.
+ */
+final class DevicePathCache {
+    private final DevicePathTemplate template;
+    private final NormalizedNameCache names;
+    private final Entry[] entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** The size is rounded up to a power of two; zero disables caching. */
+    DevicePathCache(DevicePathTemplate template, NormalizedNameCache names, int size) {
+        this.template = template;
+        this.names = names;
+        int slots = size <= 0 ? 0 : Integer.highestOneBit(Math.min(size, 1 << 30) * 2 - 1);
+        this.entries = new Entry[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * The device path of raw group, edge node and device names; {@code null} parts drop the
+     * template segments that contain them.
+     */
+    String get(String group, String edge, String device, StringBuilder scratch) {
+        if (entries.length == 0) {
+            return build(group, edge, device, scratch);
+        }
+        int hash = hash(group, edge, device);
+        int slot = hash & mask;
+        Entry entry = entries[slot];
+        if (entry != null && entry.hash == hash && entry.matches(group, edge, device)) {
+            hits.increment();
+            return entry.path;
+        }
+        misses.increment();
+        String path = build(group, edge, device, scratch);
+        entries[slot] = new Entry(hash, group, edge, device, path);
+        return path;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    private String build(String group, String edge, String device, StringBuilder scratch) {
+        return template.format(normalize(group), normalize(edge), normalize(device), scratch);
+    }
+
+    private String normalize(String raw) {
+        return raw == null ? null : names.normalize(raw);
+    }
+
+    private static int hash(String group, String edge, String device) {
+        int hash = (hashOf(group) * 31 + hashOf(edge)) * 31 + hashOf(device);
+        return hash ^ hash >>> 16;
+    }
+
+    private static int hashOf(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static final class Entry {
+        final int hash;
+        final String group;
+        final String edge;
+        final String device;
+        final String path;
+
+        Entry(int hash, String group, String edge, String device, String path) {
+            this.hash = hash;
+            this.group = group;
+            this.edge = edge;
+            this.device = device;
+            this.path = path;
+        }
+
+        boolean matches(String group, String edge, String device) {
+            return same(this.group, group) && same(this.edge, edge) && same(this.device, device);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IoTDB device path built from group, edge node and device, such as the default
+ * {@code root.mqtt.sparkplugb.{group}.{edge}.{device}}. The template is parsed once into its
+ * path segments; a segment whose placeholder has no value (the device of a node-level topic) is
+ * left out.
+ */
+final class DevicePathTemplate {
+    static final String DEFAULT = "root.mqtt.sparkplugb.{group}.{edge}.{device}";
+
+    private static final String[] PLACEHOLDERS = {"{group}", "{edge}", "{device}"};
+
+    private final String template;
+    // Per segment, its literal parts around placeholders and the role of each placeholder
+    private final String[][] literals;
+    private final int[][] roles;
+    private final boolean[] uses = new boolean[PLACEHOLDERS.length];
+    private final String prefix;
+
+    /**
+     * @throws IllegalArgumentException if the template does not start with {@code root.}, has an
+     *                                  empty segment, names an unknown placeholder or has a
+     *                                  placeholder in its second segment, which leaves no valid
+     *                                  fallback device path
+     */
+    DevicePathTemplate(String template) {
+        if (!template.startsWith("root.")) {
+            throw new IllegalArgumentException("Device path template must start with 'root.': " + template);
+        }
+        this.template = template;
+        String[] segments = template.split("\\.", -1);
+        this.literals = new String[segments.length][];
+        this.roles = new int[segments.length][];
+        StringBuilder prefix = new StringBuilder();
+        boolean literalPrefix = true;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("Empty segment in device path template: " + template);
+            }
+            parseSegment(i, segment);
+            if (roles[i].length > 0) {
+                literalPrefix = false;
+            } else if (literalPrefix) {
+                prefix.append(i == 0 ? "" : ".").append(segment);
+            }
+        }
+        if (roles[1].length > 0) {
+            throw new IllegalArgumentException("Device path template needs a fixed segment after 'root.', "
+                + "the default device path: " + template);
+        }
+        this.prefix = prefix.toString();
+    }
+
+    /** Whether the template contains the placeholder of a {@link DevicePropertyKeys} role. */
+    boolean uses(int role) {
+        return uses[role];
+    }
+
+    /** The literal segments before the first placeholder, used as the fallback device path. */
+    String prefix() {
+        return prefix;
+    }
+
+    /** Fills in already normalized values; a null value drops the segments that contain it. */
+    String format(String group, String edge, String device, StringBuilder out) {
+        out.setLength(0);
+        for (int i = 0; i < literals.length; i++) {
+            int[] segmentRoles = roles[i];
+            if (hasMissing(segmentRoles, group, edge, device)) {
+                continue;
+            }
+            if (out.length() > 0) {
+                out.append('.');
+            }
+            String[] parts = literals[i];
+            out.append(parts[0]);
+            for (int j = 0; j < segmentRoles.length; j++) {
+                out.append(value(segmentRoles[j], group, edge, device)).append(parts[j + 1]);
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private void parseSegment(int index, String segment) {
+        List<String> parts = new ArrayList<>();
+        List<Integer> segmentRoles = new ArrayList<>();
+        int start = 0;
+        int open;
+        while ((open = segment.indexOf('{', start)) >= 0) {
+            int close = segment.indexOf('}', open);
+            int role = close < 0 ? DevicePropertyKeys.NONE : roleOf(segment.substring(open, close + 1));
+            if (role == DevicePropertyKeys.NONE) {
+                throw new IllegalArgumentException("Unknown placeholder in device path template: " + template
+                    + " (expected {group}, {edge} or {device})");
+            }
+            parts.add(segment.substring(start, open));
+            segmentRoles.add(role);
+            uses[role] = true;
+            start = close + 1;
+        }
+        parts.add(segment.substring(start));
+        literals[index] = parts.toArray(new String[0]);
+        roles[index] = new int[segmentRoles.size()];
+        for (int i = 0; i < segmentRoles.size(); i++) {
+            roles[index][i] = segmentRoles.get(i);
+        }
+    }
+
+    private static int roleOf(String placeholder) {
+        for (int role = 0; role < PLACEHOLDERS.length; role++) {
+            if (PLACEHOLDERS[role].equals(placeholder)) {
+                return role;
+            }
+        }
+        return DevicePropertyKeys.NONE;
+    }
+
+    private static boolean hasMissing(int[] segmentRoles, String group, String edge, String device) {
+        for (int role : segmentRoles) {
+            if (value(role, group, edge, device) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String value(int role, String group, String edge, String device) {
+        switch (role) {
+            case DevicePropertyKeys.GROUP:
+                return group;
+            case DevicePropertyKeys.EDGE:
+                return edge;
+            default:
+                return device;
+        }
+    }
+}
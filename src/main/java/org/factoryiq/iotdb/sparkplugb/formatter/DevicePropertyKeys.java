@@ -0,0 +1,78 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The metric property keys that carry the group, edge node and device a metric belongs to.
+ *
+ * <p>The configured aliases are compiled into a small open-addressing table, so looking up a key
+ * costs one hash probe and an equals on the (usually interned) key string.
+ */
+final class DevicePropertyKeys {
+    static final int NONE = -1;
+    static final int GROUP = 0;
+    static final int EDGE = 1;
+    static final int DEVICE = 2;
+
+    static final List<String> DEFAULT_GROUP_KEYS = Arrays.asList("group", "GroupID");
+    static final List<String> DEFAULT_EDGE_KEYS = Arrays.asList("edge", "EdgeNodeID");
+    static final List<String> DEFAULT_DEVICE_KEYS = Arrays.asList("device", "AgentID");
+
+    static final DevicePropertyKeys DEFAULT =
+        new DevicePropertyKeys(DEFAULT_GROUP_KEYS, DEFAULT_EDGE_KEYS, DEFAULT_DEVICE_KEYS);
+
+    private final String[] keys;
+    private final int[] roles;
+    private final int mask;
+
+    /**
+     * @throws IllegalArgumentException if a key is empty or named for more than one role
+     */
+    DevicePropertyKeys(List<String> groupKeys, List<String> edgeKeys, List<String> deviceKeys) {
+        int count = groupKeys.size() + edgeKeys.size() + deviceKeys.size();
+        // At most half full, so probe sequences stay short
+        int size = Integer.highestOneBit(Math.max(count, 1) * 4 - 1);
+        this.keys = new String[size];
+        this.roles = new int[size];
+        this.mask = size - 1;
+        add(groupKeys, GROUP);
+        add(edgeKeys, EDGE);
+        add(deviceKeys, DEVICE);
+    }
+
+    /** Which part of the device path a property key names, or {@link #NONE}. */
+    int roleOf(String key) {
+        for (int slot = spread(key.hashCode()) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(key)) {
+                return roles[slot];
+            }
+        }
+        return NONE;
+    }
+
+    private void add(List<String> aliases, int role) {
+        for (String key : aliases) {
+            if (key == null || key.isEmpty()) {
+                throw new IllegalArgumentException("Empty device property key");
+            }
+            int existing = roleOf(key);
+            if (existing == role) {
+                continue;
+            }
+            if (existing != NONE) {
+                throw new IllegalArgumentException("Device property key '" + key + "' is configured for two roles");
+            }
+            int slot = spread(key.hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            roles[slot] = role;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ hash >>> 16;
+    }
+}
@@ -0,0 +1,103 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Suppresses samples that were already written: MQTT QoS 1 redelivers payloads after a
+ * reconnect, and without this stage every redelivered metric is inserted again.
+ *
+ * <p>Per series it remembers the newest accepted timestamp (the watermark) and a hash of the
+ * value written at it. A sample with the watermark's timestamp and value is a duplicate. A
+ * sample older than the watermark by more than the lateness window is late; within the window
+ * it is accepted without moving the watermark, so out-of-order data still gets through.
+ *
+ * <p>State lives in striped, fixed-capacity primitive tables like {@link DeadbandFilter}'s. When
+ * a stripe is full the least recently seen series is forgotten, so memory stays bounded and a
+ * forgotten series merely accepts its next sample.
+ */
+final class DuplicateFilter {
+    enum Verdict {
+        ACCEPT, DUPLICATE, LATE
+    }
+
+    /** What happens to late samples. */
+    enum LateAction {
+        DROP,
+        /** Write them under a separate device path. */
+        ROUTE
+    }
+
+    private static final int STRIPES = 16;
+
+    private final long latenessMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    DuplicateFilter(long latenessMillis, int maxSeries) {
+        this.latenessMillis = Math.max(0, latenessMillis);
+        int perStripe = Math.max(1, (maxSeries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    Verdict check(String device, String measurement, long timestamp, String value) {
+        long key = SeriesKey.of(device, measurement);
+        long valueHash = SeriesKey.hash(value);
+        Stripe stripe = stripes[(int) (key >>> 60)];
+        synchronized (stripe) {
+            int slot = stripe.index.get(key);
+            if (slot == LongSlotIndex.ABSENT) {
+                slot = stripe.index.insert(key);
+                stripe.record(slot, timestamp, valueHash);
+                return Verdict.ACCEPT;
+            }
+            long watermark = stripe.timestamps[slot];
+            if (timestamp > watermark) {
+                stripe.record(slot, timestamp, valueHash);
+                return Verdict.ACCEPT;
+            }
+            if (timestamp == watermark) {
+                if (stripe.valueHashes[slot] == valueHash) {
+                    duplicates.increment();
+                    return Verdict.DUPLICATE;
+                }
+                // A corrected value overwrites the sample in IoTDB
+                stripe.valueHashes[slot] = valueHash;
+                return Verdict.ACCEPT;
+            }
+            if (watermark - timestamp > latenessMillis) {
+                late.increment();
+                return Verdict.LATE;
+            }
+            return Verdict.ACCEPT;
+        }
+    }
+
+    long duplicateCount() {
+        return duplicates.sum();
+    }
+
+    long lateCount() {
+        return late.sum();
+    }
+
+    private static final class Stripe {
+        private final LongSlotIndex index;
+        private final long[] timestamps;
+        private final long[] valueHashes;
+
+        Stripe(int capacity) {
+            this.index = new LongSlotIndex(capacity);
+            this.timestamps = new long[capacity];
+            this.valueHashes = new long[capacity];
+        }
+
+        void record(int slot, long timestamp, long valueHash) {
+            timestamps[slot] = timestamp;
+            valueHashes[slot] = valueHash;
+        }
+    }
+}
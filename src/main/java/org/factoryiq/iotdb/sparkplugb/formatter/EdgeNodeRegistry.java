@@ -0,0 +1,42 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per edge node state, keyed by {@code <group_id>/<edge_node_id>}.
+ */
+final class EdgeNodeRegistry {
+    /** Used when the MQTT topic is not available to the formatter. */
+    static final String UNSCOPED = "";
+
+    private final ConcurrentMap<String, EdgeNodeState> nodes = new ConcurrentHashMap<>();
+
+    static String key(String groupId, String edgeNodeId) {
+        return groupId + "/" + edgeNodeId;
+    }
+
+    EdgeNodeState get(String key) {
+        return nodes.get(key);
+    }
+
+    EdgeNodeState getOrCreate(String key) {
+        EdgeNodeState state = nodes.get(key);
+        if (state == null) {
+            EdgeNodeState created = new EdgeNodeState();
+            state = nodes.putIfAbsent(key, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    void remove(String key) {
+        nodes.remove(key);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+}
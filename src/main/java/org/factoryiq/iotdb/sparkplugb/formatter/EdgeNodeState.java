@@ -0,0 +1,68 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session state the formatter keeps for one Sparkplug edge node between its birth and death.
+ *
+ * <p>Reads happen for every metric and never lock; updates only happen on birth and death
+ * certificates and are serialized per edge node.
+ */
+final class EdgeNodeState {
+    private volatile AliasTable aliases = AliasTable.EMPTY;
+    // Copied on write, by type name
+    private volatile Map<String, TemplateDefinition> templates = Collections.emptyMap();
+
+    AliasEntry resolveAlias(long alias) {
+        return aliases.get(alias);
+    }
+
+    int aliasCount() {
+        return aliases.size();
+    }
+
+    /** The template definition of a {@code template_ref}, or {@code null}. */
+    TemplateDefinition template(String templateRef) {
+        return templates.get(TemplateDefinition.typeName(templateRef));
+    }
+
+    int templateCount() {
+        return templates.size();
+    }
+
+    /** NBIRTH: everything learned from the previous session is discarded. */
+    synchronized void rebirth(Collection<AliasEntry> entries, Collection<TemplateDefinition> definitions) {
+        aliases = AliasTable.EMPTY.with(entries);
+        templates = Collections.emptyMap();
+        define(definitions);
+    }
+
+    /** Adds or replaces template definitions. */
+    synchronized void define(Collection<TemplateDefinition> definitions) {
+        if (definitions.isEmpty()) {
+            return;
+        }
+        Map<String, TemplateDefinition> updated = new HashMap<>(templates);
+        for (TemplateDefinition definition : definitions) {
+            updated.put(definition.getName(), definition);
+        }
+        templates = Collections.unmodifiableMap(updated);
+    }
+
+    /** DBIRTH: the device's previous aliases are replaced. */
+    synchronized void deviceBirth(String deviceId, Collection<AliasEntry> entries) {
+        aliases = aliases.withoutDevice(deviceId).with(entries);
+    }
+
+    synchronized void deviceDeath(String deviceId) {
+        aliases = aliases.withoutDevice(deviceId);
+    }
+
+    /** Births without a known topic can only add to what is already known. */
+    synchronized void register(Collection<AliasEntry> entries) {
+        aliases = aliases.with(entries);
+    }
+}
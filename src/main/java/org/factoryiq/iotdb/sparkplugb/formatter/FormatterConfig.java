@@ -0,0 +1,495 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Formatter settings, read once when IoTDB instantiates the formatter.
+ *
+ * <p>Values come from an optional properties file named by the {@code sparkplugb.formatter.config}
+ * system property, overridden by any {@code sparkplugb.formatter.*} system properties.
+ */
+final class FormatterConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormatterConfig.class);
+
+    /** How payloads are turned into metrics. */
+    enum Decoder {
+        /** Parse into the generated Tahu protobuf classes. */
+        GENERATED,
+        /** Read only the fields the formatter uses straight off the wire. */
+        STREAMING
+    }
+
+    static final String PREFIX = "sparkplugb.formatter.";
+    static final String CONFIG_FILE = PREFIX + "config";
+
+    static final String ALIGNED_BATCHING = PREFIX + "aligned_batching";
+    static final String NAME_CACHE_SIZE = PREFIX + "name_cache_size";
+    static final String TYPED_VALUES = PREFIX + "typed_values";
+    static final String ALIAS_RESOLUTION = PREFIX + "alias_resolution";
+    static final String UNSCOPED_ALIASES = PREFIX + "unscoped_aliases";
+    static final String DEADBAND_MODE = PREFIX + "deadband_mode";
+    static final String DEADBAND = PREFIX + "deadband";
+    static final String DEADBAND_MAX_SILENCE_MS = PREFIX + "deadband_max_silence_ms";
+    static final String DEADBAND_MAX_SERIES = PREFIX + "deadband_max_series";
+    static final String DECODER = PREFIX + "decoder";
+    static final String JMX = PREFIX + "jmx";
+    static final String LOG_INTERVAL_MS = PREFIX + "log_interval_ms";
+    static final String LOG_STACK_TRACES = PREFIX + "log_stack_traces";
+    static final String GROUP_PROPERTY_KEYS = PREFIX + "group_property_keys";
+    static final String EDGE_PROPERTY_KEYS = PREFIX + "edge_property_keys";
+    static final String DEVICE_PROPERTY_KEYS = PREFIX + "device_property_keys";
+    static final String DEVICE_PATH_TEMPLATE = PREFIX + "device_path_template";
+    static final String DEVICE_PATH_CACHE_SIZE = PREFIX + "device_path_cache_size";
+    static final String SEQUENCE_TRACKING = PREFIX + "sequence_tracking";
+    static final String SEQUENCE_STATUS_SERIES = PREFIX + "sequence_status_series";
+    static final String DEDUP = PREFIX + "dedup";
+    static final String DEDUP_LATENESS_MS = PREFIX + "dedup_lateness_ms";
+    static final String DEDUP_LATE_ACTION = PREFIX + "dedup_late_action";
+    static final String DEDUP_LATE_SUFFIX = PREFIX + "dedup_late_suffix";
+    static final String DEDUP_MAX_SERIES = PREFIX + "dedup_max_series";
+    static final String MAX_DECOMPRESSED_BYTES = PREFIX + "max_decompressed_bytes";
+    static final String ARRAY_SAMPLE_INTERVAL_MS = PREFIX + "array_sample_interval_ms";
+    static final String TEMPLATE_DEFINITIONS = PREFIX + "template_definitions";
+    static final String PARALLEL_THRESHOLD = PREFIX + "parallel_threshold";
+    static final String PARALLEL_CHUNK_SIZE = PREFIX + "parallel_chunk_size";
+    static final String PARALLELISM = PREFIX + "parallelism";
+    static final String AGGREGATION_WINDOW_MS = PREFIX + "aggregation_window_ms";
+    static final String AGGREGATION_PATHS = PREFIX + "aggregation_paths";
+    static final String AGGREGATION_RAW_PATHS = PREFIX + "aggregation_raw_paths";
+    static final String AGGREGATION_MAX_SERIES = PREFIX + "aggregation_max_series";
+    static final String LAST_VALUE_STORE = PREFIX + "last_value_store";
+    static final String LAST_VALUE_MAX_SERIES = PREFIX + "last_value_max_series";
+    static final String LAST_VALUE_MAX_VALUE_BYTES = PREFIX + "last_value_max_value_bytes";
+    static final String DEAD_LETTER_FILE = PREFIX + "dead_letter_file";
+    static final String DEAD_LETTER_MAX_BYTES = PREFIX + "dead_letter_max_bytes";
+    static final String DEAD_LETTER_QUEUE = PREFIX + "dead_letter_queue";
+
+    private final boolean alignedBatching;
+    private final long nameCacheSize;
+    private final boolean typedValues;
+    private final boolean aliasResolution;
+    private final boolean unscopedAliases;
+    private final DeadbandFilter.Mode deadbandMode;
+    private final double deadband;
+    private final long deadbandMaxSilenceMillis;
+    private final int deadbandMaxSeries;
+    private final Decoder decoder;
+    private final boolean jmx;
+    private final long logIntervalMillis;
+    private final RateLimitedLogger.StackTraces logStackTraces;
+    private final DevicePropertyKeys devicePropertyKeys;
+    private final DevicePathTemplate devicePathTemplate;
+    private final int devicePathCacheSize;
+    private final boolean sequenceTracking;
+    private final boolean sequenceStatusSeries;
+    private final boolean dedup;
+    private final long dedupLatenessMillis;
+    private final DuplicateFilter.LateAction dedupLateAction;
+    private final String dedupLateSuffix;
+    private final int dedupMaxSeries;
+    private final int maxDecompressedBytes;
+    private final long arraySampleIntervalMillis;
+    private final boolean templateDefinitions;
+    private final int parallelThreshold;
+    private final int parallelChunkSize;
+    private final int parallelism;
+    private final long aggregationWindowMillis;
+    private final List<PathPattern> aggregationPaths;
+    private final List<PathPattern> aggregationRawPaths;
+    private final int aggregationMaxSeries;
+    private final boolean lastValueStore;
+    private final int lastValueMaxSeries;
+    private final int lastValueMaxValueBytes;
+    private final String deadLetterFile;
+    private final int deadLetterMaxBytes;
+    private final int deadLetterQueue;
+
+    FormatterConfig(Properties properties) {
+        this.alignedBatching = getBoolean(properties, ALIGNED_BATCHING, false);
+        this.nameCacheSize = getLong(properties, NAME_CACHE_SIZE, 10000L);
+        this.typedValues = getBoolean(properties, TYPED_VALUES, false);
+        this.aliasResolution = getBoolean(properties, ALIAS_RESOLUTION, true);
+        this.unscopedAliases = getBoolean(properties, UNSCOPED_ALIASES, false);
+        this.deadbandMode = getEnum(properties, DEADBAND_MODE, DeadbandFilter.Mode.OFF);
+        this.deadband = getDouble(properties, DEADBAND, 0.0);
+        this.deadbandMaxSilenceMillis = getLong(properties, DEADBAND_MAX_SILENCE_MS, 60000L);
+        this.deadbandMaxSeries = (int) getLong(properties, DEADBAND_MAX_SERIES, 100000L);
+        this.decoder = getEnum(properties, DECODER, Decoder.GENERATED);
+        this.jmx = getBoolean(properties, JMX, true);
+        this.logIntervalMillis = getLong(properties, LOG_INTERVAL_MS, 10000L);
+        this.logStackTraces = getEnum(properties, LOG_STACK_TRACES, RateLimitedLogger.StackTraces.FIRST);
+        this.devicePropertyKeys = getDevicePropertyKeys(properties);
+        this.devicePathTemplate = getDevicePathTemplate(properties);
+        this.devicePathCacheSize = (int) getLong(properties, DEVICE_PATH_CACHE_SIZE, 4096L);
+        this.sequenceTracking = getBoolean(properties, SEQUENCE_TRACKING, true);
+        this.sequenceStatusSeries = getBoolean(properties, SEQUENCE_STATUS_SERIES, false);
+        this.dedup = getBoolean(properties, DEDUP, false);
+        this.dedupLatenessMillis = getLong(properties, DEDUP_LATENESS_MS, 60000L);
+        this.dedupLateAction = getEnum(properties, DEDUP_LATE_ACTION, DuplicateFilter.LateAction.DROP);
+        this.dedupLateSuffix = getString(properties, DEDUP_LATE_SUFFIX, "late");
+        this.dedupMaxSeries = (int) getLong(properties, DEDUP_MAX_SERIES, 100000L);
+        this.maxDecompressedBytes = (int) Math.min(getLong(properties, MAX_DECOMPRESSED_BYTES, 16L * 1024 * 1024),
+            Integer.MAX_VALUE - 8);
+        this.arraySampleIntervalMillis = Math.max(0L, getLong(properties, ARRAY_SAMPLE_INTERVAL_MS, 0L));
+        this.templateDefinitions = getBoolean(properties, TEMPLATE_DEFINITIONS, true);
+        this.parallelThreshold = (int) Math.max(0L, getLong(properties, PARALLEL_THRESHOLD, 0L));
+        this.parallelChunkSize = (int) Math.max(1L, getLong(properties, PARALLEL_CHUNK_SIZE, 2048L));
+        this.parallelism = (int) Math.max(1L, getLong(properties, PARALLELISM,
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+        this.aggregationWindowMillis = Math.max(0L, getLong(properties, AGGREGATION_WINDOW_MS, 0L));
+        this.aggregationPaths = getPathPatterns(properties, AGGREGATION_PATHS, "**");
+        this.aggregationRawPaths = getPathPatterns(properties, AGGREGATION_RAW_PATHS, "");
+        this.aggregationMaxSeries = (int) getLong(properties, AGGREGATION_MAX_SERIES, 100000L);
+        this.lastValueStore = getBoolean(properties, LAST_VALUE_STORE, false);
+        this.lastValueMaxSeries = (int) getLong(properties, LAST_VALUE_MAX_SERIES, 100000L);
+        this.lastValueMaxValueBytes = (int) Math.min(Math.max(0L, getLong(properties, LAST_VALUE_MAX_VALUE_BYTES, 32L)),
+            4096L);
+        this.deadLetterFile = getString(properties, DEAD_LETTER_FILE, null);
+        this.deadLetterMaxBytes = (int) Math.min(Math.max(DeadLetterSpool.MIN_BYTES,
+            getLong(properties, DEAD_LETTER_MAX_BYTES, 64L * 1024 * 1024)), 1024L * 1024 * 1024);
+        this.deadLetterQueue = (int) Math.max(1L, getLong(properties, DEAD_LETTER_QUEUE, 256L));
+    }
+
+    static FormatterConfig defaults() {
+        return new FormatterConfig(new Properties());
+    }
+
+    static FormatterConfig load() {
+        Properties properties = new Properties();
+        String file = System.getProperty(CONFIG_FILE);
+        if (file != null && !file.trim().isEmpty()) {
+            try (InputStream in = Files.newInputStream(Paths.get(file.trim()))) {
+                properties.load(in);
+                LOGGER.info("Loaded Sparkplug B formatter configuration from {}", file);
+            } catch (IOException e) {
+                LOGGER.error("Could not read formatter configuration {}: {}", file, e.getMessage());
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX) && !name.equals(CONFIG_FILE)) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        return new FormatterConfig(properties);
+    }
+
+    /** Merge metrics that share a device path and timestamp into one multi-measurement message. */
+    boolean isAlignedBatching() {
+        return alignedBatching;
+    }
+
+    /** Maximum number of raw-to-normalized names kept; zero disables the cache. */
+    long getNameCacheSize() {
+        return nameCacheSize;
+    }
+
+    /** Send explicit IoTDB data types with exact values instead of six-decimal text. */
+    boolean isTypedValues() {
+        return typedValues;
+    }
+
+    /**
+     * Remember birth certificate aliases so data messages may omit metric names and properties.
+     * Aliases are scoped by the MQTT topic; payloads received without one, as from IoTDB 1.3.3,
+     * only resolve them with {@link #isUnscopedAliases()}.
+     */
+    boolean isAliasResolution() {
+        return aliasResolution;
+    }
+
+    /**
+     * Resolve aliases of payloads received without a topic against one table shared by all edge
+     * nodes; otherwise their alias-only metrics are dropped.
+     */
+    boolean isUnscopedAliases() {
+        return unscopedAliases;
+    }
+
+    /** {@code OFF}, or whether {@link #getDeadband()} is an absolute change or a percentage. */
+    DeadbandFilter.Mode getDeadbandMode() {
+        return deadbandMode;
+    }
+
+    double getDeadband() {
+        return deadband;
+    }
+
+    /** A sample is always written once a series has been filtered for this long. */
+    long getDeadbandMaxSilenceMillis() {
+        return deadbandMaxSilenceMillis;
+    }
+
+    /** Upper bound on the number of series whose last value the deadband filter remembers. */
+    int getDeadbandMaxSeries() {
+        return deadbandMaxSeries;
+    }
+
+    Decoder getDecoder() {
+        return decoder;
+    }
+
+    /** Publish {@link FormatterStatsMBean} on the platform MBean server. */
+    boolean isJmx() {
+        return jmx;
+    }
+
+    /** Each per-metric warning is logged at most once per interval; zero logs every occurrence. */
+    long getLogIntervalMillis() {
+        return logIntervalMillis;
+    }
+
+    /** Whether repeated errors are logged with their stack trace always, the first time or never. */
+    RateLimitedLogger.StackTraces getLogStackTraces() {
+        return logStackTraces;
+    }
+
+    /** Property keys naming group, edge node and device, compiled into one lookup. */
+    DevicePropertyKeys getDevicePropertyKeys() {
+        return devicePropertyKeys;
+    }
+
+    DevicePathTemplate getDevicePathTemplate() {
+        return devicePathTemplate;
+    }
+
+    /** Number of (group, edge node, device) paths kept; zero builds the path for every metric. */
+    int getDevicePathCacheSize() {
+        return devicePathCacheSize;
+    }
+
+    /** Check {@code seq} and {@code bdSeq} per edge node; needs the MQTT topic. */
+    boolean isSequenceTracking() {
+        return sequenceTracking;
+    }
+
+    /** Write an edge node's sequence counters to IoTDB whenever one of its payloads is out of sequence. */
+    boolean isSequenceStatusSeries() {
+        return sequenceStatusSeries;
+    }
+
+    /** Drop samples that repeat the last written timestamp and value of their series. */
+    boolean isDedup() {
+        return dedup;
+    }
+
+    /** How far behind the newest sample of its series a sample may be before it counts as late. */
+    long getDedupLatenessMillis() {
+        return dedupLatenessMillis;
+    }
+
+    DuplicateFilter.LateAction getDedupLateAction() {
+        return dedupLateAction;
+    }
+
+    /** Path segment appended to the device of late samples when they are routed. */
+    String getDedupLateSuffix() {
+        return dedupLateSuffix;
+    }
+
+    /** Upper bound on the number of series whose watermark the duplicate filter remembers. */
+    int getDedupMaxSeries() {
+        return dedupMaxSeries;
+    }
+
+    /** Largest payload a compressed payload may decompress to, in bytes. */
+    int getMaxDecompressedBytes() {
+        return maxDecompressedBytes;
+    }
+
+    /**
+     * Time between the elements of an array metric, and between DataSet rows without a DateTime
+     * column; 0 writes an array as one row with a measurement per element, and spaces such
+     * DataSet rows 1 ms apart.
+     */
+    long getArraySampleIntervalMillis() {
+        return arraySampleIntervalMillis;
+    }
+
+    /**
+     * Whether to remember the template definitions of birth certificates, so that template
+     * instances can leave out the datatypes of their members.
+     */
+    boolean isTemplateDefinitions() {
+        return templateDefinitions;
+    }
+
+    /**
+     * Number of metrics from which a payload is split into chunks converted in parallel; 0
+     * converts every payload on the calling thread.
+     */
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /** Number of consecutive metrics per chunk of a payload converted in parallel. */
+    int getParallelChunkSize() {
+        return parallelChunkSize;
+    }
+
+    /** Number of threads converting chunks, next to the calling thread. */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /** Length of the windows numeric samples are aggregated into; 0 turns aggregation off. */
+    long getAggregationWindowMillis() {
+        return aggregationWindowMillis;
+    }
+
+    /** Series to aggregate, matched against {@code <device path>.<measurement>}. */
+    List<PathPattern> getAggregationPaths() {
+        return aggregationPaths;
+    }
+
+    /** Aggregated series whose raw samples are written as well. */
+    List<PathPattern> getAggregationRawPaths() {
+        return aggregationRawPaths;
+    }
+
+    /** Upper bound on the number of series with an open aggregation window. */
+    int getAggregationMaxSeries() {
+        return aggregationMaxSeries;
+    }
+
+    /** Keep the latest sample of every series in memory for current-state queries. */
+    boolean isLastValueStore() {
+        return lastValueStore;
+    }
+
+    /** Upper bound on the number of series whose latest sample is kept. */
+    int getLastValueMaxSeries() {
+        return lastValueMaxSeries;
+    }
+
+    /** Longest value, in UTF-8 bytes, kept off the heap; longer values are kept on the heap. */
+    int getLastValueMaxValueBytes() {
+        return lastValueMaxValueBytes;
+    }
+
+    /** File that keeps payloads which failed to convert, or {@code null} to keep none. */
+    String getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    /** Size of the dead-letter file; once full, the oldest payloads are overwritten. */
+    int getDeadLetterMaxBytes() {
+        return deadLetterMaxBytes;
+    }
+
+    /** Failed payloads waiting for the dead-letter writer, beyond which further ones are dropped. */
+    int getDeadLetterQueue() {
+        return deadLetterQueue;
+    }
+
+    private static DevicePropertyKeys getDevicePropertyKeys(Properties properties) {
+        List<String> group = getList(properties, GROUP_PROPERTY_KEYS, DevicePropertyKeys.DEFAULT_GROUP_KEYS);
+        List<String> edge = getList(properties, EDGE_PROPERTY_KEYS, DevicePropertyKeys.DEFAULT_EDGE_KEYS);
+        List<String> device = getList(properties, DEVICE_PROPERTY_KEYS, DevicePropertyKeys.DEFAULT_DEVICE_KEYS);
+        try {
+            return new DevicePropertyKeys(group, edge, device);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("{}, using the default device property keys", e.getMessage());
+            return DevicePropertyKeys.DEFAULT;
+        }
+    }
+
+    private static DevicePathTemplate getDevicePathTemplate(Properties properties) {
+        String value = properties.getProperty(DEVICE_PATH_TEMPLATE);
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                return new DevicePathTemplate(value.trim());
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("{}, using {}", e.getMessage(), DevicePathTemplate.DEFAULT);
+            }
+        }
+        return new DevicePathTemplate(DevicePathTemplate.DEFAULT);
+    }
+
+    private static List<PathPattern> getPathPatterns(Properties properties, String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                return PathPattern.parseList(value);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("{} in {}, using '{}'", e.getMessage(), key, defaultValue);
+            }
+        }
+        return PathPattern.parseList(defaultValue);
+    }
+
+    private static List<String> getList(Properties properties, String key, List<String> defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    private static String getString(Properties properties, String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static boolean getBoolean(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private static long getLong(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value '{}' for {}, using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static double getDouble(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value '{}' for {}, using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static <E extends Enum<E>> E getEnum(Properties properties, String key, E defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid value '{}' for {}, using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
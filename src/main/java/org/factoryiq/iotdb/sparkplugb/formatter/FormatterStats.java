@@ -0,0 +1,338 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram of a formatter. Every recording is a {@link LongAdder} update,
+ * so the hot path does not contend across MQTT worker threads.
+ */
+final class FormatterStats implements FormatterStatsMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormatterStats.class);
+    static final String DOMAIN = "org.factoryiq.iotdb.sparkplugb";
+
+    /** Why a payload or metric did not make it into IoTDB as sent. */
+    enum DropReason {
+        PARSE_FAILURE,
+        INVALID_MESSAGE,
+        UNKNOWN_DATATYPE,
+        DEFAULT_DEVICE,
+        UNKNOWN_ALIAS,
+        CONVERSION_ERROR
+    }
+
+    private final LongAdder payloads = new LongAdder();
+    private final LongAdder metrics = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder parallel = new LongAdder();
+    private final LongAdder[] drops = new LongAdder[DropReason.values().length];
+    private final LatencyHistogram formatLatency = new LatencyHistogram();
+
+    private final NormalizedNameCache nameCache;
+    private final DevicePathCache devicePaths;
+    private final DeadbandFilter deadbandFilter;
+    private final DuplicateFilter duplicateFilter;
+    private final WindowAggregator aggregator;
+    private final SequenceTracker sequences;
+    private final DeadLetterSpool deadLetters;
+    private final RateLimitedLogger warnings;
+
+    FormatterStats(NormalizedNameCache nameCache, DevicePathCache devicePaths, DeadbandFilter deadbandFilter,
+                   DuplicateFilter duplicateFilter, WindowAggregator aggregator, SequenceTracker sequences,
+                   DeadLetterSpool deadLetters, RateLimitedLogger warnings) {
+        this.nameCache = nameCache;
+        this.devicePaths = devicePaths;
+        this.deadbandFilter = deadbandFilter;
+        this.duplicateFilter = duplicateFilter;
+        this.aggregator = aggregator;
+        this.sequences = sequences;
+        this.deadLetters = deadLetters;
+        this.warnings = warnings;
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+    }
+
+    void payloadReceived() {
+        payloads.increment();
+    }
+
+    void payloadDecompressed() {
+        compressed.increment();
+    }
+
+    void payloadSplit() {
+        parallel.increment();
+    }
+
+    void metricsDecoded(int count) {
+        metrics.add(count);
+    }
+
+    void messagesEmitted(int count) {
+        messages.add(count);
+    }
+
+    void drop(DropReason reason) {
+        drops[reason.ordinal()].increment();
+    }
+
+    long drops(DropReason reason) {
+        return drops[reason.ordinal()].sum();
+    }
+
+    void recordFormatNanos(long nanos) {
+        formatLatency.record(nanos);
+    }
+
+    LatencyHistogram getFormatLatency() {
+        return formatLatency;
+    }
+
+    /**
+     * Publishes the statistics on the platform MBean server, numbering further instances, and
+     * returns the name used or {@code null} when registration failed.
+     */
+    ObjectName register(String name) {
+        return register(this, FormatterStatsMBean.class, "Formatter", name);
+    }
+
+    /** Publishes an MBean of a formatter under {@code type}, numbering further instances like the statistics. */
+    static <T> ObjectName register(T implementation, Class<T> mbeanInterface, String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        StandardMBean mbean = new StandardMBean(implementation, mbeanInterface, false);
+        try {
+            for (int instance = 1; ; instance++) {
+                ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)
+                    + (instance == 1 ? "" : ",instance=" + instance));
+                try {
+                    server.registerMBean(mbean, objectName);
+                    LOGGER.info("Registered {} as {}", mbeanInterface.getSimpleName(), objectName);
+                    return objectName;
+                } catch (InstanceAlreadyExistsException e) {
+                    // Another formatter instance, try the next number
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Could not register {}: {}", mbeanInterface.getSimpleName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /** Removes an MBean published by {@link #register}; {@code null} names are ignored. */
+    static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Could not unregister {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    @Override
+    public long getPayloadsReceived() {
+        return payloads.sum();
+    }
+
+    @Override
+    public long getMetricsDecoded() {
+        return metrics.sum();
+    }
+
+    @Override
+    public long getCompressedPayloads() {
+        return compressed.sum();
+    }
+
+    @Override
+    public long getParallelPayloads() {
+        return parallel.sum();
+    }
+
+    @Override
+    public long getMessagesEmitted() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getParseFailures() {
+        return drops(DropReason.PARSE_FAILURE);
+    }
+
+    @Override
+    public long getInvalidMessages() {
+        return drops(DropReason.INVALID_MESSAGE);
+    }
+
+    @Override
+    public long getUnknownDatatypes() {
+        return drops(DropReason.UNKNOWN_DATATYPE);
+    }
+
+    @Override
+    public long getDefaultDeviceFallbacks() {
+        return drops(DropReason.DEFAULT_DEVICE);
+    }
+
+    @Override
+    public long getUnknownAliases() {
+        return drops(DropReason.UNKNOWN_ALIAS);
+    }
+
+    @Override
+    public long getConversionErrors() {
+        return drops(DropReason.CONVERSION_ERROR);
+    }
+
+    @Override
+    public long getDeadbandDrops() {
+        return deadbandFilter != null ? deadbandFilter.droppedCount() : 0;
+    }
+
+    @Override
+    public long getDuplicateDrops() {
+        return duplicateFilter != null ? duplicateFilter.duplicateCount() : 0;
+    }
+
+    @Override
+    public long getLateSamples() {
+        return duplicateFilter != null ? duplicateFilter.lateCount() : 0;
+    }
+
+    @Override
+    public long getAggregatedSamples() {
+        return aggregator != null ? aggregator.sampleCount() : 0;
+    }
+
+    @Override
+    public long getAggregateWindows() {
+        return aggregator != null ? aggregator.windowCount() : 0;
+    }
+
+    @Override
+    public long getLateWindowSamples() {
+        return aggregator != null ? aggregator.lateCount() : 0;
+    }
+
+    @Override
+    public long getSequenceGaps() {
+        return sequences != null ? sequences.gapCount() : 0;
+    }
+
+    @Override
+    public long getMissedMessages() {
+        return sequences != null ? sequences.missedMessageCount() : 0;
+    }
+
+    @Override
+    public long getOutOfOrderMessages() {
+        return sequences != null ? sequences.outOfOrderCount() : 0;
+    }
+
+    @Override
+    public long getRebirths() {
+        return sequences != null ? sequences.rebirthCount() : 0;
+    }
+
+    @Override
+    public long getRestarts() {
+        return sequences != null ? sequences.restartCount() : 0;
+    }
+
+    @Override
+    public long getStaleDeaths() {
+        return sequences != null ? sequences.staleDeathCount() : 0;
+    }
+
+    @Override
+    public long getDeadLetters() {
+        return deadLetters != null ? deadLetters.writtenCount() : 0;
+    }
+
+    @Override
+    public long getDeadLetterDrops() {
+        return deadLetters != null ? deadLetters.droppedCount() : 0;
+    }
+
+    @Override
+    public long getNameCacheHits() {
+        return nameCache.hitCount();
+    }
+
+    @Override
+    public long getNameCacheMisses() {
+        return nameCache.missCount();
+    }
+
+    @Override
+    public long getDevicePathCacheHits() {
+        return devicePaths.hitCount();
+    }
+
+    @Override
+    public long getDevicePathCacheMisses() {
+        return devicePaths.missCount();
+    }
+
+    @Override
+    public long getSuppressedLogMessages() {
+        return warnings.suppressedCount();
+    }
+
+    @Override
+    public long getFormatLatencyCount() {
+        return formatLatency.count();
+    }
+
+    @Override
+    public double getFormatLatencyMeanMicros() {
+        return formatLatency.mean() / 1000.0;
+    }
+
+    @Override
+    public double getFormatLatencyP50Micros() {
+        return formatLatency.percentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getFormatLatencyP99Micros() {
+        return formatLatency.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getFormatLatencyP999Micros() {
+        return formatLatency.percentile(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getFormatLatencyMaxMicros() {
+        return formatLatency.max() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        payloads.reset();
+        metrics.reset();
+        messages.reset();
+        compressed.reset();
+        parallel.reset();
+        for (LongAdder drop : drops) {
+            drop.reset();
+        }
+        formatLatency.reset();
+        if (sequences != null) {
+            sequences.reset();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+/**
+ * Runtime statistics of a formatter instance, published over JMX as
+ * {@code org.factoryiq.iotdb.sparkplugb:type=Formatter,name=CustomizedSparkplugB}.
+ */
+public interface FormatterStatsMBean {
+
+    long getPayloadsReceived();
+
+    long getMetricsDecoded();
+
+    /** Payloads that arrived compressed and were decompressed before decoding. */
+    long getCompressedPayloads();
+
+    /** Payloads large enough to be split into chunks converted in parallel. */
+    long getParallelPayloads();
+
+    long getMessagesEmitted();
+
+    /** Payloads that were empty or could not be decoded. */
+    long getParseFailures();
+
+    /** Messages rejected by validation: bad device path, measurements or timestamp. */
+    long getInvalidMessages();
+
+    /** Metrics whose datatype is not converted, written as double instead. */
+    long getUnknownDatatypes();
+
+    /** Metrics without device properties or topic, written to the default device. */
+    long getDefaultDeviceFallbacks();
+
+    /** Metrics sent by alias before a birth certificate declared it. */
+    long getUnknownAliases();
+
+    /** Metrics that failed to convert. */
+    long getConversionErrors();
+
+    /** Samples dropped by the deadband filter. */
+    long getDeadbandDrops();
+
+    /** Samples dropped because the same timestamp and value were already written. */
+    long getDuplicateDrops();
+
+    /** Samples older than the dedup lateness window, dropped or routed to a separate device. */
+    long getLateSamples();
+
+    /** Samples added to an aggregation window. */
+    long getAggregatedSamples();
+
+    /** Aggregation windows closed and written. */
+    long getAggregateWindows();
+
+    /** Samples of an aggregation window that had already been written, left out of it. */
+    long getLateWindowSamples();
+
+    /** Jumps in an edge node's {@code seq}, each one or more lost messages. */
+    long getSequenceGaps();
+
+    /** Messages skipped over by sequence gaps. */
+    long getMissedMessages();
+
+    /** Payloads whose {@code seq} was behind the expected one: late or repeated. */
+    long getOutOfOrderMessages();
+
+    /** NBIRTH certificates of edge nodes that were alive, with an unchanged {@code bdSeq}. */
+    long getRebirths();
+
+    /** NBIRTH certificates of edge nodes that were alive, with a new {@code bdSeq}: the NDEATH was lost. */
+    long getRestarts();
+
+    /** NDEATH certificates of an earlier session, ignored. */
+    long getStaleDeaths();
+
+    /** Failed payloads written to the dead-letter file. */
+    long getDeadLetters();
+
+    /** Failed payloads not written to the dead-letter file because its writer fell behind or they do not fit. */
+    long getDeadLetterDrops();
+
+    long getNameCacheHits();
+
+    long getNameCacheMisses();
+
+    long getDevicePathCacheHits();
+
+    long getDevicePathCacheMisses();
+
+    /** Warnings and errors not logged because the same one was logged within the interval. */
+    long getSuppressedLogMessages();
+
+    long getFormatLatencyCount();
+
+    double getFormatLatencyMeanMicros();
+
+    double getFormatLatencyP50Micros();
+
+    double getFormatLatencyP99Micros();
+
+    double getFormatLatencyP999Micros();
+
+    double getFormatLatencyMaxMicros();
+
+    /** Zeroes the counters and the latency histogram. */
+    void reset();
+}
@@ -0,0 +1,296 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Latest timestamp and value of every series the formatter wrote, so that current-state reads
+ * such as HMI screens need not query IoTDB. Fed with the messages {@code format()} returns;
+ * a sample older than the one stored for its series is ignored.
+ *
+ * <p>Like {@link DeadbandFilter}, series live in striped, fixed-capacity tables and the least
+ * recently used series are forgotten once {@code maxSeries} is reached. Timestamps and values of
+ * up to {@code maxValueBytes} UTF-8 bytes sit in a direct buffer per stripe; only longer values
+ * and the device path and measurement strings, which are shared with the formatter's caches,
+ * stay on the heap. Lookups lock one stripe briefly, so readers and writers of other stripes
+ * proceed in parallel.
+ */
+public final class LastValueStore implements LastValueStoreMBean {
+    private static final int STRIPES = 16;
+    private static final TSDataType[] DATA_TYPES = TSDataType.values();
+
+    // Slot layout: timestamp, value length (OVERFLOW when the value is kept on the heap),
+    // data type ordinal or -1, then the value bytes
+    private static final int TIMESTAMP = 0;
+    private static final int LENGTH = 8;
+    private static final int DATA_TYPE = 12;
+    private static final int VALUE = 13;
+    private static final int OVERFLOW = -1;
+
+    private final int maxValueBytes;
+    private final int slotBytes;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** Latest sample of one series, copied out of the store. */
+    public static final class Entry {
+        private final String device;
+        private final String measurement;
+        private final long timestamp;
+        private final String value;
+        private final TSDataType dataType;
+
+        Entry(String device, String measurement, long timestamp, String value, TSDataType dataType) {
+            this.device = device;
+            this.measurement = measurement;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.dataType = dataType;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getMeasurement() {
+            return measurement;
+        }
+
+        /** {@code <device path>.<measurement>} */
+        public String getPath() {
+            return device + "." + measurement;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** The value as written to IoTDB. */
+        public String getValue() {
+            return value;
+        }
+
+        /** The IoTDB data type with {@code typed_values}, otherwise {@code null}. */
+        public TSDataType getDataType() {
+            return dataType;
+        }
+
+        @Override
+        public String toString() {
+            return getPath() + "," + timestamp + "," + value;
+        }
+    }
+
+    LastValueStore(int maxSeries, int maxValueBytes) {
+        this.maxValueBytes = maxValueBytes;
+        // Slots stay 8-byte aligned for the timestamps
+        this.slotBytes = (VALUE + maxValueBytes + 7) & ~7;
+        int perStripe = Math.max(1, (maxSeries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe, slotBytes);
+        }
+    }
+
+    /** Stores the samples of formatted messages. */
+    void update(List<Message> messages) {
+        for (Message message : messages) {
+            List<String> measurements = message.getMeasurements();
+            List<String> values = message.getValues();
+            List<TSDataType> dataTypes = message.getDataTypes();
+            for (int i = 0; i < measurements.size(); i++) {
+                if (values.get(i) != null) {
+                    update(message.getDevice(), measurements.get(i), message.getTimestamp(), values.get(i),
+                        dataTypes == null ? null : dataTypes.get(i));
+                }
+            }
+        }
+    }
+
+    /** Stores a sample unless the series already holds a newer one, and returns whether it did. */
+    boolean update(String device, String measurement, long timestamp, String value, TSDataType dataType) {
+        long key = SeriesKey.of(device, measurement);
+        Stripe stripe = stripes[(int) (key >>> 60)];
+        synchronized (stripe) {
+            int slot = stripe.index.get(key);
+            if (slot == LongSlotIndex.ABSENT) {
+                slot = stripe.index.insert(key);
+                stripe.claim(slot, device, measurement);
+            } else if (!stripe.holds(slot, device, measurement)) {
+                // Two series with the same 64-bit key; the newer one takes the slot
+                stripe.claim(slot, device, measurement);
+            }
+            int base = slot * slotBytes;
+            if (timestamp < stripe.slots.getLong(base + TIMESTAMP)) {
+                return false;
+            }
+            stripe.slots.putLong(base + TIMESTAMP, timestamp);
+            stripe.slots.put(base + DATA_TYPE, dataType == null ? -1 : (byte) dataType.ordinal());
+            int length = putValue(stripe.slots, base + VALUE, value);
+            stripe.slots.putInt(base + LENGTH, length);
+            stripe.overflow[slot] = length == OVERFLOW ? value : null;
+            return true;
+        }
+    }
+
+    /** Latest sample of a series, or {@code null} when the store does not hold it. */
+    public Entry get(String device, String measurement) {
+        long key = SeriesKey.of(device, measurement);
+        Stripe stripe = stripes[(int) (key >>> 60)];
+        synchronized (stripe) {
+            int slot = stripe.index.get(key);
+            if (slot == LongSlotIndex.ABSENT || !stripe.holds(slot, device, measurement)) {
+                return null;
+            }
+            return stripe.entry(slot);
+        }
+    }
+
+    /**
+     * Latest samples of all series at or below {@code prefix}, compared node by node: prefix
+     * {@code root.a.b} matches {@code root.a.b.temperature} and {@code root.a.b.c.temperature},
+     * but not {@code root.a.bc.temperature}. Sorted by path. Scans the whole store.
+     */
+    public List<Entry> getByPrefix(String prefix) {
+        String path = prefix.endsWith(".") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        List<Entry> entries = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.index.size(); slot++) {
+                    if (isBelow(stripe.devices[slot], stripe.measurements[slot], path)) {
+                        entries.add(stripe.entry(slot));
+                    }
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(Entry::getDevice).thenComparing(Entry::getMeasurement));
+        return entries;
+    }
+
+    /** Number of series held. */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.index.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return size();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.slots.capacity();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String lastValue(String device, String measurement) {
+        Entry entry = get(device, measurement);
+        return entry == null ? null : entry.getTimestamp() + "," + entry.getValue();
+    }
+
+    @Override
+    public String[] lastValues(String prefix) {
+        List<Entry> entries = getByPrefix(prefix);
+        String[] rows = new String[entries.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = entries.get(i).toString();
+        }
+        return rows;
+    }
+
+    // Whether device.measurement equals path or lies below it
+    private static boolean isBelow(String device, String measurement, String path) {
+        if (device.startsWith(path)) {
+            return device.length() == path.length() || device.charAt(path.length()) == '.';
+        }
+        return path.length() > device.length() && path.startsWith(device) && path.charAt(device.length()) == '.'
+            && path.regionMatches(device.length() + 1, measurement, 0, measurement.length())
+            && path.length() == device.length() + 1 + measurement.length();
+    }
+
+    // Writes value as UTF-8 and returns its length, or OVERFLOW when it does not fit
+    private int putValue(ByteBuffer slots, int index, String value) {
+        int length = value.length();
+        if (length > maxValueBytes) {
+            return OVERFLOW;
+        }
+        // ASCII needs no encoder or temporary array
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > maxValueBytes) {
+                    return OVERFLOW;
+                }
+                for (int j = 0; j < bytes.length; j++) {
+                    slots.put(index + j, bytes[j]);
+                }
+                return bytes.length;
+            }
+            slots.put(index + i, (byte) c);
+        }
+        return length;
+    }
+
+    private static final class Stripe {
+        private final LongSlotIndex index;
+        private final int slotBytes;
+        private final ByteBuffer slots;
+        private final String[] devices;
+        private final String[] measurements;
+        private final String[] overflow;
+
+        Stripe(int capacity, int slotBytes) {
+            this.index = new LongSlotIndex(capacity);
+            this.slotBytes = slotBytes;
+            this.slots = ByteBuffer.allocateDirect(capacity * slotBytes);
+            this.devices = new String[capacity];
+            this.measurements = new String[capacity];
+            this.overflow = new String[capacity];
+        }
+
+        boolean holds(int slot, String device, String measurement) {
+            return device.equals(devices[slot]) && measurement.equals(measurements[slot]);
+        }
+
+        // Hands the slot to a series, whose first sample is then newer than anything stored
+        void claim(int slot, String device, String measurement) {
+            devices[slot] = device;
+            measurements[slot] = measurement;
+            overflow[slot] = null;
+            slots.putLong(slot * slotBytes + TIMESTAMP, Long.MIN_VALUE);
+        }
+
+        Entry entry(int slot) {
+            int base = slot * slotBytes;
+            int length = slots.getInt(base + LENGTH);
+            String value;
+            if (length == OVERFLOW) {
+                value = overflow[slot];
+            } else {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = slots.get(base + VALUE + i);
+                }
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            byte dataType = slots.get(base + DATA_TYPE);
+            return new Entry(devices[slot], measurements[slot], slots.getLong(base + TIMESTAMP), value,
+                dataType < 0 ? null : DATA_TYPES[dataType]);
+        }
+    }
+}
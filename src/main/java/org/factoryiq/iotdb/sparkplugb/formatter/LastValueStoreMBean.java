@@ -0,0 +1,20 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+/**
+ * Current-state queries against a formatter's {@link LastValueStore}, published over JMX as
+ * {@code org.factoryiq.iotdb.sparkplugb:type=LastValues,name=CustomizedSparkplugB}.
+ */
+public interface LastValueStoreMBean {
+
+    /** Number of series held. */
+    int getSeriesCount();
+
+    /** Bytes of timestamps and values held off the heap. */
+    long getOffHeapBytes();
+
+    /** {@code <timestamp>,<value>} of a series, or {@code null}. */
+    String lastValue(String device, String measurement);
+
+    /** {@code <path>,<timestamp>,<value>} of every series at or below {@code prefix}, sorted by path. */
+    String[] lastValues(String prefix);
+}
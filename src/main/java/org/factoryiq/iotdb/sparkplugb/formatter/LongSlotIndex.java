@@ -0,0 +1,123 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Arrays;
+
+/**
+ * Bounded map from primitive {@code long} keys to dense slot numbers in {@code [0, capacity)}.
+ *
+ * <p>Callers keep their per-key state in parallel primitive arrays indexed by slot. Once the
+ * index is full, inserting a new key evicts a key that has not been looked up recently (CLOCK,
+ * a cheap approximation of LRU) and hands its slot to the new key. Slot numbers of live keys
+ * never change. Not thread-safe; callers stripe instances and guard each with a lock.
+ */
+final class LongSlotIndex {
+    static final int ABSENT = -1;
+
+    // Linear-probing hash table: key and slot number, ABSENT marks an empty bucket
+    private final long[] tableKeys;
+    private final int[] tableSlots;
+    private final int mask;
+
+    // Per slot: owning key and the CLOCK reference bit
+    private final long[] slotKeys;
+    private final boolean[] referenced;
+    private final int capacity;
+    private int size;
+    private int hand;
+
+    LongSlotIndex(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int tableSize = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1;
+        this.tableKeys = new long[tableSize];
+        this.tableSlots = new int[tableSize];
+        Arrays.fill(tableSlots, ABSENT);
+        this.mask = tableSize - 1;
+        this.slotKeys = new long[capacity];
+        this.referenced = new boolean[capacity];
+        this.capacity = capacity;
+    }
+
+    /** Slot of the key, or {@link #ABSENT}. Marks the key as recently used. */
+    int get(long key) {
+        int bucket = bucket(key);
+        int slot;
+        while ((slot = tableSlots[bucket]) != ABSENT) {
+            if (tableKeys[bucket] == key) {
+                referenced[slot] = true;
+                return slot;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Adds a key that is known to be absent and returns its slot. When the index is full the
+     * slot comes from an evicted key, so the caller must overwrite all state kept for it.
+     */
+    int insert(long key) {
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            slot = evict();
+        }
+        slotKeys[slot] = key;
+        referenced[slot] = false;
+
+        int bucket = bucket(key);
+        while (tableSlots[bucket] != ABSENT) {
+            bucket = (bucket + 1) & mask;
+        }
+        tableKeys[bucket] = key;
+        tableSlots[bucket] = slot;
+        return slot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+        }
+        int victim = hand;
+        hand = hand + 1 == capacity ? 0 : hand + 1;
+        remove(slotKeys[victim]);
+        return victim;
+    }
+
+    // Backward-shift deletion keeps probe sequences intact without tombstones
+    private void remove(long key) {
+        int bucket = bucket(key);
+        while (tableKeys[bucket] != key || tableSlots[bucket] == ABSENT) {
+            bucket = (bucket + 1) & mask;
+        }
+        int hole = bucket;
+        int next = (hole + 1) & mask;
+        while (tableSlots[next] != ABSENT) {
+            int home = bucket(tableKeys[next]);
+            // Move the entry into the hole unless its home bucket lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                tableKeys[hole] = tableKeys[next];
+                tableSlots[hole] = tableSlots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tableSlots[hole] = ABSENT;
+    }
+
+    private int bucket(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,539 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import io.netty.buffer.ByteBuf;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The elements of an array metric or the rows of a DataSet metric, decoded into primitive cells so
+ * that each element or row can be written as its own sample without boxing.
+ *
+ * <p>Arrays (Sparkplug 3.0 datatypes 22 to 34) are read from the metric's bytes value: fixed-size
+ * little-endian elements, a bit-packed boolean array behind a 4-byte element count, or
+ * zero-terminated UTF-8 strings. They decode into a single column. DataSets are read from the wire
+ * or from the generated message; a row may have fewer elements than there are columns.
+ *
+ * <p>Instances keep scratch state and must not be shared between threads.
+ */
+final class MetricBlock {
+    static final int DATASET = 16;
+    private static final int FIRST_ARRAY = 22;
+    private static final int LAST_ARRAY = 34;
+
+    // What a cell holds, the members of the DataSetValue oneof
+    private static final byte EMPTY = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte FLOATING = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+
+    private static final int DATASET_NUM_OF_COLUMNS = tag(1, WireFormat.WIRETYPE_VARINT);
+    private static final int DATASET_COLUMNS = tag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int DATASET_TYPES = tag(3, WireFormat.WIRETYPE_VARINT);
+    private static final int DATASET_TYPES_PACKED = tag(3, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int DATASET_ROWS = tag(4, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int ROW_ELEMENTS = tag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int VALUE_INT = tag(1, WireFormat.WIRETYPE_VARINT);
+    private static final int VALUE_LONG = tag(2, WireFormat.WIRETYPE_VARINT);
+    private static final int VALUE_FLOAT = tag(3, WireFormat.WIRETYPE_FIXED32);
+    private static final int VALUE_DOUBLE = tag(4, WireFormat.WIRETYPE_FIXED64);
+    private static final int VALUE_BOOLEAN = tag(5, WireFormat.WIRETYPE_VARINT);
+    private static final int VALUE_STRING = tag(6, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int VALUE_EXTENSION = tag(7, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int INITIAL_CELLS = 64;
+    // Larger scratch arrays are dropped after use rather than kept by every thread
+    private static final int RETAINED_CELLS = 64 * 1024;
+
+    private final WireReader input = new WireReader();
+
+    private int columns;
+    private String[] names = new String[8];
+    private int[] types = new int[8];
+    private int nameCount;
+    private int typeCount;
+
+    private int rows;
+    // Cells row by row; row r holds the cells from rowStarts[r] up to rowStarts[r + 1]
+    private int[] rowStarts = new int[INITIAL_CELLS + 1];
+    private int cells;
+    private byte[] kinds = new byte[INITIAL_CELLS];
+    private long[] longs = new long[INITIAL_CELLS];
+    private double[] doubles = new double[INITIAL_CELLS];
+    private String[] strings = new String[INITIAL_CELLS];
+    // Cells text left out because the column type cannot hold their value
+    private int outOfRange;
+
+    /** Whether metrics of this datatype are decoded into a block. */
+    static boolean isBlock(int datatype) {
+        return datatype == DATASET || isArray(datatype);
+    }
+
+    static boolean isArray(int datatype) {
+        return datatype >= FIRST_ARRAY && datatype <= LAST_ARRAY;
+    }
+
+    /** The scalar datatype of the elements of an array datatype, e.g. Int8 (1) for Int8Array (22). */
+    static int elementType(int arrayType) {
+        return arrayType - FIRST_ARRAY + 1;
+    }
+
+    /**
+     * Decodes the value of an array or DataSet metric. Returns {@code false} when the metric's
+     * value does not match its datatype.
+     *
+     * @throws InvalidProtocolBufferException if the array or DataSet is malformed
+     */
+    boolean read(MetricRecord metric, int datatype) throws InvalidProtocolBufferException {
+        clear();
+        if (datatype == DATASET && metric.getValueCase() == MetricRecord.ValueCase.DATASET) {
+            if (metric.getDataSetValue() != null) {
+                readDataSet(metric.getDataSetValue());
+            } else {
+                readDataSet(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength());
+            }
+            return true;
+        }
+        if (isArray(datatype) && metric.getValueCase() == MetricRecord.ValueCase.BYTES) {
+            readArray(datatype, metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength());
+            return true;
+        }
+        return false;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    int columns() {
+        return columns;
+    }
+
+    /** Name of a DataSet column, or {@code null} when the DataSet does not name it. */
+    String columnName(int column) {
+        return column < nameCount ? names[column] : null;
+    }
+
+    /** Sparkplug datatype of a column; 0 when the DataSet does not declare it. */
+    int columnType(int column) {
+        return column < typeCount ? types[column] : 0;
+    }
+
+    /** Integral value of a cell, or {@code fallback} when it holds no number. */
+    long longValue(int row, int column, long fallback) {
+        int cell = cell(row, column);
+        if (cell < 0) {
+            return fallback;
+        }
+        switch (kinds[cell]) {
+            case INT:
+            case LONG:
+            case BOOLEAN:
+                return longs[cell];
+            case FLOATING:
+                return (long) doubles[cell];
+            default:
+                return fallback;
+        }
+    }
+
+    /**
+     * A cell as IoTDB text for a column of the given scalar datatype, or {@code null} when the
+     * cell is empty or holds a value that does not fit the datatype. Floats and doubles are
+     * written exactly when {@code exact}, with six decimals otherwise, like scalar metrics.
+     * UInt64 values are written unsigned; when {@code exact}, those that do not fit an INT64
+     * column are left out and counted by {@link #outOfRangeCells()}.
+     */
+    String text(int row, int column, int datatype, boolean exact, char[] decimals) {
+        int cell = cell(row, column);
+        if (cell < 0) {
+            return null;
+        }
+        byte kind = kinds[cell];
+        if (kind == EMPTY) {
+            return null;
+        }
+        switch (datatype) {
+            case 1:  // Int8
+            case 2:  // Int16
+            case 3:  // Int32
+            case 4:  // Int64
+            case 13: // DateTime
+                return kind == STRING ? null : String.valueOf(longValue(row, column, 0));
+            case 8: // UInt64
+                if (kind == STRING) {
+                    return null;
+                }
+                long unsigned = longValue(row, column, 0);
+                if (unsigned >= 0 || !exact) {
+                    return Long.toUnsignedString(unsigned);
+                }
+                outOfRange++;
+                return null;
+            case 5: // UInt8
+            case 6: // UInt16
+            case 7: // UInt32
+                if (kind == INT) {
+                    return String.valueOf(longs[cell] & 0xFFFFFFFFL);
+                }
+                return kind == STRING ? null : String.valueOf(longValue(row, column, 0));
+            case 9: // Float
+                if (kind == STRING) {
+                    return null;
+                }
+                float f = (float) doubleValue(cell);
+                return exact ? Float.toString(f) : DecimalText.toFixed(f, 6, decimals);
+            case 0:  // Unknown/Number
+            case 10: // Double
+                if (kind == STRING) {
+                    return null;
+                }
+                double d = doubleValue(cell);
+                return exact ? Double.toString(d) : DecimalText.toFixed(d, 6, decimals);
+            case 11: // Boolean
+                if (kind == STRING) {
+                    return null;
+                }
+                return doubleValue(cell) != 0 ? "true" : "false";
+            case 12: // String
+            case 14: // Text
+            case 15: // UUID
+                return kind == STRING ? NameNormalizer.normalizeValue(strings[cell]) : null;
+            default:
+                return null;
+        }
+    }
+
+    /** Number of cells {@link #text} left out since the last {@link #clear()} because they were out of range. */
+    int outOfRangeCells() {
+        return outOfRange;
+    }
+
+    /** Drops the references to the last value's strings, and scratch arrays that grew large. */
+    void clear() {
+        if (kinds.length > RETAINED_CELLS || rowStarts.length > RETAINED_CELLS) {
+            rowStarts = new int[INITIAL_CELLS + 1];
+            kinds = new byte[INITIAL_CELLS];
+            longs = new long[INITIAL_CELLS];
+            doubles = new double[INITIAL_CELLS];
+            strings = new String[INITIAL_CELLS];
+        } else {
+            Arrays.fill(strings, 0, cells, null);
+        }
+        Arrays.fill(names, 0, nameCount, null);
+        columns = 0;
+        nameCount = 0;
+        typeCount = 0;
+        rows = 0;
+        cells = 0;
+        outOfRange = 0;
+        rowStarts[0] = 0;
+    }
+
+    private void readArray(int datatype, ByteBuf buffer, int index, int length) throws InvalidProtocolBufferException {
+        columns = 1;
+        addType(elementType(datatype));
+        int end = index + length;
+        switch (datatype) {
+            case 22: // Int8Array
+                for (int i = index; i < end; i++) {
+                    addLong(buffer.getByte(i));
+                }
+                break;
+            case 26: // UInt8Array
+                for (int i = index; i < end; i++) {
+                    addLong(buffer.getUnsignedByte(i));
+                }
+                break;
+            case 23: // Int16Array
+                checkElements(length, 2);
+                for (int i = index; i < end; i += 2) {
+                    addLong(buffer.getShortLE(i));
+                }
+                break;
+            case 27: // UInt16Array
+                checkElements(length, 2);
+                for (int i = index; i < end; i += 2) {
+                    addLong(buffer.getUnsignedShortLE(i));
+                }
+                break;
+            case 24: // Int32Array
+                checkElements(length, 4);
+                for (int i = index; i < end; i += 4) {
+                    addLong(buffer.getIntLE(i));
+                }
+                break;
+            case 28: // UInt32Array
+                checkElements(length, 4);
+                for (int i = index; i < end; i += 4) {
+                    addLong(buffer.getUnsignedIntLE(i));
+                }
+                break;
+            case 25: // Int64Array
+            case 29: // UInt64Array
+            case 34: // DateTimeArray
+                checkElements(length, 8);
+                for (int i = index; i < end; i += 8) {
+                    addLong(buffer.getLongLE(i));
+                }
+                break;
+            case 30: // FloatArray
+                checkElements(length, 4);
+                for (int i = index; i < end; i += 4) {
+                    addDouble(buffer.getFloatLE(i));
+                }
+                break;
+            case 31: // DoubleArray
+                checkElements(length, 8);
+                for (int i = index; i < end; i += 8) {
+                    addDouble(buffer.getDoubleLE(i));
+                }
+                break;
+            case 32: // BooleanArray
+                readBooleanArray(buffer, index, length);
+                break;
+            default: // StringArray
+                readStringArray(buffer, index, end);
+                break;
+        }
+    }
+
+    private void readBooleanArray(ByteBuf buffer, int index, int length) throws InvalidProtocolBufferException {
+        if (length < 4) {
+            throw new InvalidProtocolBufferException("Boolean array without element count");
+        }
+        long count = buffer.getUnsignedIntLE(index);
+        if ((count + 7) / 8 > length - 4) {
+            throw new InvalidProtocolBufferException("Boolean array of " + count + " elements in " + length + " bytes");
+        }
+        // Most significant bit first
+        for (int i = 0; i < count; i++) {
+            int bits = buffer.getByte(index + 4 + (i >>> 3));
+            addCell(BOOLEAN, bits >>> (7 - (i & 7)) & 1, 0, null);
+            endRow();
+        }
+    }
+
+    private void readStringArray(ByteBuf buffer, int index, int end) {
+        int start = index;
+        for (int i = index; i < end; i++) {
+            if (buffer.getByte(i) == 0) {
+                addString(buffer.toString(start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        // Tolerate a missing terminator after the last string
+        if (start < end) {
+            addString(buffer.toString(start, end - start, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void readDataSet(ByteBuf buffer, int index, int length) throws InvalidProtocolBufferException {
+        WireReader input = this.input;
+        input.reset(buffer, index, length);
+        try {
+            long declaredColumns = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag == DATASET_NUM_OF_COLUMNS) {
+                    declaredColumns = input.readVarint64();
+                } else if (tag == DATASET_COLUMNS) {
+                    addName(input.readString());
+                } else if (tag == DATASET_TYPES) {
+                    addType(input.readVarint32());
+                } else if (tag == DATASET_TYPES_PACKED) {
+                    int limit = input.pushLengthLimit();
+                    while (!input.isAtEnd()) {
+                        addType(input.readVarint32());
+                    }
+                    input.popLimit(limit);
+                } else if (tag == DATASET_ROWS) {
+                    int limit = input.pushLengthLimit();
+                    readRow();
+                    input.popLimit(limit);
+                } else {
+                    input.skipField(tag);
+                }
+            }
+            columns = columnCount(declaredColumns);
+        } finally {
+            input.release();
+        }
+    }
+
+    private void readRow() throws InvalidProtocolBufferException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == ROW_ELEMENTS) {
+                int limit = input.pushLengthLimit();
+                readValue();
+                input.popLimit(limit);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        endRow();
+    }
+
+    // A oneof: the last member on the wire wins
+    private void readValue() throws InvalidProtocolBufferException {
+        byte kind = EMPTY;
+        long longValue = 0;
+        double doubleValue = 0;
+        String stringValue = null;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == VALUE_INT) {
+                kind = INT;
+                longValue = input.readVarint32();
+            } else if (tag == VALUE_LONG) {
+                kind = LONG;
+                longValue = input.readVarint64();
+            } else if (tag == VALUE_FLOAT) {
+                kind = FLOATING;
+                doubleValue = input.readFloat();
+            } else if (tag == VALUE_DOUBLE) {
+                kind = FLOATING;
+                doubleValue = input.readDouble();
+            } else if (tag == VALUE_BOOLEAN) {
+                kind = BOOLEAN;
+                longValue = input.readBool() ? 1 : 0;
+            } else if (tag == VALUE_STRING) {
+                kind = STRING;
+                stringValue = input.readString();
+            } else if (tag == VALUE_EXTENSION) {
+                kind = EMPTY;
+                input.skipField(tag);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        addCell(kind, longValue, doubleValue, stringValue);
+    }
+
+    private void readDataSet(SparkplugBProto.Payload.DataSet dataSet) {
+        for (int i = 0; i < dataSet.getColumnsCount(); i++) {
+            addName(dataSet.getColumns(i));
+        }
+        for (int i = 0; i < dataSet.getTypesCount(); i++) {
+            addType(dataSet.getTypes(i));
+        }
+        for (int r = 0; r < dataSet.getRowsCount(); r++) {
+            SparkplugBProto.Payload.DataSet.Row row = dataSet.getRows(r);
+            for (int i = 0; i < row.getElementsCount(); i++) {
+                SparkplugBProto.Payload.DataSet.DataSetValue value = row.getElements(i);
+                switch (value.getValueCase()) {
+                    case INT_VALUE:
+                        addCell(INT, value.getIntValue(), 0, null);
+                        break;
+                    case LONG_VALUE:
+                        addCell(LONG, value.getLongValue(), 0, null);
+                        break;
+                    case FLOAT_VALUE:
+                        addCell(FLOATING, 0, value.getFloatValue(), null);
+                        break;
+                    case DOUBLE_VALUE:
+                        addCell(FLOATING, 0, value.getDoubleValue(), null);
+                        break;
+                    case BOOLEAN_VALUE:
+                        addCell(BOOLEAN, value.getBooleanValue() ? 1 : 0, 0, null);
+                        break;
+                    case STRING_VALUE:
+                        addCell(STRING, 0, 0, value.getStringValue());
+                        break;
+                    default:
+                        addCell(EMPTY, 0, 0, null);
+                        break;
+                }
+            }
+            endRow();
+        }
+        columns = columnCount(dataSet.getNumOfColumns());
+    }
+
+    // Named columns; without names, as many as declared or typed
+    private int columnCount(long declared) {
+        if (nameCount > 0) {
+            return nameCount;
+        }
+        return (int) Math.min(Math.max(declared, typeCount), Integer.MAX_VALUE);
+    }
+
+    private int cell(int row, int column) {
+        int cell = rowStarts[row] + column;
+        return column < columns && cell < rowStarts[row + 1] ? cell : -1;
+    }
+
+    private double doubleValue(int cell) {
+        return kinds[cell] == FLOATING ? doubles[cell] : (double) longs[cell];
+    }
+
+    private static void checkElements(int length, int size) throws InvalidProtocolBufferException {
+        if (length % size != 0) {
+            throw new InvalidProtocolBufferException("Array of " + length + " bytes is not a whole number of "
+                + size + "-byte elements");
+        }
+    }
+
+    // Array elements are rows of one cell
+    private void addLong(long value) {
+        addCell(LONG, value, 0, null);
+        endRow();
+    }
+
+    private void addDouble(double value) {
+        addCell(FLOATING, 0, value, null);
+        endRow();
+    }
+
+    private void addString(String value) {
+        addCell(STRING, 0, 0, value);
+        endRow();
+    }
+
+    private void addCell(byte kind, long longValue, double doubleValue, String stringValue) {
+        if (cells == kinds.length) {
+            int capacity = cells * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            doubles = Arrays.copyOf(doubles, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+        }
+        kinds[cells] = kind;
+        longs[cells] = longValue;
+        doubles[cells] = doubleValue;
+        strings[cells] = stringValue;
+        cells++;
+    }
+
+    private void endRow() {
+        rows++;
+        if (rows == rowStarts.length) {
+            rowStarts = Arrays.copyOf(rowStarts, rows * 2);
+        }
+        rowStarts[rows] = cells;
+    }
+
+    private void addName(String name) {
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+        }
+        names[nameCount++] = name;
+    }
+
+    private void addType(int type) {
+        if (typeCount == types.length) {
+            types = Arrays.copyOf(types, typeCount * 2);
+        }
+        types[typeCount++] = type;
+    }
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+}
@@ -0,0 +1,345 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.ByteString;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+
+import java.util.List;
+
+/**
+ * The fields of a Sparkplug metric the formatter actually uses, filled either from a generated
+ * {@link SparkplugBProto.Payload.Metric} or by {@link SparkplugStreamDecoder}. Instances are
+ * reused from metric to metric, so nothing may hold on to one after it has been processed.
+ */
+final class MetricRecord {
+    enum ValueCase {
+        NONE, INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING, BYTES, DATASET, TEMPLATE, OTHER
+    }
+
+    private String name;
+    private boolean hasName;
+    private long alias;
+    private boolean hasAlias;
+    private long timestamp;
+    private int datatype;
+    private boolean hasDatatype;
+    private boolean isNull;
+
+    private ValueCase valueCase = ValueCase.NONE;
+    private int intValue;
+    private long longValue;
+    private float floatValue;
+    private double doubleValue;
+    private boolean booleanValue;
+    private String stringValue;
+    // Bytes, dataset and template values stay undecoded: a region of a buffer, or the generated
+    // DataSet or Template
+    private ByteBuf rawBuffer;
+    private int rawIndex;
+    private int rawLength;
+    private SparkplugBProto.Payload.DataSet dataSetValue;
+    private SparkplugBProto.Payload.Template templateValue;
+
+    // Raw values of the device properties, null when absent or not of string type
+    private final String[] deviceProperties = new String[3];
+
+    void reset() {
+        name = "";
+        hasName = false;
+        alias = 0;
+        hasAlias = false;
+        timestamp = 0;
+        datatype = 0;
+        hasDatatype = false;
+        isNull = false;
+        clearValue();
+        deviceProperties[DevicePropertyKeys.GROUP] = null;
+        deviceProperties[DevicePropertyKeys.EDGE] = null;
+        deviceProperties[DevicePropertyKeys.DEVICE] = null;
+    }
+
+    /** Copies a decoded protobuf metric, keeping only the properties named by {@code keys}. */
+    MetricRecord copyFrom(SparkplugBProto.Payload.Metric metric, DevicePropertyKeys keys) {
+        reset();
+        if (metric.hasName()) {
+            setName(metric.getName());
+        }
+        if (metric.hasAlias()) {
+            setAlias(metric.getAlias());
+        }
+        timestamp = metric.getTimestamp();
+        if (metric.hasDatatype()) {
+            setDatatype(metric.getDatatype());
+        }
+        isNull = metric.getIsNull();
+
+        switch (metric.getValueCase()) {
+            case INT_VALUE:
+                setIntValue(metric.getIntValue());
+                break;
+            case LONG_VALUE:
+                setLongValue(metric.getLongValue());
+                break;
+            case FLOAT_VALUE:
+                setFloatValue(metric.getFloatValue());
+                break;
+            case DOUBLE_VALUE:
+                setDoubleValue(metric.getDoubleValue());
+                break;
+            case BOOLEAN_VALUE:
+                setBooleanValue(metric.getBooleanValue());
+                break;
+            case STRING_VALUE:
+                setStringValue(metric.getStringValue());
+                break;
+            case BYTES_VALUE:
+                ByteString bytes = metric.getBytesValue();
+                setBytesValue(Unpooled.wrappedBuffer(bytes.asReadOnlyByteBuffer()), 0, bytes.size());
+                break;
+            case DATASET_VALUE:
+                setDataSetValue(metric.getDatasetValue());
+                break;
+            case TEMPLATE_VALUE:
+                setTemplateValue(metric.getTemplateValue());
+                break;
+            case VALUE_NOT_SET:
+                break;
+            default:
+                setOtherValue();
+                break;
+        }
+
+        if (metric.hasProperties()) {
+            SparkplugBProto.Payload.PropertySet properties = metric.getProperties();
+            List<String> propertyKeys = properties.getKeysList();
+            int count = Math.min(propertyKeys.size(), properties.getValuesCount());
+            for (int i = 0; i < count; i++) {
+                int role = keys.roleOf(propertyKeys.get(i));
+                if (role != DevicePropertyKeys.NONE) {
+                    SparkplugBProto.Payload.PropertyValue value = properties.getValues(i);
+                    if (value.getType() == 12) { // String type
+                        setDeviceProperty(role, value.getStringValue());
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean hasName() {
+        return hasName;
+    }
+
+    void setName(String name) {
+        this.name = name;
+        this.hasName = true;
+    }
+
+    long getAlias() {
+        return alias;
+    }
+
+    boolean hasAlias() {
+        return hasAlias;
+    }
+
+    void setAlias(long alias) {
+        this.alias = alias;
+        this.hasAlias = true;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    int getDatatype() {
+        return datatype;
+    }
+
+    boolean hasDatatype() {
+        return hasDatatype;
+    }
+
+    void setDatatype(int datatype) {
+        this.datatype = datatype;
+        this.hasDatatype = true;
+    }
+
+    boolean isNull() {
+        return isNull;
+    }
+
+    void setNull(boolean isNull) {
+        this.isNull = isNull;
+    }
+
+    ValueCase getValueCase() {
+        return valueCase;
+    }
+
+    // The value fields form a protobuf oneof: reading one that is not set yields its default
+
+    int getIntValue() {
+        return intValue;
+    }
+
+    void setIntValue(int value) {
+        clearValue();
+        valueCase = ValueCase.INT;
+        intValue = value;
+    }
+
+    long getLongValue() {
+        return longValue;
+    }
+
+    void setLongValue(long value) {
+        clearValue();
+        valueCase = ValueCase.LONG;
+        longValue = value;
+    }
+
+    float getFloatValue() {
+        return floatValue;
+    }
+
+    void setFloatValue(float value) {
+        clearValue();
+        valueCase = ValueCase.FLOAT;
+        floatValue = value;
+    }
+
+    double getDoubleValue() {
+        return doubleValue;
+    }
+
+    void setDoubleValue(double value) {
+        clearValue();
+        valueCase = ValueCase.DOUBLE;
+        doubleValue = value;
+    }
+
+    boolean getBooleanValue() {
+        return booleanValue;
+    }
+
+    void setBooleanValue(boolean value) {
+        clearValue();
+        valueCase = ValueCase.BOOLEAN;
+        booleanValue = value;
+    }
+
+    String getStringValue() {
+        return stringValue;
+    }
+
+    void setStringValue(String value) {
+        clearValue();
+        valueCase = ValueCase.STRING;
+        stringValue = value;
+    }
+
+    /** A bytes value, such as a Sparkplug array, as {@code length} bytes of {@code buffer} from {@code index}. */
+    void setBytesValue(ByteBuf buffer, int index, int length) {
+        clearValue();
+        valueCase = ValueCase.BYTES;
+        setRaw(buffer, index, length);
+    }
+
+    /** A DataSet still in wire format, as {@code length} bytes of {@code buffer} from {@code index}. */
+    void setDataSetValue(ByteBuf buffer, int index, int length) {
+        clearValue();
+        valueCase = ValueCase.DATASET;
+        setRaw(buffer, index, length);
+    }
+
+    void setDataSetValue(SparkplugBProto.Payload.DataSet dataSet) {
+        clearValue();
+        valueCase = ValueCase.DATASET;
+        dataSetValue = dataSet;
+    }
+
+    /** A Template still in wire format, as {@code length} bytes of {@code buffer} from {@code index}. */
+    void setTemplateValue(ByteBuf buffer, int index, int length) {
+        clearValue();
+        valueCase = ValueCase.TEMPLATE;
+        setRaw(buffer, index, length);
+    }
+
+    void setTemplateValue(SparkplugBProto.Payload.Template template) {
+        clearValue();
+        valueCase = ValueCase.TEMPLATE;
+        templateValue = template;
+    }
+
+    /**
+     * The buffer holding a bytes value, or a DataSet or Template in wire format; {@code null} for
+     * other values.
+     */
+    ByteBuf getRawBuffer() {
+        return rawBuffer;
+    }
+
+    int getRawIndex() {
+        return rawIndex;
+    }
+
+    int getRawLength() {
+        return rawLength;
+    }
+
+    /** A DataSet decoded by the generated parser, or {@code null}. */
+    SparkplugBProto.Payload.DataSet getDataSetValue() {
+        return dataSetValue;
+    }
+
+    /** A Template decoded by the generated parser, or {@code null}. */
+    SparkplugBProto.Payload.Template getTemplateValue() {
+        return templateValue;
+    }
+
+    /** A value the formatter does not decode (extension). */
+    void setOtherValue() {
+        clearValue();
+        valueCase = ValueCase.OTHER;
+    }
+
+    /** Raw value of the group, edge or device property, or {@code null}. */
+    String getDeviceProperty(int role) {
+        return deviceProperties[role];
+    }
+
+    void setDeviceProperty(int role, String value) {
+        deviceProperties[role] = value;
+    }
+
+    private void clearValue() {
+        valueCase = ValueCase.NONE;
+        intValue = 0;
+        longValue = 0;
+        floatValue = 0;
+        doubleValue = 0;
+        booleanValue = false;
+        stringValue = "";
+        rawBuffer = null;
+        rawIndex = 0;
+        rawLength = 0;
+        dataSetValue = null;
+        templateValue = null;
+    }
+
+    private void setRaw(ByteBuf buffer, int index, int length) {
+        rawBuffer = buffer;
+        rawIndex = index;
+        rawLength = length;
+    }
+}
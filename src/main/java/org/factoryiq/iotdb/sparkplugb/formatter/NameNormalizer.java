@@ -0,0 +1,136 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Locale;
+
+/**
+ * Single-pass replacements for the regex based name and value normalization.
+ *
+ * <p>{@link #normalizeName(String)} produces exactly what
+ * {@code input.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replaceAll("\\s+", "_").toLowerCase()}
+ * produces, and {@link #normalizeValue(String)} matches {@code value.replaceAll("\\s+", "_")},
+ * without compiling patterns or building intermediate strings. Input that is already normalized
+ * is returned as is.
+ */
+final class NameNormalizer {
+    static final String NULL_NAME = "null";
+
+    private NameNormalizer() {
+    }
+
+    static String normalizeName(String input) {
+        if (input == null) {
+            return NULL_NAME;
+        }
+
+        int start = 0;
+        int end = input.length();
+        while (start < end && input.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && input.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end || input.equals("NullMetric")) {
+            return NULL_NAME;
+        }
+
+        boolean inlineLowerCase = isAsciiLowerCaseSafe();
+        boolean needsLowerCase = false;
+        StringBuilder builder = null;
+        char previous = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (isWhitespace(c)) {
+                // Whitespace runs collapse into a single underscore
+                builder = ensureBuilder(builder, input, start, i, end);
+                if (!isWhitespace(previous)) {
+                    builder.append('_');
+                }
+            } else if (c >= 'A' && c <= 'Z') {
+                boolean camelBoundary = previous >= 'a' && previous <= 'z';
+                if (camelBoundary || inlineLowerCase) {
+                    builder = ensureBuilder(builder, input, start, i, end);
+                }
+                if (camelBoundary) {
+                    builder.append('_');
+                }
+                if (inlineLowerCase) {
+                    builder.append((char) (c + ('a' - 'A')));
+                } else {
+                    needsLowerCase = true;
+                    if (builder != null) {
+                        builder.append(c);
+                    }
+                }
+            } else {
+                if (c >= 0x80) {
+                    needsLowerCase = true;
+                }
+                if (builder != null) {
+                    builder.append(c);
+                }
+            }
+            previous = c;
+        }
+
+        String result = builder == null ? input.substring(start, end) : builder.toString();
+        return needsLowerCase ? result.toLowerCase() : result;
+    }
+
+    static String normalizeValue(String value) {
+        if (value == null) {
+            return NULL_NAME;
+        }
+
+        int length = value.length();
+        boolean blank = true;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) > ' ') {
+                blank = false;
+                break;
+            }
+        }
+        if (blank) {
+            return NULL_NAME;
+        }
+
+        StringBuilder builder = null;
+        boolean inWhitespace = false;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (isWhitespace(c)) {
+                if (builder == null) {
+                    builder = new StringBuilder(length).append(value, 0, i);
+                }
+                if (!inWhitespace) {
+                    builder.append('_');
+                    inWhitespace = true;
+                }
+            } else {
+                inWhitespace = false;
+                if (builder != null) {
+                    builder.append(c);
+                }
+            }
+        }
+        return builder == null ? value : builder.toString();
+    }
+
+    // Matches the regex class \s: [ \t\n\x0B\f\r]
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private static StringBuilder ensureBuilder(StringBuilder builder, String input, int start, int position, int end) {
+        if (builder != null) {
+            return builder;
+        }
+        return new StringBuilder(end - start + 8).append(input, start, position);
+    }
+
+    // Locales with special casing rules for ASCII letters have to go through String.toLowerCase()
+    private static boolean isAsciiLowerCaseSafe() {
+        String language = Locale.getDefault().getLanguage();
+        return !("tr".equals(language) || "az".equals(language) || "lt".equals(language));
+    }
+}
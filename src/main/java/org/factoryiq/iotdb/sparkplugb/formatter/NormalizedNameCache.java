@@ -0,0 +1,52 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded, concurrent cache from raw metric and property names to their normalized form.
+ * Tag names repeat on every publish, so after warm-up almost every lookup is a hit.
+ */
+final class NormalizedNameCache {
+    private final Cache<String, String> cache;
+
+    /** A maximum size of zero disables caching and normalizes on every call. */
+    NormalizedNameCache(long maximumSize) {
+        this.cache = maximumSize > 0
+            ? CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().<String, String>build()
+            : null;
+    }
+
+    String normalize(String raw) {
+        if (raw == null || cache == null) {
+            return NameNormalizer.normalizeName(raw);
+        }
+        String normalized = cache.getIfPresent(raw);
+        if (normalized == null) {
+            normalized = NameNormalizer.normalizeName(raw);
+            cache.put(raw, normalized);
+        }
+        return normalized;
+    }
+
+    long hitCount() {
+        return stats().hitCount();
+    }
+
+    long missCount() {
+        return stats().missCount();
+    }
+
+    long evictionCount() {
+        return stats().evictionCount();
+    }
+
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    private CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+}
@@ -0,0 +1,94 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IoTDB style pattern for the full path of a series, {@code <device path>.<measurement>}: nodes
+ * are separated by dots, {@code *} within a node matches any characters of that node and a
+ * {@code **} node matches one or more nodes, e.g. {@code root.mqtt.**.vibration_*}.
+ */
+final class PathPattern {
+    private static final String MULTI_LEVEL = "**";
+
+    private final String pattern;
+    private final String[] nodes;
+
+    PathPattern(String pattern) {
+        if (pattern.isEmpty() || pattern.startsWith(".") || pattern.endsWith(".") || pattern.contains("..")) {
+            throw new IllegalArgumentException("Invalid path pattern: " + pattern);
+        }
+        this.pattern = pattern;
+        this.nodes = pattern.split("\\.");
+    }
+
+    /** Patterns separated by commas; an empty string gives none. */
+    static List<PathPattern> parseList(String patterns) {
+        List<PathPattern> parsed = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                parsed.add(new PathPattern(pattern.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    static boolean matchesAny(PathPattern[] patterns, String device, String measurement) {
+        if (patterns.length == 0) {
+            return false;
+        }
+        String[] path = (device + "." + measurement).split("\\.");
+        for (PathPattern pattern : patterns) {
+            if (pattern.matches(path, 0, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(String device, String measurement) {
+        return matches((device + "." + measurement).split("\\."), 0, 0);
+    }
+
+    private boolean matches(String[] path, int node, int patternNode) {
+        if (patternNode == nodes.length) {
+            return node == path.length;
+        }
+        if (node == path.length) {
+            return false;
+        }
+        if (MULTI_LEVEL.equals(nodes[patternNode])) {
+            // One or more nodes
+            for (int end = node + 1; end <= path.length; end++) {
+                if (matches(path, end, patternNode + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return matchesNode(nodes[patternNode], path[node]) && matches(path, node + 1, patternNode + 1);
+    }
+
+    // Glob match of one node, where * stands for any run of characters
+    private static boolean matchesNode(String pattern, String node) {
+        int star = pattern.indexOf('*');
+        if (star < 0) {
+            return pattern.equals(node);
+        }
+        if (!node.startsWith(pattern.substring(0, star))) {
+            return false;
+        }
+        String rest = pattern.substring(star + 1);
+        for (int start = star; start <= node.length(); start++) {
+            if (matchesNode(rest, node.substring(start))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
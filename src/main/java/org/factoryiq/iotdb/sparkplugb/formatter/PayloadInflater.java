@@ -0,0 +1,207 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses Sparkplug B compressed payloads: an outer payload with uuid
+ * {@value #COMPRESSED_UUID} whose body holds the real payload, compressed with the algorithm
+ * named by its {@value #ALGORITHM_METRIC} metric ({@code DEFLATE}, a zlib stream, or
+ * {@code GZIP}).
+ *
+ * <p>Each formatter thread keeps one instance, so the {@link Inflater}s and the input and
+ * output buffers are reused from payload to payload. The decompressed size is capped, which
+ * stops a small payload from expanding into an arbitrarily large one.
+ */
+final class PayloadInflater {
+    static final String COMPRESSED_UUID = "SPBV1.0_COMPRESSED";
+    static final String ALGORITHM_METRIC = "algorithm";
+
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    // Larger buffers are dropped after use rather than kept by every thread
+    private static final int RETAINED_BUFFER = 1024 * 1024;
+
+    private static final int GZIP_MAGIC = 0x8B1F;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final int maxBytes;
+    private final Inflater zlib = new Inflater();
+    private final Inflater raw = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private byte[] input = new byte[INITIAL_BUFFER];
+    private byte[] output = new byte[INITIAL_BUFFER];
+
+    PayloadInflater(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isCompressed(SparkplugBProto.Payload payload) {
+        return COMPRESSED_UUID.equals(payload.getUuid());
+    }
+
+    /** The value of the algorithm metric of a compressed payload, or {@code null}. */
+    static String algorithmOf(SparkplugBProto.Payload payload) {
+        for (int i = 0; i < payload.getMetricsCount(); i++) {
+            SparkplugBProto.Payload.Metric metric = payload.getMetrics(i);
+            if (ALGORITHM_METRIC.equals(metric.getName())) {
+                return metric.getStringValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decompresses {@code body} with the named algorithm; without a name, GZIP is recognized by
+     * its header and anything else is taken as DEFLATE. The returned buffer is only valid until
+     * the next call.
+     *
+     * @throws DataFormatException if the data is corrupt or truncated, the algorithm is not
+     *                             supported or the result exceeds the size limit
+     */
+    ByteBuf inflate(String algorithm, ByteBuf body) throws DataFormatException {
+        int length = body.readableBytes();
+        byte[] data;
+        int offset;
+        if (body.hasArray()) {
+            data = body.array();
+            offset = body.arrayOffset() + body.readerIndex();
+        } else {
+            if (input.length < length) {
+                input = new byte[length];
+            }
+            body.getBytes(body.readerIndex(), input, 0, length);
+            data = input;
+            offset = 0;
+        }
+
+        int size;
+        if (isGzip(algorithm, data, offset, length)) {
+            size = inflateGzip(data, offset, length);
+        } else {
+            size = inflate(zlib, data, offset, length);
+            if (zlib.getRemaining() > 0) {
+                throw new DataFormatException("Unexpected data after the compressed payload");
+            }
+        }
+        return Unpooled.wrappedBuffer(output, 0, size);
+    }
+
+    /** Drops buffers that grew large for one payload; call once the inflated payload is decoded. */
+    void trim() {
+        if (input.length > RETAINED_BUFFER) {
+            input = new byte[INITIAL_BUFFER];
+        }
+        if (output.length > RETAINED_BUFFER) {
+            output = new byte[INITIAL_BUFFER];
+        }
+    }
+
+    private static boolean isGzip(String algorithm, byte[] data, int offset, int length) throws DataFormatException {
+        if (algorithm == null || algorithm.isEmpty()) {
+            return length >= 2 && ((data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8) == GZIP_MAGIC;
+        }
+        switch (algorithm.toUpperCase(Locale.ROOT)) {
+            case "GZIP":
+                return true;
+            case "DEFLATE":
+                return false;
+            default:
+                throw new DataFormatException("Unsupported compression algorithm: " + algorithm);
+        }
+    }
+
+    // RFC 1952: header, raw deflate data, then CRC-32 and size of the uncompressed data
+    private int inflateGzip(byte[] data, int offset, int length) throws DataFormatException {
+        int end = offset + length;
+        if (length < 18 || readShort(data, offset) != GZIP_MAGIC || data[offset + 2] != 8) {
+            throw new DataFormatException("Not in GZIP format");
+        }
+        int flags = data[offset + 3] & 0xFF;
+        int position = offset + 10;
+        if ((flags & FEXTRA) != 0) {
+            // The header is at least 10 bytes and the whole member at least 18, so this is in bounds
+            position += 2 + readShort(data, position);
+        }
+        if ((flags & FNAME) != 0 && position < end) {
+            position = skipZeroTerminated(data, position, end);
+        }
+        if ((flags & FCOMMENT) != 0 && position < end) {
+            position = skipZeroTerminated(data, position, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        if (position > end - 8) {
+            throw new DataFormatException("Truncated GZIP header");
+        }
+
+        int size = inflate(raw, data, position, end - position);
+        int trailer = end - raw.getRemaining();
+        if (end - trailer < 8) {
+            throw new DataFormatException("Truncated GZIP trailer");
+        }
+        crc.reset();
+        crc.update(output, 0, size);
+        if (readInt(data, trailer) != (int) crc.getValue() || readInt(data, trailer + 4) != size) {
+            throw new DataFormatException("Corrupt GZIP trailer");
+        }
+        // Concatenated GZIP members are not produced by Sparkplug encoders
+        if (end - trailer > 8) {
+            throw new DataFormatException("Unexpected data after the compressed payload");
+        }
+        return size;
+    }
+
+    private int inflate(Inflater inflater, byte[] data, int offset, int length) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int size = 0;
+        while (!inflater.finished()) {
+            if (size == output.length) {
+                // One byte over the limit, so that a payload of exactly the limit still finishes
+                if (size > maxBytes) {
+                    throw new DataFormatException("Decompressed payload exceeds " + maxBytes + " bytes");
+                }
+                byte[] grown = new byte[(int) Math.min((long) maxBytes + 1, (long) output.length * 2)];
+                System.arraycopy(output, 0, grown, 0, size);
+                output = grown;
+            }
+            int inflated = inflater.inflate(output, size, output.length - size);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated compressed payload");
+            }
+            size += inflated;
+        }
+        if (size > maxBytes) {
+            throw new DataFormatException("Decompressed payload exceeds " + maxBytes + " bytes");
+        }
+        return size;
+    }
+
+    private static int skipZeroTerminated(byte[] data, int position, int end) throws DataFormatException {
+        while (position < end && data[position] != 0) {
+            position++;
+        }
+        if (position == end) {
+            throw new DataFormatException("Truncated GZIP header");
+        }
+        return position + 1;
+    }
+
+    private static int readShort(byte[] data, int position) {
+        return (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return readShort(data, position) | readShort(data, position + 2) << 16;
+    }
+}
@@ -0,0 +1,177 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs each warning key at most once per interval. Occurrences in between are only counted, and
+ * the next message that gets through reports how many were suppressed, so one misbehaving edge
+ * node cannot turn logging into the bottleneck.
+ *
+ * <p>Keys name a call site, not a metric, so their number stays small; beyond {@link #MAX_KEYS}
+ * further keys share one slot. Fixed-arity overloads avoid varargs arrays for suppressed calls.
+ */
+final class RateLimitedLogger {
+    static final int MAX_KEYS = 1024;
+    private static final String OVERFLOW_KEY = "";
+    private static final String SUPPRESSED = " ({} similar messages suppressed)";
+
+    /** When errors are logged with their stack trace. */
+    enum StackTraces {
+        ALWAYS,
+        /** Only the first time an error key is logged. */
+        FIRST,
+        NEVER
+    }
+
+    private final Logger logger;
+    private final long intervalNanos;
+    private final StackTraces stackTraces;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final LongAdder suppressed = new LongAdder();
+
+    /** An interval of zero or less logs every call. */
+    RateLimitedLogger(Logger logger, long intervalMillis, StackTraces stackTraces) {
+        this.logger = logger;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.stackTraces = stackTraces;
+    }
+
+    void warn(String key, String message) {
+        if (logger.isWarnEnabled()) {
+            Slot slot = slot(key);
+            long count = acquire(slot);
+            if (count == 0) {
+                logger.warn(message);
+            } else if (count > 0) {
+                logger.warn(message + SUPPRESSED, count);
+            }
+        }
+    }
+
+    void warn(String key, String format, Object arg) {
+        if (logger.isWarnEnabled()) {
+            Slot slot = slot(key);
+            long count = acquire(slot);
+            if (count == 0) {
+                logger.warn(format, arg);
+            } else if (count > 0) {
+                logger.warn(format + SUPPRESSED, arg, count);
+            }
+        }
+    }
+
+    void warn(String key, String format, Object arg1, Object arg2) {
+        if (logger.isWarnEnabled()) {
+            Slot slot = slot(key);
+            long count = acquire(slot);
+            if (count == 0) {
+                logger.warn(format, arg1, arg2);
+            } else if (count > 0) {
+                logger.warn(format + SUPPRESSED, arg1, arg2, count);
+            }
+        }
+    }
+
+    void error(String key, String format, Object arg, Throwable error) {
+        if (logger.isErrorEnabled()) {
+            Slot slot = slot(key);
+            long count = acquire(slot);
+            if (count < 0) {
+                return;
+            }
+            boolean trace = error != null && withStackTrace(slot);
+            if (count == 0 && trace) {
+                logger.error(format, arg, error);
+            } else if (count == 0) {
+                logger.error(format, arg);
+            } else if (trace) {
+                logger.error(format + SUPPRESSED, arg, count, error);
+            } else {
+                logger.error(format + SUPPRESSED, arg, count);
+            }
+        }
+    }
+
+    /** Logs at error level; {@code error} is appended as the stack trace when the policy allows. */
+    void error(String key, String format, Object arg1, Object arg2, Throwable error) {
+        if (logger.isErrorEnabled()) {
+            Slot slot = slot(key);
+            long count = acquire(slot);
+            if (count < 0) {
+                return;
+            }
+            boolean trace = error != null && withStackTrace(slot);
+            String message = count == 0 ? format : format + SUPPRESSED;
+            if (count == 0 && trace) {
+                logger.error(message, arg1, arg2, error);
+            } else if (count == 0) {
+                logger.error(message, arg1, arg2);
+            } else if (trace) {
+                logger.error(message, arg1, arg2, count, error);
+            } else {
+                logger.error(message, arg1, arg2, count);
+            }
+        }
+    }
+
+    /** Total number of messages suppressed so far. */
+    long suppressedCount() {
+        return suppressed.sum();
+    }
+
+    // Returns -1 when the message is suppressed, otherwise the number suppressed since the last one
+    private long acquire(Slot slot) {
+        if (intervalNanos <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long next = slot.next.get();
+        if (now - next < 0 || !slot.next.compareAndSet(next, now + intervalNanos)) {
+            slot.suppressed.increment();
+            suppressed.increment();
+            return -1;
+        }
+        return slot.suppressed.sumThenReset();
+    }
+
+    private boolean withStackTrace(Slot slot) {
+        switch (stackTraces) {
+            case ALWAYS:
+                return true;
+            case FIRST:
+                if (slot.traced) {
+                    return false;
+                }
+                slot.traced = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Slot slot(String key) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            if (slots.size() >= MAX_KEYS) {
+                key = OVERFLOW_KEY;
+            }
+            slot = slots.computeIfAbsent(key, k -> new Slot(System.nanoTime()));
+        }
+        return slot;
+    }
+
+    private static final class Slot {
+        // System.nanoTime() from which the next message may be logged
+        final AtomicLong next;
+        final LongAdder suppressed = new LongAdder();
+        volatile boolean traced;
+
+        Slot(long now) {
+            this.next = new AtomicLong(now);
+        }
+    }
+}
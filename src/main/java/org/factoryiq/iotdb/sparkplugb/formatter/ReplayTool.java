@@ -0,0 +1,424 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes captured payloads through the formatter offline, to backfill from MQTT captures
+ * without a broker. Reads {@link CaptureFile}s and writes the messages the formatter emits as
+ * device-aligned CSV, the layout IoTDB's {@code import-data} tool loads: one file per device and
+ * worker thread, with the header {@code Time,Device,<measurement>...} and one row per message.
+ *
+ * <p>The messages of one edge node are formatted in capture order by one worker, so births
+ * still declare the aliases and templates its data messages use; edge nodes are spread over the
+ * workers. Usage:
+ *
+ * <pre>
+ * java -cp iotdb-sparkplugb-formatter.jar:$IOTDB_HOME/lib/* org.factoryiq.iotdb.sparkplugb.formatter.ReplayTool \
+ *     [--threads N] [--output DIR] [--config FILE] CAPTURE...
+ * </pre>
+ */
+public final class ReplayTool {
+    static final String HEADER_PREFIX = "Time,Device";
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int WRITE_BUFFER = 1024 * 1024;
+    private static final int SPOOL_BUFFER = 64 * 1024;
+    // Spool files a worker keeps open at a time
+    private static final int MAX_OPEN_FILES = 64;
+    private static final Record END = new Record(null, null);
+
+    private ReplayTool() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path output = Paths.get("replay");
+        List<Path> captures = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 == args.length) {
+                usage("Missing value for " + arg);
+            } else if ("--threads".equals(arg)) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--output".equals(arg)) {
+                output = Paths.get(args[++i]);
+            } else if ("--config".equals(arg)) {
+                System.setProperty(FormatterConfig.CONFIG_FILE, args[++i]);
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option " + arg);
+            } else {
+                captures.add(Paths.get(arg));
+            }
+        }
+        if (captures.isEmpty() || threads < 1) {
+            usage(captures.isEmpty() ? "No capture files" : "--threads must be at least 1");
+        }
+
+        try (CustomizedSparkplugPayloadFormatter formatter =
+                 new CustomizedSparkplugPayloadFormatter(FormatterConfig.load())) {
+            Summary summary = replay(formatter, captures, output, threads);
+            System.out.println(summary);
+            FormatterStats stats = formatter.getStats();
+            System.out.printf(Locale.ROOT, "parse failures %d, invalid messages %d, unknown aliases %d%n",
+                stats.getParseFailures(), stats.getInvalidMessages(), stats.getUnknownAliases());
+        }
+    }
+
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: ReplayTool [--threads N] [--output DIR] [--config FILE] CAPTURE...");
+        System.exit(2);
+    }
+
+    /**
+     * Formats every record of {@code captures} with {@code formatter} on {@code threads} workers
+     * and writes a {@code part-<worker>-<n>.csv} file per device and worker to {@code output}.
+     */
+    static Summary replay(CustomizedSparkplugPayloadFormatter formatter, List<Path> captures, Path output,
+                          int threads) throws Exception {
+        Files.createDirectories(output);
+        List<Worker> workers = new ArrayList<>(threads);
+        AtomicInteger names = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sparkplugb-replay-" + names.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        try {
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(formatter, output, i);
+                workers.add(worker);
+                futures.add(executor.submit(worker));
+            }
+            try {
+                for (Path capture : captures) {
+                    summary.bytes += Files.size(capture);
+                    summary.records += CaptureFile.read(capture, (topic, payload) -> {
+                        workers.get(workerOf(topic, threads)).queue.put(new Record(topic, payload));
+                    });
+                }
+            } finally {
+                for (Worker worker : workers) {
+                    worker.queue.put(END);
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (Worker worker : workers) {
+            summary.messages += worker.messages;
+            summary.samples += worker.samples;
+            summary.files += worker.devices.size();
+        }
+        summary.nanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    // Messages of one edge node go to the same worker, in capture order
+    private static int workerOf(String topic, int threads) {
+        SparkplugTopic parsed = SparkplugTopic.parse(topic);
+        if (parsed == null) {
+            return 0;
+        }
+        return Math.floorMod(parsed.getEdgeNodeKey().hashCode(), threads);
+    }
+
+    /** What a replay read and wrote. */
+    static final class Summary {
+        long bytes;
+        long records;
+        long messages;
+        long samples;
+        long files;
+        long nanos;
+
+        double recordsPerSecond() {
+            return nanos == 0 ? 0 : records * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format(Locale.ROOT,
+                "%d records (%.1f MB) in %.2f s: %.0f records/s, %.1f MB/s, %d messages, %d samples, %d files",
+                records, bytes / 1e6, seconds, recordsPerSecond(), seconds == 0 ? 0 : bytes / 1e6 / seconds,
+                messages, samples, files);
+        }
+    }
+
+    private static final class Record {
+        final String topic;
+        final ByteBuf payload;
+
+        Record(String topic, ByteBuf payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    // Rows of one device: they are spooled while its measurements are still being discovered,
+    // and written out under a header of all of them once the replay is done
+    private static final class DeviceFile {
+        final Path rows;
+        final Path csv;
+        final Map<String, Integer> columns = new LinkedHashMap<>();
+        // Per column its data type, null when untyped or not the same in every row
+        final List<TSDataType> dataTypes = new ArrayList<>();
+        Writer out;
+        boolean spooled;
+
+        DeviceFile(Path rows, Path csv) {
+            this.rows = rows;
+            this.csv = csv;
+        }
+
+        // The column of a measurement, added on first use
+        int column(String measurement, TSDataType dataType) {
+            Integer column = columns.get(measurement);
+            if (column == null) {
+                column = columns.size();
+                columns.put(measurement, column);
+                dataTypes.add(dataType);
+            } else if (dataTypes.get(column) != dataType) {
+                dataTypes.set(column, null);
+            }
+            return column;
+        }
+    }
+
+    private static final class Worker implements Runnable {
+        private final CustomizedSparkplugPayloadFormatter formatter;
+        private final Path output;
+        private final int id;
+        private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Map<String, DeviceFile> devices = new LinkedHashMap<>();
+        // Device files with an open spool writer, least recently written first
+        private final LinkedHashMap<String, DeviceFile> open = new LinkedHashMap<>(16, 0.75f, true);
+        private final StringBuilder row = new StringBuilder(128);
+        private String[] cells = new String[16];
+        private long messages;
+        private long samples;
+
+        Worker(CustomizedSparkplugPayloadFormatter formatter, Path output, int id) {
+            this.formatter = formatter;
+            this.output = output;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            IOException failure = null;
+            try {
+                Record record;
+                while ((record = queue.take()) != END) {
+                    // After a failure, keep draining so that the reader never blocks on a full queue
+                    if (failure == null) {
+                        try {
+                            format(record);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (DeviceFile file : open.values()) {
+                try {
+                    file.out.close();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            open.clear();
+            if (failure == null) {
+                try {
+                    for (DeviceFile file : devices.values()) {
+                        writeCsv(file);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Could not write to " + output, failure);
+            }
+        }
+
+        private void format(Record record) throws IOException {
+            List<Message> formatted = record.topic == null ? formatter.format(record.payload)
+                : formatter.format(record.topic, record.payload);
+            for (Message message : formatted) {
+                write(message);
+            }
+            messages += formatted.size();
+        }
+
+        // One spooled row per message, with the values in the columns of their measurements
+        private void write(Message message) throws IOException {
+            List<String> measurements = message.getMeasurements();
+            List<String> values = message.getValues();
+            List<TSDataType> dataTypes = message.getDataTypes();
+            DeviceFile file = null;
+            int width = 0;
+            for (int i = 0; i < measurements.size(); i++) {
+                String value = values.get(i);
+                if (value == null) {
+                    continue;
+                }
+                if (file == null) {
+                    file = deviceFile(message.getDevice());
+                    Arrays.fill(cells, null);
+                }
+                int column = file.column(measurements.get(i), dataTypes != null ? dataTypes.get(i) : null);
+                if (column >= cells.length) {
+                    cells = Arrays.copyOf(cells, Math.max(column + 1, cells.length * 2));
+                }
+                cells[column] = value;
+                width = Math.max(width, column + 1);
+                samples++;
+            }
+            if (file == null) {
+                return;
+            }
+            row.setLength(0);
+            row.append(message.getTimestamp()).append(',');
+            appendField(message.getDevice());
+            for (int column = 0; column < width; column++) {
+                row.append(',');
+                if (cells[column] != null) {
+                    appendField(cells[column]);
+                }
+            }
+            row.append('\n');
+            file.out.append(row);
+        }
+
+        private DeviceFile deviceFile(String device) throws IOException {
+            DeviceFile file = open.get(device);
+            if (file != null) {
+                return file;
+            }
+            file = devices.get(device);
+            if (file == null) {
+                String name = "part-" + id + "-" + devices.size();
+                file = new DeviceFile(output.resolve(name + ".rows"), output.resolve(name + ".csv"));
+                devices.put(device, file);
+            }
+            if (open.size() == MAX_OPEN_FILES) {
+                Iterator<DeviceFile> eldest = open.values().iterator();
+                eldest.next().out.close();
+                eldest.remove();
+            }
+            // A spool left over from an earlier replay is overwritten, one closed to make room appended to
+            StandardOpenOption mode = file.spooled ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+            file.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.rows,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode), StandardCharsets.UTF_8), SPOOL_BUFFER);
+            file.spooled = true;
+            open.put(device, file);
+            return file;
+        }
+
+        // The header with every measurement of the device, then its spooled rows, each padded
+        // with empty cells for the measurements that first appeared after it was written
+        private void writeCsv(DeviceFile file) throws IOException {
+            int width = file.columns.size();
+            try (Reader in = Files.newBufferedReader(file.rows, StandardCharsets.UTF_8);
+                 Writer out = new BufferedWriter(Files.newBufferedWriter(file.csv, StandardCharsets.UTF_8), WRITE_BUFFER)) {
+                out.write(HEADER_PREFIX);
+                for (Map.Entry<String, Integer> column : file.columns.entrySet()) {
+                    row.setLength(0);
+                    appendField(column.getKey());
+                    TSDataType dataType = file.dataTypes.get(column.getValue());
+                    if (dataType != null) {
+                        row.append('(').append(dataType).append(')');
+                    }
+                    out.write(',');
+                    out.append(row);
+                }
+                out.write('\n');
+
+                char[] buffer = new char[8192];
+                boolean quoted = false;
+                // The time and device cells come first
+                int separators = 0;
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    int from = 0;
+                    for (int i = 0; i < read; i++) {
+                        char c = buffer[i];
+                        if (c == '"') {
+                            quoted = !quoted;
+                        } else if (c == ',' && !quoted) {
+                            separators++;
+                        } else if (c == '\n' && !quoted) {
+                            out.write(buffer, from, i - from);
+                            for (int cell = separators - 1; cell < width; cell++) {
+                                out.write(',');
+                            }
+                            out.write('\n');
+                            from = i + 1;
+                            separators = 0;
+                        }
+                    }
+                    out.write(buffer, from, read - from);
+                }
+            }
+            Files.delete(file.rows);
+        }
+
+        // Quoted as in RFC 4180 when it contains a separator, quote or line break
+        private void appendField(String field) {
+            boolean quote = false;
+            for (int i = 0; i < field.length() && !quote; i++) {
+                char c = field.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                row.append(field);
+                return;
+            }
+            row.append('"');
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '"') {
+                    row.append('"');
+                }
+                row.append(c);
+            }
+            row.append('"');
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks the {@code seq} of every payload an edge node publishes, and the {@code bdSeq} of its
+ * birth and death certificates, so that lost or reordered messages and restarts become visible.
+ *
+ * <p>Every message after NBIRTH increments {@code seq} by one, wrapping from 255 to 0. A jump
+ * ahead of less than half the range counts as a gap of the skipped messages; anything else,
+ * including a repeated {@code seq}, counts as out of order and leaves the expected value alone.
+ * An NBIRTH while the edge node is alive is a rebirth, or a restart when it carries a new
+ * {@code bdSeq}. An NDEATH whose {@code bdSeq} is not the live session's belongs to an earlier
+ * session, as when the broker delivers the will message after the reconnected node's birth.
+ *
+ * <p>The state of each edge node is one packed {@code long} updated by compare-and-set, so
+ * tracking never locks. Edge nodes are kept until the formatter is discarded.
+ */
+final class SequenceTracker {
+    private static final long SEQ_MASK = 0xFF;
+    private static final long SEQ_VALID = 1L << 8;
+    private static final long ALIVE = 1L << 9;
+    private static final long BD_SEQ_KNOWN = 1L << 10;
+    private static final int BD_SEQ_SHIFT = 16;
+    private static final long BD_SEQ_MASK = (1L << (64 - BD_SEQ_SHIFT)) - 1;
+
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private final LongAdder gaps = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+    private final LongAdder outOfOrder = new LongAdder();
+    private final LongAdder rebirths = new LongAdder();
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder staleDeaths = new LongAdder();
+
+    /** Counters of one edge node, cumulative since the formatter started. */
+    static final class Node {
+        // Packed: last seq, SEQ_VALID, ALIVE, BD_SEQ_KNOWN and the session's bdSeq
+        private final AtomicLong state = new AtomicLong();
+        private final AtomicLong gaps = new AtomicLong();
+        private final AtomicLong missed = new AtomicLong();
+        private final AtomicLong outOfOrder = new AtomicLong();
+        private final AtomicLong rebirths = new AtomicLong();
+
+        long gaps() {
+            return gaps.get();
+        }
+
+        long missedMessages() {
+            return missed.get();
+        }
+
+        long outOfOrder() {
+            return outOfOrder.get();
+        }
+
+        /** Rebirths and restarts. */
+        long rebirths() {
+            return rebirths.get();
+        }
+    }
+
+    Node node(String edgeNode) {
+        Node node = nodes.get(edgeNode);
+        if (node == null) {
+            Node created = new Node();
+            node = nodes.putIfAbsent(edgeNode, created);
+            if (node == null) {
+                node = created;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * NBIRTH with its {@code seq} and {@code bdSeq}, either -1 when absent. Returns whether the
+     * birth interrupted a live session.
+     */
+    boolean birth(Node node, long seq, long bdSeq) {
+        while (true) {
+            long state = node.state.get();
+            long next = ALIVE;
+            if (isValidSeq(seq)) {
+                next |= SEQ_VALID | seq;
+            }
+            if (bdSeq >= 0) {
+                next |= BD_SEQ_KNOWN | (bdSeq & BD_SEQ_MASK) << BD_SEQ_SHIFT;
+            } else {
+                next |= state & (BD_SEQ_KNOWN | BD_SEQ_MASK << BD_SEQ_SHIFT);
+            }
+            if (!node.state.compareAndSet(state, next)) {
+                continue;
+            }
+            if ((state & ALIVE) == 0) {
+                return false;
+            }
+            node.rebirths.incrementAndGet();
+            if (bdSeq >= 0 && (state & BD_SEQ_KNOWN) != 0 && bdSeqOf(state) != (bdSeq & BD_SEQ_MASK)) {
+                restarts.increment();
+            } else {
+                rebirths.increment();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Any message after NBIRTH other than NDEATH. Returns whether its {@code seq} was not the
+     * expected one; a payload without a valid {@code seq} is not checked.
+     */
+    boolean message(Node node, long seq) {
+        if (!isValidSeq(seq)) {
+            return false;
+        }
+        while (true) {
+            long state = node.state.get();
+            long next = state & ~SEQ_MASK | SEQ_VALID | seq;
+            if ((state & SEQ_VALID) == 0) {
+                // First message seen from this node, nothing to compare with
+                if (node.state.compareAndSet(state, next)) {
+                    return false;
+                }
+                continue;
+            }
+            long expected = (state + 1) & SEQ_MASK;
+            long skipped = (seq - expected) & SEQ_MASK;
+            if (skipped >= 128) {
+                // Behind the expected value: late or repeated
+                node.outOfOrder.incrementAndGet();
+                outOfOrder.increment();
+                return true;
+            }
+            if (!node.state.compareAndSet(state, next)) {
+                continue;
+            }
+            if (skipped == 0) {
+                return false;
+            }
+            node.gaps.incrementAndGet();
+            node.missed.addAndGet(skipped);
+            gaps.increment();
+            missed.add(skipped);
+            return true;
+        }
+    }
+
+    /**
+     * NDEATH with its {@code bdSeq}, -1 when absent. Returns {@code false} for the death of an
+     * earlier session, which is to be ignored.
+     */
+    boolean death(Node node, long bdSeq) {
+        while (true) {
+            long state = node.state.get();
+            if (bdSeq >= 0 && (state & (ALIVE | BD_SEQ_KNOWN)) == (ALIVE | BD_SEQ_KNOWN)
+                && bdSeqOf(state) != (bdSeq & BD_SEQ_MASK)) {
+                staleDeaths.increment();
+                return false;
+            }
+            // Keep the bdSeq, the next birth is compared with it
+            long next = state & (BD_SEQ_KNOWN | BD_SEQ_MASK << BD_SEQ_SHIFT);
+            if (node.state.compareAndSet(state, next)) {
+                return true;
+            }
+        }
+    }
+
+    long gapCount() {
+        return gaps.sum();
+    }
+
+    long missedMessageCount() {
+        return missed.sum();
+    }
+
+    long outOfOrderCount() {
+        return outOfOrder.sum();
+    }
+
+    long rebirthCount() {
+        return rebirths.sum();
+    }
+
+    long restartCount() {
+        return restarts.sum();
+    }
+
+    long staleDeathCount() {
+        return staleDeaths.sum();
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    void reset() {
+        gaps.reset();
+        missed.reset();
+        outOfOrder.reset();
+        rebirths.reset();
+        restarts.reset();
+        staleDeaths.reset();
+    }
+
+    private static boolean isValidSeq(long seq) {
+        return seq >= 0 && seq <= SEQ_MASK;
+    }
+
+    private static long bdSeqOf(long state) {
+        return state >>> BD_SEQ_SHIFT & BD_SEQ_MASK;
+    }
+}
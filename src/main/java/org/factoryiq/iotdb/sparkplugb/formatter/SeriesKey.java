@@ -0,0 +1,43 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+/**
+ * 64-bit keys for (device path, measurement) pairs, so per-series state can live in primitive
+ * structures instead of maps keyed by concatenated strings.
+ */
+final class SeriesKey {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SeriesKey() {
+    }
+
+    static long of(String device, String measurement) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, device);
+        hash = (hash ^ 0xFFFF) * FNV_PRIME;
+        hash = mix(hash, measurement);
+        return avalanche(hash);
+    }
+
+    /** 64-bit hash of a single string, such as a sample value; {@code null} hashes like "". */
+    static long hash(String value) {
+        return avalanche(value == null ? FNV_OFFSET : mix(FNV_OFFSET, value));
+    }
+
+    // Final avalanche (murmur3 fmix64) so that nearby keys spread over the hash tables
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,456 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+/**
+ * Walks the Sparkplug B protobuf wire format directly and hands every metric to a handler as soon
+ * as it has been read, instead of materializing the whole payload as generated message objects.
+ *
+ * <p>Only the fields the formatter uses are decoded; metadata, historical/transient flags and
+ * extensions are skipped on the wire. Bytes, dataset and template values are handed over as
+ * their region of the buffer, to be decoded only if the metric's datatype calls for it; the
+ * members of a template are metrics again, see {@link #decodeTemplate}. Property values are decoded only
+ * for the device property keys. Field semantics follow the generated parser: a field repeated on
+ * the wire keeps its last value, setting a member of a oneof clears the others, and fields with
+ * an unexpected wire type are skipped like unknown fields.
+ *
+ * <p>Instances keep scratch state and must not be shared between threads.
+ */
+final class SparkplugStreamDecoder {
+
+    interface MetricHandler {
+        void onMetric(MetricRecord metric);
+    }
+
+    // Tags are (field number << 3) | wire type, as in the generated parser
+    private static final int PAYLOAD_METRICS = tag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int PAYLOAD_SEQ = tag(3, WireFormat.WIRETYPE_VARINT);
+    private static final int PAYLOAD_UUID = tag(4, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int PAYLOAD_BODY = tag(5, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int METRIC_NAME = tag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_ALIAS = tag(2, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_TIMESTAMP = tag(3, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_DATATYPE = tag(4, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_IS_NULL = tag(7, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_PROPERTIES = tag(9, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_INT_VALUE = tag(10, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_LONG_VALUE = tag(11, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_FLOAT_VALUE = tag(12, WireFormat.WIRETYPE_FIXED32);
+    private static final int METRIC_DOUBLE_VALUE = tag(13, WireFormat.WIRETYPE_FIXED64);
+    private static final int METRIC_BOOLEAN_VALUE = tag(14, WireFormat.WIRETYPE_VARINT);
+    private static final int METRIC_STRING_VALUE = tag(15, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_BYTES_VALUE = tag(16, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_DATASET_VALUE = tag(17, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_TEMPLATE_VALUE = tag(18, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int METRIC_EXTENSION_VALUE = tag(19, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int TEMPLATE_METRICS = tag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int TEMPLATE_REF = tag(4, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int TEMPLATE_IS_DEFINITION = tag(5, WireFormat.WIRETYPE_VARINT);
+
+    private static final int PROPERTY_SET_KEYS = tag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int PROPERTY_SET_VALUES = tag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int PROPERTY_TYPE = tag(1, WireFormat.WIRETYPE_VARINT);
+    private static final int PROPERTY_STRING_VALUE = tag(8, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    // The other members of the PropertyValue value oneof
+    private static final int[] PROPERTY_OTHER_VALUES = {
+        tag(3, WireFormat.WIRETYPE_VARINT),
+        tag(4, WireFormat.WIRETYPE_VARINT),
+        tag(5, WireFormat.WIRETYPE_FIXED32),
+        tag(6, WireFormat.WIRETYPE_FIXED64),
+        tag(7, WireFormat.WIRETYPE_VARINT),
+        tag(9, WireFormat.WIRETYPE_LENGTH_DELIMITED),
+        tag(10, WireFormat.WIRETYPE_LENGTH_DELIMITED),
+        tag(11, WireFormat.WIRETYPE_LENGTH_DELIMITED)
+    };
+
+    private final DevicePropertyKeys keys;
+    private final WireReader input = new WireReader();
+    private final MetricRecord record = new MetricRecord();
+
+    // Per metric scratch: role of each property key and string value of each needed property value.
+    // A property set repeated on the wire merges into the first, so these span the whole metric.
+    private int[] keyRoles = new int[8];
+    private String[] propertyStrings = new String[8];
+    private int keyCount;
+    private int valueCount;
+    private long seq = -1;
+    // The payload being decoded, referenced by bytes and dataset values
+    private ByteBuf buffer;
+    // Found by readTemplateHeader
+    private String templateRef;
+    private boolean definition;
+    // Found by countMetrics
+    private boolean compressed;
+    private int bodyIndex;
+    private int bodyLength;
+
+    SparkplugStreamDecoder(DevicePropertyKeys keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Number of metrics in the readable bytes of {@code payload}, found by skipping over them,
+     * so that result lists can be sized before decoding. Also notes whether the payload is
+     * compressed, see {@link #isCompressed()}.
+     */
+    int countMetrics(ByteBuf payload) throws InvalidProtocolBufferException {
+        input.reset(payload);
+        compressed = false;
+        bodyIndex = payload.readerIndex();
+        bodyLength = 0;
+        try {
+            int metrics = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag == PAYLOAD_METRICS) {
+                    metrics++;
+                    input.skipField(tag);
+                } else if (tag == PAYLOAD_UUID) {
+                    compressed = PayloadInflater.COMPRESSED_UUID.equals(input.readString());
+                } else if (tag == PAYLOAD_BODY) {
+                    bodyLength = input.readVarint32();
+                    bodyIndex = input.position();
+                    input.skipBytes(bodyLength);
+                } else {
+                    input.skipField(tag);
+                }
+            }
+            return metrics;
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * Decodes the readable bytes of {@code payload}, without moving its reader index, and returns
+     * the number of metrics it contained.
+     */
+    int decode(ByteBuf payload, MetricHandler handler) throws InvalidProtocolBufferException {
+        return decode(payload, payload.readerIndex(), payload.readableBytes(), handler);
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code payload} from {@code index}, such as a region found
+     * by {@link #split}, and returns the number of metrics they contained.
+     */
+    int decode(ByteBuf payload, int index, int length, MetricHandler handler) throws InvalidProtocolBufferException {
+        input.reset(payload, index, length);
+        buffer = payload;
+        seq = -1;
+        try {
+            int metrics = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag == PAYLOAD_METRICS) {
+                    int limit = input.pushLengthLimit();
+                    readMetric();
+                    input.popLimit(limit);
+                    metrics++;
+                    handler.onMetric(record);
+                } else if (tag == PAYLOAD_SEQ) {
+                    seq = input.readVarint64();
+                } else {
+                    input.skipField(tag);
+                }
+            }
+            return metrics;
+        } finally {
+            input.release();
+            buffer = null;
+            record.reset();
+        }
+    }
+
+    /**
+     * Splits the readable bytes of {@code payload} into consecutive regions of
+     * {@code metricsPerRegion} metrics each, the last one possibly fewer, that decode on their
+     * own: region {@code i} spans {@code boundaries[i]} to {@code boundaries[i + 1]}. Fields other
+     * than metrics end up in whichever region they are in. Returns the number of regions.
+     */
+    int split(ByteBuf payload, int metricsPerRegion, int[] boundaries) throws InvalidProtocolBufferException {
+        input.reset(payload);
+        try {
+            boundaries[0] = payload.readerIndex();
+            int regions = 0;
+            int metrics = 0;
+            while (true) {
+                int position = input.position();
+                int tag = input.readTag();
+                if (tag == 0) {
+                    break;
+                }
+                if (tag == PAYLOAD_METRICS) {
+                    if (metrics > 0 && metrics % metricsPerRegion == 0) {
+                        boundaries[++regions] = position;
+                    }
+                    metrics++;
+                }
+                input.skipField(tag);
+            }
+            boundaries[++regions] = payload.writerIndex();
+            return regions;
+        } finally {
+            input.release();
+        }
+    }
+
+    /** Whether the payload counted last has the uuid of a Sparkplug compressed payload. */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /** The body of the payload counted last, a slice of it; empty when it had none. */
+    ByteBuf body(ByteBuf payload) {
+        return payload.slice(bodyIndex, bodyLength);
+    }
+
+    /**
+     * The string value of the {@value PayloadInflater#ALGORITHM_METRIC} metric of a compressed
+     * payload, or {@code null}.
+     */
+    String compressionAlgorithm(ByteBuf payload) throws InvalidProtocolBufferException {
+        input.reset(payload);
+        try {
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag != PAYLOAD_METRICS) {
+                    input.skipField(tag);
+                    continue;
+                }
+                int limit = input.pushLengthLimit();
+                String name = null;
+                String value = null;
+                int field;
+                while ((field = input.readTag()) != 0) {
+                    if (field == METRIC_NAME) {
+                        name = input.readString();
+                    } else if (field == METRIC_STRING_VALUE) {
+                        value = input.readString();
+                    } else {
+                        input.skipField(field);
+                    }
+                }
+                input.popLimit(limit);
+                if (PayloadInflater.ALGORITHM_METRIC.equals(name)) {
+                    return value;
+                }
+            }
+            return null;
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * Reads the {@code template_ref} and {@code is_definition} of a template in wire format,
+     * {@code length} bytes of {@code buffer} from {@code index}, skipping over its members.
+     */
+    void readTemplateHeader(ByteBuf buffer, int index, int length) throws InvalidProtocolBufferException {
+        input.reset(buffer, index, length);
+        templateRef = null;
+        definition = false;
+        try {
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag == TEMPLATE_REF) {
+                    templateRef = input.readString();
+                } else if (tag == TEMPLATE_IS_DEFINITION) {
+                    definition = input.readBool();
+                } else {
+                    input.skipField(tag);
+                }
+            }
+        } finally {
+            input.release();
+        }
+    }
+
+    /** The {@code template_ref} of the template read last, or {@code null}. */
+    String templateRef() {
+        return templateRef;
+    }
+
+    /** Whether the template read last is a definition rather than an instance. */
+    boolean isDefinition() {
+        return definition;
+    }
+
+    /**
+     * Decodes the member metrics of a template in wire format, {@code length} bytes of
+     * {@code buffer} from {@code index}, and returns their number.
+     */
+    int decodeTemplate(ByteBuf buffer, int index, int length, MetricHandler handler)
+        throws InvalidProtocolBufferException {
+        input.reset(buffer, index, length);
+        this.buffer = buffer;
+        try {
+            int metrics = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag == TEMPLATE_METRICS) {
+                    int limit = input.pushLengthLimit();
+                    readMetric();
+                    input.popLimit(limit);
+                    metrics++;
+                    handler.onMetric(record);
+                } else {
+                    input.skipField(tag);
+                }
+            }
+            return metrics;
+        } finally {
+            input.release();
+            this.buffer = null;
+            record.reset();
+        }
+    }
+
+    /** The {@code seq} of the payload decoded last, or -1 when it had none. */
+    long seq() {
+        return seq;
+    }
+
+    private void readMetric() throws InvalidProtocolBufferException {
+        MetricRecord metric = record;
+        metric.reset();
+        keyCount = 0;
+        valueCount = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == METRIC_NAME) {
+                metric.setName(input.readString());
+            } else if (tag == METRIC_ALIAS) {
+                metric.setAlias(input.readVarint64());
+            } else if (tag == METRIC_TIMESTAMP) {
+                metric.setTimestamp(input.readVarint64());
+            } else if (tag == METRIC_DATATYPE) {
+                metric.setDatatype(input.readVarint32());
+            } else if (tag == METRIC_IS_NULL) {
+                metric.setNull(input.readBool());
+            } else if (tag == METRIC_PROPERTIES) {
+                int limit = input.pushLengthLimit();
+                readPropertySet();
+                input.popLimit(limit);
+            } else if (tag == METRIC_INT_VALUE) {
+                metric.setIntValue(input.readVarint32());
+            } else if (tag == METRIC_LONG_VALUE) {
+                metric.setLongValue(input.readVarint64());
+            } else if (tag == METRIC_FLOAT_VALUE) {
+                metric.setFloatValue(input.readFloat());
+            } else if (tag == METRIC_DOUBLE_VALUE) {
+                metric.setDoubleValue(input.readDouble());
+            } else if (tag == METRIC_BOOLEAN_VALUE) {
+                metric.setBooleanValue(input.readBool());
+            } else if (tag == METRIC_STRING_VALUE) {
+                metric.setStringValue(input.readString());
+            } else if (tag == METRIC_BYTES_VALUE) {
+                int length = input.readVarint32();
+                metric.setBytesValue(buffer, input.position(), length);
+                input.skipBytes(length);
+            } else if (tag == METRIC_DATASET_VALUE) {
+                int length = input.readVarint32();
+                metric.setDataSetValue(buffer, input.position(), length);
+                input.skipBytes(length);
+            } else if (tag == METRIC_TEMPLATE_VALUE) {
+                int length = input.readVarint32();
+                metric.setTemplateValue(buffer, input.position(), length);
+                input.skipBytes(length);
+            } else if (tag == METRIC_EXTENSION_VALUE) {
+                metric.setOtherValue();
+                input.skipField(tag);
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (keyCount > 0 || valueCount > 0) {
+            resolveDeviceProperties(metric);
+        }
+    }
+
+    // Keys and values are parallel lists. Encoders write all keys first, so values of keys that
+    // are not device keys are skipped unread; values that arrive before their key are decoded
+    // just in case. Matching happens once the metric is complete, in index order, like the
+    // generated accessors.
+    private void readPropertySet() throws InvalidProtocolBufferException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == PROPERTY_SET_KEYS) {
+                if (keyCount == keyRoles.length) {
+                    keyRoles = Arrays.copyOf(keyRoles, keyCount * 2);
+                }
+                keyRoles[keyCount++] = keys.roleOf(input.readString());
+            } else if (tag == PROPERTY_SET_VALUES) {
+                if (valueCount == propertyStrings.length) {
+                    propertyStrings = Arrays.copyOf(propertyStrings, valueCount * 2);
+                }
+                int length = input.readVarint32();
+                if (valueCount < keyCount && keyRoles[valueCount] == DevicePropertyKeys.NONE) {
+                    input.skipBytes(length);
+                    propertyStrings[valueCount] = null;
+                } else {
+                    int limit = input.pushLimit(length);
+                    propertyStrings[valueCount] = readPropertyString();
+                    input.popLimit(limit);
+                }
+                valueCount++;
+            } else {
+                input.skipField(tag);
+            }
+        }
+    }
+
+    private void resolveDeviceProperties(MetricRecord metric) {
+        int count = Math.min(keyCount, valueCount);
+        for (int i = 0; i < count; i++) {
+            String value = propertyStrings[i];
+            if (keyRoles[i] != DevicePropertyKeys.NONE && value != null) {
+                metric.setDeviceProperty(keyRoles[i], value);
+            }
+            propertyStrings[i] = null;
+        }
+        for (int i = count; i < valueCount; i++) {
+            propertyStrings[i] = null;
+        }
+    }
+
+    // Returns the string value of a PropertyValue of type String, "" when its oneof holds
+    // another member, or null for properties of any other type
+    private String readPropertyString() throws InvalidProtocolBufferException {
+        int type = 0;
+        String value = "";
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag == PROPERTY_TYPE) {
+                type = input.readVarint32();
+            } else if (tag == PROPERTY_STRING_VALUE) {
+                value = input.readString();
+            } else {
+                if (isOtherPropertyValue(tag)) {
+                    value = "";
+                }
+                input.skipField(tag);
+            }
+        }
+        return type == 12 ? value : null; // String type
+    }
+
+    private static boolean isOtherPropertyValue(int tag) {
+        for (int other : PROPERTY_OTHER_VALUES) {
+            if (tag == other) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+}
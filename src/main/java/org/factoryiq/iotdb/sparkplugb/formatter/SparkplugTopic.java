@@ -0,0 +1,80 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+/**
+ * A parsed Sparkplug B topic: {@code spBv1.0/<group_id>/<message_type>/<edge_node_id>[/<device_id>]}.
+ */
+final class SparkplugTopic {
+    static final String NAMESPACE = "spBv1.0";
+
+    enum MessageType {
+        NBIRTH, NDEATH, DBIRTH, DDEATH, NDATA, DDATA, NCMD, DCMD;
+
+        boolean isBirth() {
+            return this == NBIRTH || this == DBIRTH;
+        }
+
+        boolean isDeath() {
+            return this == NDEATH || this == DDEATH;
+        }
+    }
+
+    private final String groupId;
+    private final MessageType messageType;
+    private final String edgeNodeId;
+    private final String deviceId;
+
+    SparkplugTopic(String groupId, MessageType messageType, String edgeNodeId, String deviceId) {
+        this.groupId = groupId;
+        this.messageType = messageType;
+        this.edgeNodeId = edgeNodeId;
+        this.deviceId = deviceId;
+    }
+
+    /** Returns {@code null} for anything that is not a Sparkplug B edge node or device topic. */
+    static SparkplugTopic parse(String topic) {
+        if (topic == null || !topic.startsWith(NAMESPACE + "/")) {
+            return null;
+        }
+        String[] parts = topic.split("/", -1);
+        if (parts.length < 4 || parts.length > 5) {
+            return null;
+        }
+        MessageType messageType;
+        try {
+            messageType = MessageType.valueOf(parts[2]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (parts[1].isEmpty() || parts[3].isEmpty()) {
+            return null;
+        }
+        String deviceId = parts.length == 5 && !parts[4].isEmpty() ? parts[4] : null;
+        return new SparkplugTopic(parts[1], messageType, parts[3], deviceId);
+    }
+
+    String getGroupId() {
+        return groupId;
+    }
+
+    MessageType getMessageType() {
+        return messageType;
+    }
+
+    String getEdgeNodeId() {
+        return edgeNodeId;
+    }
+
+    /** {@code null} for edge node level messages. */
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getEdgeNodeKey() {
+        return EdgeNodeRegistry.key(groupId, edgeNodeId);
+    }
+
+    @Override
+    public String toString() {
+        return NAMESPACE + "/" + groupId + "/" + messageType + "/" + edgeNodeId + (deviceId == null ? "" : "/" + deviceId);
+    }
+}
@@ -0,0 +1,53 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.Map;
+
+/**
+ * What an NBIRTH declared for one template (UDT) definition: the datatype of each member, and
+ * for members that are templates themselves the definition they instantiate. Instances in data
+ * messages usually carry only the members that changed, often without their datatype.
+ */
+final class TemplateDefinition {
+    static final int TEMPLATE = 19;
+    // Ignition and others name definitions "_types_/<name>" and refer to them as "<name>"
+    private static final String TYPES_FOLDER = "_types_/";
+
+    private final String name;
+    private final Map<String, Integer> datatypes;
+    private final Map<String, String> templateRefs;
+
+    /**
+     * @param datatypes    datatype of each member, by member name
+     * @param templateRefs definition of each template member, by member name
+     */
+    TemplateDefinition(String name, Map<String, Integer> datatypes, Map<String, String> templateRefs) {
+        this.name = typeName(name);
+        this.datatypes = datatypes;
+        this.templateRefs = templateRefs;
+    }
+
+    /** The name instances refer to the definition by, without a {@code _types_/} folder. */
+    static String typeName(String name) {
+        return name.startsWith(TYPES_FOLDER) ? name.substring(TYPES_FOLDER.length()) : name;
+    }
+
+    /** The type name, see {@link #typeName}. */
+    String getName() {
+        return name;
+    }
+
+    /** Datatype of a member, or -1 when the definition has no such member. */
+    int memberDatatype(String member) {
+        Integer datatype = datatypes.get(member);
+        return datatype != null ? datatype : -1;
+    }
+
+    /** Definition a template member instantiates, or {@code null}. */
+    String memberTemplateRef(String member) {
+        return templateRefs.get(member);
+    }
+
+    int memberCount() {
+        return datatypes.size();
+    }
+}
@@ -0,0 +1,276 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-aggregation of fast numeric series into fixed windows: per series it keeps count, min,
+ * max, sum and last value of the open window, and once the window closes hands them back to be
+ * written as one row at the window start. Windows are aligned to the epoch. A window closes when
+ * a sample of a later window arrives, or when {@link #closeExpired} finds that no sample of its
+ * series arrived for a whole window length. Samples of a window already written are late and
+ * left out, so that a window is never written twice.
+ *
+ * <p>Whether a series is aggregated, and whether its raw samples are still written as well, is
+ * decided by path patterns before a series takes a place in the tables; series that are not
+ * aggregated are only remembered as such, in a set of their own, so they never push aggregated
+ * series out. State lives in striped, fixed-capacity primitive tables like
+ * {@link DeadbandFilter}'s; the open window of a series forgotten to make room is closed early
+ * rather than lost. Each stripe also remembers, per forgotten series, the latest window it
+ * wrote, in a table of the same capacity, so a forgotten series that comes back cannot write a
+ * window again while other series start afresh.
+ */
+final class WindowAggregator {
+    /** What happens to the raw sample. */
+    enum Mode {
+        /** Not aggregated, written as usual. */
+        RAW,
+        /** Aggregated only. */
+        AGGREGATE,
+        /** Aggregated and written as usual. */
+        AGGREGATE_AND_RAW
+    }
+
+    /** A closed window, copied out of the tables. */
+    static final class Window {
+        String device;
+        String measurement;
+        long start;
+        long count;
+        double min;
+        double max;
+        double sum;
+        double last;
+    }
+
+    private static final int STRIPES = 16;
+    private static final Mode[] MODES = Mode.values();
+
+    private final long windowMillis;
+    private final PathPattern[] aggregated;
+    private final PathPattern[] raw;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder windows = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    /**
+     * @param aggregated patterns of the series to aggregate
+     * @param raw        patterns of the aggregated series whose raw samples are written as well
+     */
+    WindowAggregator(long windowMillis, List<PathPattern> aggregated, List<PathPattern> raw, int maxSeries) {
+        this.windowMillis = windowMillis;
+        this.aggregated = aggregated.toArray(new PathPattern[0]);
+        this.raw = raw.toArray(new PathPattern[0]);
+        int perStripe = Math.max(1, (maxSeries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Adds a sample to the open window of its series. When that closes a window, it is copied
+     * to {@code closed}, whose count is 0 otherwise. Samples of a window already written are
+     * left out of the aggregate; so are NaN values.
+     */
+    Mode add(String device, String measurement, long timestamp, double value, Window closed) {
+        closed.count = 0;
+        long key = SeriesKey.of(device, measurement);
+        long start = timestamp - Math.floorMod(timestamp, windowMillis);
+        Stripe stripe = stripes[(int) (key >>> 60)];
+        synchronized (stripe) {
+            int slot = stripe.index.get(key);
+            if (slot == LongSlotIndex.ABSENT) {
+                if (stripe.rawSeries.get(key) != LongSlotIndex.ABSENT) {
+                    return Mode.RAW;
+                }
+                Mode mode = mode(device, measurement);
+                if (mode == Mode.RAW) {
+                    stripe.rawSeries.insert(key);
+                    return mode;
+                }
+                slot = stripe.index.insert(key);
+                // The slot may come from an evicted series whose state is still in place
+                if (stripe.devices[slot] != null) {
+                    if (stripe.counts[slot] > 0) {
+                        stripe.close(slot, closed);
+                        windows.increment();
+                    }
+                    stripe.forget(slot);
+                }
+                stripe.keys[slot] = key;
+                stripe.counts[slot] = 0;
+                stripe.written[slot] = stripe.forgottenWritten(key);
+                stripe.modes[slot] = (byte) mode.ordinal();
+                stripe.devices[slot] = device;
+                stripe.measurements[slot] = measurement;
+            }
+            Mode mode = MODES[stripe.modes[slot]];
+            if (Double.isNaN(value)) {
+                return mode;
+            }
+            if (start <= stripe.written[slot] || stripe.counts[slot] > 0 && start < stripe.starts[slot]) {
+                late.increment();
+                return mode;
+            }
+            if (stripe.counts[slot] > 0 && start != stripe.starts[slot]) {
+                stripe.close(slot, closed);
+                windows.increment();
+            }
+            stripe.add(slot, start, timestamp, value, System.currentTimeMillis());
+            samples.increment();
+            return mode;
+        }
+    }
+
+    /**
+     * Whether {@link #closeExpired} is due; true for one caller once per second, or once per
+     * window length for shorter windows.
+     */
+    boolean isSweepDue(long now) {
+        long due = nextSweep.get();
+        return now >= due && nextSweep.compareAndSet(due, now + Math.min(windowMillis, 1000L));
+    }
+
+    /**
+     * Closes and returns the open windows of the series that received no sample for a whole
+     * window length before {@code now}, by the clock of this process.
+     */
+    List<Window> closeExpired(long now) {
+        List<Window> expired = new ArrayList<>();
+        long before = now - windowMillis;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.index.size(); slot++) {
+                    if (stripe.counts[slot] > 0 && stripe.arrivals[slot] <= before) {
+                        Window window = new Window();
+                        stripe.close(slot, window);
+                        expired.add(window);
+                    }
+                }
+            }
+        }
+        windows.add(expired.size());
+        return expired;
+    }
+
+    long sampleCount() {
+        return samples.sum();
+    }
+
+    long windowCount() {
+        return windows.sum();
+    }
+
+    long lateCount() {
+        return late.sum();
+    }
+
+    private Mode mode(String device, String measurement) {
+        if (!PathPattern.matchesAny(aggregated, device, measurement)) {
+            return Mode.RAW;
+        }
+        return PathPattern.matchesAny(raw, device, measurement) ? Mode.AGGREGATE_AND_RAW : Mode.AGGREGATE;
+    }
+
+    private static final class Stripe {
+        private final LongSlotIndex index;
+        // Series that are not aggregated, kept apart so that they never evict aggregated ones
+        private final LongSlotIndex rawSeries;
+        // Series the index forgot, with the start of the window each wrote last
+        private final LongSlotIndex forgotten;
+        private final long[] forgottenWritten;
+        private final long[] keys;
+        private final byte[] modes;
+        private final long[] starts;
+        // Start of the window written last, and arrival time of the last sample
+        private final long[] written;
+        private final long[] arrivals;
+        private final long[] counts;
+        private final double[] mins;
+        private final double[] maxs;
+        private final double[] sums;
+        private final double[] lasts;
+        private final long[] lastTimestamps;
+        private final String[] devices;
+        private final String[] measurements;
+
+        Stripe(int capacity) {
+            this.index = new LongSlotIndex(capacity);
+            this.rawSeries = new LongSlotIndex(capacity);
+            this.forgotten = new LongSlotIndex(capacity);
+            this.forgottenWritten = new long[capacity];
+            this.keys = new long[capacity];
+            this.modes = new byte[capacity];
+            this.starts = new long[capacity];
+            this.written = new long[capacity];
+            this.arrivals = new long[capacity];
+            this.counts = new long[capacity];
+            this.mins = new double[capacity];
+            this.maxs = new double[capacity];
+            this.sums = new double[capacity];
+            this.lasts = new double[capacity];
+            this.lastTimestamps = new long[capacity];
+            this.devices = new String[capacity];
+            this.measurements = new String[capacity];
+        }
+
+        // Remembers the last window of the series evicted from the slot
+        void forget(int slot) {
+            int entry = forgotten.get(keys[slot]);
+            if (entry == LongSlotIndex.ABSENT) {
+                if (written[slot] == Long.MIN_VALUE) {
+                    return;
+                }
+                entry = forgotten.insert(keys[slot]);
+                forgottenWritten[entry] = written[slot];
+            } else {
+                forgottenWritten[entry] = Math.max(forgottenWritten[entry], written[slot]);
+            }
+        }
+
+        // Start of the window the series wrote last before it was forgotten, if it was
+        long forgottenWritten(long key) {
+            int entry = forgotten.get(key);
+            return entry == LongSlotIndex.ABSENT ? Long.MIN_VALUE : forgottenWritten[entry];
+        }
+
+        void add(int slot, long start, long timestamp, double value, long arrival) {
+            if (counts[slot] == 0) {
+                starts[slot] = start;
+                mins[slot] = value;
+                maxs[slot] = value;
+                sums[slot] = value;
+            } else {
+                mins[slot] = Math.min(mins[slot], value);
+                maxs[slot] = Math.max(maxs[slot], value);
+                sums[slot] += value;
+            }
+            // The newest sample, which need not be the one that arrived last
+            if (counts[slot] == 0 || timestamp >= lastTimestamps[slot]) {
+                lasts[slot] = value;
+                lastTimestamps[slot] = timestamp;
+            }
+            counts[slot]++;
+            arrivals[slot] = arrival;
+        }
+
+        // Copies the open window out and marks it written
+        void close(int slot, Window window) {
+            window.device = devices[slot];
+            window.measurement = measurements[slot];
+            window.start = starts[slot];
+            window.count = counts[slot];
+            window.min = mins[slot];
+            window.max = maxs[slot];
+            window.sum = sums[slot];
+            window.last = lasts[slot];
+            written[slot] = starts[slot];
+            counts[slot] = 0;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal protobuf wire format reader over the readable bytes of a {@link ByteBuf}, for
+ * {@link SparkplugStreamDecoder}. Unlike {@code CodedInputStream} it needs no wrapper objects per
+ * payload, and short strings are interned in a small per-reader table so that the metric names,
+ * property keys and values repeated in every payload decode without allocating.
+ *
+ * <p>Errors are reported as {@link InvalidProtocolBufferException}, like the generated parser.
+ * Instances are reused from payload to payload and must not be shared between threads.
+ */
+final class WireReader {
+    // Strings up to this many UTF-8 bytes are interned
+    static final int MAX_INTERNED_LENGTH = 64;
+    private static final int TABLE_SIZE = 1024;
+    private static final int MAX_GROUP_DEPTH = 100;
+
+    private ByteBuf buffer;
+    private byte[] array;
+    private int arrayOffset;
+    private int position;
+    private int limit;
+
+    // Direct-mapped intern table: a colliding string replaces the previous one
+    private final byte[][] internedBytes = new byte[TABLE_SIZE][];
+    private final String[] internedStrings = new String[TABLE_SIZE];
+    private final byte[] scratch = new byte[MAX_INTERNED_LENGTH];
+
+    /** Starts reading the readable bytes of {@code buffer}, without moving its reader index. */
+    void reset(ByteBuf buffer) {
+        reset(buffer, buffer.readerIndex(), buffer.readableBytes());
+    }
+
+    /** Starts reading {@code length} bytes of {@code buffer} from {@code index}. */
+    void reset(ByteBuf buffer, int index, int length) {
+        this.buffer = buffer;
+        if (buffer.hasArray()) {
+            this.array = buffer.array();
+            this.arrayOffset = buffer.arrayOffset();
+        } else {
+            this.array = null;
+            this.arrayOffset = 0;
+        }
+        this.position = index;
+        this.limit = index + length;
+    }
+
+    /** Index in the buffer of the next byte to read. */
+    int position() {
+        return position;
+    }
+
+    /** Whether all bytes up to the current limit have been read. */
+    boolean isAtEnd() {
+        return position == limit;
+    }
+
+    /** Drops the reference to the current buffer. */
+    void release() {
+        buffer = null;
+        array = null;
+    }
+
+    /** The next tag, or 0 at the current limit. */
+    int readTag() throws InvalidProtocolBufferException {
+        if (position == limit) {
+            return 0;
+        }
+        int tag = readVarint32();
+        if (WireFormat.getTagFieldNumber(tag) == 0) {
+            throw invalid("Protocol message contained an invalid tag (zero)");
+        }
+        return tag;
+    }
+
+    /** Restricts reading to the next {@code length} bytes and returns the limit to restore. */
+    int pushLimit(int length) throws InvalidProtocolBufferException {
+        if (length < 0) {
+            throw invalid("Encountered an embedded string or message which claimed to have negative size");
+        }
+        if (length > limit - position) {
+            throw invalid("Message ended unexpectedly in the middle of a field");
+        }
+        int previous = limit;
+        limit = position + length;
+        return previous;
+    }
+
+    void popLimit(int previous) {
+        limit = previous;
+    }
+
+    /** Reads a length prefix and restricts reading to that many bytes. */
+    int pushLengthLimit() throws InvalidProtocolBufferException {
+        return pushLimit(readVarint32());
+    }
+
+    int readVarint32() throws InvalidProtocolBufferException {
+        // Like CodedInputStream, accept up to ten bytes and keep the low 32 bits
+        return (int) readVarint64();
+    }
+
+    long readVarint64() throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw invalid("Encountered a malformed varint");
+    }
+
+    int readFixed32() throws InvalidProtocolBufferException {
+        ensure(4);
+        int value = (byteAt(position) & 0xFF)
+            | (byteAt(position + 1) & 0xFF) << 8
+            | (byteAt(position + 2) & 0xFF) << 16
+            | (byteAt(position + 3) & 0xFF) << 24;
+        position += 4;
+        return value;
+    }
+
+    long readFixed64() throws InvalidProtocolBufferException {
+        long low = readFixed32() & 0xFFFFFFFFL;
+        long high = readFixed32() & 0xFFFFFFFFL;
+        return low | high << 32;
+    }
+
+    float readFloat() throws InvalidProtocolBufferException {
+        return Float.intBitsToFloat(readFixed32());
+    }
+
+    double readDouble() throws InvalidProtocolBufferException {
+        return Double.longBitsToDouble(readFixed64());
+    }
+
+    boolean readBool() throws InvalidProtocolBufferException {
+        return readVarint64() != 0;
+    }
+
+    /** Reads a length-delimited UTF-8 string, decoded like {@code new String(bytes, UTF_8)}. */
+    String readString() throws InvalidProtocolBufferException {
+        int length = readVarint32();
+        if (length < 0) {
+            throw invalid("Encountered an embedded string or message which claimed to have negative size");
+        }
+        ensure(length);
+        if (length == 0) {
+            return "";
+        }
+        if (length > MAX_INTERNED_LENGTH) {
+            byte[] bytes = new byte[length];
+            copy(bytes, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        copy(scratch, length);
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ scratch[i]) * 0x01000193;
+        }
+        int slot = (hash ^ hash >>> 16) & (TABLE_SIZE - 1);
+        byte[] interned = internedBytes[slot];
+        if (interned != null && interned.length == length && equalsScratch(interned, length)) {
+            return internedStrings[slot];
+        }
+        byte[] bytes = Arrays.copyOf(scratch, length);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        internedStrings[slot] = value;
+        internedBytes[slot] = bytes;
+        return value;
+    }
+
+    void skipBytes(int length) throws InvalidProtocolBufferException {
+        if (length < 0) {
+            throw invalid("Encountered an embedded string or message which claimed to have negative size");
+        }
+        ensure(length);
+        position += length;
+    }
+
+    /** Skips the value of a field that is not decoded. */
+    void skipField(int tag) throws InvalidProtocolBufferException {
+        skipField(tag, 0);
+    }
+
+    private void skipField(int tag, int depth) throws InvalidProtocolBufferException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                readVarint64();
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                skipBytes(8);
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                skipBytes(readVarint32());
+                break;
+            case WireFormat.WIRETYPE_START_GROUP:
+                if (depth >= MAX_GROUP_DEPTH) {
+                    throw invalid("Groups nested too deeply");
+                }
+                int endTag = (WireFormat.getTagFieldNumber(tag) << 3) | WireFormat.WIRETYPE_END_GROUP;
+                int next;
+                while ((next = readTag()) != endTag) {
+                    if (next == 0) {
+                        throw invalid("Message ended unexpectedly in the middle of a field");
+                    }
+                    skipField(next, depth + 1);
+                }
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                skipBytes(4);
+                break;
+            default:
+                // A stray end group, or an invalid wire type
+                throw invalid("Protocol message end-group tag or wire type did not match expected");
+        }
+    }
+
+    private byte readByte() throws InvalidProtocolBufferException {
+        if (position == limit) {
+            throw invalid("Message ended unexpectedly in the middle of a field");
+        }
+        return byteAt(position++);
+    }
+
+    private byte byteAt(int index) {
+        return array != null ? array[arrayOffset + index] : buffer.getByte(index);
+    }
+
+    private void ensure(int length) throws InvalidProtocolBufferException {
+        if (length > limit - position) {
+            throw invalid("Message ended unexpectedly in the middle of a field");
+        }
+    }
+
+    private void copy(byte[] target, int length) {
+        if (array != null) {
+            System.arraycopy(array, arrayOffset + position, target, 0, length);
+        } else {
+            buffer.getBytes(position, target, 0, length);
+        }
+        position += length;
+    }
+
+    private static InvalidProtocolBufferException invalid(String message) {
+        return new InvalidProtocolBufferException(message);
+    }
+
+    private boolean equalsScratch(byte[] interned, int length) {
+        for (int i = 0; i < length; i++) {
+            if (interned[i] != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AliasResolutionTest {
+
+    private static final String NBIRTH = "spBv1.0/Factory/NBIRTH/Edge1";
+    private static final String NDATA = "spBv1.0/Factory/NDATA/Edge1";
+    private static final String NDEATH = "spBv1.0/Factory/NDEATH/Edge1";
+    private static final String DBIRTH = "spBv1.0/Factory/DBIRTH/Edge1/Press1";
+    private static final String DDATA = "spBv1.0/Factory/DDATA/Edge1/Press1";
+    private static final String DDEATH = "spBv1.0/Factory/DDEATH/Edge1/Press1";
+
+    private CustomizedSparkplugPayloadFormatter formatter;
+
+    @Before
+    public void setup() {
+        formatter = new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults());
+    }
+
+    @Test
+    public void testTopicParsing() {
+        SparkplugTopic topic = SparkplugTopic.parse(DDATA);
+        assertNotNull(topic);
+        assertEquals("Factory", topic.getGroupId());
+        assertEquals(SparkplugTopic.MessageType.DDATA, topic.getMessageType());
+        assertEquals("Edge1", topic.getEdgeNodeId());
+        assertEquals("Press1", topic.getDeviceId());
+
+        assertNull(SparkplugTopic.parse(NBIRTH).getDeviceId());
+        assertNull(SparkplugTopic.parse("spBv1.0/Factory/UNKNOWN/Edge1"));
+        assertNull(SparkplugTopic.parse("spBv1.0/STATE/host"));
+        assertNull(SparkplugTopic.parse("plain/topic"));
+        assertNull(SparkplugTopic.parse(null));
+    }
+
+    @Test
+    public void testDeviceDataResolvesAliasesFromDeviceBirth() throws Exception {
+        formatter.format(NBIRTH, encode(payload(named("Uptime", 1, MetricDataType.Int64, 10L))));
+        List<Message> birth = formatter.format(DBIRTH, encode(payload(
+            named("Temperature", 2, MetricDataType.Double, 20.0),
+            named("Running", 3, MetricDataType.Boolean, true))));
+        assertEquals(2, birth.size());
+
+        List<Message> data = formatter.format(DDATA, encode(payload(
+            aliased(2, MetricDataType.Double, 21.5),
+            aliased(3, MetricDataType.Boolean, false))));
+
+        assertEquals(2, data.size());
+        assertEquals("root.mqtt.sparkplugb.factory.edge1.press1", data.get(0).getDevice());
+        assertEquals("temperature", data.get(0).getMeasurements().get(0));
+        assertEquals("21.500000", data.get(0).getValues().get(0));
+        assertEquals("running", data.get(1).getMeasurements().get(0));
+        assertEquals("false", data.get(1).getValues().get(0));
+    }
+
+    @Test
+    public void testNodeDataResolvesAliasesFromNodeBirth() throws Exception {
+        formatter.format(NBIRTH, encode(payload(named("Uptime", 1, MetricDataType.Int64, 10L))));
+
+        List<Message> data = formatter.format(NDATA, encode(payload(aliased(1, MetricDataType.Int64, 11L))));
+
+        assertEquals(1, data.size());
+        assertEquals("root.mqtt.sparkplugb.factory.edge1", data.get(0).getDevice());
+        assertEquals("uptime", data.get(0).getMeasurements().get(0));
+        assertEquals("11", data.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void testBirthPropertiesDefineDevicePathForAliases() throws Exception {
+        PropertySet properties = new PropertySet();
+        properties.put("group", new PropertyValue<>(PropertyDataType.String, "Plant"));
+        properties.put("edge", new PropertyValue<>(PropertyDataType.String, "Gateway"));
+        properties.put("device", new PropertyValue<>(PropertyDataType.String, "Modbus7"));
+        formatter.format(DBIRTH, encode(payload(new Metric.MetricBuilder("Pressure", MetricDataType.Float, 1.0f)
+            .alias(9L).properties(properties).createMetric())));
+
+        List<Message> data = formatter.format(DDATA, encode(payload(aliased(9, MetricDataType.Float, 2.5f))));
+
+        assertEquals(1, data.size());
+        assertEquals("root.mqtt.sparkplugb.plant.gateway.modbus7", data.get(0).getDevice());
+        assertEquals("pressure", data.get(0).getMeasurements().get(0));
+    }
+
+    @Test
+    public void testUnknownAliasIsDropped() throws Exception {
+        assertTrue(formatter.format(DDATA, encode(payload(aliased(42, MetricDataType.Double, 1.0)))).isEmpty());
+    }
+
+    @Test
+    public void testDeathInvalidatesAliases() throws Exception {
+        formatter.format(NBIRTH, encode(payload(named("Uptime", 1, MetricDataType.Int64, 10L))));
+        formatter.format(DBIRTH, encode(payload(named("Temperature", 2, MetricDataType.Double, 20.0))));
+
+        formatter.format(DDEATH, encode(payload()));
+        assertTrue(formatter.format(DDATA, encode(payload(aliased(2, MetricDataType.Double, 1.0)))).isEmpty());
+        assertEquals(1, formatter.format(NDATA, encode(payload(aliased(1, MetricDataType.Int64, 12L)))).size());
+
+        formatter.format(NDEATH, encode(payload(named("bdSeq", null, MetricDataType.Int64, 0L))));
+        assertTrue(formatter.format(NDATA, encode(payload(aliased(1, MetricDataType.Int64, 13L)))).isEmpty());
+    }
+
+    @Test
+    public void testRebirthReplacesAliases() throws Exception {
+        formatter.format(NBIRTH, encode(payload(named("Uptime", 1, MetricDataType.Int64, 10L))));
+        formatter.format(NBIRTH, encode(payload(named("Load", 1, MetricDataType.Int64, 10L))));
+
+        List<Message> data = formatter.format(NDATA, encode(payload(aliased(1, MetricDataType.Int64, 5L))));
+
+        assertEquals("load", data.get(0).getMeasurements().get(0));
+    }
+
+    @Test
+    public void testAliasesAreScopedToEdgeNode() throws Exception {
+        formatter.format(NBIRTH, encode(payload(named("Uptime", 1, MetricDataType.Int64, 10L))));
+
+        List<Message> data = formatter.format("spBv1.0/Factory/NDATA/Edge2",
+            encode(payload(aliased(1, MetricDataType.Int64, 5L))));
+
+        assertTrue(data.isEmpty());
+    }
+
+    @Test
+    public void testAliasesWithoutTopicAreNotResolvedByDefault() throws Exception {
+        // Two edge nodes numbering their aliases from 0, told apart only by the topic IoTDB does not pass
+        formatter.format(encode(payload(named("Temperature", 0, MetricDataType.Double, 20.0))));
+        formatter.format(encode(payload(named("Speed", 0, MetricDataType.Double, 1500.0))));
+
+        assertTrue(formatter.format(encode(payload(aliased(0, MetricDataType.Double, 22.0)))).isEmpty());
+        assertEquals(1, formatter.getStats().getUnknownAliases());
+    }
+
+    @Test
+    public void testAliasesWithoutTopic() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.UNSCOPED_ALIASES, "true");
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+        formatter.format(encode(payload(named("Temperature", 5, MetricDataType.Double, 20.0))));
+
+        List<Message> data = formatter.format(encode(payload(aliased(5, MetricDataType.Double, 22.0))));
+
+        assertEquals(1, data.size());
+        assertEquals("temperature", data.get(0).getMeasurements().get(0));
+        assertEquals("root.mqtt.sparkplugb", data.get(0).getDevice());
+    }
+
+    @Test
+    public void testTableLookup() {
+        List<AliasEntry> entries = new ArrayList<>();
+        for (long alias = 0; alias < 1000; alias++) {
+            entries.add(new AliasEntry(alias * 7919, "m" + alias, 10, null, alias % 2 == 0 ? "even" : null));
+        }
+        AliasTable table = AliasTable.EMPTY.with(entries);
+
+        assertEquals(1000, table.size());
+        for (long alias = 0; alias < 1000; alias++) {
+            assertEquals("m" + alias, table.get(alias * 7919).getName());
+        }
+        assertNull(table.get(1));
+
+        AliasTable withoutEven = table.withoutDevice("even");
+        assertEquals(500, withoutEven.size());
+        assertNull(withoutEven.get(0));
+        assertNotNull(withoutEven.get(7919));
+    }
+
+    private static Metric named(String name, Integer alias, MetricDataType type, Object value) throws Exception {
+        Metric.MetricBuilder builder = new Metric.MetricBuilder(name, type, value);
+        if (alias != null) {
+            builder.alias(alias.longValue());
+        }
+        return builder.createMetric();
+    }
+
+    private static Metric aliased(long alias, MetricDataType type, Object value) throws Exception {
+        return new Metric.MetricBuilder(alias, type, value).createMetric();
+    }
+
+    private static SparkplugBPayload payload(Metric... metrics) {
+        SparkplugBPayload payload = new SparkplugBPayload(
+            new Date(), new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null);
+        for (Metric metric : metrics) {
+            payload.addMetric(metric);
+        }
+        return payload;
+    }
+
+    private static io.netty.buffer.ByteBuf encode(SparkplugBPayload payload) throws Exception {
+        return Unpooled.wrappedBuffer(new SparkplugBPayloadEncoder().getBytes(payload, false));
+    }
+}
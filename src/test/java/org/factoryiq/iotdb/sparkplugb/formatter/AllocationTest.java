@@ -0,0 +1,165 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guards the allocation budget of {@code format()}. Per metric, IoTDB keeps the message, its
+ * single-element lists, the boxed timestamp, the value and the device path; the budgets leave
+ * room for those plus a margin, so reintroducing per-metric formatting, regex or collection
+ * garbage fails these tests. The generated decoder is measured against a baseline run that only
+ * parses the payload, so the budget covers the formatter rather than protobuf-java's objects.
+ */
+public class AllocationTest {
+    private static final int METRICS = 100;
+    private static final int ROUNDS = 2000;
+    // Bytes per metric; about 350 was measured on JDK 17 with compressed oops
+    private static final long STREAMING_BUDGET = 768;
+    // Bytes per metric beyond the baseline parse; also decodes the names the parse left as bytes
+    private static final long GENERATED_BUDGET = 1024;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setup() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testStreamingDecoderBudget() throws Exception {
+        assertBudget(FormatterConfig.Decoder.STREAMING, true, STREAMING_BUDGET);
+        assertBudget(FormatterConfig.Decoder.STREAMING, false, STREAMING_BUDGET);
+    }
+
+    @Test
+    public void testGeneratedDecoderBudget() throws Exception {
+        // The generated parser materializes the whole payload as objects first; leave those out
+        long parse = parseBytesPerMetric();
+        assertBudget(FormatterConfig.Decoder.GENERATED, true, parse, GENERATED_BUDGET);
+        assertBudget(FormatterConfig.Decoder.GENERATED, false, parse, GENERATED_BUDGET);
+    }
+
+    private void assertBudget(FormatterConfig.Decoder decoder, boolean typed, long budget) throws Exception {
+        assertBudget(decoder, typed, 0, budget);
+    }
+
+    private void assertBudget(FormatterConfig.Decoder decoder, boolean typed, long baseline, long budget)
+        throws Exception {
+        long bytes = bytesPerMetric(decoder, typed) - baseline;
+        assertTrue(decoder + " decoder with typed_values=" + typed + " allocated " + bytes
+            + " bytes per metric beyond a baseline of " + baseline + ", budget is " + budget, bytes <= budget);
+    }
+
+    private long bytesPerMetric(FormatterConfig.Decoder decoder, boolean typed) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.DECODER, decoder.name());
+        properties.setProperty(FormatterConfig.TYPED_VALUES, String.valueOf(typed));
+        final CustomizedSparkplugPayloadFormatter formatter =
+            new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        return bytesPerMetric(new Round() {
+            @Override
+            public int run(ByteBuf payload) {
+                return formatter.format(payload).size();
+            }
+        });
+    }
+
+    private long parseBytesPerMetric() throws Exception {
+        // What format() pays before converting anything: the same zero-copy parse
+        return bytesPerMetric(new Round() {
+            @Override
+            public int run(ByteBuf payload) throws Exception {
+                return SparkplugBProto.Payload.parseFrom(ByteBufCodedInput.newInstance(payload)).getMetricsCount();
+            }
+        });
+    }
+
+    private long bytesPerMetric(Round round) throws Exception {
+        ByteBuf payload = payload();
+
+        // Warm up so that caches are filled and the JIT has compiled the hot path
+        for (int i = 0; i < ROUNDS; i++) {
+            payload.readerIndex(0);
+            assertEquals(METRICS, round.run(payload));
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ROUNDS; i++) {
+            payload.readerIndex(0);
+            int count = round.run(payload);
+            if (count != METRICS) {
+                fail("Unexpected message count " + count);
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        return allocated / ((long) ROUNDS * METRICS);
+    }
+
+    private interface Round {
+        /** Processes the payload once and returns the number of metrics or messages it produced. */
+        int run(ByteBuf payload) throws Exception;
+    }
+
+    private static ByteBuf payload() throws Exception {
+        MetricDataType[] types = {MetricDataType.Double, MetricDataType.Float, MetricDataType.Int32,
+            MetricDataType.Int64, MetricDataType.Boolean, MetricDataType.String};
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(1700000000000L), new ArrayList<Metric>(), 0L, null, null);
+        for (int i = 0; i < METRICS; i++) {
+            MetricDataType type = types[i % types.length];
+            Object value;
+            switch (i % types.length) {
+                case 0:
+                    value = 1000.0 / (i + 3);
+                    break;
+                case 1:
+                    value = 100.0f / (i + 3);
+                    break;
+                case 2:
+                    value = i * 1000;
+                    break;
+                case 3:
+                    value = 1L << 40 | i;
+                    break;
+                case 4:
+                    value = i % 4 == 0;
+                    break;
+                default:
+                    value = "Running";
+                    break;
+            }
+            Metric metric = new Metric.MetricBuilder("Line/" + type + " Value " + i, type, value)
+                .timestamp(new Date(1700000000000L)).createMetric();
+            metric.setProperties(new PropertySet.PropertySetBuilder()
+                .addProperty("group", new PropertyValue(PropertyDataType.String, "Plant1"))
+                .addProperty("edge", new PropertyValue(PropertyDataType.String, "Line1"))
+                .addProperty("device", new PropertyValue(PropertyDataType.String, "Press" + i % 4))
+                .addProperty("engUnit", new PropertyValue(PropertyDataType.String, "bar"))
+                .createPropertySet());
+            payload.addMetric(metric);
+        }
+        return Unpooled.wrappedBuffer(new SparkplugBPayloadEncoder().getBytes(payload, false));
+    }
+}
@@ -0,0 +1,191 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestMessages.assertMessagesEqual;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the same payloads through heap, direct and composite buffers and checks that the
+ * decoded messages do not depend on how the bytes are laid out in memory.
+ */
+@RunWith(Parameterized.class)
+public class ByteBufDecodingTest {
+
+    enum BufferKind { HEAP, HEAP_WITH_OFFSET, DIRECT, COMPOSITE_HEAP, COMPOSITE_DIRECT, COMPOSITE_MIXED }
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> kinds() {
+        List<Object[]> kinds = new ArrayList<>();
+        for (BufferKind kind : BufferKind.values()) {
+            kinds.add(new Object[]{kind});
+        }
+        return kinds;
+    }
+
+    private final BufferKind kind;
+    private final List<ByteBuf> allocated = new ArrayList<>();
+    private CustomizedSparkplugPayloadFormatter formatter;
+
+    public ByteBufDecodingTest(BufferKind kind) {
+        this.kind = kind;
+    }
+
+    @Before
+    public void setup() {
+        formatter = new CustomizedSparkplugPayloadFormatter();
+    }
+
+    @After
+    public void release() {
+        formatter.close();
+        for (ByteBuf buf : allocated) {
+            if (buf.refCnt() > 0) {
+                buf.release();
+            }
+        }
+    }
+
+    @Test
+    public void testDecodesSameMessagesAsHeapArray() throws Exception {
+        byte[] bytes = encode(samplePayload(20));
+
+        List<Message> expected = formatter.format(Unpooled.wrappedBuffer(bytes));
+        List<Message> actual = formatter.format(wrap(bytes));
+
+        assertEquals(20, expected.size());
+        assertMessagesEqual(expected, actual);
+    }
+
+    @Test
+    public void testConsumesReadableBytes() throws Exception {
+        ByteBuf buf = wrap(encode(samplePayload(3)));
+
+        assertEquals(3, formatter.format(buf).size());
+        assertFalse("Payload should be fully consumed", buf.isReadable());
+    }
+
+    @Test
+    public void testDecodesDeviceProperties() throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(
+            new Date(), new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null);
+        PropertySet properties = new PropertySet();
+        properties.put("group", new PropertyValue<>(PropertyDataType.String, "FactoryIQ"));
+        properties.put("edge", new PropertyValue<>(PropertyDataType.String, "Edge123"));
+        properties.put("device", new PropertyValue<>(PropertyDataType.String, "Modbus123"));
+        payload.addMetric(new Metric.MetricBuilder("Temperature", MetricDataType.Double, 21.25)
+            .properties(properties)
+            .createMetric());
+
+        List<Message> messages = formatter.format(wrap(encode(payload)));
+
+        assertEquals(1, messages.size());
+        assertEquals("root.mqtt.sparkplugb.factory_iq.edge123.modbus123", messages.get(0).getDevice());
+        assertEquals("21.250000", messages.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void testCorruptPayloadReturnsEmptyList() {
+        byte[] bytes = new byte[64];
+        Arrays.fill(bytes, (byte) 0xFF);
+
+        assertTrue(formatter.format(wrap(bytes)).isEmpty());
+    }
+
+    private ByteBuf wrap(byte[] bytes) {
+        ByteBuf buf;
+        switch (kind) {
+            case HEAP:
+                buf = Unpooled.buffer(bytes.length).writeBytes(bytes);
+                break;
+            case HEAP_WITH_OFFSET:
+                buf = Unpooled.buffer(bytes.length + 16).writeZero(7).writeBytes(bytes).writeZero(9);
+                buf.readerIndex(7);
+                buf = buf.slice(7, bytes.length);
+                break;
+            case DIRECT:
+                buf = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+                break;
+            case COMPOSITE_HEAP:
+                buf = composite(bytes, false, false);
+                break;
+            case COMPOSITE_DIRECT:
+                buf = composite(bytes, true, true);
+                break;
+            case COMPOSITE_MIXED:
+                buf = composite(bytes, true, false);
+                break;
+            default:
+                throw new IllegalStateException(kind.name());
+        }
+        allocated.add(buf);
+        return buf;
+    }
+
+    // Splits the payload at uneven offsets so varints and strings straddle component boundaries
+    private static ByteBuf composite(byte[] bytes, boolean firstDirect, boolean restDirect) {
+        CompositeByteBuf composite = Unpooled.compositeBuffer();
+        int offset = 0;
+        int chunk = 5;
+        boolean direct = firstDirect;
+        while (offset < bytes.length) {
+            int length = Math.min(chunk, bytes.length - offset);
+            ByteBuf part = direct ? Unpooled.directBuffer(length) : Unpooled.buffer(length);
+            part.writeBytes(bytes, offset, length);
+            composite.addComponent(true, part);
+            offset += length;
+            chunk += 3;
+            direct = restDirect;
+        }
+        return composite;
+    }
+
+    private static SparkplugBPayload samplePayload(int metricCount) throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(
+            new Date(), new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null);
+        for (int i = 0; i < metricCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    payload.addMetric(new Metric.MetricBuilder("Temperature" + i, MetricDataType.Float, 20.5f + i).createMetric());
+                    break;
+                case 1:
+                    payload.addMetric(new Metric.MetricBuilder("Counter" + i, MetricDataType.Int64, 1000L * i).createMetric());
+                    break;
+                case 2:
+                    payload.addMetric(new Metric.MetricBuilder("Running" + i, MetricDataType.Boolean, i % 3 == 0).createMetric());
+                    break;
+                default:
+                    payload.addMetric(new Metric.MetricBuilder("State" + i, MetricDataType.String, "Mode " + i).createMetric());
+                    break;
+            }
+        }
+        return payload;
+    }
+
+    private static byte[] encode(SparkplugBPayload payload) throws Exception {
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+}
@@ -3,6 +3,7 @@ package org.factoryiq.iotdb.sparkplugb.formatter;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
 import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
 import org.eclipse.tahu.message.model.Metric;
 import org.eclipse.tahu.message.model.MetricDataType;
@@ -10,6 +11,8 @@ import org.eclipse.tahu.message.model.SparkplugBPayload;
 import org.eclipse.tahu.message.model.PropertySet;
 import org.eclipse.tahu.message.model.PropertyValue;
 import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -17,6 +20,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
 import java.math.BigInteger;
 
 import static org.junit.Assert.*;
@@ -29,6 +34,11 @@ public class CustomizedSparkplugPayloadFormatterTest {
         formatter = new CustomizedSparkplugPayloadFormatter();
     }
 
+    @After
+    public void close() {
+        formatter.close();
+    }
+
     @Test
     public void testInvalidTopic() {
         ByteBuf payload = Unpooled.wrappedBuffer(new byte[]{1, 2, 3});
@@ -370,4 +380,210 @@ public class CustomizedSparkplugPayloadFormatterTest {
         assertEquals("25.500000", messages.get(0).getValues().get(0));
         assertEquals("temperature", messages.get(0).getMeasurements().get(0));
     }
-} 
\ No newline at end of file
+
+    @Test
+    public void testAlignedBatchingGroupsByDeviceAndTimestamp() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.ALIGNED_BATCHING, "true");
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        Date timestamp = new Date(1700000000000L);
+        Date later = new Date(1700000001000L);
+        SparkplugBPayload payload = new SparkplugBPayload(
+            timestamp, new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+
+        payload.addMetric(new Metric.MetricBuilder("Temperature", MetricDataType.Float, 23.5f)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Humidity", MetricDataType.Int32, 45)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Pressure", MetricDataType.Double, 1.5)
+            .timestamp(timestamp).properties(deviceProperties("Line2")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Status", MetricDataType.Boolean, true)
+            .timestamp(later).properties(deviceProperties("Line1")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Humidity", MetricDataType.Int32, 46)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+        List<Message> messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+
+        assertEquals(3, messages.size());
+
+        Message line1 = messages.get(0);
+        assertEquals("root.mqtt.sparkplugb.factory.edge1.line1", line1.getDevice());
+        assertEquals(Long.valueOf(1700000000000L), line1.getTimestamp());
+        assertEquals(Arrays.asList("temperature", "humidity"), line1.getMeasurements());
+        assertEquals(Arrays.asList("23.500000", "46"), line1.getValues());
+
+        Message line2 = messages.get(1);
+        assertEquals("root.mqtt.sparkplugb.factory.edge1.line2", line2.getDevice());
+        assertEquals(Arrays.asList("pressure"), line2.getMeasurements());
+
+        Message line1Later = messages.get(2);
+        assertEquals(Long.valueOf(1700000001000L), line1Later.getTimestamp());
+        assertEquals(Arrays.asList("status"), line1Later.getMeasurements());
+        assertEquals(Arrays.asList("true"), line1Later.getValues());
+    }
+
+    @Test
+    public void testBatchingDisabledByDefault() throws Exception {
+        Date timestamp = new Date(1700000000000L);
+        SparkplugBPayload payload = new SparkplugBPayload(
+            timestamp, new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+        payload.addMetric(new Metric.MetricBuilder("Temperature", MetricDataType.Float, 23.5f)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Humidity", MetricDataType.Int32, 45)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+        List<Message> messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+
+        assertEquals(2, messages.size());
+    }
+
+    @Test
+    public void testMetricsOfOneDeviceShareThePath() throws Exception {
+        Date timestamp = new Date(1700000000000L);
+        SparkplugBPayload payload = new SparkplugBPayload(
+            timestamp, new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+        payload.addMetric(new Metric.MetricBuilder("Temperature", MetricDataType.Float, 23.5f)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Humidity", MetricDataType.Int32, 45)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+
+        List<Message> first = formatter.format(Unpooled.wrappedBuffer(bytes));
+        List<Message> second = formatter.format(Unpooled.wrappedBuffer(bytes));
+
+        assertEquals("root.mqtt.sparkplugb.factory.edge1.line1", first.get(0).getDevice());
+        assertSame(first.get(0).getDevice(), first.get(1).getDevice());
+        assertSame(first.get(0).getDevice(), second.get(1).getDevice());
+        assertEquals(1, formatter.getStats().getDevicePathCacheMisses());
+        assertEquals(3, formatter.getStats().getDevicePathCacheHits());
+    }
+
+    @Test
+    public void testConfiguredPropertyKeysAndPathTemplate() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.GROUP_PROPERTY_KEYS, "Site, Plant");
+        config.setProperty(FormatterConfig.DEVICE_PROPERTY_KEYS, "Machine");
+        config.setProperty(FormatterConfig.DEVICE_PATH_TEMPLATE, "root.plants.{group}.machine_{device}");
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        Date timestamp = new Date(1700000000000L);
+        SparkplugBPayload payload = new SparkplugBPayload(
+            timestamp, new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+        PropertySet properties = new PropertySet();
+        properties.put("Plant", new PropertyValue<>(PropertyDataType.String, "Zurich"));
+        properties.put("Machine", new PropertyValue<>(PropertyDataType.String, "Press 4"));
+        payload.addMetric(new Metric.MetricBuilder("Temperature", MetricDataType.Float, 23.5f)
+            .timestamp(timestamp).properties(properties).createMetric());
+        // The default keys no longer name the device
+        payload.addMetric(new Metric.MetricBuilder("Humidity", MetricDataType.Int32, 45)
+            .timestamp(timestamp).properties(deviceProperties("Line1")).createMetric());
+
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+        List<Message> messages = formatter.format("spBv1.0/Factory/DDATA/Edge1/Press1", Unpooled.wrappedBuffer(bytes));
+
+        assertEquals(2, messages.size());
+        assertEquals("root.plants.zurich.machine_press_4", messages.get(0).getDevice());
+        assertEquals("root.plants.factory.machine_press1", messages.get(1).getDevice());
+    }
+
+    private static PropertySet deviceProperties(String device) throws Exception {
+        PropertySet properties = new PropertySet();
+        properties.put("group", new PropertyValue<>(PropertyDataType.String, "Factory"));
+        properties.put("edge", new PropertyValue<>(PropertyDataType.String, "Edge1"));
+        properties.put("device", new PropertyValue<>(PropertyDataType.String, device));
+        return properties;
+    }
+
+    @Test
+    public void testTypedValues() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        Date timestamp = new Date();
+        SparkplugBPayload payload = new SparkplugBPayload(
+            timestamp, new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+        payload.addMetric(new Metric.MetricBuilder("Int8", MetricDataType.Int8, (byte) -1).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Int32", MetricDataType.Int32, 3).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Int64", MetricDataType.Int64, 4L).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("UInt8", MetricDataType.UInt8, (short) 200).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("UInt16", MetricDataType.UInt16, 60000).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("UInt32", MetricDataType.UInt32, 4000000000L).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("UInt64", MetricDataType.UInt64, BigInteger.valueOf(8)).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Float", MetricDataType.Float, 0.1f).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Double", MetricDataType.Double, 0.123456789012).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Boolean", MetricDataType.Boolean, true).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("String", MetricDataType.String, "two words").createMetric());
+        payload.addMetric(new Metric.MetricBuilder("DateTime", MetricDataType.DateTime, new Date(1700000000000L)).createMetric());
+
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+        List<Message> messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+
+        assertEquals(12, messages.size());
+        assertTyped(messages.get(0), TSDataType.INT32, "-1");
+        assertTyped(messages.get(1), TSDataType.INT32, "3");
+        assertTyped(messages.get(2), TSDataType.INT64, "4");
+        assertTyped(messages.get(3), TSDataType.INT32, "200");
+        assertTyped(messages.get(4), TSDataType.INT32, "60000");
+        assertTyped(messages.get(5), TSDataType.INT64, "4000000000");
+        assertTyped(messages.get(6), TSDataType.INT64, "8");
+        assertTyped(messages.get(7), TSDataType.FLOAT, "0.1");
+        assertTyped(messages.get(8), TSDataType.DOUBLE, "0.123456789012");
+        assertTyped(messages.get(9), TSDataType.BOOLEAN, "true");
+        assertTyped(messages.get(10), TSDataType.TEXT, "two_words");
+        assertTyped(messages.get(11), TSDataType.INT64, "1700000000000");
+    }
+
+    @Test
+    public void testTypedValuesSkipNullNumbers() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        SparkplugBPayload payload = new SparkplugBPayload(
+            new Date(), new ArrayList<Metric>(), 0L, UUID.randomUUID().toString(), null
+        );
+        payload.addMetric(new Metric.MetricBuilder("Missing", MetricDataType.Double, null).createMetric());
+        payload.addMetric(new Metric.MetricBuilder("Present", MetricDataType.Double, 1.5).createMetric());
+
+        byte[] bytes = new SparkplugBPayloadEncoder().getBytes(payload, false);
+        List<Message> messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+
+        assertEquals(1, messages.size());
+        assertTyped(messages.get(0), TSDataType.DOUBLE, "1.5");
+    }
+
+    @Test
+    public void testUInt64BeyondInt64() throws Exception {
+        byte[] bytes = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(1700000000000L)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Counter").setDatatype(8).setLongValue(0xFFFFFFFFFFFFFFFFL))
+            .build().toByteArray();
+
+        // Text values are written unsigned
+        List<Message> messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+        assertEquals(1, messages.size());
+        assertEquals(Arrays.asList("18446744073709551615"), messages.get(0).getValues());
+
+        // An INT64 column cannot hold it, so typed values drop it rather than write it negative
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        CustomizedSparkplugPayloadFormatter typed = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+        assertTrue(typed.format(Unpooled.wrappedBuffer(bytes)).isEmpty());
+        assertEquals(1, typed.getStats().getConversionErrors());
+    }
+
+    private static void assertTyped(Message message, TSDataType dataType, String value) {
+        assertEquals(Arrays.asList(dataType), message.getDataTypes());
+        assertEquals(Arrays.asList(value), message.getValues());
+    }
+}
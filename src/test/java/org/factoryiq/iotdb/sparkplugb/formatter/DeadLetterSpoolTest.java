@@ -0,0 +1,182 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterSpoolTest {
+
+    private static final long TIMESTAMP = 1700000000000L;
+    private static final String TOPIC = "spBv1.0/Factory/DDATA/Edge1/Press1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntriesRoundTrip() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("dead-letters.bin");
+        try (DeadLetterSpool spool = new DeadLetterSpool(file, DeadLetterSpool.MIN_BYTES, 16)) {
+            // Only the readable bytes are kept
+            assertTrue(spool.offer(SparkplugTopic.parse(TOPIC), Unpooled.wrappedBuffer(new byte[] {9, 1, 2, 3}), 1, 3,
+                DeadLetterSpool.Reason.PARSE_FAILURE, new IOException("Truncated message")));
+            assertTrue(spool.offer(null, Unpooled.wrappedBuffer(new byte[0]), 0, 0,
+                DeadLetterSpool.Reason.METRIC_FAILURE, null));
+        }
+        List<DeadLetterSpool.Entry> entries = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+
+        int count = DeadLetterSpool.read(file, entry -> {
+            entries.add(entry);
+            payloads.add(ByteBufUtil.getBytes(entry.getPayload()));
+        });
+
+        assertEquals(2, count);
+        assertEquals(1, entries.get(0).getSeq());
+        assertEquals(DeadLetterSpool.Reason.PARSE_FAILURE, entries.get(0).getReason());
+        assertEquals(TOPIC, entries.get(0).getTopic());
+        assertEquals("java.io.IOException: Truncated message", entries.get(0).getDetail());
+        assertArrayEquals(new byte[] {1, 2, 3}, payloads.get(0));
+        assertTrue(Math.abs(entries.get(0).getTimestamp() - System.currentTimeMillis()) < 60000);
+        assertEquals(2, entries.get(1).getSeq());
+        assertEquals(DeadLetterSpool.Reason.METRIC_FAILURE, entries.get(1).getReason());
+        assertNull(entries.get(1).getTopic());
+        assertEquals("", entries.get(1).getDetail());
+        assertEquals(0, payloads.get(1).length);
+    }
+
+    @Test
+    public void testRingKeepsNewestEntries() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ring.bin");
+        int total = 500;
+        try (DeadLetterSpool spool = new DeadLetterSpool(file, DeadLetterSpool.MIN_BYTES, total)) {
+            for (int i = 0; i < total; i++) {
+                // Sizes vary so that the writer wraps at different offsets
+                byte[] payload = new byte[500 + i % 7 * 100];
+                Arrays.fill(payload, (byte) i);
+                spool.offer(SparkplugTopic.parse(TOPIC), Unpooled.wrappedBuffer(payload), 0, payload.length,
+                    DeadLetterSpool.Reason.PARSE_FAILURE, null);
+            }
+            // Larger than the file
+            assertFalse(spool.offer(null, Unpooled.wrappedBuffer(new byte[DeadLetterSpool.MIN_BYTES]), 0,
+                DeadLetterSpool.MIN_BYTES, DeadLetterSpool.Reason.PARSE_FAILURE, null));
+            assertEquals(1, spool.droppedCount());
+        }
+        List<Long> seqs = new ArrayList<>();
+
+        DeadLetterSpool.read(file, entry -> {
+            seqs.add(entry.getSeq());
+            int i = (int) entry.getSeq() - 1;
+            assertEquals(500 + i % 7 * 100, entry.getPayload().readableBytes());
+            assertEquals((byte) i, entry.getPayload().getByte(entry.getPayload().readableBytes() - 1));
+        });
+
+        assertTrue(seqs.size() > 50);
+        assertTrue(seqs.size() < total);
+        for (int i = 0; i < seqs.size(); i++) {
+            assertEquals(total - seqs.size() + i + 1, (long) seqs.get(i));
+        }
+    }
+
+    @Test
+    public void testReopenAppends() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("reopen.bin");
+        for (int run = 0; run < 2; run++) {
+            try (DeadLetterSpool spool = new DeadLetterSpool(file, DeadLetterSpool.MIN_BYTES, 16)) {
+                spool.offer(null, Unpooled.wrappedBuffer(new byte[] {(byte) run}), 0, 1,
+                    DeadLetterSpool.Reason.PARSE_FAILURE, null);
+            }
+        }
+        List<Long> seqs = new ArrayList<>();
+
+        DeadLetterSpool.read(file, entry -> seqs.add(entry.getSeq()));
+
+        assertEquals(Arrays.asList(1L, 2L), seqs);
+
+        // Another size starts over
+        new DeadLetterSpool(file, 2 * DeadLetterSpool.MIN_BYTES, 16).close();
+        assertEquals(0, DeadLetterSpool.read(file, entry -> fail()));
+    }
+
+    @Test
+    public void testForeignFileIsNotOverwritten() throws Exception {
+        Path file = folder.newFile("notes.txt").toPath();
+        byte[] notes = "Nothing to see here, just some notes".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, notes);
+
+        try {
+            new DeadLetterSpool(file, DeadLetterSpool.MIN_BYTES, 16);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("is not a dead-letter spool"));
+        }
+        assertArrayEquals(notes, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void testFormatterSpoolsFailedPayloads() throws Exception {
+        byte[] garbage = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        byte[] partlyBroken = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(TIMESTAMP)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Broken").setTimestamp(TIMESTAMP).setDatatype(24)
+                .setBytesValue(com.google.protobuf.ByteString.copyFrom(new byte[] {1, 2, 3})))
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Temperature").setTimestamp(TIMESTAMP).setDatatype(10).setDoubleValue(20.5))
+            .build().toByteArray();
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Path file = folder.getRoot().toPath().resolve(decoder.name() + ".bin");
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            config.setProperty(FormatterConfig.DEAD_LETTER_FILE, file.toString());
+            CustomizedSparkplugPayloadFormatter formatter =
+                new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+            assertTrue(formatter.format(TOPIC, Unpooled.wrappedBuffer(garbage)).isEmpty());
+            // The metrics that convert are still written
+            assertEquals(decoder.name(), 1, formatter.format(TOPIC, Unpooled.wrappedBuffer(partlyBroken)).size());
+            formatter.close();
+            assertEquals(2, formatter.getStats().getDeadLetters());
+
+            List<DeadLetterSpool.Reason> reasons = new ArrayList<>();
+            List<byte[]> payloads = new ArrayList<>();
+            DeadLetterSpool.read(file, entry -> {
+                reasons.add(entry.getReason());
+                payloads.add(ByteBufUtil.getBytes(entry.getPayload()));
+                assertEquals(TOPIC, entry.getTopic());
+            });
+            assertEquals(Arrays.asList(DeadLetterSpool.Reason.PARSE_FAILURE, DeadLetterSpool.Reason.METRIC_FAILURE),
+                reasons);
+            assertArrayEquals(garbage, payloads.get(0));
+            assertArrayEquals(partlyBroken, payloads.get(1));
+
+            // Replaying fails the same way, without spooling again
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            CustomizedSparkplugPayloadFormatter replayer =
+                new CustomizedSparkplugPayloadFormatter(new FormatterConfig(new Properties()));
+            assertEquals(2, DeadLetterTool.replay(replayer, file, new PrintStream(output, true, "UTF-8")));
+            assertTrue(output.toString("UTF-8").contains("2 METRIC_FAILURE: 1 messages, failed again"));
+
+            Path capture = folder.getRoot().toPath().resolve(decoder.name() + ".capture");
+            assertEquals(2, DeadLetterTool.export(file, capture));
+            assertEquals(2, CaptureFile.read(capture, (topic, payload) -> assertEquals(TOPIC, topic)));
+        }
+        assertNull(new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults()).getDeadLetters());
+    }
+}
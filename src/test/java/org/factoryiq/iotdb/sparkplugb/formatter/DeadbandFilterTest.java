@@ -0,0 +1,147 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.metric;
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.publish;
+import static org.junit.Assert.*;
+
+public class DeadbandFilterTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+
+    @Test
+    public void testAbsoluteDeadband() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 0.5, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "temperature", 1000, 20.0));
+        assertFalse(filter.accept(DEVICE, "temperature", 2000, 20.4));
+        assertFalse(filter.accept(DEVICE, "temperature", 3000, 19.5));
+        assertTrue(filter.accept(DEVICE, "temperature", 4000, 20.6));
+        // Compared against the last written value, so slow drift is still reported
+        assertFalse(filter.accept(DEVICE, "temperature", 5000, 21.0));
+        assertTrue(filter.accept(DEVICE, "temperature", 6000, 21.2));
+        assertEquals(3, filter.droppedCount());
+    }
+
+    @Test
+    public void testPercentDeadband() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.PERCENT, 1.0, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "pressure", 1000, 200.0));
+        assertFalse(filter.accept(DEVICE, "pressure", 2000, 201.9));
+        assertTrue(filter.accept(DEVICE, "pressure", 3000, 202.5));
+    }
+
+    @Test
+    public void testSeriesAreIndependent() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 0.0, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "a", 1000, 1.0));
+        assertTrue(filter.accept(DEVICE, "b", 1000, 1.0));
+        assertTrue(filter.accept("root.mqtt.sparkplugb.other", "a", 1000, 1.0));
+        assertFalse(filter.accept(DEVICE, "a", 2000, 1.0));
+    }
+
+    @Test
+    public void testHeartbeatAfterMaximumSilence() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 1.0, 10000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "level", 0, 5.0));
+        for (long t = 1000; t < 10000; t += 1000) {
+            assertFalse(filter.accept(DEVICE, "level", t, 5.0));
+        }
+        assertTrue(filter.accept(DEVICE, "level", 10000, 5.0));
+        assertFalse(filter.accept(DEVICE, "level", 11000, 5.0));
+        assertEquals(1, filter.heartbeatCount());
+    }
+
+    @Test
+    public void testLateSamplesPassThrough() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 1.0, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "level", 5000, 5.0));
+        assertTrue(filter.accept(DEVICE, "level", 4000, 5.0));
+        assertFalse(filter.accept(DEVICE, "level", 6000, 5.0));
+    }
+
+    @Test
+    public void testNaNTransitions() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 1.0, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "flow", 1000, 1.0));
+        assertTrue(filter.accept(DEVICE, "flow", 2000, Double.NaN));
+        assertFalse(filter.accept(DEVICE, "flow", 3000, Double.NaN));
+        assertTrue(filter.accept(DEVICE, "flow", 4000, 1.0));
+    }
+
+    @Test
+    public void testMemoryBoundForgetsOldSeries() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 1.0, 60000, 16);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.accept(DEVICE, "tag" + i, 1000, 1.0));
+        }
+        // Forgotten series start over and are written again
+        assertTrue(filter.accept(DEVICE, "tag0", 2000, 1.0));
+    }
+
+    @Test
+    public void testDiscreteValuesPassOnChange() {
+        DeadbandFilter filter = new DeadbandFilter(DeadbandFilter.Mode.ABSOLUTE, 5.0, 60000, 1000);
+
+        assertTrue(filter.accept(DEVICE, "running", 1000, 1.0, true));
+        assertFalse(filter.accept(DEVICE, "running", 2000, 1.0, true));
+        assertTrue(filter.accept(DEVICE, "running", 3000, 0.0, true));
+        assertTrue(filter.accept(DEVICE, "running", 4000, 1.0, true));
+        // The same change of a continuous value stays within the deadband
+        assertTrue(filter.accept(DEVICE, "level", 1000, 1.0));
+        assertFalse(filter.accept(DEVICE, "level", 2000, 0.0));
+    }
+
+    @Test
+    public void testFormatterWritesBooleanChangesUnderLargeDeadband() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.DEADBAND_MODE, "absolute");
+        config.setProperty(FormatterConfig.DEADBAND, "10");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        byte[] running = publish(1000, metric("Temperature", 20.0), metric("Running", true), metric("Mode", "Auto"));
+        assertEquals(3, formatter.format(Unpooled.wrappedBuffer(running)).size());
+        byte[] stop = publish(2000, metric("Temperature", 20.0), metric("Running", false), metric("Mode", "Auto"));
+        List<Message> stopped = formatter.format(Unpooled.wrappedBuffer(stop));
+        assertEquals(2, stopped.size());
+        assertEquals("running", stopped.get(0).getMeasurements().get(0));
+        assertEquals("false", stopped.get(0).getValues().get(0));
+        // Unchanged again
+        byte[] still = publish(3000, metric("Temperature", 20.0), metric("Running", false), metric("Mode", "Auto"));
+        assertEquals(1, formatter.format(Unpooled.wrappedBuffer(still)).size());
+    }
+
+    @Test
+    public void testFormatterDropsUnchangedRepublishes() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.DEADBAND_MODE, "absolute");
+        config.setProperty(FormatterConfig.DEADBAND, "0.1");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        byte[] first = publish(1000, metric("Temperature", 20.0), metric("Running", true), metric("Mode", "Auto"));
+        assertEquals(3, formatter.format(Unpooled.wrappedBuffer(first)).size());
+        byte[] republish = publish(2000, metric("Temperature", 20.05), metric("Running", true), metric("Mode", "Auto"));
+        List<Message> republished = formatter.format(Unpooled.wrappedBuffer(republish));
+
+        // Only the string metric is written again; numeric and boolean values did not change
+        assertEquals(1, republished.size());
+        assertEquals("mode", republished.get(0).getMeasurements().get(0));
+
+        // Temperature moved out of the deadband, the boolean is still unchanged
+        byte[] moved = publish(3000, metric("Temperature", 20.5), metric("Running", true), metric("Mode", "Auto"));
+        assertEquals(2, formatter.format(Unpooled.wrappedBuffer(moved)).size());
+        assertEquals(3, formatter.getDeadbandFilter().droppedCount());
+    }
+}
@@ -0,0 +1,81 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DecimalTextTest {
+
+    private static final double[] SAMPLES = {
+        0.0, -0.0, 1.0, -1.0, 23.5, 0.1, 0.5, 5e-7, 4.9e-7, -5e-7, -1e-9, 0.1234565, 9.9999995, 0.9999995,
+        0.0000015, 1.0000005, 123456.0000005, 1e7, 1.2345678e7, 1e20, 1.7976931348623157e308,
+        Double.MIN_VALUE, Double.MIN_NORMAL, 2.5e-7, 99.9999996, Double.NaN,
+        Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 23.1f, 9.0f, 0.3f
+    };
+
+    private final Locale defaultLocale = Locale.getDefault(Locale.Category.FORMAT);
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(Locale.Category.FORMAT, defaultLocale);
+    }
+
+    @Test
+    public void testSamplesMatchStringFormat() {
+        for (double sample : SAMPLES) {
+            assertSameAsFormat(sample, 6);
+        }
+    }
+
+    @Test
+    public void testRandomValuesMatchStringFormat() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    // Values sitting exactly on a rounding boundary in their shortest form
+                    value = Math.round(random.nextDouble() * 1e7) / 1e7 + 5e-7;
+                    break;
+                case 1:
+                    value = random.nextDouble() * Math.pow(10, random.nextInt(30) - 10);
+                    break;
+                case 2:
+                    value = random.nextFloat() * 1000f - 500f;
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+            }
+            assertSameAsFormat(random.nextBoolean() ? value : -value, 6);
+        }
+    }
+
+    @Test
+    public void testOtherScales() {
+        Random random = new Random(7);
+        for (int scale = 0; scale <= 9; scale++) {
+            for (double sample : SAMPLES) {
+                assertSameAsFormat(sample, scale);
+            }
+            for (int i = 0; i < 5000; i++) {
+                assertSameAsFormat(random.nextDouble() * Math.pow(10, random.nextInt(20) - 8), scale);
+            }
+        }
+    }
+
+    @Test
+    public void testNonAsciiLocaleFallsBackToFormatter() {
+        Locale.setDefault(Locale.Category.FORMAT, Locale.GERMANY);
+        assertEquals("23,500000", DecimalText.toFixed(23.5, 6));
+        assertSameAsFormat(-0.1234565, 6);
+    }
+
+    private static void assertSameAsFormat(double value, int scale) {
+        assertEquals("Value: " + value, String.format("%." + scale + "f", value), DecimalText.toFixed(value, scale));
+    }
+}
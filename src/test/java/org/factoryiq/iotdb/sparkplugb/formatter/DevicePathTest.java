@@ -0,0 +1,136 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DevicePathTest {
+
+    @Test
+    public void testDefaultPropertyKeys() {
+        DevicePropertyKeys keys = DevicePropertyKeys.DEFAULT;
+        assertEquals(DevicePropertyKeys.GROUP, keys.roleOf("group"));
+        assertEquals(DevicePropertyKeys.GROUP, keys.roleOf("GroupID"));
+        assertEquals(DevicePropertyKeys.EDGE, keys.roleOf("edge"));
+        assertEquals(DevicePropertyKeys.EDGE, keys.roleOf("EdgeNodeID"));
+        assertEquals(DevicePropertyKeys.DEVICE, keys.roleOf("device"));
+        assertEquals(DevicePropertyKeys.DEVICE, keys.roleOf("AgentID"));
+        assertEquals(DevicePropertyKeys.NONE, keys.roleOf("Device"));
+        assertEquals(DevicePropertyKeys.NONE, keys.roleOf("engUnit"));
+        assertEquals(DevicePropertyKeys.NONE, keys.roleOf(""));
+    }
+
+    @Test
+    public void testManyPropertyKeys() {
+        String[] group = new String[40];
+        String[] device = new String[40];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = "g" + i;
+            device[i] = "d" + i;
+        }
+        DevicePropertyKeys keys = new DevicePropertyKeys(Arrays.asList(group),
+            Collections.<String>emptyList(), Arrays.asList(device));
+        for (int i = 0; i < group.length; i++) {
+            assertEquals(DevicePropertyKeys.GROUP, keys.roleOf("g" + i));
+            assertEquals(DevicePropertyKeys.DEVICE, keys.roleOf("d" + i));
+            assertEquals(DevicePropertyKeys.NONE, keys.roleOf("e" + i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyWithTwoRoles() {
+        new DevicePropertyKeys(Arrays.asList("id"), Arrays.asList("edge"), Arrays.asList("id"));
+    }
+
+    @Test
+    public void testInvalidConfigurationFallsBack() {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.GROUP_PROPERTY_KEYS, "id");
+        properties.setProperty(FormatterConfig.EDGE_PROPERTY_KEYS, "id");
+        properties.setProperty(FormatterConfig.DEVICE_PATH_TEMPLATE, "root.{site}.{device}");
+        FormatterConfig config = new FormatterConfig(properties);
+        assertSame(DevicePropertyKeys.DEFAULT, config.getDevicePropertyKeys());
+        assertEquals(DevicePathTemplate.DEFAULT, config.getDevicePathTemplate().toString());
+
+        properties.setProperty(FormatterConfig.DEVICE_PATH_TEMPLATE, "root.{group}.{edge}.{device}");
+        config = new FormatterConfig(properties);
+        assertEquals(DevicePathTemplate.DEFAULT, config.getDevicePathTemplate().toString());
+        assertEquals("root.mqtt.sparkplugb", config.getDevicePathTemplate().prefix());
+    }
+
+    @Test
+    public void testDefaultTemplate() {
+        DevicePathTemplate template = new DevicePathTemplate(DevicePathTemplate.DEFAULT);
+        StringBuilder scratch = new StringBuilder();
+        assertEquals("root.mqtt.sparkplugb.g.e.d", template.format("g", "e", "d", scratch));
+        // Node-level topics have no device
+        assertEquals("root.mqtt.sparkplugb.g.e", template.format("g", "e", null, scratch));
+        assertEquals("root.mqtt.sparkplugb", template.prefix());
+        assertTrue(template.uses(DevicePropertyKeys.GROUP));
+        assertTrue(template.uses(DevicePropertyKeys.EDGE));
+        assertTrue(template.uses(DevicePropertyKeys.DEVICE));
+    }
+
+    @Test
+    public void testCustomTemplate() {
+        DevicePathTemplate template = new DevicePathTemplate("root.sites.{group}.{device}_at_{edge}.data");
+        StringBuilder scratch = new StringBuilder("leftover");
+        assertEquals("root.sites.g.d_at_e.data", template.format("g", "e", "d", scratch));
+        assertEquals("root.sites.g.data", template.format("g", "e", null, scratch));
+        assertEquals("root.sites", template.prefix());
+
+        DevicePathTemplate withoutEdge = new DevicePathTemplate("root.plants.{group}.{device}");
+        assertFalse(withoutEdge.uses(DevicePropertyKeys.EDGE));
+        assertEquals("root.plants.g.d", withoutEdge.format("g", "e", "d", scratch));
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        String[] invalid = {
+            "mqtt.{group}", "root..{group}", "root.{group}.", "root.{site}", "root.{group", "root.{Group}",
+            // The default device path would be just root
+            "root.{group}.{edge}.{device}", "root.site_{group}.{device}"
+        };
+        for (String template : invalid) {
+            try {
+                new DevicePathTemplate(template);
+                fail("Accepted " + template);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCacheReturnsSameInstance() {
+        DevicePathCache cache = new DevicePathCache(
+            new DevicePathTemplate(DevicePathTemplate.DEFAULT), new NormalizedNameCache(100), 16);
+        StringBuilder scratch = new StringBuilder();
+        String path = cache.get("Plant 1", "Edge", "Press", scratch);
+        assertEquals("root.mqtt.sparkplugb.plant_1.edge.press", path);
+        assertSame(path, cache.get(new String("Plant 1"), "Edge", "Press", scratch));
+        assertEquals("root.mqtt.sparkplugb.plant_1.edge", cache.get("Plant 1", "Edge", null, scratch));
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void testCacheCollisionsAndDisabledCache() {
+        DevicePathTemplate template = new DevicePathTemplate(DevicePathTemplate.DEFAULT);
+        StringBuilder scratch = new StringBuilder();
+        DevicePathCache small = new DevicePathCache(template, new NormalizedNameCache(0), 1);
+        DevicePathCache disabled = new DevicePathCache(template, new NormalizedNameCache(0), 0);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                String expected = "root.mqtt.sparkplugb.g.e.d" + i;
+                assertEquals(expected, small.get("g", "e", "D" + i, scratch));
+                assertEquals(expected, disabled.get("g", "e", "D" + i, scratch));
+            }
+        }
+        assertEquals(0, disabled.hitCount());
+    }
+}
@@ -0,0 +1,95 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.metric;
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.publish;
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+
+    @Test
+    public void testRedeliveryIsDuplicate() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 1000);
+
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "temperature", 1000, "20.5"));
+        assertEquals(DuplicateFilter.Verdict.DUPLICATE, filter.check(DEVICE, "temperature", 1000, "20.5"));
+        // Same timestamp, other series
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "pressure", 1000, "20.5"));
+        // A corrected value at the same timestamp is written, and then deduplicated itself
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "temperature", 1000, "20.6"));
+        assertEquals(DuplicateFilter.Verdict.DUPLICATE, filter.check(DEVICE, "temperature", 1000, "20.6"));
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "temperature", 2000, "20.6"));
+        assertEquals(2, filter.duplicateCount());
+    }
+
+    @Test
+    public void testLatenessWindow() {
+        DuplicateFilter filter = new DuplicateFilter(5000, 1000);
+
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "flow", 10000, "1"));
+        // Within the window: written, without moving the watermark
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "flow", 5000, "2"));
+        assertEquals(DuplicateFilter.Verdict.DUPLICATE, filter.check(DEVICE, "flow", 10000, "1"));
+        assertEquals(DuplicateFilter.Verdict.LATE, filter.check(DEVICE, "flow", 4999, "3"));
+        assertEquals(1, filter.lateCount());
+
+        DuplicateFilter strict = new DuplicateFilter(0, 1000);
+        strict.check(DEVICE, "flow", 10000, "1");
+        assertEquals(DuplicateFilter.Verdict.LATE, strict.check(DEVICE, "flow", 9999, "1"));
+    }
+
+    @Test
+    public void testMemoryBoundForgetsOldSeries() {
+        DuplicateFilter filter = new DuplicateFilter(0, 16);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "tag" + i, 1000, "1"));
+        }
+        // Forgotten series start over and accept their next sample
+        assertEquals(DuplicateFilter.Verdict.ACCEPT, filter.check(DEVICE, "tag0", 1000, "1"));
+    }
+
+    @Test
+    public void testFormatterDropsRedeliveredPayload() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.DEDUP, "true");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        byte[] payload = publish(1000000, metric("Temperature", 20.0), metric("Running", true));
+        assertEquals(2, formatter.format(Unpooled.wrappedBuffer(payload)).size());
+        assertTrue(formatter.format(Unpooled.wrappedBuffer(payload)).isEmpty());
+        byte[] next = publish(1001000, metric("Temperature", 20.0), metric("Running", true));
+        assertEquals(2, formatter.format(Unpooled.wrappedBuffer(next)).size());
+        assertEquals(2, formatter.getStats().getDuplicateDrops());
+        // More than a minute late
+        byte[] late = publish(1001000 - 60001, metric("Temperature", 19.0), metric("Running", true));
+        assertTrue(formatter.format(Unpooled.wrappedBuffer(late)).isEmpty());
+        assertEquals(2, formatter.getStats().getLateSamples());
+    }
+
+    @Test
+    public void testFormatterRoutesLateSamples() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.DEDUP, "true");
+        config.setProperty(FormatterConfig.DEDUP_LATENESS_MS, "1000");
+        config.setProperty(FormatterConfig.DEDUP_LATE_ACTION, "route");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+        formatter.format(Unpooled.wrappedBuffer(publish(10000, metric("Temperature", 20.0), metric("Running", true))));
+        byte[] earlier = publish(5000, metric("Temperature", 19.0), metric("Running", true));
+        List<Message> late = formatter.format(Unpooled.wrappedBuffer(earlier));
+
+        assertEquals(2, late.size());
+        assertEquals("root.mqtt.sparkplugb.late", late.get(0).getDevice());
+        assertEquals(Long.valueOf(5000), late.get(0).getTimestamp());
+        assertEquals("19.000000", late.get(0).getValues().get(0));
+    }
+}
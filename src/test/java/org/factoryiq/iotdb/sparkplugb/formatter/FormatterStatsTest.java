@@ -0,0 +1,140 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class FormatterStatsTest {
+
+    private CustomizedSparkplugPayloadFormatter formatter;
+    private FormatterStats stats;
+
+    @Before
+    public void setup() {
+        formatter = new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults());
+        stats = formatter.getStats();
+    }
+
+    @Test
+    public void testCountsPayloadsMetricsAndMessages() throws Exception {
+        formatter.format(encode(
+            withDevice(new Metric.MetricBuilder("Temperature", MetricDataType.Double, 20.0).createMetric()),
+            withDevice(new Metric.MetricBuilder("Running", MetricDataType.Boolean, true).createMetric())));
+        formatter.format("spBv1.0/Factory/DDATA/Edge1/Press1",
+            encode(new Metric.MetricBuilder("Pressure", MetricDataType.Float, 1.5f).createMetric()));
+
+        assertEquals(2, stats.getPayloadsReceived());
+        assertEquals(3, stats.getMetricsDecoded());
+        assertEquals(3, stats.getMessagesEmitted());
+        assertEquals(0, stats.getDefaultDeviceFallbacks());
+        assertEquals(2, stats.getFormatLatencyCount());
+        assertTrue(stats.getFormatLatencyMaxMicros() > 0);
+    }
+
+    @Test
+    public void testCountsDropsByReason() throws Exception {
+        formatter.format(Unpooled.wrappedBuffer(new byte[] {(byte) 0xFF, 0x01, 0x02}));
+        formatter.format(Unpooled.EMPTY_BUFFER);
+        formatter.format(encode(
+            new Metric.MetricBuilder("NoDevice", MetricDataType.Double, 1.0).createMetric(),
+            withDevice(new Metric.MetricBuilder("Id", MetricDataType.UUID, "0000-0001").createMetric())));
+        formatter.format("spBv1.0/Factory/NDATA/Edge1",
+            encode(new Metric.MetricBuilder(7L, MetricDataType.Double, 1.0).createMetric()));
+
+        assertEquals(2, stats.getParseFailures());
+        assertEquals(1, stats.getDefaultDeviceFallbacks());
+        assertEquals(1, stats.getUnknownDatatypes());
+        assertEquals(1, stats.getUnknownAliases());
+        assertEquals(0, stats.getInvalidMessages());
+        assertEquals(4, stats.getPayloadsReceived());
+        assertEquals(2, stats.getMessagesEmitted());
+
+        stats.reset();
+        assertEquals(0, stats.getPayloadsReceived());
+        assertEquals(0, stats.getParseFailures());
+        assertEquals(0, stats.getFormatLatencyCount());
+    }
+
+    @Test
+    public void testRegistersMBean() throws Exception {
+        ObjectName first = stats.register("StatsTest");
+        ObjectName second = new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults())
+            .getStats().register("StatsTest");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertNotNull(first);
+            assertNotNull(second);
+            assertNotEquals(first, second);
+
+            formatter.format(encode(withDevice(new Metric.MetricBuilder("Temperature", MetricDataType.Double, 20.0)
+                .createMetric())));
+            assertEquals(1L, server.getAttribute(first, "PayloadsReceived"));
+            assertEquals(0L, server.getAttribute(second, "PayloadsReceived"));
+        } finally {
+            server.unregisterMBean(first);
+            server.unregisterMBean(second);
+        }
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(1000000, histogram.max());
+        assertEquals(500500.0, histogram.mean(), 0.001);
+        assertWithinBucket(500000, histogram.percentile(0.5));
+        assertWithinBucket(990000, histogram.percentile(0.99));
+        assertEquals(1000000, histogram.percentile(1.0));
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected + expected / 8);
+    }
+
+    private static Metric withDevice(Metric metric) throws Exception {
+        metric.setProperties(new PropertySet.PropertySetBuilder()
+            .addProperty("group", new PropertyValue(PropertyDataType.String, "Plant1"))
+            .addProperty("edge", new PropertyValue(PropertyDataType.String, "Line1"))
+            .addProperty("device", new PropertyValue(PropertyDataType.String, "Sensor1"))
+            .createPropertySet());
+        return metric;
+    }
+
+    private static io.netty.buffer.ByteBuf encode(Metric... metrics) throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(), new ArrayList<Metric>(), 0L, null, null);
+        for (Metric metric : metrics) {
+            payload.addMetric(metric);
+        }
+        return Unpooled.wrappedBuffer(new SparkplugBPayloadEncoder().getBytes(payload, false));
+    }
+}
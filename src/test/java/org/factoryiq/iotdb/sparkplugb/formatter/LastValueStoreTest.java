@@ -0,0 +1,115 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.tsfile.enums.TSDataType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.metric;
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.publish;
+import static org.junit.Assert.*;
+
+public class LastValueStoreTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+
+    @Test
+    public void testKeepsNewestSample() {
+        LastValueStore store = new LastValueStore(1000, 32);
+
+        assertTrue(store.update(DEVICE, "temperature", 2000, "20.5", TSDataType.DOUBLE));
+        // Late samples do not replace the current value
+        assertFalse(store.update(DEVICE, "temperature", 1000, "19.0", TSDataType.DOUBLE));
+        assertTrue(store.update(DEVICE, "temperature", 2000, "20.6", TSDataType.DOUBLE));
+
+        LastValueStore.Entry entry = store.get(DEVICE, "temperature");
+        assertEquals(2000, entry.getTimestamp());
+        assertEquals("20.6", entry.getValue());
+        assertEquals(TSDataType.DOUBLE, entry.getDataType());
+        assertEquals(DEVICE + ".temperature", entry.getPath());
+        assertNull(store.get(DEVICE, "pressure"));
+        assertEquals("2000,20.6", store.lastValue(DEVICE, "temperature"));
+    }
+
+    @Test
+    public void testValuesOfAnyLength() {
+        LastValueStore store = new LastValueStore(1000, 8);
+        String longValue = "a value longer than the inline bytes";
+
+        store.update(DEVICE, "ascii", 1, "Auto", null);
+        store.update(DEVICE, "utf8", 1, "Größe", null);
+        store.update(DEVICE, "long", 1, longValue, null);
+        store.update(DEVICE, "empty", 1, "", null);
+
+        assertEquals("Auto", store.get(DEVICE, "ascii").getValue());
+        assertEquals("Größe", store.get(DEVICE, "utf8").getValue());
+        assertEquals(longValue, store.get(DEVICE, "long").getValue());
+        assertEquals("", store.get(DEVICE, "empty").getValue());
+        assertNull(store.get(DEVICE, "ascii").getDataType());
+
+        // A shorter value moves back off the heap
+        store.update(DEVICE, "long", 2, "short", null);
+        assertEquals("short", store.get(DEVICE, "long").getValue());
+    }
+
+    @Test
+    public void testPrefixMatchesWholeNodes() {
+        LastValueStore store = new LastValueStore(1000, 32);
+        store.update("root.a.b", "temperature", 1, "1", null);
+        store.update("root.a.b.c", "temperature", 1, "2", null);
+        store.update("root.a.b", "pressure", 1, "3", null);
+        store.update("root.a.bc", "temperature", 1, "4", null);
+
+        assertEquals(Arrays.asList("root.a.b.pressure,1,3", "root.a.b.temperature,1,1", "root.a.b.c.temperature,1,2"),
+            Arrays.asList(store.lastValues("root.a.b")));
+        assertEquals(3, store.getByPrefix("root.a.b.").size());
+        assertEquals(1, store.getByPrefix("root.a.b.c.temperature").size());
+        assertEquals(1, store.getByPrefix("root.a.b.temperature").size());
+        assertEquals(0, store.getByPrefix("root.a.b.temp").size());
+        assertEquals(4, store.getByPrefix("root").size());
+    }
+
+    @Test
+    public void testMemoryBound() {
+        LastValueStore store = new LastValueStore(64, 32);
+
+        for (int i = 0; i < 1000; i++) {
+            store.update(DEVICE, "tag" + i, 1, String.valueOf(i), null);
+        }
+        assertEquals(64, store.size());
+        assertEquals(64 * 48, store.getOffHeapBytes());
+        assertEquals("999", store.get(DEVICE, "tag999").getValue());
+    }
+
+    @Test
+    public void testFormatterFeedsStore() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            config.setProperty(FormatterConfig.LAST_VALUE_STORE, "true");
+            config.setProperty(FormatterConfig.ALIGNED_BATCHING, "true");
+            config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+            CustomizedSparkplugPayloadFormatter formatter =
+                new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+            String topic = "spBv1.0/Factory/DDATA/Edge1/Press1";
+
+            byte[] newer = publish(2000, metric("Temperature", 20.5), metric("Mode", "Auto"));
+            byte[] older = publish(1000, metric("Temperature", 18.0), metric("Mode", "Manual"));
+            formatter.format(topic, Unpooled.wrappedBuffer(newer));
+            formatter.format(topic, Unpooled.wrappedBuffer(older));
+
+            LastValueStore store = formatter.getLastValueStore();
+            List<LastValueStore.Entry> entries = store.getByPrefix("root.mqtt.sparkplugb.factory.edge1");
+            assertEquals(decoder.name(), 2, entries.size());
+            assertEquals("mode", entries.get(0).getMeasurement());
+            assertEquals("Auto", entries.get(0).getValue());
+            assertEquals(TSDataType.TEXT, entries.get(0).getDataType());
+            assertEquals("20.5", store.get(entries.get(1).getDevice(), "temperature").getValue());
+            assertEquals(2000, entries.get(1).getTimestamp());
+        }
+        assertNull(new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults()).getLastValueStore());
+    }
+}
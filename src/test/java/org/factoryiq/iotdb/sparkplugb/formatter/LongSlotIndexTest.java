@@ -0,0 +1,79 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongSlotIndexTest {
+
+    @Test
+    public void testInsertAndGet() {
+        LongSlotIndex index = new LongSlotIndex(100);
+        for (long key = -50; key < 50; key++) {
+            assertEquals(LongSlotIndex.ABSENT, index.get(key));
+            index.insert(key);
+        }
+        Set<Integer> slots = new HashSet<>();
+        for (long key = -50; key < 50; key++) {
+            int slot = index.get(key);
+            assertTrue(slot >= 0 && slot < 100);
+            assertTrue("Slots must be distinct", slots.add(slot));
+        }
+        assertEquals(100, index.size());
+    }
+
+    @Test
+    public void testEvictionKeepsRecentlyUsedKeys() {
+        LongSlotIndex index = new LongSlotIndex(4);
+        for (long key = 1; key <= 4; key++) {
+            index.insert(key);
+        }
+        index.get(1);
+        index.get(2);
+        index.get(3);
+
+        int slot = index.insert(5);
+
+        assertEquals(LongSlotIndex.ABSENT, index.get(4));
+        assertEquals(slot, index.get(5));
+        assertNotEquals(LongSlotIndex.ABSENT, index.get(1));
+        assertNotEquals(LongSlotIndex.ABSENT, index.get(2));
+        assertNotEquals(LongSlotIndex.ABSENT, index.get(3));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testRandomizedAgainstReferenceMap() {
+        Random random = new Random(11);
+        LongSlotIndex index = new LongSlotIndex(257);
+        Map<Long, Integer> live = new HashMap<>();
+        Map<Integer, Long> owners = new HashMap<>();
+
+        for (int i = 0; i < 200000; i++) {
+            // Small key space with colliding low bits to exercise probing and backward shifts
+            long key = random.nextInt(600) * 1024L;
+            int slot = index.get(key);
+            if (slot == LongSlotIndex.ABSENT) {
+                assertFalse(live.containsKey(key));
+                slot = index.insert(key);
+                Long previous = owners.put(slot, key);
+                if (previous != null) {
+                    assertEquals(Integer.valueOf(slot), live.remove(previous));
+                }
+                live.put(key, slot);
+            } else {
+                assertEquals(live.get(key), Integer.valueOf(slot));
+            }
+            assertTrue(index.size() <= 257);
+        }
+        for (Map.Entry<Long, Integer> entry : live.entrySet()) {
+            assertEquals(entry.getValue(), Integer.valueOf(index.get(entry.getKey())));
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.DataSet;
+import org.eclipse.tahu.message.model.DataSetDataType;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.Row;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.eclipse.tahu.message.model.Value;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class MetricBlockTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+    private static final long TIMESTAMP = 1700000000000L;
+
+    @Test
+    public void testArraysAsColumns() throws Exception {
+        SparkplugBPayload payload = payload();
+        payload.addMetric(metric("Int8", MetricDataType.Int8Array, new Byte[]{1, -2}));
+        payload.addMetric(metric("Int16", MetricDataType.Int16Array, new Short[]{1, -2}));
+        payload.addMetric(metric("Int32", MetricDataType.Int32Array, new Integer[]{1, -2}));
+        payload.addMetric(metric("Int64", MetricDataType.Int64Array, new Long[]{1L, -2L}));
+        payload.addMetric(metric("UInt8", MetricDataType.UInt8Array, new Short[]{1, 250}));
+        payload.addMetric(metric("UInt16", MetricDataType.UInt16Array, new Integer[]{1, 65000}));
+        payload.addMetric(metric("UInt32", MetricDataType.UInt32Array, new Long[]{1L, 4000000000L}));
+        payload.addMetric(metric("UInt64", MetricDataType.UInt64Array, new BigInteger[]{BigInteger.ONE, BigInteger.TEN}));
+        payload.addMetric(metric("Float", MetricDataType.FloatArray, new Float[]{1.5f, -2f}));
+        payload.addMetric(metric("Double", MetricDataType.DoubleArray, new Double[]{1.5, -2.0}));
+        payload.addMetric(metric("Boolean", MetricDataType.BooleanArray,
+            new Boolean[]{true, false, true, true, false, false, false, false, true}));
+        payload.addMetric(metric("String", MetricDataType.StringArray, new String[]{"two words", "c"}));
+        payload.addMetric(metric("DateTime", MetricDataType.DateTimeArray, new Date[]{new Date(1), new Date(2)}));
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            List<Message> messages = formatter(decoder, new Properties()).format(Unpooled.wrappedBuffer(encode(payload)));
+
+            assertEquals(decoder.name(), 13, messages.size());
+            assertRow(messages.get(0), TIMESTAMP, "int8", "1", "-2");
+            assertRow(messages.get(1), TIMESTAMP, "int16", "1", "-2");
+            assertRow(messages.get(2), TIMESTAMP, "int32", "1", "-2");
+            assertRow(messages.get(3), TIMESTAMP, "int64", "1", "-2");
+            assertRow(messages.get(4), TIMESTAMP, "uint8", "1", "250");
+            assertRow(messages.get(5), TIMESTAMP, "uint16", "1", "65000");
+            assertRow(messages.get(6), TIMESTAMP, "uint32", "1", "4000000000");
+            assertRow(messages.get(7), TIMESTAMP, "uint64", "1", "10");
+            assertRow(messages.get(8), TIMESTAMP, "float", "1.500000", "-2.000000");
+            assertRow(messages.get(9), TIMESTAMP, "double", "1.500000", "-2.000000");
+            assertRow(messages.get(10), TIMESTAMP, "boolean",
+                "true", "false", "true", "true", "false", "false", "false", "false", "true");
+            assertRow(messages.get(11), TIMESTAMP, "string", "two_words", "c");
+            assertRow(messages.get(12), TIMESTAMP, "date_time", "1", "2");
+        }
+    }
+
+    @Test
+    public void testArrayElementsAsSamples() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.ARRAY_SAMPLE_INTERVAL_MS, "10");
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        SparkplugBPayload payload = payload();
+        payload.addMetric(metric("Vibration", MetricDataType.FloatArray, new Float[]{0.1f, 0.2f, 0.3f}));
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            List<Message> messages = formatter(decoder, config).format(Unpooled.wrappedBuffer(encode(payload)));
+
+            assertEquals(3, messages.size());
+            for (int i = 0; i < 3; i++) {
+                Message message = messages.get(i);
+                assertEquals(DEVICE, message.getDevice());
+                assertEquals(Long.valueOf(TIMESTAMP + 10 * i), message.getTimestamp());
+                assertEquals(Arrays.asList("vibration"), message.getMeasurements());
+                assertEquals(Arrays.asList(TSDataType.FLOAT), message.getDataTypes());
+                assertEquals(Arrays.asList(Float.toString(0.1f * (i + 1))), message.getValues());
+            }
+        }
+    }
+
+    @Test
+    public void testDataSetRows() throws Exception {
+        DataSet dataSet = new DataSet.DataSetBuilder(4)
+            .addColumnName("Time").addColumnName("Count").addColumnName("Level").addColumnName("State")
+            .addType(DataSetDataType.DateTime).addType(DataSetDataType.Int32)
+            .addType(DataSetDataType.Double).addType(DataSetDataType.String)
+            .addRow(row(new Date(TIMESTAMP + 100), 1, 0.5, "ok"))
+            .addRow(row(new Date(TIMESTAMP + 200), -2, 0.25, "two words"))
+            .createDataSet();
+        SparkplugBPayload payload = payload();
+        payload.addMetric(metric("Batch", MetricDataType.DataSet, dataSet));
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            List<Message> messages = formatter(decoder, config).format(Unpooled.wrappedBuffer(encode(payload)));
+
+            assertEquals(2, messages.size());
+            Message first = messages.get(0);
+            assertEquals(DEVICE + ".batch", first.getDevice());
+            assertEquals(Long.valueOf(TIMESTAMP + 100), first.getTimestamp());
+            assertEquals(Arrays.asList("count", "level", "state"), first.getMeasurements());
+            assertEquals(Arrays.asList(TSDataType.INT32, TSDataType.DOUBLE, TSDataType.TEXT), first.getDataTypes());
+            assertEquals(Arrays.asList("1", "0.5", "ok"), first.getValues());
+            assertEquals(Long.valueOf(TIMESTAMP + 200), messages.get(1).getTimestamp());
+            assertEquals(Arrays.asList("-2", "0.25", "two_words"), messages.get(1).getValues());
+        }
+    }
+
+    @Test
+    public void testDataSetEmptyCellsAreLeftOut() throws Exception {
+        SparkplugBProto.Payload.DataSet dataSet = SparkplugBProto.Payload.DataSet.newBuilder()
+            .setNumOfColumns(2)
+            .addColumns("A").addColumns("B")
+            .addTypes(3).addTypes(3)
+            .addRows(SparkplugBProto.Payload.DataSet.Row.newBuilder()
+                .addElements(SparkplugBProto.Payload.DataSet.DataSetValue.newBuilder())
+                .addElements(SparkplugBProto.Payload.DataSet.DataSetValue.newBuilder().setIntValue(7)))
+            .addRows(SparkplugBProto.Payload.DataSet.Row.newBuilder()
+                .addElements(SparkplugBProto.Payload.DataSet.DataSetValue.newBuilder().setIntValue(8)))
+            .build();
+        byte[] bytes = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(TIMESTAMP)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Batch").setTimestamp(TIMESTAMP).setDatatype(16).setDatasetValue(dataSet)
+                .setProperties(deviceProperties()))
+            .build().toByteArray();
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.ARRAY_SAMPLE_INTERVAL_MS, "1000");
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            List<Message> messages = formatter(decoder, config).format(Unpooled.wrappedBuffer(bytes));
+
+            assertEquals(2, messages.size());
+            assertEquals(Long.valueOf(TIMESTAMP), messages.get(0).getTimestamp());
+            assertEquals(Arrays.asList("b"), messages.get(0).getMeasurements());
+            assertEquals(Arrays.asList("7"), messages.get(0).getValues());
+            // Without a DateTime column, rows are spaced by the sample interval
+            assertEquals(Long.valueOf(TIMESTAMP + 1000), messages.get(1).getTimestamp());
+            assertEquals(Arrays.asList("a"), messages.get(1).getMeasurements());
+            assertEquals(Arrays.asList("8"), messages.get(1).getValues());
+        }
+    }
+
+    @Test
+    public void testDataSetRowsWithoutTimeColumnByDefault() throws Exception {
+        DataSet dataSet = new DataSet.DataSetBuilder(1)
+            .addColumnName("Count").addType(DataSetDataType.Int32)
+            .addRow(new Row.RowBuilder().addValue(new Value<>(DataSetDataType.Int32, 1)).createRow())
+            .addRow(new Row.RowBuilder().addValue(new Value<>(DataSetDataType.Int32, 2)).createRow())
+            .addRow(new Row.RowBuilder().addValue(new Value<>(DataSetDataType.Int32, 3)).createRow())
+            .createDataSet();
+        SparkplugBPayload payload = payload();
+        payload.addMetric(metric("Batch", MetricDataType.DataSet, dataSet));
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            List<Message> messages = formatter(decoder, new Properties()).format(Unpooled.wrappedBuffer(encode(payload)));
+
+            // Without a sample interval, rows are still written at distinct timestamps
+            assertEquals(3, messages.size());
+            for (int row = 0; row < 3; row++) {
+                assertEquals(Long.valueOf(TIMESTAMP + row), messages.get(row).getTimestamp());
+                assertEquals(Arrays.asList("count"), messages.get(row).getMeasurements());
+                assertEquals(Arrays.asList(String.valueOf(row + 1)), messages.get(row).getValues());
+            }
+        }
+    }
+
+    @Test
+    public void testUInt64BeyondInt64() throws Exception {
+        ByteBuf elements = Unpooled.buffer(16).writeLongLE(0xFFFFFFFFFFFFFFFFL).writeLongLE(1L);
+        SparkplugBProto.Payload.DataSet dataSet = SparkplugBProto.Payload.DataSet.newBuilder()
+            .setNumOfColumns(1)
+            .addColumns("Total")
+            .addTypes(8)
+            .addRows(SparkplugBProto.Payload.DataSet.Row.newBuilder()
+                .addElements(SparkplugBProto.Payload.DataSet.DataSetValue.newBuilder().setLongValue(0xFFFFFFFFFFFFFFFFL)))
+            .build();
+        byte[] bytes = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(TIMESTAMP)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Counter").setTimestamp(TIMESTAMP).setDatatype(29)
+                .setBytesValue(com.google.protobuf.ByteString.copyFrom(elements.nioBuffer()))
+                .setProperties(deviceProperties()))
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Batch").setTimestamp(TIMESTAMP).setDatatype(16).setDatasetValue(dataSet)
+                .setProperties(deviceProperties()))
+            .build().toByteArray();
+        Properties typed = new Properties();
+        typed.setProperty(FormatterConfig.TYPED_VALUES, "true");
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            // Text values are written unsigned
+            List<Message> messages = formatter(decoder, new Properties()).format(Unpooled.wrappedBuffer(bytes));
+            assertEquals(2, messages.size());
+            assertRow(messages.get(0), TIMESTAMP, "counter", "18446744073709551615", "1");
+            assertEquals(Arrays.asList("18446744073709551615"), messages.get(1).getValues());
+
+            // INT64 columns cannot hold them, so typed values leave them out
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, typed);
+            messages = formatter.format(Unpooled.wrappedBuffer(bytes));
+            assertEquals(decoder.name(), 1, messages.size());
+            assertEquals(Arrays.asList("counter_1"), messages.get(0).getMeasurements());
+            assertEquals(Arrays.asList("1"), messages.get(0).getValues());
+            assertEquals(2, formatter.getStats().getConversionErrors());
+        }
+    }
+
+    @Test
+    public void testRedeliveredArrayIsDeduplicated() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.DEDUP, "true");
+        CustomizedSparkplugPayloadFormatter formatter = formatter(FormatterConfig.Decoder.STREAMING, config);
+        SparkplugBPayload payload = payload();
+        payload.addMetric(metric("Level", MetricDataType.Int32Array, new Integer[]{1, 2, 3}));
+        byte[] bytes = encode(payload);
+
+        assertEquals(3, formatter.format(Unpooled.wrappedBuffer(bytes)).get(0).getValues().size());
+        assertTrue(formatter.format(Unpooled.wrappedBuffer(bytes)).isEmpty());
+        assertEquals(3, formatter.getDuplicateFilter().duplicateCount());
+    }
+
+    @Test
+    public void testMalformedArrayIsDropped() throws Exception {
+        byte[] bytes = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(TIMESTAMP)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Broken").setTimestamp(TIMESTAMP).setDatatype(24)
+                .setBytesValue(com.google.protobuf.ByteString.copyFrom(new byte[]{1, 2, 3}))
+                .setProperties(deviceProperties()))
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Mismatched").setTimestamp(TIMESTAMP).setDatatype(24).setIntValue(5)
+                .setProperties(deviceProperties()))
+            .build().toByteArray();
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, new Properties());
+
+            assertTrue(formatter.format(Unpooled.wrappedBuffer(bytes)).isEmpty());
+            assertEquals(2, formatter.getStats().getConversionErrors());
+        }
+    }
+
+    private static CustomizedSparkplugPayloadFormatter formatter(FormatterConfig.Decoder decoder, Properties base) {
+        Properties config = new Properties();
+        config.putAll(base);
+        config.setProperty(FormatterConfig.DECODER, decoder.name());
+        return new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+    }
+
+    private static void assertRow(Message message, long timestamp, String name, String... values) {
+        assertEquals(DEVICE, message.getDevice());
+        assertEquals(Long.valueOf(timestamp), message.getTimestamp());
+        List<String> measurements = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            measurements.add(name + "_" + i);
+        }
+        assertEquals(measurements, message.getMeasurements());
+        assertEquals(Arrays.asList(values), message.getValues());
+    }
+
+    private static Row row(Date time, int count, double level, String state) {
+        return new Row.RowBuilder()
+            .addValue(new Value<>(DataSetDataType.DateTime, time))
+            .addValue(new Value<>(DataSetDataType.Int32, count))
+            .addValue(new Value<>(DataSetDataType.Double, level))
+            .addValue(new Value<>(DataSetDataType.String, state))
+            .createRow();
+    }
+
+    private static SparkplugBPayload payload() {
+        return new SparkplugBPayload(new Date(TIMESTAMP), new ArrayList<Metric>(), 0L, null, null);
+    }
+
+    private static Metric metric(String name, MetricDataType type, Object value) throws Exception {
+        PropertySet properties = new PropertySet();
+        properties.put("group", new PropertyValue<>(PropertyDataType.String, "factory"));
+        properties.put("edge", new PropertyValue<>(PropertyDataType.String, "edge1"));
+        properties.put("device", new PropertyValue<>(PropertyDataType.String, "press1"));
+        return new Metric.MetricBuilder(name, type, value)
+            .timestamp(new Date(TIMESTAMP))
+            .properties(properties)
+            .createMetric();
+    }
+
+    private static SparkplugBProto.Payload.PropertySet deviceProperties() {
+        SparkplugBProto.Payload.PropertySet.Builder properties = SparkplugBProto.Payload.PropertySet.newBuilder();
+        String[][] entries = {{"group", "factory"}, {"edge", "edge1"}, {"device", "press1"}};
+        for (String[] entry : entries) {
+            properties.addKeys(entry[0]);
+            properties.addValues(SparkplugBProto.Payload.PropertyValue.newBuilder().setType(12).setStringValue(entry[1]));
+        }
+        return properties.build();
+    }
+
+    private static byte[] encode(SparkplugBPayload payload) throws Exception {
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+}
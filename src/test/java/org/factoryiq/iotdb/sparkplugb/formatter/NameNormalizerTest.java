@@ -0,0 +1,143 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NameNormalizerTest {
+
+    private static final String[] SAMPLES = {
+        null, "", " ", "\t\n", "NullMetric", " NullMetric ", "nullMetric",
+        "Temperature", "DeviceHealth", "Holding Registers Block_0", "Coils  Block_1",
+        "  padded Name  ", "already_normalized", "ABC", "aBC", "abcDef", "abcDEF", "a B",
+        "tab\tseparated\tName", "mixed \t\r\n whitespace", "Folder/SubFolder/TagName",
+        "x1Y2z3", "\u00DCn\u00EFc\u00F6d\u00E9 Name", "stra\u00DFeName", "\u0130stanbulTag", "Hello\u000BWorld", "ctrl\u0001Char",
+        "\u0001leading", "trailing\u0002", "non\u00A0breaking", "camel_Case", "a\u00E9B"
+    };
+
+    private static final char[] ALPHABET = {
+        'a', 'b', 'z', 'A', 'B', 'Z', '0', '9', '_', '/', '.', '-', ' ', '\t', '\n', '\r', '\f',
+        '\u000B', '\u0001', '\u00A0', '\u00E9', '\u00C9', '\u0130', '\u00DF', '\u03A3'
+    };
+
+    private final Locale defaultLocale = Locale.getDefault();
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void testNameMatchesRegexImplementation() {
+        for (String sample : SAMPLES) {
+            assertEquals("Input: " + sample, regexNormalizeName(sample), NameNormalizer.normalizeName(sample));
+        }
+    }
+
+    @Test
+    public void testValueMatchesRegexImplementation() {
+        for (String sample : SAMPLES) {
+            assertEquals("Input: " + sample, regexNormalizeValue(sample), NameNormalizer.normalizeValue(sample));
+        }
+    }
+
+    @Test
+    public void testRandomInputsMatchRegexImplementation() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String input = randomString(random);
+            assertEquals("Input: " + input, regexNormalizeName(input), NameNormalizer.normalizeName(input));
+            assertEquals("Input: " + input, regexNormalizeValue(input), NameNormalizer.normalizeValue(input));
+        }
+    }
+
+    @Test
+    public void testLocaleSensitiveLowerCase() {
+        Random random = new Random(7);
+        for (Locale locale : new Locale[]{new Locale("tr", "TR"), new Locale("lt", "LT"), Locale.GERMANY}) {
+            Locale.setDefault(locale);
+            for (String sample : SAMPLES) {
+                assertEquals(locale + " input: " + sample, regexNormalizeName(sample), NameNormalizer.normalizeName(sample));
+            }
+            for (int i = 0; i < 2000; i++) {
+                String input = randomString(random);
+                assertEquals(locale + " input: " + input, regexNormalizeName(input), NameNormalizer.normalizeName(input));
+            }
+        }
+    }
+
+    @Test
+    public void testNormalizedInputIsReturnedUnchanged() {
+        String name = "already_normalized_name";
+        assertSame(name, NameNormalizer.normalizeName(name));
+        String value = "no_whitespace";
+        assertSame(value, NameNormalizer.normalizeValue(value));
+    }
+
+    @Test
+    public void testCacheCountsHitsAndMisses() {
+        NormalizedNameCache cache = new NormalizedNameCache(100);
+
+        assertEquals("device_health", cache.normalize("DeviceHealth"));
+        assertEquals("device_health", cache.normalize("DeviceHealth"));
+        assertEquals("temperature", cache.normalize("Temperature"));
+
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testCacheEvictsBeyondMaximumSize() {
+        NormalizedNameCache cache = new NormalizedNameCache(10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("tag_" + i, cache.normalize("Tag " + i));
+        }
+
+        assertTrue(cache.size() <= 10);
+        assertTrue(cache.evictionCount() >= 90);
+    }
+
+    @Test
+    public void testDisabledCacheStillNormalizes() {
+        NormalizedNameCache cache = new NormalizedNameCache(0);
+
+        assertEquals("device_health", cache.normalize("DeviceHealth"));
+        assertEquals("null", cache.normalize(null));
+        assertEquals(0, cache.size());
+    }
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(12);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+        }
+        return builder.toString();
+    }
+
+    // The original implementation, kept as the reference for equivalence checks
+    private static String regexNormalizeName(String input) {
+        if (input == null || input.trim().isEmpty()) {
+            return "null";
+        }
+        if (input.equals("NullMetric")) {
+            return "null";
+        }
+        return input.trim()
+            .replaceAll("([a-z])([A-Z])", "$1_$2")
+            .replaceAll("\\s+", "_")
+            .toLowerCase();
+    }
+
+    private static String regexNormalizeValue(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return "null";
+        }
+        return value.replaceAll("\\s+", "_");
+    }
+}
@@ -0,0 +1,143 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestMessages.assertMessagesEqual;
+import static org.junit.Assert.*;
+
+public class ParallelConversionTest {
+
+    private static final String NBIRTH = "spBv1.0/Factory/NBIRTH/Edge1";
+    private static final String NDATA = "spBv1.0/Factory/NDATA/Edge1";
+    private static final int METRICS = 5000;
+
+    @Test
+    public void testSameMessagesInSameOrder() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter sequential = formatter(decoder, 0);
+            CustomizedSparkplugPayloadFormatter parallel = formatter(decoder, 1000);
+            byte[] birth = encode(0, true);
+            byte[] data = encode(1, false);
+
+            assertMessagesEqual(sequential.format(NBIRTH, wrap(birth)), parallel.format(NBIRTH, wrap(birth)));
+            // Alias-only metrics resolve against the aliases every chunk of the birth declared
+            List<Message> expected = sequential.format(NDATA, wrap(data));
+            assertEquals(METRICS, expected.size());
+            assertMessagesEqual(expected, parallel.format(NDATA, wrap(data)));
+
+            assertEquals(decoder.name(), 2, parallel.getStats().getParallelPayloads());
+            assertEquals(0, sequential.getStats().getParallelPayloads());
+            // The seq of the streamed payload was found in whichever chunk held it
+            assertEquals(0, parallel.getStats().getSequenceGaps());
+            assertEquals(0, parallel.getStats().getUnknownAliases());
+        }
+    }
+
+    @Test
+    public void testSmallPayloadsStayOnCallingThread() throws Exception {
+        CustomizedSparkplugPayloadFormatter formatter = formatter(FormatterConfig.Decoder.STREAMING, METRICS + 2);
+
+        assertEquals(METRICS + 1, formatter.format(NBIRTH, wrap(encode(0, true))).size());
+        assertEquals(0, formatter.getStats().getParallelPayloads());
+    }
+
+    @Test
+    public void testClosedFormatterConvertsOnCallingThread() throws Exception {
+        CustomizedSparkplugPayloadFormatter formatter = formatter(FormatterConfig.Decoder.STREAMING, 1000);
+        formatter.close();
+
+        assertEquals(METRICS + 1, formatter.format(NBIRTH, wrap(encode(0, true))).size());
+        assertEquals(0, formatter.getStats().getParallelPayloads());
+    }
+
+    @Test
+    public void testRepeatedSeriesWithDedupStayOnCallingThread() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties dedup = new Properties();
+            dedup.setProperty(FormatterConfig.DEDUP, "true");
+            CustomizedSparkplugPayloadFormatter sequential = formatter(decoder, 0, dedup);
+            CustomizedSparkplugPayloadFormatter parallel = formatter(decoder, 1000, dedup);
+            byte[] history = encodeHistory();
+
+            // Every repeated sample is a duplicate, including those whose first copy is in the chunk before
+            List<Message> expected = sequential.format(NDATA, wrap(history));
+            assertEquals(METRICS / 2, expected.size());
+            assertMessagesEqual(expected, parallel.format(NDATA, wrap(history)));
+            assertEquals(METRICS / 2, parallel.getDuplicateFilter().duplicateCount());
+            assertEquals(decoder.name(), 0, parallel.getStats().getParallelPayloads());
+        }
+    }
+
+    @Test
+    public void testMalformedChunkFailsPayload() throws Exception {
+        byte[] bytes = encode(0, true);
+        // Cut off in the middle of the last metric, which is in the last chunk
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 20);
+        CustomizedSparkplugPayloadFormatter formatter = formatter(FormatterConfig.Decoder.STREAMING, 1000);
+
+        assertTrue(formatter.format(NBIRTH, wrap(truncated)).isEmpty());
+        assertEquals(1, formatter.getStats().getParseFailures());
+    }
+
+    private static CustomizedSparkplugPayloadFormatter formatter(FormatterConfig.Decoder decoder, int threshold) {
+        return formatter(decoder, threshold, new Properties());
+    }
+
+    private static CustomizedSparkplugPayloadFormatter formatter(FormatterConfig.Decoder decoder, int threshold,
+                                                                 Properties base) {
+        Properties config = new Properties();
+        config.putAll(base);
+        config.setProperty(FormatterConfig.DECODER, decoder.name());
+        config.setProperty(FormatterConfig.PARALLEL_THRESHOLD, String.valueOf(threshold));
+        config.setProperty(FormatterConfig.PARALLEL_CHUNK_SIZE, "700");
+        config.setProperty(FormatterConfig.PARALLELISM, "3");
+        return new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+    }
+
+    private static ByteBuf wrap(byte[] bytes) {
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    // A birth declares every metric with an alias, data messages send the alias only
+    private static byte[] encode(long seq, boolean birth) throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(1700000000000L), new ArrayList<Metric>(), seq, null, null);
+        if (birth) {
+            payload.addMetric(new Metric.MetricBuilder("bdSeq", MetricDataType.Int64, 0L).createMetric());
+        }
+        for (int i = 0; i < METRICS; i++) {
+            Metric metric = new Metric.MetricBuilder(birth ? "Line/Value " + i : null, MetricDataType.Double, i * 1.5)
+                .alias((long) i)
+                .timestamp(new Date(1700000000000L + i))
+                .createMetric();
+            payload.addMetric(metric);
+        }
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+
+    // Buffered history of twenty series that carries every sample twice, twenty metrics apart, so
+    // that with chunks of 700 metrics some pairs straddle a chunk boundary
+    private static byte[] encodeHistory() throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(1700000000000L), new ArrayList<Metric>(), 1L, null, null);
+        for (int i = 0; i < METRICS; i++) {
+            int step = i / 40;
+            Metric metric = new Metric.MetricBuilder("Line/Value " + (i % 20), MetricDataType.Double, step * 1.5)
+                .timestamp(new Date(1700000000000L + step))
+                .createMetric();
+            payload.addMetric(metric);
+        }
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+}
@@ -0,0 +1,182 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.PropertyDataType;
+import org.eclipse.tahu.message.model.PropertySet;
+import org.eclipse.tahu.message.model.PropertyValue;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.eclipse.tahu.util.CompressionAlgorithm;
+import org.eclipse.tahu.util.PayloadUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestMessages.assertMessagesEqual;
+import static org.junit.Assert.*;
+
+public class PayloadInflaterTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+
+    @Test
+    public void testInflatesDeflateAndGzip() throws Exception {
+        byte[] data = sampleBytes(5000);
+        PayloadInflater inflater = new PayloadInflater(1 << 20);
+
+        assertArrayEquals(data, bytes(inflater.inflate("DEFLATE", Unpooled.wrappedBuffer(deflate(data)))));
+        assertArrayEquals(data, bytes(inflater.inflate("gzip", Unpooled.wrappedBuffer(gzip(data)))));
+        // Direct buffers are copied into the reusable input buffer
+        ByteBuf direct = Unpooled.directBuffer().writeBytes(gzip(data));
+        try {
+            assertArrayEquals(data, bytes(inflater.inflate("GZIP", direct)));
+        } finally {
+            direct.release();
+        }
+        // Without an algorithm metric, GZIP is recognized by its header
+        assertArrayEquals(data, bytes(inflater.inflate(null, Unpooled.wrappedBuffer(gzip(data)))));
+        assertArrayEquals(data, bytes(inflater.inflate(null, Unpooled.wrappedBuffer(deflate(data)))));
+    }
+
+    @Test
+    public void testRejectsBadInput() throws Exception {
+        byte[] data = sampleBytes(5000);
+        PayloadInflater inflater = new PayloadInflater(1 << 20);
+
+        assertRejected(inflater, "LZ4", deflate(data));
+        assertRejected(inflater, "DEFLATE", Arrays.copyOf(deflate(data), 40));
+        assertRejected(inflater, "GZIP", Arrays.copyOf(gzip(data), 40));
+        byte[] corrupt = gzip(data);
+        corrupt[corrupt.length - 6] ^= 1;
+        assertRejected(inflater, "GZIP", corrupt);
+        assertRejected(inflater, "GZIP", deflate(data));
+        // Still usable after a failure
+        assertArrayEquals(data, bytes(inflater.inflate("DEFLATE", Unpooled.wrappedBuffer(deflate(data)))));
+    }
+
+    @Test
+    public void testSizeLimit() throws Exception {
+        byte[] data = new byte[100000];
+        PayloadInflater exact = new PayloadInflater(data.length);
+        PayloadInflater smaller = new PayloadInflater(data.length - 1);
+
+        assertEquals(data.length, exact.inflate("DEFLATE", Unpooled.wrappedBuffer(deflate(data))).readableBytes());
+        assertEquals(data.length, exact.inflate("GZIP", Unpooled.wrappedBuffer(gzip(data))).readableBytes());
+        assertRejected(smaller, "DEFLATE", deflate(data));
+        assertRejected(smaller, "GZIP", gzip(data));
+    }
+
+    @Test
+    public void testFormatsCompressedPayloads() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+            List<Message> expected = formatter.format(Unpooled.wrappedBuffer(encode(samplePayload())));
+            assertEquals(20, expected.size());
+            for (Message message : expected) {
+                assertEquals(DEVICE, message.getDevice());
+            }
+
+            for (CompressionAlgorithm algorithm : CompressionAlgorithm.values()) {
+                byte[] compressed = encode(PayloadUtil.compress(samplePayload(), algorithm, false));
+                ByteBuf direct = Unpooled.directBuffer().writeBytes(compressed);
+                try {
+                    assertMessagesEqual(expected, formatter.format(direct));
+                    assertFalse(direct.isReadable());
+                } finally {
+                    direct.release();
+                }
+                assertMessagesEqual(expected, formatter.format(Unpooled.wrappedBuffer(compressed)));
+            }
+            assertEquals(decoder.name(), 4, formatter.getStats().getCompressedPayloads());
+            assertEquals(decoder.name(), 0, formatter.getStats().getParseFailures());
+        }
+    }
+
+    @Test
+    public void testOversizedPayloadIsDropped() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            config.setProperty(FormatterConfig.MAX_DECOMPRESSED_BYTES, "64");
+            CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+            byte[] compressed = encode(PayloadUtil.compress(samplePayload(), CompressionAlgorithm.GZIP, false));
+
+            assertTrue(formatter.format(Unpooled.wrappedBuffer(compressed)).isEmpty());
+            assertEquals(decoder.name(), 1, formatter.getStats().getParseFailures());
+        }
+    }
+
+    private static void assertRejected(PayloadInflater inflater, String algorithm, byte[] body) {
+        try {
+            inflater.inflate(algorithm, Unpooled.wrappedBuffer(body));
+            fail("Expected " + algorithm + " data to be rejected");
+        } catch (DataFormatException expected) {
+            // Rejected
+        }
+    }
+
+    private static byte[] sampleBytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 7 * 31 + i / 100);
+        }
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length + 64];
+        int length = deflater.deflate(out);
+        deflater.end();
+        return Arrays.copyOf(out, length);
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static SparkplugBPayload samplePayload() throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(1700000000000L), new ArrayList<Metric>(), 7L, null, null);
+        PropertySet properties = new PropertySet();
+        properties.put("group", new PropertyValue<>(PropertyDataType.String, "factory"));
+        properties.put("edge", new PropertyValue<>(PropertyDataType.String, "edge1"));
+        properties.put("device", new PropertyValue<>(PropertyDataType.String, "press1"));
+        for (int i = 0; i < 20; i++) {
+            payload.addMetric(new Metric.MetricBuilder("Temperature" + i, MetricDataType.Double, 20.5 + i)
+                .timestamp(new Date(1700000000000L))
+                .properties(properties)
+                .createMetric());
+        }
+        return payload;
+    }
+
+    private static byte[] encode(SparkplugBPayload payload) throws Exception {
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+}
@@ -0,0 +1,96 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RateLimitedLoggerTest {
+
+    // Logging calls as "level: format [args]"
+    private final List<String> calls = new ArrayList<>();
+    private final Logger logger = (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(),
+        new Class<?>[] {Logger.class}, (proxy, method, args) -> {
+            if (method.getName().startsWith("is")) {
+                return true;
+            }
+            if (method.getName().equals("warn") || method.getName().equals("error")) {
+                List<Object> rest = new ArrayList<>();
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i] instanceof Object[]) {
+                        rest.addAll(Arrays.asList((Object[]) args[i]));
+                    } else {
+                        rest.add(args[i]);
+                    }
+                }
+                calls.add(method.getName() + ": " + args[0] + " " + rest);
+            }
+            return null;
+        });
+
+    @Test
+    public void testSuppressesWithinInterval() throws Exception {
+        RateLimitedLogger warnings = new RateLimitedLogger(logger, 50, RateLimitedLogger.StackTraces.FIRST);
+        for (int i = 0; i < 5; i++) {
+            warnings.warn("default-device", "No device for {}", "m" + i);
+        }
+        warnings.warn("other", "Other warning");
+
+        assertEquals(Arrays.asList("warn: No device for {} [m0]", "warn: Other warning []"), calls);
+        assertEquals(4, warnings.suppressedCount());
+
+        Thread.sleep(60);
+        warnings.warn("default-device", "No device for {}", "m5");
+        assertEquals("warn: No device for {} ({} similar messages suppressed) [m5, 4]", calls.get(2));
+
+        Thread.sleep(60);
+        warnings.warn("default-device", "No device for {}", "m6");
+        assertEquals("warn: No device for {} [m6]", calls.get(3));
+    }
+
+    @Test
+    public void testZeroIntervalLogsEverything() {
+        RateLimitedLogger warnings = new RateLimitedLogger(logger, 0, RateLimitedLogger.StackTraces.ALWAYS);
+        for (int i = 0; i < 3; i++) {
+            warnings.warn("key", "Warning {} {}", i, "x");
+        }
+        assertEquals(3, calls.size());
+        assertEquals(0, warnings.suppressedCount());
+    }
+
+    @Test
+    public void testStackTraceOnlyTheFirstTime() {
+        RateLimitedLogger warnings = new RateLimitedLogger(logger, 0, RateLimitedLogger.StackTraces.FIRST);
+        IllegalStateException error = new IllegalStateException("boom");
+        warnings.error("failure", "Error in {}: {}", "m1", "boom", error);
+        warnings.error("failure", "Error in {}: {}", "m2", "boom", error);
+        warnings.error("other", "Error: {}", "boom", error);
+
+        assertEquals("error: Error in {}: {} [m1, boom, " + error + "]", calls.get(0));
+        assertEquals("error: Error in {}: {} [m2, boom]", calls.get(1));
+        assertEquals("error: Error: {} [boom, " + error + "]", calls.get(2));
+    }
+
+    @Test
+    public void testNeverLogsStackTraces() {
+        RateLimitedLogger warnings = new RateLimitedLogger(logger, 0, RateLimitedLogger.StackTraces.NEVER);
+        warnings.error("failure", "Error: {}", "boom", new IllegalStateException("boom"));
+        assertEquals("error: Error: {} [boom]", calls.get(0));
+    }
+
+    @Test
+    public void testKeysAreBounded() {
+        RateLimitedLogger warnings = new RateLimitedLogger(logger, 60000, RateLimitedLogger.StackTraces.FIRST);
+        for (int i = 0; i < RateLimitedLogger.MAX_KEYS + 10; i++) {
+            warnings.warn("key" + i, "Warning");
+        }
+        // Keys beyond the bound share one slot, so only the first of them is logged
+        assertEquals(RateLimitedLogger.MAX_KEYS + 1, calls.size());
+        assertEquals(9, warnings.suppressedCount());
+    }
+}
@@ -0,0 +1,188 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ReplayToolTest {
+
+    private static final long T0 = 1700000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsSpanningMappings() throws Exception {
+        Path capture = folder.newFile("capture.bin").toPath();
+        byte[] large = new byte[300];
+        Arrays.fill(large, (byte) 7);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(capture))) {
+            CaptureFile.write(out, "spBv1.0/Factory/NDATA/Edge1", new byte[] {1, 2, 3});
+            CaptureFile.write(out, null, new byte[] {4});
+            // Larger than the mapping
+            CaptureFile.write(out, "spBv1.0/Factory/NDATA/Edge2", large);
+            CaptureFile.write(out, "spBv1.0/Factory/NDATA/Edge1", new byte[0]);
+        }
+        List<String> topics = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+
+        long records = CaptureFile.read(capture, (topic, payload) -> {
+            topics.add(topic);
+            sizes.add(payload.readableBytes());
+            if (payload.readableBytes() == 300) {
+                assertEquals(7, payload.getByte(299));
+            }
+        }, 40);
+
+        assertEquals(4, records);
+        assertEquals(Arrays.asList("spBv1.0/Factory/NDATA/Edge1", null, "spBv1.0/Factory/NDATA/Edge2",
+            "spBv1.0/Factory/NDATA/Edge1"), topics);
+        assertEquals(Arrays.asList(3, 1, 300, 0), sizes);
+    }
+
+    @Test
+    public void testTruncatedCaptureFails() throws Exception {
+        Path capture = folder.newFile("truncated.bin").toPath();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(capture))) {
+            CaptureFile.write(out, "spBv1.0/Factory/NDATA/Edge1", new byte[] {1, 2, 3});
+            out.writeInt(10);
+        }
+        List<String> topics = new ArrayList<>();
+
+        try {
+            CaptureFile.read(capture, (topic, payload) -> topics.add(topic));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Truncated capture record at byte 38"));
+        }
+        assertEquals(1, topics.size());
+    }
+
+    @Test
+    public void testReplayWritesDeviceAlignedCsv() throws Exception {
+        Path capture = folder.newFile("backfill.bin").toPath();
+        try (OutputStream file = Files.newOutputStream(capture);
+             DataOutputStream out = new DataOutputStream(file)) {
+            for (String edge : Arrays.asList("Edge1", "Edge2", "Edge3")) {
+                CaptureFile.write(out, "spBv1.0/Factory/NBIRTH/" + edge, payload(0, true, 1.5));
+            }
+            for (int seq = 1; seq <= 20; seq++) {
+                for (String edge : Arrays.asList("Edge1", "Edge2", "Edge3")) {
+                    CaptureFile.write(out, "spBv1.0/Factory/NDATA/" + edge, payload(seq, false, seq + 0.25));
+                }
+            }
+        }
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            CustomizedSparkplugPayloadFormatter formatter =
+                new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+            Path output = folder.newFolder(decoder.name()).toPath();
+
+            ReplayTool.Summary summary = ReplayTool.replay(formatter, Collections.singletonList(capture), output, 2);
+
+            assertEquals(63, summary.records);
+            // Births carry bdSeq, the temperature and the mode; data messages the last two by alias
+            assertEquals(3 * 3 + 60 * 2, summary.samples);
+            assertEquals(summary.samples, summary.messages);
+            assertEquals(Files.size(capture), summary.bytes);
+            assertTrue(summary.recordsPerSecond() > 0);
+            assertEquals(0, formatter.getStats().getUnknownAliases());
+
+            // One file per edge node's device path, each with a header of its own measurements
+            Map<String, List<String>> files = csvFiles(output);
+            assertEquals(3, summary.files);
+            assertEquals(3, files.size());
+            List<String> rows = new ArrayList<>();
+            for (List<String> lines : files.values()) {
+                assertTrue(lines.get(0), lines.get(0).startsWith(ReplayTool.HEADER_PREFIX + ","));
+                assertTrue(lines.get(0), lines.get(0).endsWith(",temperature,mode"));
+                rows.addAll(lines.subList(1, lines.size()));
+            }
+            assertEquals(summary.messages, rows.size());
+            assertTrue(rows.contains((T0 + 20) + ",root.mqtt.sparkplugb.factory.edge2,,20.250000,"));
+            // Values with commas and quotes are quoted
+            assertTrue(rows.contains((T0 + 20) + ",root.mqtt.sparkplugb.factory.edge2,,,\"Auto,_\"\"fast\"\"\""));
+            // Rows written before a measurement first appeared get its empty cell too
+            int births = 0;
+            for (String row : rows) {
+                births += row.matches("\\d+,root\\.mqtt\\.sparkplugb\\.factory\\.edge\\d,0,,") ? 1 : 0;
+            }
+            assertEquals(3, births);
+        }
+    }
+
+    @Test
+    public void testTypedValuesInHeader() throws Exception {
+        Path capture = folder.newFile("typed.bin").toPath();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(capture))) {
+            CaptureFile.write(out, "spBv1.0/Factory/NBIRTH/Edge1", payload(0, true, 1.5));
+            CaptureFile.write(out, "spBv1.0/Factory/NDATA/Edge1", payload(1, false, 2.5));
+        }
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+        Path output = folder.newFolder("typed").toPath();
+
+        ReplayTool.replay(formatter, Collections.singletonList(capture), output, 1);
+
+        List<String> lines = Files.readAllLines(output.resolve("part-0-0.csv"), StandardCharsets.UTF_8);
+        assertTrue(lines.get(0), lines.get(0).endsWith(",temperature(DOUBLE),mode(TEXT)"));
+        assertTrue(lines.contains((T0 + 1) + ",root.mqtt.sparkplugb.factory.edge1,,2.5,"));
+        // Spool files are removed once the CSV is written
+        assertEquals(1, csvFiles(output).size());
+        try (Stream<Path> files = Files.list(output)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    private static Map<String, List<String>> csvFiles(Path output) throws IOException {
+        Map<String, List<String>> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(output)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith("part-") && name.endsWith(".csv")) {
+                    files.put(name, Files.readAllLines(path, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return files;
+    }
+
+    // A birth declares the metrics with aliases, data messages send the aliases only
+    private static byte[] payload(long seq, boolean birth, double temperature) throws Exception {
+        Date date = new Date(T0 + seq);
+        SparkplugBPayload payload = new SparkplugBPayload(date, new ArrayList<Metric>(), seq, null, null);
+        if (birth) {
+            payload.addMetric(new Metric.MetricBuilder("bdSeq", MetricDataType.Int64, 0L).createMetric());
+        }
+        payload.addMetric(new Metric.MetricBuilder(birth ? "Temperature" : null, MetricDataType.Double, temperature)
+            .alias(1L).timestamp(date).createMetric());
+        payload.addMetric(new Metric.MetricBuilder(birth ? "Mode" : null, MetricDataType.String, "Auto, \"fast\"")
+            .alias(2L).timestamp(date).createMetric());
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+}
@@ -0,0 +1,218 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SequenceTrackerTest {
+
+    private static final String NBIRTH = "spBv1.0/Factory/NBIRTH/Edge1";
+    private static final String NDATA = "spBv1.0/Factory/NDATA/Edge1";
+    private static final String NDEATH = "spBv1.0/Factory/NDEATH/Edge1";
+    private static final String DDATA = "spBv1.0/Factory/DDATA/Edge1/Press1";
+
+    private final SequenceTracker tracker = new SequenceTracker();
+
+    @Test
+    public void testInSequenceWithWrapAround() {
+        SequenceTracker.Node node = tracker.node("Factory/Edge1");
+        assertFalse(tracker.birth(node, 0, 3));
+        for (int i = 1; i < 600; i++) {
+            assertFalse("seq " + (i & 0xFF), tracker.message(node, i & 0xFF));
+        }
+        assertEquals(0, tracker.gapCount());
+        assertEquals(0, tracker.outOfOrderCount());
+        assertSame(node, tracker.node("Factory/Edge1"));
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void testGapsAndOutOfOrder() {
+        SequenceTracker.Node node = tracker.node("Factory/Edge1");
+        tracker.birth(node, 0, 0);
+        tracker.message(node, 1);
+        // 2, 3 and 4 lost
+        assertTrue(tracker.message(node, 5));
+        assertEquals(1, tracker.gapCount());
+        assertEquals(3, tracker.missedMessageCount());
+        // 3 arrives late, then 5 again; neither moves the expected seq
+        assertTrue(tracker.message(node, 3));
+        assertTrue(tracker.message(node, 5));
+        assertEquals(2, tracker.outOfOrderCount());
+        assertFalse(tracker.message(node, 6));
+        // A jump of more than half the range looks like a late payload
+        assertTrue(tracker.message(node, 200));
+        assertEquals(3, tracker.outOfOrderCount());
+        for (int seq = 7; seq <= 249; seq++) {
+            assertFalse(tracker.message(node, seq));
+        }
+        // Gap across the wrap: 250 .. 255, 0 and 1 lost
+        assertTrue(tracker.message(node, 2));
+        assertEquals(2, tracker.gapCount());
+        assertEquals(3 + 8, tracker.missedMessageCount());
+        assertEquals(node.missedMessages(), tracker.missedMessageCount());
+        assertEquals(2, node.gaps());
+        assertEquals(3, node.outOfOrder());
+    }
+
+    @Test
+    public void testMissingOrInvalidSeqIsNotChecked() {
+        SequenceTracker.Node node = tracker.node("Factory/Edge1");
+        assertFalse(tracker.message(node, 7));
+        assertFalse(tracker.message(node, -1));
+        assertFalse(tracker.message(node, 256));
+        assertFalse(tracker.message(node, 8));
+        assertEquals(0, tracker.gapCount() + tracker.outOfOrderCount());
+    }
+
+    @Test
+    public void testRebirthsRestartsAndStaleDeaths() {
+        SequenceTracker.Node node = tracker.node("Factory/Edge1");
+        assertFalse(tracker.birth(node, 0, 1));
+        tracker.message(node, 1);
+        // Rebirth requested by the host: same session
+        assertTrue(tracker.birth(node, 0, 1));
+        assertFalse(tracker.message(node, 1));
+        assertEquals(1, tracker.rebirthCount());
+
+        // The node reconnected before its will message was delivered
+        assertTrue(tracker.birth(node, 0, 2));
+        assertEquals(1, tracker.restartCount());
+        assertFalse(tracker.death(node, 1));
+        assertEquals(1, tracker.staleDeathCount());
+        assertFalse(tracker.message(node, 1));
+
+        assertTrue(tracker.death(node, 2));
+        assertFalse(tracker.birth(node, 0, 3));
+        // Without bdSeq a death always counts
+        assertTrue(tracker.death(node, -1));
+        assertEquals(2, node.rebirths());
+    }
+
+    @Test
+    public void testConcurrentMessages() throws Exception {
+        SequenceTracker.Node node = tracker.node("Factory/Edge1");
+        tracker.birth(node, 0, 0);
+        AtomicInteger next = new AtomicInteger(1);
+        int threads = 4;
+        int perThread = 10000;
+        CountDownLatch done = new CountDownLatch(threads);
+        Object lock = new Object();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    // Hand out seq values in order so that every payload is in sequence
+                    synchronized (lock) {
+                        tracker.message(node, next.getAndIncrement() & 0xFF);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(0, tracker.gapCount() + tracker.outOfOrderCount());
+    }
+
+    @Test
+    public void testFormatterCountsGaps() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties properties = new Properties();
+            properties.setProperty(FormatterConfig.DECODER, decoder.name());
+            CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+
+            formatter.format(NBIRTH, encode(0L, metric("bdSeq", MetricDataType.Int64, 5L)));
+            formatter.format(NDATA, encode(1L, metric("Uptime", MetricDataType.Int64, 10L)));
+            formatter.format(DDATA, encode(4L, metric("Temperature", MetricDataType.Double, 20.0)));
+            formatter.format(DDATA, encode(2L, metric("Temperature", MetricDataType.Double, 20.5)));
+
+            FormatterStats stats = formatter.getStats();
+            assertEquals(decoder.name(), 1, stats.getSequenceGaps());
+            assertEquals(decoder.name(), 2, stats.getMissedMessages());
+            assertEquals(decoder.name(), 1, stats.getOutOfOrderMessages());
+        }
+    }
+
+    @Test
+    public void testStaleDeathKeepsAliases() throws Exception {
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(FormatterConfig.defaults());
+        formatter.format(NBIRTH, encode(0L, metric("bdSeq", MetricDataType.Int64, 1L)));
+        // Reconnect: the new session's birth arrives before the old session's will message
+        formatter.format(NBIRTH, encode(0L, metric("bdSeq", MetricDataType.Int64, 2L),
+            aliasedMetric("Uptime", 7, 10L)));
+        formatter.format(NDEATH, encode(null, metric("bdSeq", MetricDataType.Int64, 1L)));
+
+        List<Message> data = formatter.format(NDATA, encode(1L,
+            new Metric.MetricBuilder(7L, MetricDataType.Int64, 11L).createMetric()));
+        assertEquals(1, data.size());
+        assertEquals("uptime", data.get(0).getMeasurements().get(0));
+        assertEquals(1, formatter.getStats().getRestarts());
+        assertEquals(1, formatter.getStats().getStaleDeaths());
+
+        // The current session's death discards them
+        formatter.format(NDEATH, encode(null, metric("bdSeq", MetricDataType.Int64, 2L)));
+        assertTrue(formatter.format(NDATA, encode(2L,
+            new Metric.MetricBuilder(7L, MetricDataType.Int64, 12L).createMetric())).isEmpty());
+    }
+
+    @Test
+    public void testStatusSeries() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.SEQUENCE_STATUS_SERIES, "true");
+        properties.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+
+        formatter.format(NBIRTH, encode(0L, metric("bdSeq", MetricDataType.Int64, 0L)));
+        assertEquals(1, formatter.format(NDATA, encode(1L, metric("Uptime", MetricDataType.Int64, 10L))).size());
+
+        List<Message> messages = formatter.format(DDATA, encode(5L, metric("Temperature", MetricDataType.Double, 20.0)));
+        assertEquals(2, messages.size());
+        Message status = messages.get(1);
+        assertEquals("root.mqtt.sparkplugb.factory.edge1", status.getDevice());
+        assertEquals(Arrays.asList("sparkplug_seq_gaps", "sparkplug_missed_messages", "sparkplug_out_of_order",
+            "sparkplug_rebirths"), status.getMeasurements());
+        assertEquals(Arrays.asList("1", "3", "0", "0"), status.getValues());
+        assertEquals(TSDataType.INT64, status.getDataTypes().get(0));
+    }
+
+    @Test
+    public void testTrackingDisabled() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.SEQUENCE_TRACKING, "false");
+        CustomizedSparkplugPayloadFormatter formatter = new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+        formatter.format(NBIRTH, encode(0L, metric("bdSeq", MetricDataType.Int64, 0L)));
+        formatter.format(NDATA, encode(9L, metric("Uptime", MetricDataType.Int64, 10L)));
+        assertEquals(0, formatter.getStats().getSequenceGaps());
+    }
+
+    private static Metric metric(String name, MetricDataType type, Object value) throws Exception {
+        return new Metric.MetricBuilder(name, type, value).createMetric();
+    }
+
+    private static Metric aliasedMetric(String name, long alias, Object value) throws Exception {
+        return new Metric.MetricBuilder(name, MetricDataType.Int64, value).alias(alias).createMetric();
+    }
+
+    private static ByteBuf encode(Long seq, Metric... metrics) throws Exception {
+        SparkplugBPayload payload = new SparkplugBPayload(new Date(), new ArrayList<Metric>(), seq, null, null);
+        for (Metric metric : metrics) {
+            payload.addMetric(metric);
+        }
+        return Unpooled.wrappedBuffer(new SparkplugBPayloadEncoder().getBytes(payload, false));
+    }
+}
@@ -0,0 +1,415 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestMessages.assertMessagesEqual;
+import static org.junit.Assert.*;
+
+public class SparkplugStreamDecoderTest {
+
+    private static final String[] PROPERTY_KEYS = {
+        "group", "edge", "device", "GroupID", "EdgeNodeID", "AgentID", "engUnit", "quality"
+    };
+    private static final String[] TOPICS = {
+        null, "spBv1.0/Factory/NBIRTH/Edge1", "spBv1.0/Factory/NDATA/Edge1",
+        "spBv1.0/Factory/DBIRTH/Edge1/Press1", "spBv1.0/Factory/DDATA/Edge1/Press1"
+    };
+
+    @Test
+    public void testRecordsMatchGeneratedParser() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            SparkplugBProto.Payload payload = randomPayload(random, false);
+            assertRecordsMatch(payload.toByteArray(), payload);
+        }
+    }
+
+    @Test
+    public void testFormattedMessagesMatchGeneratedParser() throws Exception {
+        Random random = new Random(7);
+        for (boolean typed : new boolean[] {false, true}) {
+            CustomizedSparkplugPayloadFormatter generated = formatter(FormatterConfig.Decoder.GENERATED, typed);
+            CustomizedSparkplugPayloadFormatter streaming = formatter(FormatterConfig.Decoder.STREAMING, typed);
+            for (int i = 0; i < 500; i++) {
+                byte[] bytes = randomPayload(random, true).toByteArray();
+                String topic = TOPICS[random.nextInt(TOPICS.length)];
+                List<Message> expected = generated.format(topic, Unpooled.wrappedBuffer(bytes));
+                List<Message> actual = streaming.format(topic, Unpooled.wrappedBuffer(bytes));
+                assertMessagesEqual(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testValuesBeforeKeys() throws Exception {
+        // Keys and values interleaved in the reverse of the canonical order
+        ByteArrayOutputStream properties = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(properties);
+        out.writeMessage(2, stringProperty("Plant1"));
+        out.writeMessage(2, SparkplugBProto.Payload.PropertyValue.newBuilder().setType(3).setIntValue(5).build());
+        out.writeMessage(2, stringProperty("Edge1"));
+        out.writeMessage(2, stringProperty("Press1"));
+        out.writeString(1, "group");
+        out.writeString(1, "quality");
+        out.writeString(1, "edge");
+        out.writeString(1, "device");
+        out.flush();
+
+        ByteArrayOutputStream metric = new ByteArrayOutputStream();
+        out = CodedOutputStream.newInstance(metric);
+        out.writeString(1, "Temperature");
+        out.writeUInt32(4, 10);
+        out.writeDouble(13, 1.5);
+        out.writeBytes(9, ByteString.copyFrom(properties.toByteArray()));
+        out.flush();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        out = CodedOutputStream.newInstance(payload);
+        out.writeBytes(2, ByteString.copyFrom(metric.toByteArray()));
+        out.flush();
+
+        byte[] bytes = payload.toByteArray();
+        List<MetricRecord> records = assertRecordsMatch(bytes, SparkplugBProto.Payload.parseFrom(bytes));
+        assertEquals("Plant1", records.get(0).getDeviceProperty(DevicePropertyKeys.GROUP));
+        assertEquals("Edge1", records.get(0).getDeviceProperty(DevicePropertyKeys.EDGE));
+        assertEquals("Press1", records.get(0).getDeviceProperty(DevicePropertyKeys.DEVICE));
+    }
+
+    @Test
+    public void testRepeatedFieldsMerge() throws Exception {
+        // Concatenated messages merge: scalars keep the last value, property lists are appended
+        SparkplugBProto.Payload first = SparkplugBProto.Payload.newBuilder()
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Temperature").setDatatype(10).setDoubleValue(1.0)
+                .setProperties(SparkplugBProto.Payload.PropertySet.newBuilder()
+                    .addKeys("group").addValues(stringProperty("Plant1"))))
+            .build();
+        byte[] metric = first.getMetrics(0).toByteArray();
+        byte[] update = SparkplugBProto.Payload.Metric.newBuilder()
+            .setIntValue(3).setDatatype(3)
+            .setProperties(SparkplugBProto.Payload.PropertySet.newBuilder()
+                .addKeys("edge").addKeys("device")
+                .addValues(stringProperty("Edge1")).addValues(stringProperty("Press1")))
+            .build().toByteArray();
+        byte[] merged = new byte[metric.length + update.length];
+        System.arraycopy(metric, 0, merged, 0, metric.length);
+        System.arraycopy(update, 0, merged, metric.length, update.length);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(payload);
+        out.writeBytes(2, ByteString.copyFrom(merged));
+        out.flush();
+
+        byte[] bytes = payload.toByteArray();
+        List<MetricRecord> records = assertRecordsMatch(bytes, SparkplugBProto.Payload.parseFrom(bytes));
+        assertEquals(MetricRecord.ValueCase.INT, records.get(0).getValueCase());
+        assertEquals(3, records.get(0).getIntValue());
+        assertEquals("Press1", records.get(0).getDeviceProperty(DevicePropertyKeys.DEVICE));
+    }
+
+    @Test
+    public void testStreamingDecoderFromConfig() throws Exception {
+        SparkplugBProto.Payload payload = SparkplugBProto.Payload.newBuilder()
+            .setTimestamp(1000L)
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Temperature").setTimestamp(1000L).setDatatype(10).setDoubleValue(23.5)
+                .setProperties(SparkplugBProto.Payload.PropertySet.newBuilder()
+                    .addKeys("group").addKeys("edge").addKeys("device")
+                    .addValues(stringProperty("Plant1"))
+                    .addValues(stringProperty("Line1"))
+                    .addValues(stringProperty("Sensor1"))))
+            .build();
+
+        List<Message> messages = formatter(FormatterConfig.Decoder.STREAMING, false)
+            .format(Unpooled.wrappedBuffer(payload.toByteArray()));
+
+        assertEquals(1, messages.size());
+        assertEquals("root.mqtt.sparkplugb.plant1.line1.sensor1", messages.get(0).getDevice());
+        assertEquals("temperature", messages.get(0).getMeasurements().get(0));
+        assertEquals("23.500000", messages.get(0).getValues().get(0));
+    }
+
+    @Test
+    public void testTruncatedPayloadIsRejected() {
+        SparkplugBProto.Payload payload = SparkplugBProto.Payload.newBuilder()
+            .addMetrics(SparkplugBProto.Payload.Metric.newBuilder()
+                .setName("Temperature").setTimestamp(1000L).setDatatype(10).setDoubleValue(23.5))
+            .build();
+        byte[] bytes = payload.toByteArray();
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        List<Message> messages = formatter(FormatterConfig.Decoder.STREAMING, false)
+            .format(Unpooled.wrappedBuffer(truncated));
+
+        assertTrue(messages.isEmpty());
+    }
+
+    private static CustomizedSparkplugPayloadFormatter formatter(FormatterConfig.Decoder decoder, boolean typed) {
+        Properties properties = new Properties();
+        properties.setProperty(FormatterConfig.DECODER, decoder.name());
+        properties.setProperty(FormatterConfig.TYPED_VALUES, String.valueOf(typed));
+        return new CustomizedSparkplugPayloadFormatter(new FormatterConfig(properties));
+    }
+
+    // One decoder for all payloads of a test, like the one each formatter thread keeps
+    private final SparkplugStreamDecoder decoder = new SparkplugStreamDecoder(DevicePropertyKeys.DEFAULT);
+
+    private List<MetricRecord> assertRecordsMatch(byte[] bytes, SparkplugBProto.Payload payload) throws Exception {
+        List<MetricRecord> decoded = null;
+        ByteBuf direct = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+        try {
+            for (ByteBuf buffer : new ByteBuf[] {Unpooled.wrappedBuffer(bytes), direct}) {
+                List<MetricRecord> records = new ArrayList<>();
+                int count = decoder.decode(buffer, metric -> records.add(snapshot(metric)));
+
+                assertEquals(payload.getMetricsCount(), count);
+                assertEquals(payload.hasSeq() ? payload.getSeq() : -1, decoder.seq());
+                assertEquals(count, decoder.countMetrics(buffer));
+                for (int i = 0; i < count; i++) {
+                    MetricRecord expected = new MetricRecord().copyFrom(payload.getMetrics(i), DevicePropertyKeys.DEFAULT);
+                    assertRecordEquals(expected, records.get(i));
+                }
+                decoded = records;
+            }
+        } finally {
+            direct.release();
+        }
+        return decoded;
+    }
+
+    private static MetricRecord snapshot(MetricRecord metric) {
+        MetricRecord copy = new MetricRecord();
+        copy.reset();
+        if (metric.hasName()) {
+            copy.setName(metric.getName());
+        }
+        if (metric.hasAlias()) {
+            copy.setAlias(metric.getAlias());
+        }
+        copy.setTimestamp(metric.getTimestamp());
+        if (metric.hasDatatype()) {
+            copy.setDatatype(metric.getDatatype());
+        }
+        copy.setNull(metric.isNull());
+        switch (metric.getValueCase()) {
+            case INT:
+                copy.setIntValue(metric.getIntValue());
+                break;
+            case LONG:
+                copy.setLongValue(metric.getLongValue());
+                break;
+            case FLOAT:
+                copy.setFloatValue(metric.getFloatValue());
+                break;
+            case DOUBLE:
+                copy.setDoubleValue(metric.getDoubleValue());
+                break;
+            case BOOLEAN:
+                copy.setBooleanValue(metric.getBooleanValue());
+                break;
+            case STRING:
+                copy.setStringValue(metric.getStringValue());
+                break;
+            case BYTES:
+                copy.setBytesValue(copyOf(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength()),
+                    0, metric.getRawLength());
+                break;
+            case DATASET:
+                copy.setDataSetValue(copyOf(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength()),
+                    0, metric.getRawLength());
+                break;
+            case TEMPLATE:
+                copy.setTemplateValue(copyOf(metric.getRawBuffer(), metric.getRawIndex(), metric.getRawLength()),
+                    0, metric.getRawLength());
+                break;
+            case OTHER:
+                copy.setOtherValue();
+                break;
+            default:
+                break;
+        }
+        for (int role = DevicePropertyKeys.GROUP; role <= DevicePropertyKeys.DEVICE; role++) {
+            copy.setDeviceProperty(role, metric.getDeviceProperty(role));
+        }
+        return copy;
+    }
+
+    private static ByteBuf copyOf(ByteBuf buffer, int index, int length) {
+        return Unpooled.copiedBuffer(buffer.slice(index, length));
+    }
+
+    // Bytes, dataset and template values in wire format, whichever way the record holds them
+    private static ByteString rawBytes(MetricRecord metric) {
+        if (metric.getDataSetValue() != null) {
+            return metric.getDataSetValue().toByteString();
+        }
+        if (metric.getTemplateValue() != null) {
+            return metric.getTemplateValue().toByteString();
+        }
+        if (metric.getRawBuffer() == null) {
+            return ByteString.EMPTY;
+        }
+        byte[] bytes = new byte[metric.getRawLength()];
+        metric.getRawBuffer().getBytes(metric.getRawIndex(), bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static void assertRecordEquals(MetricRecord expected, MetricRecord actual) {
+        assertEquals(expected.hasName(), actual.hasName());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.hasAlias(), actual.hasAlias());
+        assertEquals(expected.getAlias(), actual.getAlias());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.hasDatatype(), actual.hasDatatype());
+        assertEquals(expected.getDatatype(), actual.getDatatype());
+        assertEquals(expected.isNull(), actual.isNull());
+        assertEquals(expected.getValueCase(), actual.getValueCase());
+        assertEquals(expected.getIntValue(), actual.getIntValue());
+        assertEquals(expected.getLongValue(), actual.getLongValue());
+        assertEquals(Float.floatToIntBits(expected.getFloatValue()), Float.floatToIntBits(actual.getFloatValue()));
+        assertEquals(Double.doubleToLongBits(expected.getDoubleValue()),
+            Double.doubleToLongBits(actual.getDoubleValue()));
+        assertEquals(expected.getBooleanValue(), actual.getBooleanValue());
+        assertEquals(expected.getStringValue(), actual.getStringValue());
+        assertEquals(rawBytes(expected), rawBytes(actual));
+        for (int role = DevicePropertyKeys.GROUP; role <= DevicePropertyKeys.DEVICE; role++) {
+            assertEquals(expected.getDeviceProperty(role), actual.getDeviceProperty(role));
+        }
+    }
+
+    // Metrics with a random mix of the fields the formatter reads and the ones it skips.
+    // With fixedTimestamps every metric carries a timestamp, so messages never fall back to the clock.
+    private static SparkplugBProto.Payload randomPayload(Random random, boolean fixedTimestamps) {
+        SparkplugBProto.Payload.Builder payload = SparkplugBProto.Payload.newBuilder();
+        if (random.nextBoolean()) {
+            payload.setTimestamp(1000L + random.nextInt(1000)).setSeq(random.nextInt(256));
+        }
+        if (random.nextInt(10) == 0) {
+            payload.setUuid("uuid").setBody(ByteString.copyFromUtf8("body"));
+        }
+        int metrics = random.nextInt(6);
+        for (int i = 0; i < metrics; i++) {
+            payload.addMetrics(randomMetric(random, fixedTimestamps));
+        }
+        return payload.build();
+    }
+
+    private static SparkplugBProto.Payload.Metric randomMetric(Random random, boolean fixedTimestamps) {
+        SparkplugBProto.Payload.Metric.Builder metric = SparkplugBProto.Payload.Metric.newBuilder();
+        switch (random.nextInt(8)) {
+            case 0:
+                break;
+            case 1:
+                // Longer than the strings the decoder interns
+                metric.setName("Line 1/Station 4/Press/Hydraulics/Main Cylinder/Pressure Sensor " + random.nextInt(3));
+                break;
+            case 2:
+                // Invalid UTF-8, decoded with replacement characters
+                metric.setNameBytes(ByteString.copyFrom(new byte[] {'T', (byte) 0xC3, (byte) random.nextInt(256)}));
+                break;
+            default:
+                metric.setName(random.nextBoolean() ? "Temp " + random.nextInt(3) : "Pr\u00e9ssure/" + random.nextInt(3));
+                break;
+        }
+        if (random.nextBoolean()) {
+            metric.setAlias(random.nextInt(4));
+        }
+        if (fixedTimestamps || random.nextBoolean()) {
+            metric.setTimestamp(1000L + random.nextInt(1000));
+        }
+        if (random.nextInt(5) != 0) {
+            metric.setDatatype(random.nextInt(20));
+        }
+        if (random.nextInt(4) == 0) {
+            metric.setIsHistorical(random.nextBoolean()).setIsTransient(random.nextBoolean());
+        }
+        if (random.nextInt(6) == 0) {
+            metric.setIsNull(true);
+        }
+        if (random.nextInt(4) == 0) {
+            metric.setMetadata(SparkplugBProto.Payload.MetaData.newBuilder()
+                .setContentType("text/plain").setSize(12).setDescription("skipped"));
+        }
+        switch (random.nextInt(10)) {
+            case 0:
+                metric.setIntValue(random.nextInt());
+                break;
+            case 1:
+                metric.setLongValue(random.nextLong());
+                break;
+            case 2:
+                metric.setFloatValue(random.nextFloat() * 1000 - 500);
+                break;
+            case 3:
+                metric.setDoubleValue(random.nextDouble() * 1000 - 500);
+                break;
+            case 4:
+                metric.setBooleanValue(random.nextBoolean());
+                break;
+            case 5:
+                metric.setStringValue(random.nextBoolean() ? "Running" : "\u00c4 \"quoted\" value");
+                break;
+            case 6:
+                metric.setBytesValue(ByteString.copyFrom(new byte[] {1, 2, 3}));
+                break;
+            case 7:
+                metric.setDatasetValue(SparkplugBProto.Payload.DataSet.newBuilder()
+                    .setNumOfColumns(1).addColumns("c").addTypes(3));
+                break;
+            default:
+                break;
+        }
+        if (random.nextInt(3) != 0) {
+            metric.setProperties(randomProperties(random));
+        }
+        return metric.build();
+    }
+
+    private static SparkplugBProto.Payload.PropertySet randomProperties(Random random) {
+        SparkplugBProto.Payload.PropertySet.Builder properties = SparkplugBProto.Payload.PropertySet.newBuilder();
+        int keys = random.nextInt(6);
+        for (int i = 0; i < keys; i++) {
+            properties.addKeys(PROPERTY_KEYS[random.nextInt(PROPERTY_KEYS.length)]);
+        }
+        // Occasionally more or fewer values than keys
+        int values = Math.max(0, keys + random.nextInt(3) - 1);
+        for (int i = 0; i < values; i++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    properties.addValues(SparkplugBProto.Payload.PropertyValue.newBuilder()
+                        .setType(3).setIntValue(random.nextInt(100)));
+                    break;
+                case 1:
+                    // String typed, but the value oneof holds something else
+                    properties.addValues(SparkplugBProto.Payload.PropertyValue.newBuilder()
+                        .setType(12).setLongValue(7L));
+                    break;
+                case 2:
+                    properties.addValues(SparkplugBProto.Payload.PropertyValue.newBuilder()
+                        .setType(12).setIsNull(true));
+                    break;
+                default:
+                    properties.addValues(stringProperty("Node " + random.nextInt(3)));
+                    break;
+            }
+        }
+        return properties.build();
+    }
+
+    private static SparkplugBProto.Payload.PropertyValue stringProperty(String value) {
+        return SparkplugBProto.Payload.PropertyValue.newBuilder().setType(12).setStringValue(value).build();
+    }
+}
@@ -0,0 +1,211 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.tahu.protobuf.SparkplugBProto;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TemplateTest {
+
+    private static final String NBIRTH = "spBv1.0/Factory/NBIRTH/Edge1";
+    private static final String NDATA = "spBv1.0/Factory/NDATA/Edge1";
+    private static final String NDEATH = "spBv1.0/Factory/NDEATH/Edge1";
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1";
+    private static final long TIMESTAMP = 1700000000000L;
+
+    @Test
+    public void testBirthDefinitionsResolveDataMemberTypes() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, new Properties());
+
+            List<Message> birth = format(formatter, NBIRTH, definitions(instance("Motor1", "Motor",
+                member("Speed", 10, 1500.0),
+                member("Running", 11, true),
+                nested("Bearing", 19, null, member("Temp", 9, 35.5f)))));
+
+            // bdSeq, then a message per member; definitions are not written
+            assertEquals(decoder.name(), 4, birth.size());
+            assertMessage(birth.get(1), DEVICE + ".motor1", TIMESTAMP, Arrays.asList("speed"),
+                Arrays.asList(TSDataType.DOUBLE), Arrays.asList("1500.0"));
+            assertMessage(birth.get(2), DEVICE + ".motor1", TIMESTAMP, Arrays.asList("running"),
+                Arrays.asList(TSDataType.BOOLEAN), Arrays.asList("true"));
+            assertMessage(birth.get(3), DEVICE + ".motor1.bearing", TIMESTAMP, Arrays.asList("temp"),
+                Arrays.asList(TSDataType.FLOAT), Arrays.asList("35.5"));
+
+            // Only the members that changed, without datatypes; the nested instance has no template_ref either
+            List<Message> data = format(formatter, NDATA, instance("Motor1", "Motor",
+                member("Speed", null, 1520.0),
+                nested("Bearing", null, null, member("Temp", null, 36.0f))));
+
+            assertEquals(decoder.name(), 2, data.size());
+            assertMessage(data.get(0), DEVICE + ".motor1", TIMESTAMP, Arrays.asList("speed"),
+                Arrays.asList(TSDataType.DOUBLE), Arrays.asList("1520.0"));
+            assertMessage(data.get(1), DEVICE + ".motor1.bearing", TIMESTAMP, Arrays.asList("temp"),
+                Arrays.asList(TSDataType.FLOAT), Arrays.asList("36.0"));
+            assertEquals(0, formatter.getStats().getUnknownDatatypes());
+        }
+    }
+
+    @Test
+    public void testDeathAndRebirthDiscardDefinitions() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, new Properties());
+            SparkplugBProto.Payload.Metric.Builder data = instance("Motor1", "Motor", member("Speed", null, 1520.0));
+
+            format(formatter, NBIRTH, definitions());
+            assertEquals(1, format(formatter, NDATA, data).size());
+
+            format(formatter, NDEATH, bdSeq());
+            assertTrue(format(formatter, NDATA, data).isEmpty());
+            assertEquals(1, formatter.getStats().getUnknownDatatypes());
+
+            format(formatter, NBIRTH, definitions());
+            assertEquals(1, format(formatter, NDATA, data).size());
+            // A rebirth without the definition replaces the one of the previous session
+            format(formatter, NBIRTH, bdSeq());
+            assertTrue(format(formatter, NDATA, data).isEmpty());
+            assertEquals(2, formatter.getStats().getUnknownDatatypes());
+        }
+    }
+
+    @Test
+    public void testMembersWithDatatypesWithoutDefinitions() throws Exception {
+        Properties config = new Properties();
+        config.setProperty(FormatterConfig.TEMPLATE_DEFINITIONS, "false");
+
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, config);
+
+            assertEquals(Arrays.asList("bd_seq"), format(formatter, NBIRTH, definitions()).get(0).getMeasurements());
+            List<Message> data = format(formatter, NDATA, instance("Motor1", "Motor",
+                member("Speed", null, 1520.0),
+                member("Running", 11, false)));
+
+            assertEquals(1, data.size());
+            assertEquals(Arrays.asList("running"), data.get(0).getMeasurements());
+            assertEquals(1, formatter.getStats().getUnknownDatatypes());
+        }
+    }
+
+    @Test
+    public void testMemberTimestampsAndDeepNesting() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            CustomizedSparkplugPayloadFormatter formatter = formatter(decoder, new Properties());
+            SparkplugBProto.Payload.Metric.Builder stamped = member("Speed", 10, 1.0).setTimestamp(TIMESTAMP + 5);
+            SparkplugBProto.Payload.Metric.Builder deep = member("Level", 3, 1);
+            for (int i = 0; i < 20; i++) {
+                deep = nested("Level" + i, 19, null, deep);
+            }
+
+            List<Message> messages = format(formatter, NDATA, instance("Motor1", null, stamped, deep));
+
+            // Nesting stops at the depth limit, the rest of the instance is still written
+            assertEquals(1, messages.size());
+            assertEquals(Long.valueOf(TIMESTAMP + 5), messages.get(0).getTimestamp());
+            assertEquals(1, formatter.getStats().getConversionErrors());
+        }
+    }
+
+    private static CustomizedSparkplugPayloadFormatter formatter(FormatterConfig.Decoder decoder, Properties base) {
+        Properties config = new Properties();
+        config.putAll(base);
+        config.setProperty(FormatterConfig.DECODER, decoder.name());
+        config.setProperty(FormatterConfig.TYPED_VALUES, "true");
+        return new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+    }
+
+    private static void assertMessage(Message message, String device, long timestamp, List<String> measurements,
+                                      List<TSDataType> dataTypes, List<String> values) {
+        assertEquals(device, message.getDevice());
+        assertEquals(Long.valueOf(timestamp), message.getTimestamp());
+        assertEquals(measurements, message.getMeasurements());
+        assertEquals(dataTypes, message.getDataTypes());
+        assertEquals(values, message.getValues());
+    }
+
+    private static List<Message> format(CustomizedSparkplugPayloadFormatter formatter, String topic,
+                                        SparkplugBProto.Payload.Metric.Builder... metrics) {
+        SparkplugBProto.Payload.Builder payload = SparkplugBProto.Payload.newBuilder().setTimestamp(TIMESTAMP).setSeq(0);
+        for (SparkplugBProto.Payload.Metric.Builder metric : metrics) {
+            payload.addMetrics(metric);
+        }
+        return formatter.format(topic, Unpooled.wrappedBuffer(payload.build().toByteArray()));
+    }
+
+    // A birth certificate declaring the Motor and Bearing definitions, followed by the given metrics
+    private static SparkplugBProto.Payload.Metric.Builder[] definitions(SparkplugBProto.Payload.Metric.Builder... more) {
+        List<SparkplugBProto.Payload.Metric.Builder> metrics = new ArrayList<>(Arrays.asList(
+            bdSeq(),
+            definition("_types_/Motor",
+                member("Speed", 10, 0.0),
+                member("Running", 11, false),
+                nested("Bearing", 19, "Bearing")),
+            definition("_types_/Bearing", member("Temp", 9, 0.0f))));
+        metrics.addAll(Arrays.asList(more));
+        return metrics.toArray(new SparkplugBProto.Payload.Metric.Builder[0]);
+    }
+
+    private static SparkplugBProto.Payload.Metric.Builder bdSeq() {
+        return member("bdSeq", 4, 0L);
+    }
+
+    private static SparkplugBProto.Payload.Metric.Builder definition(String name,
+                                                                     SparkplugBProto.Payload.Metric.Builder... members) {
+        SparkplugBProto.Payload.Template.Builder template = SparkplugBProto.Payload.Template.newBuilder()
+            .setIsDefinition(true);
+        for (SparkplugBProto.Payload.Metric.Builder member : members) {
+            template.addMetrics(member);
+        }
+        return SparkplugBProto.Payload.Metric.newBuilder().setName(name).setDatatype(19).setTemplateValue(template);
+    }
+
+    private static SparkplugBProto.Payload.Metric.Builder instance(String name, String templateRef,
+                                                                   SparkplugBProto.Payload.Metric.Builder... members) {
+        return nested(name, 19, templateRef, members).setTimestamp(TIMESTAMP);
+    }
+
+    private static SparkplugBProto.Payload.Metric.Builder nested(String name, Integer datatype, String templateRef,
+                                                                 SparkplugBProto.Payload.Metric.Builder... members) {
+        SparkplugBProto.Payload.Template.Builder template = SparkplugBProto.Payload.Template.newBuilder();
+        if (templateRef != null) {
+            template.setTemplateRef(templateRef);
+        }
+        for (SparkplugBProto.Payload.Metric.Builder member : members) {
+            template.addMetrics(member);
+        }
+        SparkplugBProto.Payload.Metric.Builder metric = SparkplugBProto.Payload.Metric.newBuilder()
+            .setName(name).setTemplateValue(template);
+        if (datatype != null) {
+            metric.setDatatype(datatype);
+        }
+        return metric;
+    }
+
+    // Template members carry no timestamp unless they differ from the instance
+    private static SparkplugBProto.Payload.Metric.Builder member(String name, Integer datatype, Object value) {
+        SparkplugBProto.Payload.Metric.Builder metric = SparkplugBProto.Payload.Metric.newBuilder().setName(name);
+        if (datatype != null) {
+            metric.setDatatype(datatype);
+        }
+        if (value instanceof Double) {
+            metric.setDoubleValue((Double) value);
+        } else if (value instanceof Float) {
+            metric.setFloatValue((Float) value);
+        } else if (value instanceof Boolean) {
+            metric.setBooleanValue((Boolean) value);
+        } else if (value instanceof Long) {
+            metric.setLongValue((Long) value);
+        } else {
+            metric.setIntValue((Integer) value);
+        }
+        return metric;
+    }
+}
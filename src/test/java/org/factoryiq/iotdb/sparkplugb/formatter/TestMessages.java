@@ -0,0 +1,27 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.apache.iotdb.db.protocol.mqtt.Message;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/** Assertions on the messages handed to IoTDB, shared by the tests that compare two ways of formatting. */
+final class TestMessages {
+
+    private TestMessages() {
+    }
+
+    /** Asserts that both lists hold the same rows, data types included, in the same order. */
+    static void assertMessagesEqual(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            String row = "message " + i;
+            assertEquals(row, expected.get(i).getDevice(), actual.get(i).getDevice());
+            assertEquals(row, expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(row, expected.get(i).getMeasurements(), actual.get(i).getMeasurements());
+            assertEquals(row, expected.get(i).getDataTypes(), actual.get(i).getDataTypes());
+            assertEquals(row, expected.get(i).getValues(), actual.get(i).getValues());
+        }
+    }
+}
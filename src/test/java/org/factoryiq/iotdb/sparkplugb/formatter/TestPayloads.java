@@ -0,0 +1,41 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import org.eclipse.tahu.message.SparkplugBPayloadEncoder;
+import org.eclipse.tahu.message.model.Metric;
+import org.eclipse.tahu.message.model.MetricDataType;
+import org.eclipse.tahu.message.model.SparkplugBPayload;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/** Builds the small publishes of a few named metrics that the filter and store tests feed to a formatter. */
+final class TestPayloads {
+
+    private TestPayloads() {
+    }
+
+    /** Encodes a payload of {@code metrics}, the payload and every metric stamped with {@code timestamp}. */
+    static byte[] publish(long timestamp, Metric.MetricBuilder... metrics) throws Exception {
+        Date date = new Date(timestamp);
+        SparkplugBPayload payload = new SparkplugBPayload(date, new ArrayList<Metric>(), 0L, null, null);
+        for (Metric.MetricBuilder metric : metrics) {
+            payload.addMetric(metric.timestamp(date).createMetric());
+        }
+        return new SparkplugBPayloadEncoder().getBytes(payload, false);
+    }
+
+    /** A Double, Boolean or String metric, typed after its value. */
+    static Metric.MetricBuilder metric(String name, Object value) throws Exception {
+        MetricDataType type;
+        if (value instanceof Double) {
+            type = MetricDataType.Double;
+        } else if (value instanceof Boolean) {
+            type = MetricDataType.Boolean;
+        } else if (value instanceof String) {
+            type = MetricDataType.String;
+        } else {
+            throw new IllegalArgumentException("No metric type for " + value);
+        }
+        return new Metric.MetricBuilder(name, type, value);
+    }
+}
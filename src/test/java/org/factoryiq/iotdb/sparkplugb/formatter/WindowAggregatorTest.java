@@ -0,0 +1,245 @@
+package org.factoryiq.iotdb.sparkplugb.formatter;
+
+import io.netty.buffer.Unpooled;
+import org.apache.iotdb.db.protocol.mqtt.Message;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.metric;
+import static org.factoryiq.iotdb.sparkplugb.formatter.TestPayloads.publish;
+import static org.junit.Assert.*;
+
+public class WindowAggregatorTest {
+
+    private static final String DEVICE = "root.mqtt.sparkplugb.factory.edge1.press1";
+    private static final String NDATA = "spBv1.0/Factory/NDATA/Edge1";
+    private static final long T0 = 1700000000000L;
+
+    @Test
+    public void testLaterWindowClosesOpenOne() {
+        WindowAggregator aggregator = aggregator(1000, "**", "", 1000);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+
+        assertEquals(WindowAggregator.Mode.AGGREGATE, aggregator.add(DEVICE, "temperature", T0 + 100, 4.0, closed));
+        aggregator.add(DEVICE, "temperature", T0 + 900, 1.0, closed);
+        // Arrived last but is not the newest sample of the window
+        aggregator.add(DEVICE, "temperature", T0 + 500, 7.0, closed);
+        assertEquals(0, closed.count);
+
+        aggregator.add(DEVICE, "temperature", T0 + 1200, 2.0, closed);
+        assertEquals(DEVICE, closed.device);
+        assertEquals("temperature", closed.measurement);
+        assertEquals(T0, closed.start);
+        assertEquals(3, closed.count);
+        assertEquals(1.0, closed.min, 0.0);
+        assertEquals(7.0, closed.max, 0.0);
+        assertEquals(12.0, closed.sum, 0.0);
+        assertEquals(1.0, closed.last, 0.0);
+        assertEquals(4, aggregator.sampleCount());
+        assertEquals(1, aggregator.windowCount());
+    }
+
+    @Test
+    public void testWrittenWindowIsNotReopened() {
+        WindowAggregator aggregator = aggregator(1000, "**", "", 1000);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+
+        aggregator.add(DEVICE, "level", T0 + 1500, 1.0, closed);
+        aggregator.add(DEVICE, "level", T0 + 500, 2.0, closed);
+        aggregator.add(DEVICE, "level", T0 + 2100, 3.0, closed);
+        assertEquals(1, closed.count);
+        aggregator.add(DEVICE, "level", T0 + 1900, 4.0, closed);
+        assertEquals(0, closed.count);
+
+        assertEquals(2, aggregator.lateCount());
+        assertEquals(2, aggregator.sampleCount());
+    }
+
+    @Test
+    public void testPathPatternsChooseMode() {
+        WindowAggregator aggregator = aggregator(1000, "root.mqtt.**.vibration_*,**.pressure", "**.pressure", 1000);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+
+        assertEquals(WindowAggregator.Mode.AGGREGATE, aggregator.add(DEVICE, "vibration_x", T0, 1.0, closed));
+        assertEquals(WindowAggregator.Mode.AGGREGATE_AND_RAW, aggregator.add(DEVICE, "pressure", T0, 1.0, closed));
+        assertEquals(WindowAggregator.Mode.RAW, aggregator.add(DEVICE, "temperature", T0, 1.0, closed));
+        assertEquals(WindowAggregator.Mode.RAW, aggregator.add("root.other.press1", "vibration_x", T0, 1.0, closed));
+        assertEquals(2, aggregator.sampleCount());
+
+        PathPattern pattern = new PathPattern("root.*.line*.**");
+        assertTrue(pattern.matches("root.mqtt.line2.press1", "speed"));
+        assertTrue(pattern.matches("root.mqtt.line", "speed"));
+        // ** matches at least one node
+        assertFalse(pattern.matches("root.mqtt", "line2"));
+        assertFalse(pattern.matches("root.a.b.line2", "speed"));
+    }
+
+    @Test
+    public void testQuietSeriesAreClosedBySweep() {
+        WindowAggregator aggregator = aggregator(1000, "**", "", 1000);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+        aggregator.add(DEVICE, "a", T0, 1.0, closed);
+        aggregator.add(DEVICE, "b", T0, 2.0, closed);
+        long now = System.currentTimeMillis();
+
+        assertTrue(aggregator.closeExpired(now).isEmpty());
+        List<WindowAggregator.Window> expired = aggregator.closeExpired(now + 5000);
+        assertEquals(2, expired.size());
+        assertTrue(aggregator.closeExpired(now + 10000).isEmpty());
+
+        // Once per second at most
+        assertTrue(aggregator.isSweepDue(now));
+        assertFalse(aggregator.isSweepDue(now + 500));
+        assertTrue(aggregator.isSweepDue(now + 1000));
+    }
+
+    @Test
+    public void testForgottenSeriesWindowIsClosed() {
+        WindowAggregator aggregator = aggregator(1000, "**", "", 16);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+        long windows = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            aggregator.add(DEVICE, "tag" + i, T0, i, closed);
+            windows += closed.count > 0 ? 1 : 0;
+        }
+        assertTrue(windows > 0);
+        assertEquals(windows, aggregator.windowCount());
+    }
+
+    @Test
+    public void testEvictedSeriesDoesNotRewriteWindow() {
+        // One slot per stripe, so any second aggregated series in a stripe evicts the first
+        WindowAggregator aggregator = aggregator(1000, "**.level*", "", 16);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+        aggregator.add(DEVICE, "level", T0 + 100, 5.0, closed);
+        aggregator.add(DEVICE, "level", T0 + 200, 3.0, closed);
+
+        // Series that are not aggregated take no slot
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(WindowAggregator.Mode.RAW, aggregator.add(DEVICE, "tag" + i, T0 + 300, i, closed));
+            assertEquals(0, closed.count);
+        }
+        aggregator.add(DEVICE, "level", T0 + 400, 4.0, closed);
+        assertEquals(0, aggregator.windowCount());
+
+        List<WindowAggregator.Window> written = new ArrayList<>();
+        long stripe = SeriesKey.of(DEVICE, "level") >>> 60;
+        for (int i = 0; written.isEmpty(); i++) {
+            if (SeriesKey.of(DEVICE, "level" + i) >>> 60 == stripe) {
+                aggregator.add(DEVICE, "level" + i, T0 + 500, 1.0, closed);
+                if (closed.count > 0) {
+                    written.add(copy(closed));
+                }
+            }
+        }
+        assertEquals(T0, written.get(0).start);
+        assertEquals(3, written.get(0).count);
+        assertEquals(5.0, written.get(0).max, 0.0);
+
+        // Back after eviction: its window at T0 was written and stays closed
+        long late = aggregator.lateCount();
+        aggregator.add(DEVICE, "level", T0 + 600, 2.0, closed);
+        assertEquals(late + 1, aggregator.lateCount());
+        aggregator.add(DEVICE, "level", T0 + 1100, 2.0, closed);
+        assertEquals(0, closed.count);
+        for (WindowAggregator.Window window : aggregator.closeExpired(Long.MAX_VALUE)) {
+            assertNotEquals(T0, window.start);
+        }
+    }
+
+    @Test
+    public void testSeriesAfterEvictionKeepsItsWindow() {
+        // One slot per stripe, so any second series in a stripe evicts the first
+        WindowAggregator aggregator = aggregator(1000, "**", "", 16);
+        WindowAggregator.Window closed = new WindowAggregator.Window();
+        long stripe = SeriesKey.of(DEVICE, "level") >>> 60;
+        List<String> others = new ArrayList<>();
+        for (int i = 0; others.size() < 2; i++) {
+            if (SeriesKey.of(DEVICE, "tag" + i) >>> 60 == stripe) {
+                others.add("tag" + i);
+            }
+        }
+
+        aggregator.add(DEVICE, "level", T0 + 100, 5.0, closed);
+        aggregator.add(DEVICE, others.get(0), T0 + 200, 1.0, closed);
+        // The evicted series' window at T0 was written early
+        assertEquals(T0, closed.start);
+        assertEquals("level", closed.measurement);
+
+        // Series unrelated to the evicted one still aggregate the window at T0
+        aggregator.add(DEVICE, others.get(1), T0 + 300, 2.0, closed);
+        assertEquals(others.get(0), closed.measurement);
+        assertEquals(T0, closed.start);
+        aggregator.add(DEVICE, others.get(1), T0 + 400, 3.0, closed);
+        assertEquals(0, aggregator.lateCount());
+        assertEquals(4, aggregator.sampleCount());
+        List<WindowAggregator.Window> expired = aggregator.closeExpired(Long.MAX_VALUE);
+        assertEquals(1, expired.size());
+        assertEquals(others.get(1), expired.get(0).measurement);
+        assertEquals(T0, expired.get(0).start);
+        assertEquals(2, expired.get(0).count);
+    }
+
+    @Test
+    public void testFormatterWritesWindowRows() throws Exception {
+        for (FormatterConfig.Decoder decoder : FormatterConfig.Decoder.values()) {
+            Properties config = new Properties();
+            config.setProperty(FormatterConfig.DECODER, decoder.name());
+            config.setProperty(FormatterConfig.AGGREGATION_WINDOW_MS, "1000");
+            config.setProperty(FormatterConfig.AGGREGATION_PATHS, "**.temperature,**.pressure");
+            config.setProperty(FormatterConfig.AGGREGATION_RAW_PATHS, "**.pressure");
+            CustomizedSparkplugPayloadFormatter formatter =
+                new CustomizedSparkplugPayloadFormatter(new FormatterConfig(config));
+
+            // Temperature is aggregated only, pressure written raw too, booleans and strings as usual
+            byte[] first = publish(T0, metric("Temperature", 1.0), metric("Pressure", 5.0),
+                metric("Running", true), metric("Mode", "Auto"));
+            byte[] second = publish(T0 + 500, metric("Temperature", 3.0), metric("Pressure", 7.0),
+                metric("Running", true), metric("Mode", "Auto"));
+            byte[] nextWindow = publish(T0 + 1000, metric("Temperature", 2.0), metric("Pressure", 6.0),
+                metric("Running", true), metric("Mode", "Auto"));
+            assertEquals(Arrays.asList("pressure", "running", "mode"),
+                measurements(formatter.format(NDATA, Unpooled.wrappedBuffer(first))));
+            assertEquals(3, formatter.format(NDATA, Unpooled.wrappedBuffer(second)).size());
+
+            List<Message> messages = formatter.format(NDATA, Unpooled.wrappedBuffer(nextWindow));
+            assertEquals(decoder.name(), 5, messages.size());
+            Message window = messages.get(0);
+            assertEquals(Long.valueOf(T0), window.getTimestamp());
+            assertEquals(Arrays.asList("temperature_min", "temperature_max", "temperature_avg",
+                "temperature_count", "temperature_last"), window.getMeasurements());
+            assertEquals(Arrays.asList("1.000000", "3.000000", "2.000000", "2", "3.000000"), window.getValues());
+            assertEquals("pressure_min", messages.get(1).getMeasurements().get(0));
+            assertEquals(Collections.singletonList("pressure"), messages.get(2).getMeasurements());
+
+            assertEquals(6, formatter.getStats().getAggregatedSamples());
+            assertEquals(2, formatter.getStats().getAggregateWindows());
+        }
+    }
+
+    private static WindowAggregator aggregator(long window, String paths, String raw, int maxSeries) {
+        return new WindowAggregator(window, PathPattern.parseList(paths), PathPattern.parseList(raw), maxSeries);
+    }
+
+    private static WindowAggregator.Window copy(WindowAggregator.Window window) {
+        WindowAggregator.Window copy = new WindowAggregator.Window();
+        copy.start = window.start;
+        copy.count = window.count;
+        copy.max = window.max;
+        return copy;
+    }
+
+    private static List<String> measurements(List<Message> messages) {
+        List<String> measurements = new ArrayList<>();
+        for (Message message : messages) {
+            measurements.addAll(message.getMeasurements());
+        }
+        return measurements;
+    }
+}